@@ -25,6 +25,7 @@ import org.bitcoinj.script.ScriptException;
 import org.bitcoinj.store.*;
 import org.bitcoinj.utils.*;
 import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletRelevanceIndex;
 import org.slf4j.*;
 
 import javax.annotation.*;
@@ -105,6 +106,8 @@ public abstract class AbstractBlockChain {
     private final CopyOnWriteArrayList<ListenerRegistration<NewBestBlockListener>> newBestBlockListeners;
     private final CopyOnWriteArrayList<ListenerRegistration<ReorganizeListener>> reorganizeListeners;
     private final CopyOnWriteArrayList<ListenerRegistration<TransactionReceivedInBlockListener>> transactionReceivedListeners;
+    // Finds the wallets each transaction is relevant to, if enabled.
+    @Nullable private volatile WalletRelevanceIndex relevanceIndex;
 
     // Holds a block header and, optionally, a list of tx hashes or block's transactions
     class OrphanBlock {
@@ -172,6 +175,9 @@ public abstract class AbstractBlockChain {
         addNewBestBlockListener(Threading.SAME_THREAD, wallet);
         addReorganizeListener(Threading.SAME_THREAD, wallet);
         addTransactionReceivedListener(Threading.SAME_THREAD, wallet);
+        WalletRelevanceIndex index = relevanceIndex;
+        if (index != null)
+            index.add(wallet);
         int walletHeight = wallet.getLastBlockSeenHeight();
         int chainHeight = getBestChainHeight();
         if (walletHeight != chainHeight) {
@@ -197,6 +203,46 @@ public abstract class AbstractBlockChain {
         removeNewBestBlockListener(wallet);
         removeReorganizeListener(wallet);
         removeTransactionReceivedListener(wallet);
+        WalletRelevanceIndex index = relevanceIndex;
+        if (index != null)
+            index.remove(wallet);
+    }
+
+    /**
+     * <p>Enables or disables giving the transactions of blocks only to the wallets they may be relevant to, as found
+     * by a {@link WalletRelevanceIndex}, instead of to every wallet. Each wallet checks every transaction it is given,
+     * so with many wallets on one chain this is where most of the time goes.</p>
+     *
+     * <p>The index covers the wallets added with {@link #addWallet(Wallet)} or the constructor, and is only used for
+     * blocks with all their transactions. Filtered blocks are still given to every wallet.</p>
+     */
+    public void setRelevanceIndexEnabled(boolean enabled) {
+        lock.lock();
+        try {
+            if (enabled == (relevanceIndex != null))
+                return;
+            if (enabled) {
+                WalletRelevanceIndex index = new WalletRelevanceIndex();
+                for (ListenerRegistration<TransactionReceivedInBlockListener> registration : transactionReceivedListeners) {
+                    if (registration.executor == Threading.SAME_THREAD && registration.listener instanceof Wallet)
+                        index.add((Wallet) registration.listener);
+                }
+                relevanceIndex = index;
+            } else {
+                for (ListenerRegistration<TransactionReceivedInBlockListener> registration : transactionReceivedListeners) {
+                    if (registration.listener instanceof Wallet)
+                        relevanceIndex.remove((Wallet) registration.listener);
+                }
+                relevanceIndex = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true if transactions are only given to the wallets they may be relevant to. */
+    public boolean isRelevanceIndexEnabled() {
+        return relevanceIndex != null;
     }
 
     /**
@@ -601,7 +647,20 @@ public abstract class AbstractBlockChain {
         Set<Sha256Hash> falsePositives = Sets.newHashSet();
         if (filteredTxHashList != null) falsePositives.addAll(filteredTxHashList);
 
+        WalletRelevanceIndex index = block.getTransactions() != null ? relevanceIndex : null;
+        boolean sentToIndexedWallets = false;
         for (final ListenerRegistration<TransactionReceivedInBlockListener> registration : transactionReceivedListeners) {
+            if (index != null && registration.executor == Threading.SAME_THREAD
+                    && registration.listener instanceof Wallet && index.contains((Wallet) registration.listener)) {
+                // All the wallets in the index get their transactions in one go, when the first of them comes up.
+                if (!sentToIndexedWallets) {
+                    sendTransactionsToIndexedWallets(newStoredBlock, newBlockType, index, block.getTransactions(),
+                            !first, falsePositives);
+                    sentToIndexedWallets = true;
+                    first = false;
+                }
+                continue;
+            }
             if (registration.executor == Threading.SAME_THREAD) {
                 informListenerForNewTransactions(block, newBlockType, filteredTxHashList, filteredTxn,
                         newStoredBlock, first, registration.listener, falsePositives);
@@ -869,6 +928,23 @@ public abstract class AbstractBlockChain {
         }
     }
 
+    private static void sendTransactionsToIndexedWallets(StoredBlock block, NewBlockType blockType,
+                                                         WalletRelevanceIndex index, List<Transaction> transactions,
+                                                         boolean clone,
+                                                         Set<Sha256Hash> falsePositives) throws VerificationException {
+        int relativityOffset = 0;
+        for (Transaction tx : transactions) {
+            // Looked up one transaction at a time, as receiving the ones before can make wallets derive new keys.
+            boolean cloneTx = clone;
+            for (Wallet wallet : index.getRelevantWallets(tx)) {
+                sendTransactionsToListener(block, blockType, wallet, relativityOffset, Collections.singletonList(tx),
+                        cloneTx, falsePositives);
+                cloneTx = true;
+            }
+            relativityOffset++;
+        }
+    }
+
     protected void setChainHead(StoredBlock chainHead) throws BlockStoreException {
         doSetChainHead(chainHead);
         synchronized (chainHeadLock) {
@@ -0,0 +1,529 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Remembers the addresses of peers and how well they served us: how long connecting and handshaking took, how
+ * often that worked, and how many bytes the peer sent us per second while connected. It can be saved to a file and
+ * loaded again, so that after a restart {@link PeerGroup} reconnects to peers known to be good straight away instead of
+ * waiting for peer discovery. See {@link PeerGroup#setAddressManager(AddressManager)}.</p>
+ *
+ * <p>Like the address manager of Bitcoin Core, addresses are kept in a table of new addresses, which we have heard
+ * of, and a table of tried addresses, which we have completed a handshake with. Each table is split into buckets of
+ * limited size, and an address goes into one of a handful of buckets picked by hashing its network group (its /16 for
+ * IPv4) with a random key. So somebody controlling many addresses in a few networks can only ever fill a few buckets,
+ * rather than push every good address out.</p>
+ *
+ * <p>{@link #getScore(PeerAddress)} rates an address between 0 and 1 from what has been recorded about it. The score
+ * only changes when something is recorded about the address.</p>
+ *
+ * <p>This class is thread safe.</p>
+ */
+public class AddressManager {
+    private static final Logger log = LoggerFactory.getLogger(AddressManager.class);
+
+    /** The number of buckets of the table of new addresses. */
+    public static final int NEW_BUCKET_COUNT = 256;
+    /** The number of buckets of the table of tried addresses. */
+    public static final int TRIED_BUCKET_COUNT = 64;
+    /** The most addresses held in one bucket. */
+    public static final int BUCKET_SIZE = 64;
+    // The most buckets of one table that the addresses of one network group can go to.
+    private static final int BUCKETS_PER_GROUP = 8;
+    // Addresses that failed this often in a row since they last worked are forgotten.
+    private static final int MAX_CONSECUTIVE_FAILURES = 10;
+    // Bandwidth at which an address gets half the bandwidth part of its score.
+    private static final long REFERENCE_BYTES_PER_SECOND = 100 * 1024;
+    // Latency at which an address gets half the latency part of its score.
+    private static final long REFERENCE_LATENCY_MILLIS = 1000;
+
+    private static final byte[] FILE_MAGIC = "BJAM".getBytes(StandardCharsets.US_ASCII);
+    private static final int FILE_VERSION = 1;
+
+    private final ReentrantLock lock = Threading.lock("addressmanager");
+    private final NetworkParameters params;
+    @Nullable private final File file;
+    private byte[] key;
+    private final Map<InetSocketAddress, Entry> entries = new HashMap<>();
+    private final List<List<Entry>> newBuckets = createBuckets(NEW_BUCKET_COUNT);
+    private final List<List<Entry>> triedBuckets = createBuckets(TRIED_BUCKET_COUNT);
+
+    // What we know about one address. Guarded by the manager's lock.
+    private static class Entry {
+        final InetSocketAddress address;
+        boolean tried;
+        int attempts;
+        int successes;
+        int consecutiveFailures;
+        long lastAttemptTime;
+        long lastSuccessTime;
+        // Smoothed handshake and ping latency, or -1 if never measured.
+        long latencyMillis = -1;
+        long bytesReceived;
+        long connectedMillis;
+
+        Entry(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        double getScore() {
+            // Unknown addresses start out with a reliability of one half, and a failure since the last success
+            // halves it.
+            double reliability = (successes + 1.0) / (attempts + 2.0) / (1 << Math.min(consecutiveFailures, 30));
+            double speed = latencyMillis < 0 ? 0.5 : 1.0 / (1.0 + (double) latencyMillis / REFERENCE_LATENCY_MILLIS);
+            double bandwidth = 0.5;
+            if (connectedMillis > 0) {
+                double bytesPerSecond = bytesReceived * 1000.0 / connectedMillis;
+                bandwidth = bytesPerSecond / (bytesPerSecond + REFERENCE_BYTES_PER_SECOND);
+            }
+            return reliability * (speed + bandwidth) / 2;
+        }
+
+        void addLatencySample(long sample) {
+            latencyMillis = latencyMillis < 0 ? sample : (latencyMillis * 3 + sample) / 4;
+        }
+    }
+
+    /** Creates an address manager that is kept in memory only. */
+    public AddressManager(NetworkParameters params) {
+        this.params = checkNotNull(params);
+        this.file = null;
+        this.key = createKey();
+    }
+
+    /**
+     * Creates an address manager that is saved to the given file by {@link #save()}, loading what the file holds if it
+     * exists.
+     *
+     * @throws IOException if the file exists but cannot be read, or is not an address file of the given network
+     */
+    public AddressManager(NetworkParameters params, File file) throws IOException {
+        this.params = checkNotNull(params);
+        this.file = checkNotNull(file);
+        if (file.exists()) {
+            try (InputStream stream = new BufferedInputStream(new FileInputStream(file))) {
+                load(stream);
+            }
+            log.info("Loaded {} addresses from {}", entries.size(), file);
+        } else {
+            this.key = createKey();
+        }
+    }
+
+    // The bucketing key. Each manager has its own so that others can't work out which addresses share buckets.
+    private static byte[] createKey() {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        return key;
+    }
+
+    private static List<List<Entry>> createBuckets(int count) {
+        List<List<Entry>> buckets = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            buckets.add(new ArrayList<Entry>());
+        return buckets;
+    }
+
+    /**
+     * Adds an address we have heard of to the table of new addresses, unless it is known already. If its bucket is full
+     * the worst address of the bucket makes room for it.
+     */
+    public void add(PeerAddress address) {
+        lock.lock();
+        try {
+            getOrAdd(address.toSocketAddress());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that we are starting to connect to the given address. */
+    public void markAttempt(PeerAddress address) {
+        lock.lock();
+        try {
+            Entry entry = getOrAdd(address.toSocketAddress());
+            entry.attempts++;
+            entry.lastAttemptTime = Utils.currentTimeMillis();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records that we completed the version handshake with the given address, and moves it to the table of tried
+     * addresses. The time since {@link #markAttempt(PeerAddress)} counts as a latency sample.
+     */
+    public void markGood(PeerAddress address) {
+        lock.lock();
+        try {
+            Entry entry = getOrAdd(address.toSocketAddress());
+            long now = Utils.currentTimeMillis();
+            if (entry.lastAttemptTime > 0 && entry.lastAttemptTime <= now)
+                entry.addLatencySample(now - entry.lastAttemptTime);
+            entry.successes++;
+            entry.consecutiveFailures = 0;
+            entry.lastSuccessTime = now;
+            if (!entry.tried)
+                moveToTried(entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records that connecting to the given address, or handshaking with it, failed. Addresses that keep failing are
+     * eventually forgotten.
+     */
+    public void markFailed(PeerAddress address) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(address.toSocketAddress());
+            if (entry == null)
+                return;
+            entry.consecutiveFailures++;
+            if (entry.consecutiveFailures >= MAX_CONSECUTIVE_FAILURES)
+                remove(entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records how a connection to the given address went once it has closed: how many bytes the peer sent us since
+     * {@link #markGood(PeerAddress)}, and the peer's ping time, or {@link Long#MAX_VALUE} if it was never measured.
+     */
+    public void markDisconnected(PeerAddress address, long bytesReceived, long pingTimeMillis) {
+        checkArgument(bytesReceived >= 0);
+        lock.lock();
+        try {
+            Entry entry = entries.get(address.toSocketAddress());
+            if (entry == null || entry.lastSuccessTime == 0)
+                return;
+            long connectedMillis = Utils.currentTimeMillis() - entry.lastSuccessTime;
+            if (connectedMillis > 0) {
+                entry.bytesReceived += bytesReceived;
+                entry.connectedMillis += connectedMillis;
+            }
+            if (pingTimeMillis != Long.MAX_VALUE)
+                entry.addLatencySample(pingTimeMillis);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how well the given address has served us, between 0 and 1. Addresses we know nothing about get 0.25;
+     * addresses that connect quickly, reliably and send data fast get close to 1.
+     */
+    public double getScore(PeerAddress address) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(address.toSocketAddress());
+            return entry == null ? new Entry(address.toSocketAddress()).getScore() : entry.getScore();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true if we completed a handshake with the given address since it was last pushed out of the tried table. */
+    public boolean isTried(PeerAddress address) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(address.toSocketAddress());
+            return entry != null && entry.tried;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of addresses known. */
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns up to the given number of addresses, tried addresses first and otherwise the best scoring first, so that
+     * they can be connected to in that order.
+     */
+    public List<PeerAddress> getAddresses(int max) {
+        List<Entry> sorted;
+        lock.lock();
+        try {
+            sorted = new ArrayList<>(entries.values());
+            Collections.sort(sorted, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry a, Entry b) {
+                    if (a.tried != b.tried)
+                        return a.tried ? -1 : 1;
+                    return Double.compare(b.getScore(), a.getScore());
+                }
+            });
+        } finally {
+            lock.unlock();
+        }
+        List<PeerAddress> result = new ArrayList<>(Math.min(max, sorted.size()));
+        for (Entry entry : sorted) {
+            if (result.size() >= max)
+                break;
+            result.add(new PeerAddress(params, entry.address));
+        }
+        return result;
+    }
+
+    /**
+     * Writes the addresses to the file given to the constructor, first to a temporary file and then renaming it. Does
+     * nothing for a manager kept in memory only.
+     */
+    public void save() throws IOException {
+        if (file == null)
+            return;
+        File directory = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile("addresses", null, directory);
+        try {
+            FileOutputStream fileStream = new FileOutputStream(temp);
+            try {
+                OutputStream stream = new BufferedOutputStream(fileStream);
+                save(stream);
+                stream.flush();
+                fileStream.getFD().sync();
+            } finally {
+                fileStream.close();
+            }
+            if (Utils.isWindows()) {
+                // Work around an issue on Windows whereby you can't rename over existing files.
+                File canonical = file.getCanonicalFile();
+                if (canonical.exists() && !canonical.delete())
+                    throw new IOException("Failed to delete " + canonical + " for replacement");
+                if (!temp.renameTo(canonical))
+                    throw new IOException("Failed to rename " + temp + " to " + canonical);
+            } else if (!temp.renameTo(file)) {
+                throw new IOException("Failed to rename " + temp + " to " + file);
+            }
+        } finally {
+            if (temp.exists() && !temp.delete())
+                log.warn("Could not delete temp file {}", temp);
+        }
+    }
+
+    /** Writes the addresses and their statistics to the given stream. */
+    void save(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        lock.lock();
+        try {
+            out.write(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(params.getId());
+            out.write(key);
+            out.writeInt(entries.size());
+            for (Entry entry : entries.values()) {
+                out.writeBoolean(entry.tried);
+                InetSocketAddress address = entry.address;
+                if (address.isUnresolved()) {
+                    out.writeByte(0);
+                    out.writeUTF(address.getHostString());
+                } else {
+                    byte[] ip = address.getAddress().getAddress();
+                    out.writeByte(ip.length);
+                    out.write(ip);
+                }
+                out.writeShort(address.getPort());
+                out.writeInt(entry.attempts);
+                out.writeInt(entry.successes);
+                out.writeInt(entry.consecutiveFailures);
+                out.writeLong(entry.lastAttemptTime);
+                out.writeLong(entry.lastSuccessTime);
+                out.writeLong(entry.latencyMillis);
+                out.writeLong(entry.bytesReceived);
+                out.writeLong(entry.connectedMillis);
+            }
+        } finally {
+            lock.unlock();
+        }
+        out.flush();
+    }
+
+    // Reads what save(OutputStream) wrote. Only called from the constructor.
+    private void load(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        byte[] magic = new byte[FILE_MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, FILE_MAGIC))
+            throw new IOException("Not an address file");
+        int version = in.readInt();
+        if (version != FILE_VERSION)
+            throw new IOException("Unknown address file version " + version);
+        String id = in.readUTF();
+        if (!id.equals(params.getId()))
+            throw new IOException("Address file is for " + id + ", not " + params.getId());
+        key = new byte[32];
+        in.readFully(key);
+        int count = in.readInt();
+        lock.lock();
+        try {
+            for (int i = 0; i < count; i++) {
+                boolean tried = in.readBoolean();
+                int length = in.readUnsignedByte();
+                String hostname = null;
+                byte[] ip = null;
+                if (length == 0) {
+                    hostname = in.readUTF();
+                } else {
+                    ip = new byte[length];
+                    in.readFully(ip);
+                }
+                int port = in.readUnsignedShort();
+                InetSocketAddress address = hostname != null ? InetSocketAddress.createUnresolved(hostname, port)
+                        : new InetSocketAddress(InetAddress.getByAddress(ip), port);
+                Entry entry = getOrAdd(address);
+                entry.attempts = in.readInt();
+                entry.successes = in.readInt();
+                entry.consecutiveFailures = in.readInt();
+                entry.lastAttemptTime = in.readLong();
+                entry.lastSuccessTime = in.readLong();
+                entry.latencyMillis = in.readLong();
+                entry.bytesReceived = in.readLong();
+                entry.connectedMillis = in.readLong();
+                if (tried && !entry.tried)
+                    moveToTried(entry);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns the entry of the given address, adding it to the new table if it is unknown.
+    private Entry getOrAdd(InetSocketAddress address) {
+        Entry entry = entries.get(address);
+        if (entry != null)
+            return entry;
+        entry = new Entry(address);
+        addToNew(entry);
+        return entry;
+    }
+
+    private void addToNew(Entry entry) {
+        List<Entry> bucket = newBuckets.get(bucketOf(entry.address, NEW_BUCKET_COUNT));
+        if (bucket.size() >= BUCKET_SIZE)
+            remove(worst(bucket));
+        entry.tried = false;
+        bucket.add(entry);
+        entries.put(entry.address, entry);
+    }
+
+    // Moves an entry of the new table to the tried table. If its tried bucket is full, the worst entry there goes back
+    // to the new table.
+    private void moveToTried(Entry entry) {
+        newBuckets.get(bucketOf(entry.address, NEW_BUCKET_COUNT)).remove(entry);
+        List<Entry> bucket = triedBuckets.get(bucketOf(entry.address, TRIED_BUCKET_COUNT));
+        if (bucket.size() >= BUCKET_SIZE) {
+            Entry demoted = worst(bucket);
+            bucket.remove(demoted);
+            entries.remove(demoted.address);
+            addToNew(demoted);
+        }
+        entry.tried = true;
+        bucket.add(entry);
+    }
+
+    private void remove(Entry entry) {
+        if (entry.tried)
+            triedBuckets.get(bucketOf(entry.address, TRIED_BUCKET_COUNT)).remove(entry);
+        else
+            newBuckets.get(bucketOf(entry.address, NEW_BUCKET_COUNT)).remove(entry);
+        entries.remove(entry.address);
+    }
+
+    private static Entry worst(List<Entry> bucket) {
+        Entry worst = null;
+        for (Entry entry : bucket) {
+            if (worst == null || entry.getScore() < worst.getScore()
+                    || (entry.getScore() == worst.getScore() && entry.lastSuccessTime < worst.lastSuccessTime))
+                worst = entry;
+        }
+        return worst;
+    }
+
+    // Picks the bucket of the given address: one of BUCKETS_PER_GROUP buckets for its network group, depending on the
+    // address itself.
+    private int bucketOf(InetSocketAddress address, int bucketCount) {
+        byte[] group = getGroup(address);
+        byte[] addressBytes = (address.getHostString() + ":" + address.getPort()).getBytes(StandardCharsets.UTF_8);
+        long slot = hashToLong(key, new byte[] { (byte) bucketCount }, addressBytes) % BUCKETS_PER_GROUP;
+        if (slot < 0)
+            slot += BUCKETS_PER_GROUP;
+        long bucket = hashToLong(key, new byte[] { (byte) bucketCount, (byte) slot }, group) % bucketCount;
+        return (int) (bucket < 0 ? bucket + bucketCount : bucket);
+    }
+
+    // The network group of an address: its /16 for IPv4, its /32 for IPv6 and the whole name for unresolved hosts
+    // like .onion addresses.
+    private static byte[] getGroup(InetSocketAddress address) {
+        if (address.isUnresolved())
+            return address.getHostString().getBytes(StandardCharsets.UTF_8);
+        byte[] ip = address.getAddress().getAddress();
+        return Arrays.copyOf(ip, ip.length == 4 ? 2 : 4);
+    }
+
+    private static long hashToLong(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts)
+            length += part.length;
+        byte[] input = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, input, offset, part.length);
+            offset += part.length;
+        }
+        return Utils.readInt64(Sha256Hash.hash(input), 0);
+    }
+}
@@ -17,6 +17,7 @@
 
 package org.bitcoinj.core;
 
+import org.bitcoinj.net.ByteBufferPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -123,6 +124,31 @@ public class BitcoinSerializer extends MessageSerializer {
         serialize(name, message.bitcoinSerialize(), out);
     }
 
+    /**
+     * Writes message straight into a pooled buffer, header and all, and returns the buffer ready to be read from.
+     */
+    @Override
+    public ByteBuffer serialize(Message message, ByteBufferPool pool) {
+        String name = names.get(message.getClass());
+        if (name == null) {
+            throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
+        }
+        byte[] payload = message.bitcoinSerialize();
+        ByteBuffer buffer = pool.acquire(4 + COMMAND_LEN + 4 + 4 + payload.length);
+        // The magic is big endian, like the buffer, and the length little endian.
+        buffer.putInt((int) params.getPacketMagic());
+        for (int i = 0; i < COMMAND_LEN; i++)
+            buffer.put(i < name.length() ? (byte) (name.codePointAt(i) & 0xFF) : 0);
+        buffer.putInt(Integer.reverseBytes(payload.length));
+        buffer.put(Sha256Hash.hashTwice(payload), 0, 4);
+        buffer.put(payload);
+        buffer.flip();
+
+        if (log.isDebugEnabled())
+            log.debug("Sending {} message: {}", name, HEX.encode(payload));
+        return buffer;
+    }
+
     /**
      * Reads a message from the given ByteBuffer and returns it.
      */
@@ -18,6 +18,9 @@
 
 package org.bitcoinj.core;
 
+import org.bitcoinj.net.ByteBufferPool;
+
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.BufferUnderflowException;
@@ -163,5 +166,20 @@ public abstract class MessageSerializer {
      * it does not support serializing the given message.
      */
     public abstract void serialize(Message message, OutputStream out) throws IOException, UnsupportedOperationException;
+
+    /**
+     * Writes message to a buffer from the given pool and returns the buffer, ready to be read from. Whoever ends up
+     * with the buffer gives it back to the pool.
+     *
+     * @throws UnsupportedOperationException if this serializer/deserializer
+     * does not support serialization.
+     */
+    public ByteBuffer serialize(Message message, ByteBufferPool pool) throws IOException, UnsupportedOperationException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serialize(message, out);
+        ByteBuffer buffer = pool.acquire(out.size());
+        buffer.put(out.toByteArray()).flip();
+        return buffer;
+    }
     
 }
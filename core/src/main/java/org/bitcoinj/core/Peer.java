@@ -27,6 +27,7 @@ import org.bitcoinj.utils.ListenerRegistration;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Wallet;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.base.MoreObjects;
@@ -46,6 +47,7 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nullable;
 import java.net.SocketAddress;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.Executor;
@@ -125,16 +127,32 @@ public class Peer extends PeerSocketHandler {
     // It is important to avoid a nasty edge case where we can end up with parallel chain downloads proceeding
     // simultaneously if we were to receive a newly solved block whilst parts of the chain are streaming to us.
     private final HashSet<Sha256Hash> pendingBlockDownloads = new HashSet<>();
+    // Completed once pendingBlockDownloads is empty, see getBlockDownloadsDrainedFuture().
+    @GuardedBy("lock") private List<SettableFuture<Void>> blockDownloadsDrainedFutures = new ArrayList<>();
     // Keep references to TransactionConfidence objects for transactions that were announced by a remote peer, but
     // which we haven't downloaded yet. These objects are de-duplicated by the TxConfidenceTable class.
     // Once the tx is downloaded (by some peer), the Transaction object that is created will have a reference to
     // the confidence object held inside it, and it's then up to the event listeners that receive the Transaction
     // to keep it pinned to the root set if they care about this data.
+    //
+    // Transactions are also requested on behalf of the TxRequestTracker from other threads, so this is a concurrent set.
     @SuppressWarnings("MismatchedQueryAndUpdateOfCollection")
-    private final HashSet<TransactionConfidence> pendingTxDownloads = new HashSet<>();
+    private final Set<TransactionConfidence> pendingTxDownloads =
+            Collections.newSetFromMap(new ConcurrentHashMap<TransactionConfidence, Boolean>());
     private static final int PENDING_TX_DOWNLOADS_LIMIT = 100;
+    // If set, coordinates the download of announced transactions with the other peers of the PeerGroup.
+    @Nullable private volatile TxRequestTracker vTxRequestTracker;
+    // How many seconds' worth of announced transactions may be requested from a peer at once.
+    private static final int TX_ANNOUNCEMENT_BURST_SECONDS = 10;
+    // Announced transactions requested from the peer per second at most, or 0 for no limit.
+    private volatile int vMaxTxAnnouncementsPerSecond;
+    // Network thread only: how many announced transactions we may still request, topped up as time passes. Starts full.
+    private double txAnnouncementAllowance = Double.MAX_VALUE;
+    private long lastTxAnnouncementRefillNanos = System.nanoTime();
     // The lowest version number we're willing to accept. Lower than this will result in an immediate disconnect.
     private volatile int vMinProtocolVersion;
+    // Whether peers without a block chain are welcome, as they are when we serve them rather than download from them.
+    private volatile boolean vAcceptsClientPeers;
     // When an API user explicitly requests a block or transaction from a peer, the InventoryItem is put here
     // whilst waiting for the response. Is not used for downloads Peer generates itself.
     private static class GetDataRequest {
@@ -419,6 +437,17 @@ public class Peer extends PeerSocketHandler {
 
     @Override
     public void connectionClosed() {
+        cancelWritableFutures();
+        List<SettableFuture<Void>> drained;
+        lock.lock();
+        try {
+            drained = blockDownloadsDrainedFutures;
+            blockDownloadsDrainedFutures = new ArrayList<>();
+        } finally {
+            lock.unlock();
+        }
+        for (SettableFuture<Void> future : drained)
+            future.set(null);
         for (final ListenerRegistration<PeerDisconnectedEventListener> registration : disconnectedEventListeners) {
             registration.executor.execute(new Runnable() {
                 @Override
@@ -554,9 +583,9 @@ public class Peer extends PeerSocketHandler {
         // bitcoinj is a client mode implementation. That means there's not much point in us talking to other client
         // mode nodes because we can't download the data from them we need to find/verify transactions. Some bogus
         // implementations claim to have a block chain in their services field but then report a height of zero, filter
-        // them out here.
-        if (!vPeerVersionMessage.hasLimitedBlockChain() ||
-                (!params.allowEmptyPeerChain() && vPeerVersionMessage.bestHeight == 0)) {
+        // them out here. Unless we are serving the remote peer, which is then most likely a client.
+        if (!vAcceptsClientPeers && (!vPeerVersionMessage.hasLimitedBlockChain() ||
+                (!params.allowEmptyPeerChain() && vPeerVersionMessage.bestHeight == 0))) {
             // Shut down the channel gracefully.
             log.info("{}: Peer does not have at least a recent part of the block chain.", this);
             close();
@@ -626,6 +655,13 @@ public class Peer extends PeerSocketHandler {
         // in the chain).
         //
         // We go through and cancel the pending getdata futures for the items we were told weren't found.
+        TxRequestTracker tracker = vTxRequestTracker;
+        if (tracker != null) {
+            for (InventoryItem item : m.getItems()) {
+                if (item.type == InventoryItem.Type.TRANSACTION)
+                    tracker.notFound(this, item.hash);
+            }
+        }
         for (GetDataRequest req : getDataFutures) {
             for (InventoryItem item : m.getItems()) {
                 if (item.hash.equals(req.hash)) {
@@ -748,8 +784,25 @@ public class Peer extends PeerSocketHandler {
             return;
         }
         log.info("{}: Sending {} items gathered from listeners to peer", getAddress(), items.size());
-        for (Message item : items) {
-            sendMessage(item);
+        sendWhileWritable(items.iterator());
+    }
+
+    // Sends the items as long as the connection keeps up, and carries on once it has caught up whenever it falls
+    // behind, so that serving a big request (like a run of blocks) doesn't overflow the outbound buffer.
+    private void sendWhileWritable(final Iterator<Message> items) {
+        while (items.hasNext()) {
+            if (!isWritable()) {
+                final ListenableFuture<Void> writable = getWritableFuture();
+                writable.addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!writable.isCancelled())
+                            sendWhileWritable(items);
+                    }
+                }, Threading.SAME_THREAD);
+                return;
+            }
+            sendMessage(items.next());
         }
     }
 
@@ -769,6 +822,9 @@ public class Peer extends PeerSocketHandler {
             TransactionConfidence confidence = tx.getConfidence();
             confidence.setSource(TransactionConfidence.Source.NETWORK);
             pendingTxDownloads.remove(confidence);
+            TxRequestTracker tracker = vTxRequestTracker;
+            if (tracker != null)
+                tracker.received(tx.getTxId());
             if (maybeHandleRequestedData(tx)) {
                 return;
             }
@@ -976,12 +1032,13 @@ public class Peer extends PeerSocketHandler {
             log.debug("Received block but was not configured with an AbstractBlockChain");
             return;
         }
-        // Did we lose download peer status after requesting block data?
-        if (!vDownloadData) {
+        // Did we lose download peer status after requesting block data? We still take the blocks we asked for, so that
+        // the next download peer can carry on after them.
+        boolean requested = blockDownloadArrived(m.getHash());
+        if (!vDownloadData && !requested) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHashAsString());
             return;
         }
-        pendingBlockDownloads.remove(m.getHash());
         try {
             // Otherwise it's a block sent to us because the peer thought we needed it, so add it to the block chain.
             if (blockChain.add(m)) {
@@ -1006,9 +1063,13 @@ public class Peer extends PeerSocketHandler {
                 //
                 // We only do this if we are not currently downloading headers. If we are then we don't want to kick
                 // off a request for lots more headers in parallel.
+                //
+                // Once we lost download peer status, asking for more is up to the new download peer.
                 lock.lock();
                 try {
-                    if (downloadBlockBodies) {
+                    if (!vDownloadData) {
+                        log.info("{}: Orphan block {} arrived after losing download peer status", this, m.getHash());
+                    } else if (downloadBlockBodies) {
                         final Block orphanRoot = checkNotNull(blockChain.getOrphanRoot(m.getHash()));
                         blockChainDownloadLocked(orphanRoot.getHash());
                     } else {
@@ -1024,6 +1085,9 @@ public class Peer extends PeerSocketHandler {
         } catch (PrunedException e) {
             // Unreachable when in SPV mode.
             throw new RuntimeException(e);
+        } finally {
+            if (requested)
+                maybeCompleteBlockDownloadsDrained();
         }
     }
 
@@ -1031,7 +1095,8 @@ public class Peer extends PeerSocketHandler {
     protected void endFilteredBlock(FilteredBlock m) {
         if (log.isDebugEnabled())
             log.debug("{}: Received broadcast filtered block {}", getAddress(), m.getHash().toString());
-        if (!vDownloadData) {
+        boolean requested = blockDownloadArrived(m.getBlockHeader().getHash());
+        if (!vDownloadData && !requested) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
             return;
         }
@@ -1042,7 +1107,6 @@ public class Peer extends PeerSocketHandler {
         // Note that we currently do nothing about peers which maliciously do not include transactions which
         // actually match our filter or which simply do not send us all the transactions we need: it can be fixed
         // by cross-checking peers against each other.
-        pendingBlockDownloads.remove(m.getBlockHeader().getHash());
         try {
             // It's a block sent to us because the peer thought we needed it, so maybe add it to the block chain.
             // The FilteredBlock m here contains a list of hashes, and may contain Transaction objects for a subset
@@ -1066,7 +1130,12 @@ public class Peer extends PeerSocketHandler {
             // we're going to discard, otherwise redundant filters might end up being queued and calculated.
             lock.lock();
             try {
-                if (awaitingFreshFilter != null) {
+                if (!vDownloadData && (awaitingFreshFilter != null || checkForFilterExhaustion(m))) {
+                    // We lost download peer status, so leave the block to the new download peer, which will get it
+                    // with the fresh filter.
+                    log.info("Discarding block {} because it needs a fresh filter", m.getHash());
+                    return;
+                } else if (awaitingFreshFilter != null) {
                     log.info("Discarding block {} because we're still waiting for a fresh filter", m.getHash());
                     // We must record the hashes of blocks we discard because you cannot do getblocks twice on the same
                     // range of blocks and get an inv both times, due to the codepath in Bitcoin Core hitting
@@ -1107,10 +1176,16 @@ public class Peer extends PeerSocketHandler {
                 // chain twice (or more!) on the same connection! The block chain would filter out the duplicates but
                 // only at a huge speed penalty. By finding the orphan root we ensure every getblocks looks the same
                 // no matter how many blocks are solved, and therefore that the (2) duplicate filtering can work.
+                //
+                // Once we lost download peer status, asking for more is up to the new download peer.
                 lock.lock();
                 try {
-                    final Block orphanRoot = checkNotNull(blockChain.getOrphanRoot(m.getHash()));
-                    blockChainDownloadLocked(orphanRoot.getHash());
+                    if (!vDownloadData) {
+                        log.info("{}: Orphan block {} arrived after losing download peer status", this, m.getHash());
+                    } else {
+                        final Block orphanRoot = checkNotNull(blockChain.getOrphanRoot(m.getHash()));
+                        blockChainDownloadLocked(orphanRoot.getHash());
+                    }
                 } finally {
                     lock.unlock();
                 }
@@ -1123,6 +1198,55 @@ public class Peer extends PeerSocketHandler {
             // data from the remote peer and fix things. Or just give up.
             // TODO: Request e.getHash() and submit it to the block store before any other blocks
             throw new RuntimeException(e);
+        } finally {
+            if (requested)
+                maybeCompleteBlockDownloadsDrained();
+        }
+    }
+
+    // Records that a block arrived, returning true if it was requested as part of the chain download.
+    private boolean blockDownloadArrived(Sha256Hash hash) {
+        lock.lock();
+        try {
+            return pendingBlockDownloads.remove(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called once a requested block has been processed, so that whoever waits for the downloads to drain finds the
+    // block in the chain.
+    private void maybeCompleteBlockDownloadsDrained() {
+        List<SettableFuture<Void>> drained;
+        lock.lock();
+        try {
+            if (!pendingBlockDownloads.isEmpty() || blockDownloadsDrainedFutures.isEmpty())
+                return;
+            drained = blockDownloadsDrainedFutures;
+            blockDownloadsDrainedFutures = new ArrayList<>();
+        } finally {
+            lock.unlock();
+        }
+        for (SettableFuture<Void> future : drained)
+            future.set(null);
+    }
+
+    /**
+     * Returns a future that completes once all the blocks requested from the peer so far as part of the chain download
+     * have arrived, or the connection closed. {@link PeerGroup} uses this to hand the chain download over to another
+     * peer: the old download peer, no longer downloading data, still delivers the blocks it was asked for, and the new
+     * one carries on after them.
+     */
+    public ListenableFuture<Void> getBlockDownloadsDrainedFuture() {
+        lock.lock();
+        try {
+            if (pendingBlockDownloads.isEmpty())
+                return Futures.immediateFuture(null);
+            SettableFuture<Void> future = SettableFuture.create();
+            blockDownloadsDrainedFutures.add(future);
+            return future;
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -1184,6 +1308,9 @@ public class Peer extends PeerSocketHandler {
         }
 
         final boolean downloadData = this.vDownloadData;
+        TxRequestTracker tracker = vTxRequestTracker;
+        final int maxTxAnnouncementsPerSecond = vMaxTxAnnouncementsPerSecond;
+        int overLimit = 0;
 
         if (transactions.size() == 0 && blocks.size() == 1) {
             // Single block announcement. If we're downloading the chain this is just a tickle to make us continue
@@ -1212,14 +1339,24 @@ public class Peer extends PeerSocketHandler {
             // sending us the transaction: currently we'll never try to re-fetch after a timeout.
             //
             // The line below can trigger confidence listeners.
+            //
+            // With a TxRequestTracker, the transaction is still only requested from one peer at a time, but asked from
+            // the next peer that announced it if that peer doesn't deliver in time.
             TransactionConfidence conf = context.getConfidenceTable().seen(item.hash, this.getAddress());
-            if (conf.numBroadcastPeers() > 1) {
-                // Some other peer already announced this so don't download.
-                it.remove();
-            } else if (conf.getSource().equals(TransactionConfidence.Source.SELF)) {
+            if (conf.getSource().equals(TransactionConfidence.Source.SELF)) {
                 // We created this transaction ourselves, so don't download.
                 it.remove();
+            } else if (maxTxAnnouncementsPerSecond > 0 && !hasTxAnnouncementAllowance(maxTxAnnouncementsPerSecond)) {
+                // Under heavy mempool load some peers announce far more transactions than we can use. The
+                // announcement is still counted above, but the transaction isn't requested from this peer.
+                it.remove();
+                overLimit++;
+            } else if (tracker != null ? !tracker.announced(this, item.hash) : conf.numBroadcastPeers() > 1) {
+                // Some other peer already announced this so don't download.
+                it.remove();
             } else {
+                if (maxTxAnnouncementsPerSecond > 0)
+                    txAnnouncementAllowance--;
                 log.debug("{}: getdata on tx {}", getAddress(), item.hash);
                 getdata.addTransaction(item.hash, vPeerVersionMessage.isWitnessSupported());
                 if (pendingTxDownloads.size() > PENDING_TX_DOWNLOADS_LIMIT) {
@@ -1231,6 +1368,8 @@ public class Peer extends PeerSocketHandler {
                 pendingTxDownloads.add(conf);
             }
         }
+        if (overLimit > 0)
+            log.debug("{}: Not requesting {} announced transactions over the rate limit", this, overLimit);
 
         // If we are requesting filteredblocks we have to send a ping after the getdata so that we have a clear
         // end to the final FilteredBlock's transactions (in the form of a pong) sent to us
@@ -1533,7 +1672,8 @@ public class Peer extends PeerSocketHandler {
     }
 
     /** Adds a ping time sample to the averaging window. */
-    private void addPingTimeData(long sample) {
+    @VisibleForTesting
+    void addPingTimeData(long sample) {
         lastPingTimesLock.lock();
         try {
             if (lastPingTimes == null) {
@@ -1679,6 +1819,15 @@ public class Peer extends PeerSocketHandler {
         return vPeerVersionMessage.bestHeight + blocksAnnounced.get();
     }
 
+    /**
+     * Sets whether the remote peer may be a client, without a block chain to offer. By default such peers are
+     * disconnected after the version handshake, as there is nothing to download from them. A peer serving the block
+     * chain to clients, like those of a {@link PeerServer}, accepts them.
+     */
+    public void setAcceptsClientPeers(boolean acceptsClientPeers) {
+        this.vAcceptsClientPeers = acceptsClientPeers;
+    }
+
     /**
      * The minimum P2P protocol version that is accepted. If the peer speaks a protocol version lower than this, it
      * will be disconnected.
@@ -1854,4 +2003,46 @@ public class Peer extends PeerSocketHandler {
     public void setDownloadTxDependencies(int depth) {
         vDownloadTxDependencyDepth = depth;
     }
+
+    /**
+     * Sets the tracker that coordinates the download of announced transactions with other peers, or null to request
+     * every transaction from the first peer that announced it, and never again.
+     */
+    public void setTxRequestTracker(@Nullable TxRequestTracker tracker) {
+        vTxRequestTracker = tracker;
+    }
+
+    /**
+     * Sets how many announced transactions are requested from this peer per second, or 0 for no limit, which is the
+     * default. The peer may announce ten seconds' worth at once. Every announcement is still recorded in the
+     * {@link TxConfidenceTable}, only the transactions over the limit aren't requested from this peer. With a
+     * {@link TxRequestTracker} they are requested from the next peer that announces them; without one, they are not
+     * requested at all.
+     */
+    public void setMaxTxAnnouncementsPerSecond(int maxTxAnnouncementsPerSecond) {
+        Preconditions.checkArgument(maxTxAnnouncementsPerSecond >= 0);
+        vMaxTxAnnouncementsPerSecond = maxTxAnnouncementsPerSecond;
+    }
+
+    // Tops up the allowance of announced transactions to request for the time passed, and returns true if there is
+    // one left.
+    private boolean hasTxAnnouncementAllowance(int maxPerSecond) {
+        long now = System.nanoTime();
+        double seconds = (now - lastTxAnnouncementRefillNanos) / 1e9;
+        lastTxAnnouncementRefillNanos = now;
+        txAnnouncementAllowance = Math.min((double) maxPerSecond * TX_ANNOUNCEMENT_BURST_SECONDS,
+                txAnnouncementAllowance + seconds * maxPerSecond);
+        return txAnnouncementAllowance >= 1;
+    }
+
+    /** Requests the given transactions, on behalf of the {@link TxRequestTracker}. */
+    void requestTransactions(List<Sha256Hash> txHashes) {
+        GetDataMessage getdata = new GetDataMessage(params);
+        for (Sha256Hash hash : txHashes) {
+            getdata.addTransaction(hash, vPeerVersionMessage.isWitnessSupported());
+            // Register with the garbage collector that we care about the confidence data for a while.
+            pendingTxDownloads.add(context.getConfidenceTable().getOrCreate(hash));
+        }
+        sendMessage(getdata);
+    }
 }
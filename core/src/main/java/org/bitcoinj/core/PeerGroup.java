@@ -39,6 +39,7 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.concurrent.locks.*;
 
 import static com.google.common.base.Preconditions.*;
@@ -100,7 +101,22 @@ public class PeerGroup implements TransactionBroadcaster {
 
     // Addresses to try to connect to, excluding active peers.
     @GuardedBy("lock") private final PriorityQueue<PeerAddress> inactives;
+    // The time each address in inactives is due to be tried, as it was when the address was queued. The queue is
+    // ordered by these rather than by the current scores, which the address manager may change at any time.
+    @GuardedBy("lock") private final Map<PeerAddress, Long> inactiveTryTimes;
     @GuardedBy("lock") private final Map<PeerAddress, ExponentialBackoff> backoffMap;
+    // Makes sure an announced transaction is only requested from one peer at a time.
+    private final TxRequestTracker txRequestTracker = new TxRequestTracker();
+    private volatile int vMaxTxAnnouncementsPerSecond;
+    // Remembers how well addresses served us, so that we can prefer the good ones, if set.
+    @Nullable @GuardedBy("lock") private AddressManager addressManager;
+    /**
+     * How far ahead of its turn an address with the best possible {@link AddressManager} score is tried, compared to an
+     * address with a score of zero.
+     */
+    public static final long ADDRESS_SCORE_HEAD_START_MILLIS = 1000;
+    // How often the addresses of the address manager are saved while running.
+    private static final long ADDRESS_SAVE_INTERVAL_MINUTES = 5;
 
     // Currently active peers. This is an ordered list rather than a set to make unit tests predictable.
     private final CopyOnWriteArrayList<Peer> peers;
@@ -342,13 +358,14 @@ public class PeerGroup implements TransactionBroadcaster {
             @Override
             public int compare(PeerAddress a, PeerAddress b) {
                 checkState(lock.isHeldByCurrentThread());
-                int result = backoffMap.get(a).compareTo(backoffMap.get(b));
+                int result = Long.compare(inactiveTryTimes.get(a), inactiveTryTimes.get(b));
                 // Sort by port if otherwise equals - for testing
                 if (result == 0)
                     result = Integer.compare(a.getPort(), b.getPort());
                 return result;
             }
         });
+        inactiveTryTimes = new HashMap<>();
         backoffMap = new HashMap<>();
         peers = new CopyOnWriteArrayList<>();
         pendingPeers = new CopyOnWriteArrayList<>();
@@ -359,6 +376,25 @@ public class PeerGroup implements TransactionBroadcaster {
         vMinRequiredProtocolVersion = params.getProtocolVersionNum(NetworkParameters.ProtocolVersion.BLOOM_FILTER);
     }
 
+    // The time the given address is due to be tried, brought forward for addresses that served us well before.
+    @GuardedBy("lock")
+    private long getTryTime(PeerAddress address) {
+        long retryTime = backoffMap.get(address).getRetryTime();
+        if (addressManager == null)
+            return retryTime;
+        return retryTime - (long) (addressManager.getScore(address) * ADDRESS_SCORE_HEAD_START_MILLIS);
+    }
+
+    // Adds the given address to the inactives queue, at the time it is due to be tried now. An address that is
+    // already queued is moved.
+    @GuardedBy("lock")
+    private void queueInactive(PeerAddress address) {
+        if (inactiveTryTimes.containsKey(address))
+            inactives.remove(address);
+        inactiveTryTimes.put(address, getTryTime(address));
+        inactives.offer(address);
+    }
+
     private CountDownLatch executorStartupLatch = new CountDownLatch(1);
 
     protected ListeningScheduledExecutorService createPrivateExecutor() {
@@ -489,6 +525,7 @@ public class PeerGroup implements TransactionBroadcaster {
                 PeerAddress addrToTry;
                 do {
                     addrToTry = inactives.poll();
+                    inactiveTryTimes.remove(addrToTry);
                 } while (ipv6Unreachable && addrToTry.getAddr() instanceof Inet6Address);
                 if (addrToTry == null) {
                     // We have exhausted the queue of reachable peers, so just settle down.
@@ -500,7 +537,7 @@ public class PeerGroup implements TransactionBroadcaster {
                 if (retryTime > now) {
                     long delay = retryTime - now;
                     log.info("Waiting {} ms before next connect attempt to {}", delay, addrToTry);
-                    inactives.add(addrToTry);
+                    queueInactive(addrToTry);
                     executor.schedule(this, delay, TimeUnit.MILLISECONDS);
                     return;
                 }
@@ -876,7 +913,9 @@ public class PeerGroup implements TransactionBroadcaster {
             if (backoffMap.containsKey(peerAddress))
                 return false;
             backoffMap.put(peerAddress, new ExponentialBackoff(peerBackoffParams));
-            inactives.offer(peerAddress);
+            if (addressManager != null)
+                addressManager.add(peerAddress);
+            queueInactive(peerAddress);
             return true;
         } finally {
             lock.unlock();
@@ -919,6 +958,75 @@ public class PeerGroup implements TransactionBroadcaster {
         }
     }
 
+    /**
+     * <p>Sets the address manager that records how well the addresses we connect to serve us. Addresses that connected
+     * quickly and reliably before, and sent us data fast, are then tried before others. The best of the addresses the
+     * manager knows, up to {@link #getMaxPeersToDiscoverCount()}, become candidates right away, so if the manager was
+     * loaded from a file the group connects to them as soon as it starts, without waiting for peer discovery.</p>
+     *
+     * <p>Discovered addresses are added to the manager. The group saves it with {@link AddressManager#save()} every
+     * few minutes while running, and when stopping.</p>
+     */
+    public void setAddressManager(AddressManager addressManager) {
+        lock.lock();
+        try {
+            this.addressManager = checkNotNull(addressManager);
+            for (PeerAddress address : addressManager.getAddresses(vMaxPeersToDiscoverCount))
+                addInactive(address);
+            // The order of the queued addresses depends on the manager, so queue them again.
+            List<PeerAddress> queued = new ArrayList<>(inactives);
+            inactives.clear();
+            inactiveTryTimes.clear();
+            for (PeerAddress address : queued)
+                queueInactive(address);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the address manager set with {@link #setAddressManager(AddressManager)}, or null. */
+    @Nullable
+    public AddressManager getAddressManager() {
+        lock.lock();
+        try {
+            return addressManager;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the tracker that makes sure a transaction announced by several peers is only requested from one of them
+     * at a time, and requested from the next one if the first doesn't deliver.
+     */
+    public TxRequestTracker getTxRequestTracker() {
+        return txRequestTracker;
+    }
+
+    /**
+     * Sets how many announced transactions are requested per second from each peer, including the ones already
+     * connected, or 0 for no limit, which is the default. This saves bandwidth and processing when peers relay a busy
+     * memory pool. The transactions a peer announced over its limit are requested from the next peer that announces
+     * them, see {@link Peer#setMaxTxAnnouncementsPerSecond(int)}.
+     */
+    public void setMaxTxAnnouncementsPerSecond(int maxTxAnnouncementsPerSecond) {
+        checkArgument(maxTxAnnouncementsPerSecond >= 0);
+        vMaxTxAnnouncementsPerSecond = maxTxAnnouncementsPerSecond;
+        for (Peer peer : getConnectedPeers())
+            peer.setMaxTxAnnouncementsPerSecond(maxTxAnnouncementsPerSecond);
+    }
+
+    private void saveAddresses() {
+        AddressManager manager = getAddressManager();
+        if (manager == null)
+            return;
+        try {
+            manager.save();
+        } catch (IOException e) {
+            log.warn("Failed to save addresses", e);
+        }
+    }
+
     /** Returns number of discovered peers. */
     protected int discoverPeers() {
         // Don't hold the lock whilst doing peer discovery: it can take a long time and cause high API latency.
@@ -1029,6 +1137,22 @@ public class PeerGroup implements TransactionBroadcaster {
                     channels.awaitRunning();
                     triggerConnections();
                     setupPinging();
+                    executor.scheduleWithFixedDelay(new Runnable() {
+                        @Override
+                        public void run() {
+                            saveAddresses();
+                        }
+                    }, ADDRESS_SAVE_INTERVAL_MINUTES, ADDRESS_SAVE_INTERVAL_MINUTES, TimeUnit.MINUTES);
+                    executor.scheduleWithFixedDelay(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                txRequestTracker.checkTimeouts();
+                            } catch (Throwable e) {
+                                log.error("Exception checking transaction requests", e);  // The executor swallows exceptions :(
+                            }
+                        }
+                    }, 1, 1, TimeUnit.SECONDS);
                 } catch (Throwable e) {
                     log.error("Exception when starting up", e);  // The executor swallows exceptions :(
                 }
@@ -1058,6 +1182,7 @@ public class PeerGroup implements TransactionBroadcaster {
                     for (PeerDiscovery peerDiscovery : peerDiscoverers) {
                         peerDiscovery.shutdown();
                     }
+                    saveAddresses();
                     vRunning = false;
                     log.info("Stopped, took {}.", watch);
                 } catch (Throwable e) {
@@ -1349,9 +1474,13 @@ public class PeerGroup implements TransactionBroadcaster {
         ver.receivingAddr.setParent(ver);
 
         Peer peer = createPeer(address, ver);
+        if (addressManager != null)
+            addressManager.markAttempt(address);
         peer.addConnectedEventListener(Threading.SAME_THREAD, startupListener);
         peer.addDisconnectedEventListener(Threading.SAME_THREAD, startupListener);
         peer.setMinProtocolVersion(vMinRequiredProtocolVersion);
+        peer.setTxRequestTracker(txRequestTracker);
+        peer.setMaxTxAnnouncementsPerSecond(vMaxTxAnnouncementsPerSecond);
         pendingPeers.add(peer);
 
         try {
@@ -1468,6 +1597,8 @@ public class PeerGroup implements TransactionBroadcaster {
         try {
             groupBackoff.trackSuccess();
             backoffMap.get(peer.getAddress()).trackSuccess();
+            if (addressManager != null)
+                addressManager.markGood(peer.getAddress());
 
             // Sets up the newly connected peer so it can do everything it needs to.
             pendingPeers.remove(peer);
@@ -1572,6 +1703,7 @@ public class PeerGroup implements TransactionBroadcaster {
             downloadPeer = peer;
             if (downloadPeer != null) {
                 log.info("Setting download peer: {}", downloadPeer);
+                downloadPeerSinceMillis = Utils.currentTimeMillis();
                 if (downloadListener != null) {
                     addDataEventListenerToPeer(Threading.SAME_THREAD, peer, downloadListener);
                 }
@@ -1631,8 +1763,9 @@ public class PeerGroup implements TransactionBroadcaster {
         int numConnectedPeers = 0;
         lock.lock();
         try {
-            pendingPeers.remove(peer);
-            peers.remove(peer);
+            boolean wasPending = pendingPeers.remove(peer);
+            boolean wasConnected = peers.remove(peer);
+            downloadSpeeds.remove(peer);
 
             PeerAddress address = peer.getAddress();
 
@@ -1660,9 +1793,15 @@ public class PeerGroup implements TransactionBroadcaster {
                     log.warn("IPv6 peer connect failed due to routing failure, ignoring IPv6 addresses from now on");
                 }
             } else {
+                if (addressManager != null) {
+                    if (wasConnected)
+                        addressManager.markDisconnected(address, peer.getBytesReceived(), peer.getPingTime());
+                    else if (wasPending)
+                        addressManager.markFailed(address);
+                }
                 backoffMap.get(address).trackFailure();
                 // Put back on inactive list
-                inactives.offer(address);
+                queueInactive(address);
             }
 
             if (numPeers < getMaxConnections()) {
@@ -1677,6 +1816,7 @@ public class PeerGroup implements TransactionBroadcaster {
         for (Wallet wallet : wallets) {
             peer.removeWallet(wallet);
         }
+        txRequestTracker.peerDisconnected(peer);
 
         final int fNumConnectedPeers = numConnectedPeers;
 
@@ -1704,6 +1844,151 @@ public class PeerGroup implements TransactionBroadcaster {
     @GuardedBy("lock") private int stallPeriodSeconds = 10;
     @GuardedBy("lock") private int stallMinSpeedBytesSec = Block.HEADER_SIZE * 10;
 
+    /** The default of {@link #setDownloadPeerSwitchFactor(double)}. */
+    public static final double DEFAULT_DOWNLOAD_PEER_SWITCH_FACTOR = 2.0;
+    @GuardedBy("lock") private double downloadPeerSwitchFactor = DEFAULT_DOWNLOAD_PEER_SWITCH_FACTOR;
+    /** The default of {@link #setMinDownloadPeerSeconds(int)}. */
+    public static final int DEFAULT_MIN_DOWNLOAD_PEER_SECONDS = 60;
+    @GuardedBy("lock") private int minDownloadPeerSeconds = DEFAULT_MIN_DOWNLOAD_PEER_SECONDS;
+    // When the current download peer was set, by Utils.currentTimeMillis().
+    @GuardedBy("lock") private long downloadPeerSinceMillis;
+    // Peers whose ping times are this close are equally fast as far as we can tell, as pings jitter by about as much.
+    private static final long DOWNLOAD_PEER_PING_MARGIN_MILLIS = 20;
+    // Download peers are picked at random among the peers within this factor of the fastest, to spread the load.
+    private static final double SIMILAR_DOWNLOAD_SPEED_FACTOR = 1.5;
+    // How long a new download peer waits for the old one to deliver the blocks it was asked for, before it starts anyway.
+    private static final int DOWNLOAD_HANDOFF_TIMEOUT_SECONDS = 10;
+    // Bytes per second of blocks and transactions the peers served us while they were the download peer, as a moving
+    // average.
+    @GuardedBy("lock") private final Map<Peer, Long> downloadSpeeds = new HashMap<>();
+
+    /**
+     * <p>Configures how much faster than the download peer another peer must look before the chain download moves over
+     * to it. A peer looks faster if, while it was the download peer before, it served us blocks this many times faster
+     * than the download peer does now. A peer we have not downloaded from looks faster if its ping time is this many
+     * times lower, as the chain download is mostly bound by round trips.</p>
+     *
+     * <p>The download moves without disconnecting anybody and without downloading anything twice: the old download
+     * peer delivers the blocks it was already asked for, and the new one carries on from there. Defaults to
+     * {@link #DEFAULT_DOWNLOAD_PEER_SWITCH_FACTOR}; {@link Double#POSITIVE_INFINITY} never moves the download. Ping
+     * times must also differ by more than the usual jitter, and the download stays on a peer for at least
+     * {@link #setMinDownloadPeerSeconds(int)} after each move.</p>
+     */
+    public void setDownloadPeerSwitchFactor(double factor) {
+        checkArgument(factor > 1.0, "factor must be greater than 1");
+        lock.lock();
+        try {
+            downloadPeerSwitchFactor = factor;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Configures how long the chain download stays on a download peer before it may move to a faster one, so that
+     * noisy speed and ping measurements do not bounce it between peers. Defaults to
+     * {@link #DEFAULT_MIN_DOWNLOAD_PEER_SECONDS}.
+     */
+    public void setMinDownloadPeerSeconds(int seconds) {
+        checkArgument(seconds >= 0, "seconds must not be negative");
+        lock.lock();
+        try {
+            minDownloadPeerSeconds = seconds;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the moving average of how fast the given peer served us the chain, in bytes per second, or -1. */
+    public long getDownloadSpeed(Peer peer) {
+        lock.lock();
+        try {
+            Long speed = downloadSpeeds.get(peer);
+            return speed == null ? -1 : speed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Records a moving average sample of how fast the download peer serves us.
+    private void recordDownloadSpeed(Peer peer, long bytesPerSecond) {
+        lock.lock();
+        try {
+            if (!peers.contains(peer))
+                return;
+            Long speed = downloadSpeeds.get(peer);
+            downloadSpeeds.put(peer, speed == null ? bytesPerSecond : (speed * 3 + bytesPerSecond) / 4);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns > 0 if peer a looks like it would serve us the chain faster than peer b, by the given factor. Ping times
+    // must also differ by more than DOWNLOAD_PEER_PING_MARGIN_MILLIS.
+    @GuardedBy("lock")
+    private int compareDownloadSpeed(Peer a, Peer b, double factor) {
+        Long speedA = downloadSpeeds.get(a), speedB = downloadSpeeds.get(b);
+        if (speedA != null && speedB != null) {
+            if (speedA > speedB * factor)
+                return 1;
+            return speedB > speedA * factor ? -1 : 0;
+        }
+        long pingA = a.getPingTime(), pingB = b.getPingTime();
+        if (pingA == Long.MAX_VALUE && pingB == Long.MAX_VALUE)
+            return 0;
+        if (pingA * factor < pingB && pingB - pingA > DOWNLOAD_PEER_PING_MARGIN_MILLIS)
+            return 1;
+        return pingB * factor < pingA && pingA - pingB > DOWNLOAD_PEER_PING_MARGIN_MILLIS ? -1 : 0;
+    }
+
+    // Moves the chain download to a faster peer if there is one. Called while the download is running.
+    @VisibleForTesting
+    void maybeSwitchDownloadPeer() {
+        lock.lock();
+        try {
+            final Peer current = downloadPeer;
+            if (current == null || downloadListener == null)
+                return;
+            if (Utils.currentTimeMillis() - downloadPeerSinceMillis < minDownloadPeerSeconds * 1000L)
+                return;
+            List<Peer> others = new ArrayList<>(peers);
+            others.remove(current);
+            Peer best = selectDownloadPeer(others);
+            if (best == null || compareDownloadSpeed(best, current, downloadPeerSwitchFactor) <= 0)
+                return;
+            log.info("Moving chain download from {} ({} B/sec, ping {} ms) to {} ({} B/sec, ping {} ms)", current,
+                    getDownloadSpeed(current), current.getPingTime(), best, getDownloadSpeed(best),
+                    best.getPingTime());
+            handOverDownload(current, best);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Makes the new peer the download peer, and starts the chain download on it once the old one has delivered the
+    // blocks it was asked for.
+    @GuardedBy("lock")
+    private void handOverDownload(Peer oldPeer, final Peer newPeer) {
+        setDownloadPeer(newPeer);
+        final AtomicBoolean started = new AtomicBoolean();
+        Runnable start = new Runnable() {
+            @Override
+            public void run() {
+                if (!started.compareAndSet(false, true))
+                    return;
+                lock.lock();
+                try {
+                    if (downloadPeer == newPeer && downloadListener != null)
+                        startBlockChainDownloadFromPeer(newPeer);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        };
+        oldPeer.getBlockDownloadsDrainedFuture().addListener(start, executor);
+        executor.schedule(start, DOWNLOAD_HANDOFF_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
     /**
      * Configures the stall speed: the speed at which a peer is considered to be serving us the block chain
      * unacceptably slowly. Once a peer has served us data slower than the given data rate for the given
@@ -1844,6 +2129,16 @@ public class PeerGroup implements TransactionBroadcaster {
                         }
                     } else {
                         log.info(statsString + ", not stalled " + thresholdString);
+                        Peer peer = getDownloadPeer();
+                        if (peer != null) {
+                            recordDownloadSpeed(peer, average);
+                            Peer before = peer;
+                            maybeSwitchDownloadPeer();
+                            if (getDownloadPeer() != before) {
+                                // Give the new peer time to get going.
+                                samples = null;
+                            }
+                        }
                     }
                 }
                 blocksInLastSecond = 0;
@@ -2166,7 +2461,8 @@ public class PeerGroup implements TransactionBroadcaster {
         // Characteristics to select for in order of importance:
         //  - Chain height is reasonable (majority of nodes)
         //  - High enough protocol version for the features we want (but we'll settle for less)
-        //  - Randomly, to try and spread the load.
+        //  - Fast, by the speed it served us the chain before or otherwise by its ping time
+        //  - Randomly among the peers of similar speed, to try and spread the load.
         if (peers.isEmpty())
             return null;
         // Make sure we don't select a peer that is behind/synchronizing itself.
@@ -2198,8 +2494,21 @@ public class PeerGroup implements TransactionBroadcaster {
         }
         if (candidates2.isEmpty())
             return null;
-        int index = (int) (Math.random() * candidates2.size());
-        return candidates2.get(index);
+        ArrayList<Peer> fastest = new ArrayList<>(candidates2.size());
+        lock.lock();
+        try {
+            Peer best = candidates2.get(0);
+            for (Peer peer : candidates2)
+                if (compareDownloadSpeed(peer, best, 1.0) > 0)
+                    best = peer;
+            for (Peer peer : candidates2)
+                if (compareDownloadSpeed(best, peer, SIMILAR_DOWNLOAD_SPEED_FACTOR) <= 0)
+                    fastest.add(peer);
+        } finally {
+            lock.unlock();
+        }
+        int index = (int) (Math.random() * fastest.size());
+        return fastest.get(index);
     }
 
     /**
@@ -0,0 +1,623 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.core.listeners.BlocksDownloadedEventListener;
+import org.bitcoinj.core.listeners.GetDataEventListener;
+import org.bitcoinj.core.listeners.PeerDisconnectedEventListener;
+import org.bitcoinj.core.listeners.PreMessageReceivedEventListener;
+import org.bitcoinj.net.NioServer;
+import org.bitcoinj.net.StreamConnection;
+import org.bitcoinj.net.StreamConnectionFactory;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import org.bitcoinj.utils.ListenerRegistration;
+import org.bitcoinj.utils.Threading;
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Accepts inbound connections from other peers, typically light clients, and serves them the block chain from a
+ * local {@link BlockStore}: headers in answer to getheaders, block hashes in answer to getblocks, and blocks and
+ * Bloom filtered merkleblocks in answer to getdata, filtered by the filter the client loaded with filterload.</p>
+ *
+ * <p>An SPV {@link BlockStore} only holds headers, so full blocks come from a cache of recent blocks, which is filled
+ * by registering the server as a {@link BlocksDownloadedEventListener} on the {@link PeerGroup} downloading the chain
+ * (or by calling {@link #addBlock(Block)}), and from a {@link FullPrunedBlockStore} where it still has the transactions
+ * of a block. The server therefore announces itself as {@link VersionMessage#NODE_NETWORK_LIMITED}. Transactions are
+ * served by the {@link GetDataEventListener}s added with {@link #addGetDataEventListener(Executor, GetDataEventListener)},
+ * the same way a {@link Peer} serves them on an outbound connection.</p>
+ *
+ * <p>Each connection has its own rate limits, on the bytes sent to it and the items served to it per second, and a
+ * limit on the requests it may have waiting. Requests are served in order on a small thread pool, at the pace the
+ * limits and the connection itself allow; a connection with more requests waiting than allowed is closed.</p>
+ */
+public class PeerServer extends AbstractIdleService implements BlocksDownloadedEventListener {
+    private static final Logger log = LoggerFactory.getLogger(PeerServer.class);
+
+    /** The bytes of recently downloaded blocks kept for serving, unless set otherwise. */
+    public static final long DEFAULT_MAX_RECENT_BLOCK_BYTES = 64 * 1024 * 1024;
+    /** The bytes per second sent to one connection, unless set otherwise. */
+    public static final long DEFAULT_MAX_BYTES_PER_SECOND = 4 * 1024 * 1024;
+    /** The blocks, headers messages and inventories served to one connection per second, unless set otherwise. */
+    public static final int DEFAULT_MAX_REQUESTS_PER_SECOND = 1000;
+    /** The requests one connection may have waiting, unless set otherwise. */
+    public static final int DEFAULT_MAX_QUEUED_REQUESTS = InventoryMessage.MAX_INV_SIZE;
+    // As many block hashes as Bitcoin Core answers a getblocks with.
+    private static final int MAX_BLOCKS_INV = 500;
+
+    private final NetworkParameters params;
+    private final BlockStore blockStore;
+    private final Context context;
+    private final NioServer server;
+    private final ScheduledExecutorService executor;
+    private final Set<Connection> connections = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+    private final CopyOnWriteArrayList<ListenerRegistration<GetDataEventListener>> getDataEventListeners
+            = new CopyOnWriteArrayList<>();
+
+    private volatile long vMaxBytesPerSecond = DEFAULT_MAX_BYTES_PER_SECOND;
+    private volatile int vMaxRequestsPerSecond = DEFAULT_MAX_REQUESTS_PER_SECOND;
+    private volatile int vMaxQueuedRequests = DEFAULT_MAX_QUEUED_REQUESTS;
+
+    private final ReentrantLock lock = Threading.lock("peerserver");
+    // The hashes of the main chain by height, from mainChainStart up to the chain head seen last. Blocks below
+    // mainChainStart aren't in the store, when it started from a checkpoint.
+    @GuardedBy("lock") private final ArrayList<Sha256Hash> mainChain = new ArrayList<>();
+    @GuardedBy("lock") private int mainChainStart;
+    @GuardedBy("lock") @Nullable private Sha256Hash mainChainHead;
+    // Recently downloaded blocks, oldest first, and their total size.
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, Block> recentBlocks = new LinkedHashMap<>();
+    @GuardedBy("lock") private long recentBlockBytes;
+    @GuardedBy("lock") private long maxRecentBlockBytes = DEFAULT_MAX_RECENT_BLOCK_BYTES;
+
+    /** Creates a server accepting connections on the given address, using one network thread. */
+    public PeerServer(NetworkParameters params, BlockStore blockStore, InetSocketAddress bindAddress)
+            throws IOException {
+        this(params, blockStore, bindAddress, 1);
+    }
+
+    /**
+     * Creates a server accepting connections on the given address, spreading them over the given number of network
+     * threads. The address is bound right away, but connections are only accepted once the service has started.
+     */
+    public PeerServer(NetworkParameters params, BlockStore blockStore, InetSocketAddress bindAddress, int loopCount)
+            throws IOException {
+        this.params = checkNotNull(params);
+        this.blockStore = checkNotNull(blockStore);
+        this.context = Context.get();
+        this.server = new NioServer(new StreamConnectionFactory() {
+            @Override
+            public StreamConnection getNewConnection(InetAddress inetAddress, int port) {
+                return createPeer(new PeerAddress(PeerServer.this.params, inetAddress, port));
+            }
+        }, bindAddress, loopCount);
+        this.executor = Executors.newScheduledThreadPool(loopCount + 1, new ContextPropagatingThreadFactory("PeerServer"));
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+        // Index the main chain before accepting connections, as the first time means walking all of it. From then on
+        // only the blocks added since are walked, on the threads serving requests.
+        lock.lock();
+        try {
+            updateMainChain();
+        } finally {
+            lock.unlock();
+        }
+        server.startAsync().awaitRunning();
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        server.stopAsync().awaitTerminated();
+        executor.shutdownNow();
+    }
+
+    /** Sets the bytes per second sent to each connection. Applies to connections already open too. */
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        checkArgument(maxBytesPerSecond > 0);
+        this.vMaxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    /**
+     * Sets how many blocks, merkleblocks, headers messages and block inventories are served to each connection per
+     * second. Applies to connections already open too.
+     */
+    public void setMaxRequestsPerSecond(int maxRequestsPerSecond) {
+        checkArgument(maxRequestsPerSecond > 0);
+        this.vMaxRequestsPerSecond = maxRequestsPerSecond;
+    }
+
+    /** Sets how many requested items one connection may have waiting before it is closed. */
+    public void setMaxQueuedRequests(int maxQueuedRequests) {
+        checkArgument(maxQueuedRequests > 0);
+        this.vMaxQueuedRequests = maxQueuedRequests;
+    }
+
+    /**
+     * Sets how many bytes of recently downloaded blocks are kept for serving. Older blocks are only served if a
+     * {@link FullPrunedBlockStore} still has their transactions.
+     */
+    public void setMaxRecentBlockBytes(long maxRecentBlockBytes) {
+        checkArgument(maxRecentBlockBytes >= 0);
+        lock.lock();
+        try {
+            this.maxRecentBlockBytes = maxRecentBlockBytes;
+            trimRecentBlocks();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the address the server accepts connections on. */
+    public InetSocketAddress getLocalAddress() {
+        return server.getLocalAddress();
+    }
+
+    /**
+     * Registers a listener that supplies the answers to getdata requests for anything but blocks, on the connections
+     * opened from now on. See {@link Peer#addGetDataEventListener(Executor, GetDataEventListener)}.
+     */
+    public void addGetDataEventListener(Executor executor, GetDataEventListener listener) {
+        getDataEventListeners.add(new ListenerRegistration<>(listener, executor));
+    }
+
+    /** Returns the peers connected to this server. */
+    public List<Peer> getConnectedPeers() {
+        List<Peer> peers = new ArrayList<>(connections.size());
+        for (Connection connection : connections)
+            peers.add(connection.peer);
+        return peers;
+    }
+
+    /** Keeps the given block for serving, if it has its transactions. */
+    public void addBlock(Block block) {
+        if (block.getTransactions() == null)
+            return;
+        int size = block.getOptimalEncodingMessageSize();
+        lock.lock();
+        try {
+            Block replaced = recentBlocks.put(block.getHash(), block);
+            if (replaced != null)
+                recentBlockBytes -= replaced.getOptimalEncodingMessageSize();
+            recentBlockBytes += size;
+            trimRecentBlocks();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Drops the oldest blocks until the rest fit.
+    @GuardedBy("lock")
+    private void trimRecentBlocks() {
+        Iterator<Block> it = recentBlocks.values().iterator();
+        while (recentBlockBytes > maxRecentBlockBytes && it.hasNext()) {
+            recentBlockBytes -= it.next().getOptimalEncodingMessageSize();
+            it.remove();
+        }
+    }
+
+    @Override
+    public void onBlocksDownloaded(Peer peer, Block block, @Nullable FilteredBlock filteredBlock, int blocksLeft) {
+        addBlock(block);
+    }
+
+    // Called on the network thread accepting the connection.
+    private Peer createPeer(PeerAddress address) {
+        Context.propagate(context);
+        // The main chain index is brought up to date when the peer asks for blocks, not here on the network thread.
+        int bestHeight;
+        try {
+            bestHeight = blockStore.getChainHead().getHeight();
+        } catch (BlockStoreException e) {
+            log.error("Failed to read the chain head, refusing connection from " + address, e);
+            return null;
+        }
+        VersionMessage ver = new VersionMessage(params, Math.max(0, bestHeight));
+        ver.localServices = VersionMessage.NODE_NETWORK_LIMITED | VersionMessage.NODE_BLOOM;
+        Peer peer = new Peer(params, ver, address, null);
+        peer.setAcceptsClientPeers(true);
+        Connection connection = new Connection(peer);
+        peer.addPreMessageReceivedEventListener(Threading.SAME_THREAD, connection);
+        peer.addDisconnectedEventListener(Threading.SAME_THREAD, connection);
+        for (ListenerRegistration<GetDataEventListener> registration : getDataEventListeners)
+            peer.addGetDataEventListener(registration.executor, registration.listener);
+        connections.add(connection);
+        return peer;
+    }
+
+    // Brings the index of the main chain up to the chain head of the block store, walking back from the head until
+    // it meets the index.
+    @GuardedBy("lock")
+    private void updateMainChain() throws BlockStoreException {
+        StoredBlock head = blockStore.getChainHead();
+        if (head.getHeader().getHash().equals(mainChainHead))
+            return;
+        ArrayList<Sha256Hash> newBlocks = new ArrayList<>();
+        StoredBlock cursor = head;
+        boolean joined = false;
+        while (cursor != null) {
+            int index = cursor.getHeight() - mainChainStart;
+            if (index >= 0 && index < mainChain.size() && mainChain.get(index).equals(cursor.getHeader().getHash())) {
+                mainChain.subList(index + 1, mainChain.size()).clear();
+                joined = true;
+                break;
+            }
+            newBlocks.add(cursor.getHeader().getHash());
+            if (cursor.getHeight() == 0)
+                break;
+            cursor = cursor.getPrev(blockStore);
+        }
+        if (!joined) {
+            mainChain.clear();
+            mainChainStart = head.getHeight() - newBlocks.size() + 1;
+        }
+        for (int i = newBlocks.size() - 1; i >= 0; i--)
+            mainChain.add(newBlocks.get(i));
+        mainChainHead = head.getHeader().getHash();
+    }
+
+    // Returns up to max hashes of the main chain following the first block of the locator that is on it, up to and
+    // including the stop hash, and whether the chain goes on after them.
+    private List<Sha256Hash> getFollowingHashes(BlockLocator locator, Sha256Hash stopHash, int max,
+                                                boolean[] more) throws BlockStoreException {
+        lock.lock();
+        try {
+            updateMainChain();
+            int start = 0;
+            for (Sha256Hash hash : locator.getHashes()) {
+                StoredBlock block = blockStore.get(hash);
+                if (block == null)
+                    continue;
+                int index = block.getHeight() - mainChainStart;
+                if (index >= 0 && index < mainChain.size() && mainChain.get(index).equals(hash)) {
+                    start = index + 1;
+                    break;
+                }
+            }
+            List<Sha256Hash> hashes = new ArrayList<>(Math.min(max, Math.max(0, mainChain.size() - start)));
+            int index = start;
+            for (; index < mainChain.size() && hashes.size() < max; index++) {
+                Sha256Hash hash = mainChain.get(index);
+                hashes.add(hash);
+                if (hash.equals(stopHash)) {
+                    index = mainChain.size();
+                    break;
+                }
+            }
+            more[0] = index < mainChain.size();
+            return hashes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    private Sha256Hash getMainChainHead() {
+        lock.lock();
+        try {
+            return mainChainHead;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns the block with its transactions, or null if we don't have them.
+    @Nullable
+    private Block getBlock(Sha256Hash hash) throws BlockStoreException {
+        lock.lock();
+        try {
+            Block block = recentBlocks.get(hash);
+            if (block != null)
+                return block;
+        } finally {
+            lock.unlock();
+        }
+        if (!(blockStore instanceof FullPrunedBlockStore))
+            return null;
+        StoredUndoableBlock undoBlock = ((FullPrunedBlockStore) blockStore).getUndoBlock(hash);
+        StoredBlock stored = blockStore.get(hash);
+        if (undoBlock == null || undoBlock.getTransactions() == null || stored == null)
+            return null;
+        Block header = stored.getHeader();
+        return new Block(params, header.getVersion(), header.getPrevBlockHash(), header.getMerkleRoot(),
+                header.getTimeSeconds(), header.getDifficultyTarget(), header.getNonce(), undoBlock.getTransactions());
+    }
+
+    /**
+     * The server's side of one connection: takes the requests the server answers off the peer's message stream, and
+     * serves them one at a time on the server's executor.
+     */
+    private class Connection implements PreMessageReceivedEventListener, PeerDisconnectedEventListener {
+        private final Peer peer;
+        private final ReentrantLock lock = Threading.lock("peerserver-connection");
+        // GetBlocksMessages (including GetHeadersMessages), InventoryItems of blocks and Pings, in order of arrival.
+        @GuardedBy("lock") private final ArrayDeque<Object> requests = new ArrayDeque<>();
+        @Nullable private volatile BloomFilter filter;
+        private volatile boolean closed;
+        // True while a pump is queued or running, so that at most one runs at a time.
+        private final AtomicBoolean pumpScheduled = new AtomicBoolean();
+        // True while serving waits for the connection to drain or the rate limits to allow more.
+        private volatile boolean waiting;
+
+        // Serving thread only.
+        @Nullable private Sha256Hash hashContinue;
+        private double byteAllowance = vMaxBytesPerSecond;
+        private double requestAllowance = vMaxRequestsPerSecond;
+        private long lastRefillNanos = System.nanoTime();
+        private long bytesCounted;
+
+        private final Runnable pump = new Runnable() {
+            @Override
+            public void run() {
+                pump();
+            }
+        };
+        private final Runnable resume = new Runnable() {
+            @Override
+            public void run() {
+                waiting = false;
+                schedulePump();
+            }
+        };
+
+        Connection(Peer peer) {
+            this.peer = peer;
+        }
+
+        @Override
+        public Message onPreMessageReceived(Peer peer, Message m) {
+            if (!peer.getVersionHandshakeFuture().isDone())
+                return m; // The peer rejects anything else before the handshake
+            if (m instanceof BloomFilter) {
+                filter = (BloomFilter) m;
+                return null;
+            } else if (m instanceof MemoryPoolMessage) {
+                return null; // We keep no memory pool
+            } else if (m instanceof GetBlocksMessage) {
+                enqueue(Collections.<Object>singletonList(m));
+                return null;
+            } else if (m instanceof GetDataMessage) {
+                List<Object> blocks = new ArrayList<>();
+                GetDataMessage others = new GetDataMessage(params);
+                for (InventoryItem item : ((GetDataMessage) m).getItems()) {
+                    if (item.type == InventoryItem.Type.TRANSACTION || item.type == InventoryItem.Type.WITNESS_TRANSACTION)
+                        others.addItem(item);
+                    else
+                        blocks.add(item);
+                }
+                enqueue(blocks);
+                // The peer gets the rest from its GetDataEventListeners
+                return others.getItems().isEmpty() ? null : others;
+            } else if (m instanceof Ping) {
+                // Clients ping after a getdata to learn when the answers have all arrived, so the pong must follow
+                // them out of the serving thread
+                enqueue(Collections.<Object>singletonList(m));
+                return null;
+            }
+            return m;
+        }
+
+        @Override
+        public void onPeerDisconnected(Peer peer, int peerCount) {
+            closed = true;
+            connections.remove(this);
+            lock.lock();
+            try {
+                requests.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean hasRequests() {
+            lock.lock();
+            try {
+                return !requests.isEmpty();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void enqueue(List<Object> newRequests) {
+            if (newRequests.isEmpty())
+                return;
+            int maxQueued = vMaxQueuedRequests;
+            lock.lock();
+            try {
+                if (requests.size() + newRequests.size() > maxQueued) {
+                    log.warn("{}: More than {} requests waiting, disconnecting", peer, maxQueued);
+                    requests.clear();
+                    closed = true;
+                } else {
+                    requests.addAll(newRequests);
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (closed)
+                peer.close();
+            else if (!waiting)
+                schedulePump();
+        }
+
+        private void schedulePump() {
+            if (pumpScheduled.compareAndSet(false, true))
+                executor.execute(pump);
+        }
+
+        private void pump() {
+            try {
+                serve();
+            } catch (Exception e) {
+                log.warn(peer + ": Failed to serve request, disconnecting", e);
+                closed = true;
+                peer.close();
+            } finally {
+                pumpScheduled.set(false);
+            }
+            // Requests may have arrived after serve() last looked, while their schedulePump() saw us still running
+            if (!waiting && !closed && hasRequests())
+                schedulePump();
+        }
+
+        // Serves requests until there are none left, or until the connection or the rate limits make us wait, in
+        // which case this arranges for serving to resume.
+        private void serve() throws BlockStoreException {
+            while (!closed) {
+                if (!peer.isWritable()) {
+                    waiting = true;
+                    ListenableFuture<Void> writable = peer.getWritableFuture();
+                    writable.addListener(resume, executor);
+                    return;
+                }
+                long waitNanos = refillAllowances();
+                if (waitNanos > 0) {
+                    waiting = true;
+                    executor.schedule(resume, waitNanos, TimeUnit.NANOSECONDS);
+                    return;
+                }
+                Object request;
+                lock.lock();
+                try {
+                    request = requests.poll();
+                } finally {
+                    lock.unlock();
+                }
+                if (request == null)
+                    return;
+                if (!(request instanceof Ping))
+                    requestAllowance--;
+                serve(request);
+            }
+        }
+
+        // Tops up the allowances for the time passed and charges the bytes sent since last time. Returns how long to
+        // wait before serving the next request.
+        private long refillAllowances() {
+            long maxBytes = vMaxBytesPerSecond;
+            int maxRequests = vMaxRequestsPerSecond;
+            long now = System.nanoTime();
+            double seconds = (now - lastRefillNanos) / 1e9;
+            lastRefillNanos = now;
+            long sent = peer.getBytesSent();
+            byteAllowance = Math.min(maxBytes, byteAllowance - (sent - bytesCounted) + seconds * maxBytes);
+            bytesCounted = sent;
+            requestAllowance = Math.min(maxRequests, requestAllowance + seconds * maxRequests);
+            double waitSeconds = Math.max(byteAllowance < 0 ? -byteAllowance / maxBytes : 0,
+                    requestAllowance < 1 ? (1 - requestAllowance) / maxRequests : 0);
+            return (long) (waitSeconds * 1e9);
+        }
+
+        private void serve(Object request) throws BlockStoreException {
+            if (request instanceof Ping) {
+                Ping ping = (Ping) request;
+                if (ping.hasNonce())
+                    peer.sendMessage(new Pong(ping.getNonce()));
+            } else if (request instanceof GetHeadersMessage) {
+                GetHeadersMessage getheaders = (GetHeadersMessage) request;
+                List<Sha256Hash> hashes = getFollowingHashes(getheaders.getLocator(), getheaders.getStopHash(),
+                        HeadersMessage.MAX_HEADERS, new boolean[1]);
+                List<Block> headers = new ArrayList<>(hashes.size());
+                for (Sha256Hash hash : hashes) {
+                    StoredBlock block = blockStore.get(hash);
+                    if (block == null)
+                        break; // Reorganized away since
+                    headers.add(block.getHeader());
+                }
+                peer.sendMessage(new HeadersMessage(params, headers));
+            } else if (request instanceof GetBlocksMessage) {
+                GetBlocksMessage getblocks = (GetBlocksMessage) request;
+                boolean[] more = new boolean[1];
+                List<Sha256Hash> hashes = getFollowingHashes(getblocks.getLocator(), getblocks.getStopHash(),
+                        MAX_BLOCKS_INV, more);
+                if (hashes.isEmpty())
+                    return;
+                InventoryMessage inv = new InventoryMessage(params);
+                for (Sha256Hash hash : hashes)
+                    inv.addItem(new InventoryItem(InventoryItem.Type.BLOCK, hash));
+                // Like Bitcoin Core, once the client asks for the last of these we tell it about our chain head, which
+                // it can't connect and so asks for the blocks in between
+                hashContinue = more[0] ? hashes.get(hashes.size() - 1) : null;
+                peer.sendMessage(inv);
+            } else {
+                serveBlock((InventoryItem) request);
+            }
+        }
+
+        private void serveBlock(InventoryItem item) throws BlockStoreException {
+            Block block = getBlock(item.hash);
+            BloomFilter filter = this.filter;
+            boolean filtered = item.type == InventoryItem.Type.FILTERED_BLOCK
+                    || item.type == InventoryItem.Type.WITNESS_FILTERED_BLOCK;
+            if (block == null || (filtered && filter == null)) {
+                peer.sendMessage(new NotFoundMessage(params, Collections.singletonList(item)));
+                return;
+            }
+            if (filtered) {
+                FilteredBlock filteredBlock = filter.applyAndUpdate(block);
+                peer.sendMessage(filteredBlock);
+                // Followed by the matching transactions, in block order
+                Map<Sha256Hash, Transaction> matched = filteredBlock.getAssociatedTransactions();
+                for (Transaction tx : block.getTransactions()) {
+                    if (matched.containsKey(tx.getTxId()))
+                        peer.sendMessage(tx);
+                }
+            } else {
+                peer.sendMessage(block);
+            }
+            if (item.hash.equals(hashContinue)) {
+                hashContinue = null;
+                Sha256Hash head = getMainChainHead();
+                if (head != null) {
+                    InventoryMessage inv = new InventoryMessage(params);
+                    inv.addItem(new InventoryItem(InventoryItem.Type.BLOCK, head));
+                    peer.sendMessage(inv);
+                }
+            }
+        }
+    }
+}
@@ -17,12 +17,18 @@
 package org.bitcoinj.core;
 
 import org.bitcoinj.net.AbstractTimeoutHandler;
+import org.bitcoinj.net.ByteBufferPool;
+import org.bitcoinj.net.ByteBufferWriteTarget;
+import org.bitcoinj.net.FlowControlledConnection;
+import org.bitcoinj.net.FlowControlledWriteTarget;
 import org.bitcoinj.net.MessageWriteTarget;
 import org.bitcoinj.net.NioClient;
 import org.bitcoinj.net.NioClientManager;
-import org.bitcoinj.net.StreamConnection;
 import org.bitcoinj.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,6 +39,9 @@ import java.net.InetSocketAddress;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 
 import static com.google.common.base.Preconditions.*;
@@ -41,7 +50,7 @@ import static com.google.common.base.Preconditions.*;
  * Handles high-level message (de)serialization for peers, acting as the bridge between the
  * {@code org.bitcoinj.net} classes and {@link Peer}.
  */
-public abstract class PeerSocketHandler extends AbstractTimeoutHandler implements StreamConnection {
+public abstract class PeerSocketHandler extends AbstractTimeoutHandler implements FlowControlledConnection {
     private static final Logger log = LoggerFactory.getLogger(PeerSocketHandler.class);
 
     private final MessageSerializer serializer;
@@ -53,12 +62,16 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
 
     // The ByteBuffers passed to us from the writeTarget are static in size, and usually smaller than some messages we
     // will receive. For SPV clients, this should be rare (ie we're mostly dealing with small transactions), but for
-    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes.
-    private byte[] largeReadBuffer;
-    private int largeReadBufferPos;
+    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes. It comes from
+    // the buffer pool and goes back once the message is deserialized.
+    private ByteBuffer largeReadBuffer;
     private BitcoinSerializer.BitcoinPacketHeader header;
 
     private Lock lock = Threading.lock("PeerSocketHandler");
+    // Completed when the write target next becomes writable. Guarded by lock.
+    private List<SettableFuture<Void>> writableFutures = new ArrayList<>();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
 
     public PeerSocketHandler(NetworkParameters params, InetSocketAddress remoteIp) {
         checkNotNull(params);
@@ -85,16 +98,94 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            serializer.serialize(message, out);
-            writeTarget.writeBytes(out.toByteArray());
+            MessageWriteTarget target = writeTarget;
+            if (target instanceof ByteBufferWriteTarget) {
+                ByteBuffer buffer = serializer.serialize(message, ByteBufferPool.getDefault());
+                bytesSent.addAndGet(buffer.remaining());
+                ((ByteBufferWriteTarget) target).writeBuffer(buffer);
+            } else {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                serializer.serialize(message, out);
+                bytesSent.addAndGet(out.size());
+                target.writeBytes(out.toByteArray());
+            }
         } catch (IOException e) {
             exceptionCaught(e);
         }
     }
 
+    /** Returns the number of bytes of messages, headers included, handed to the connection so far. */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /** Returns the number of bytes of messages, headers included, received from the connection so far. */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * Returns false while more messages are waiting to go out to the peer than its connection likes to buffer. Code
+     * sending a lot of data, like when serving blocks, should then wait for {@link #getWritableFuture()} before sending
+     * more, rather than fill the buffer up to its hard limit and get disconnected.
+     */
+    public boolean isWritable() {
+        MessageWriteTarget target = writeTarget;
+        return target != null
+                && (!(target instanceof FlowControlledWriteTarget) || ((FlowControlledWriteTarget) target).isWritable());
+    }
+
+    /**
+     * Returns a future that completes once the connection is writable, which is right away unless it has a backlog,
+     * and is cancelled if the connection closes first. Listeners run on the network thread if it has to wait.
+     */
+    public ListenableFuture<Void> getWritableFuture() {
+        if (isWritable())
+            return Futures.immediateFuture(null);
+        SettableFuture<Void> future = SettableFuture.create();
+        lock.lock();
+        try {
+            writableFutures.add(future);
+        } finally {
+            lock.unlock();
+        }
+        // We may have become writable before the future was added
+        if (isWritable())
+            completeWritableFutures(false);
+        return future;
+    }
+
+    @Override
+    public void writabilityChanged(boolean writable) {
+        if (writable)
+            completeWritableFutures(false);
+    }
+
+    /** Cancels the futures from {@link #getWritableFuture()}, as the connection has closed. */
+    protected void cancelWritableFutures() {
+        completeWritableFutures(true);
+    }
+
+    private void completeWritableFutures(boolean cancel) {
+        List<SettableFuture<Void>> futures;
+        lock.lock();
+        try {
+            if (writableFutures.isEmpty())
+                return;
+            futures = writableFutures;
+            writableFutures = new ArrayList<>();
+        } finally {
+            lock.unlock();
+        }
+        for (SettableFuture<Void> future : futures) {
+            if (cancel)
+                future.cancel(false);
+            else
+                future.set(null);
+        }
+    }
+
     /**
      * Closes the connection to the peer if one exists, or immediately closes the connection as soon as it opens
      */
@@ -124,6 +215,14 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
 
     @Override
     public int receiveBytes(ByteBuffer buff) {
+        int consumed = deserializeMessages(buff);
+        if (consumed > 0)
+            bytesReceived.addAndGet(consumed);
+        return consumed;
+    }
+
+    // Deserializes and processes the messages in buff, returning the number of bytes used or -1 on error.
+    private int deserializeMessages(ByteBuffer buff) {
         checkArgument(buff.position() == 0 &&
                 buff.capacity() >= BitcoinSerializer.BitcoinPacketHeader.HEADER_LENGTH + 4);
         try {
@@ -135,15 +234,21 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     // This can only happen in the first iteration
                     checkState(firstMessage);
                     // Read new bytes into the largeReadBuffer
-                    int bytesToGet = Math.min(buff.remaining(), largeReadBuffer.length - largeReadBufferPos);
-                    buff.get(largeReadBuffer, largeReadBufferPos, bytesToGet);
-                    largeReadBufferPos += bytesToGet;
+                    copyInto(largeReadBuffer, buff);
                     // Check the largeReadBuffer's status
-                    if (largeReadBufferPos == largeReadBuffer.length) {
+                    if (!largeReadBuffer.hasRemaining()) {
                         // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
+                        ByteBuffer payload = largeReadBuffer;
                         largeReadBuffer = null;
+                        payload.flip();
+                        Message message;
+                        try {
+                            message = serializer.deserializePayload(header, payload);
+                        } finally {
+                            ByteBufferPool.getDefault().release(payload);
+                        }
                         header = null;
+                        processMessage(message);
                         firstMessage = false;
                     } else // ...or just returning if we don't have enough bytes yet
                         return buff.position();
@@ -163,9 +268,9 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                             header = serializer.deserializeHeader(buff);
                             // Initialize the largeReadBuffer with the next message's size and fill it with any bytes
                             // left in buff
-                            largeReadBuffer = new byte[header.size];
-                            largeReadBufferPos = buff.remaining();
-                            buff.get(largeReadBuffer, 0, largeReadBufferPos);
+                            largeReadBuffer = ByteBufferPool.getDefault().acquire(header.size);
+                            largeReadBuffer.limit(header.size);
+                            copyInto(largeReadBuffer, buff);
                         } catch (BufferUnderflowException e1) {
                             // If we went through a whole buffer's worth of bytes without getting a header, give up
                             // In cases where the buff is just really small, we could create a second largeReadBuffer
@@ -190,6 +295,15 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         }
     }
 
+    // Moves as many bytes from source as fit into target.
+    private static void copyInto(ByteBuffer target, ByteBuffer source) {
+        int count = Math.min(source.remaining(), target.remaining());
+        ByteBuffer slice = source.duplicate();
+        slice.limit(slice.position() + count);
+        target.put(slice);
+        source.position(source.position() + count);
+    }
+
     /**
      * Sets the {@link MessageWriteTarget} used to write messages to the peer. This should almost never be called, it is
      * called automatically by {@link NioClient} or
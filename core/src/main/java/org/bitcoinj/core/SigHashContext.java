@@ -0,0 +1,149 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.core.Transaction.SigHash;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptOpCodes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.List;
+
+import static org.bitcoinj.core.Utils.uint32ToByteStreamLE;
+import static org.bitcoinj.core.Utils.uint64ToByteStreamLE;
+
+/**
+ * <p>Calculates the signature hashes of the inputs of one transaction, like {@link Transaction#hashForSignature(int,
+ * byte[], SigHash, boolean)} and {@link Transaction#hashForWitnessSignature(int, byte[], Coin, SigHash, boolean)}, but
+ * doing the work that is the same for every input only once. For {@link SigHash#ALL} signatures, that is serializing
+ * the transaction with empty input scripts, and the hashes of all outpoints, sequence numbers and outputs that
+ * <a href="https://github.com/bitcoin/bips/blob/master/bip-0143.mediawiki">BIP 143</a> signatures commit to. Other
+ * signature hash types are passed on to the transaction.</p>
+ *
+ * <p>The inputs, outputs, version and lock time of the transaction must not change while the context is used. Input
+ * scripts and witnesses may, they aren't signed. A context can be used from several threads at once.</p>
+ */
+public class SigHashContext {
+    private final Transaction tx;
+    // The transaction as serialized for a legacy signature hash, up to its outputs: the version and the inputs, all
+    // with empty scripts. Input i is at inputOffsets[i] to inputOffsets[i + 1].
+    private final byte[] emptyInputs;
+    private final int[] inputOffsets;
+    // The rest: the outputs and the lock time.
+    private final byte[] outputs;
+    private final byte[] hashPrevouts;
+    private final byte[] hashSequence;
+    private final byte[] hashOutputs;
+
+    public SigHashContext(Transaction tx) {
+        this.tx = tx;
+        List<TransactionInput> inputs = tx.getInputs();
+        List<TransactionOutput> txOutputs = tx.getOutputs();
+        try {
+            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(8 + inputs.size() * 41);
+            ByteArrayOutputStream prevouts = new UnsafeByteArrayOutputStream(inputs.size() * 36);
+            ByteArrayOutputStream sequences = new UnsafeByteArrayOutputStream(inputs.size() * 4);
+            uint32ToByteStreamLE(tx.getVersion(), bos);
+            bos.write(new VarInt(inputs.size()).encode());
+            inputOffsets = new int[inputs.size() + 1];
+            for (int i = 0; i < inputs.size(); i++) {
+                inputOffsets[i] = bos.size();
+                TransactionInput input = inputs.get(i);
+                byte[] outpoint = input.getOutpoint().bitcoinSerialize();
+                bos.write(outpoint);
+                bos.write(0);
+                uint32ToByteStreamLE(input.getSequenceNumber(), bos);
+                prevouts.write(outpoint);
+                uint32ToByteStreamLE(input.getSequenceNumber(), sequences);
+            }
+            inputOffsets[inputs.size()] = bos.size();
+            emptyInputs = bos.toByteArray();
+
+            ByteArrayOutputStream outputsBos = new UnsafeByteArrayOutputStream(256);
+            for (TransactionOutput output : txOutputs)
+                output.bitcoinSerializeToStream(outputsBos);
+            hashOutputs = Sha256Hash.hashTwice(outputsBos.toByteArray());
+            bos = new UnsafeByteArrayOutputStream(outputsBos.size() + 16);
+            bos.write(new VarInt(txOutputs.size()).encode());
+            outputsBos.writeTo(bos);
+            uint32ToByteStreamLE(tx.getLockTime(), bos);
+            outputs = bos.toByteArray();
+
+            hashPrevouts = Sha256Hash.hashTwice(prevouts.toByteArray());
+            hashSequence = Sha256Hash.hashTwice(sequences.toByteArray());
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    /** Returns the transaction this context is for. */
+    public Transaction getTransaction() {
+        return tx;
+    }
+
+    /** Same as {@link Transaction#hashForSignature(int, byte[], SigHash, boolean)}. */
+    public Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, SigHash type, boolean anyoneCanPay) {
+        if (type != SigHash.ALL || anyoneCanPay)
+            return tx.hashForSignature(inputIndex, connectedScript, type, anyoneCanPay);
+        connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+        // The outpoint is followed by the script and then the sequence number.
+        int scriptOffset = inputOffsets[inputIndex] + 36;
+        int sequenceOffset = inputOffsets[inputIndex + 1] - 4;
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(emptyInputs, 0, scriptOffset);
+        digest.update(new VarInt(connectedScript.length).encode());
+        digest.update(connectedScript);
+        digest.update(emptyInputs, sequenceOffset, emptyInputs.length - sequenceOffset);
+        digest.update(outputs);
+        digest.update(sigHashTypeBytes(type, anyoneCanPay));
+        return Sha256Hash.wrap(Sha256Hash.hash(digest.digest()));
+    }
+
+    /** Same as {@link Transaction#hashForWitnessSignature(int, byte[], Coin, SigHash, boolean)}. */
+    public Sha256Hash hashForWitnessSignature(int inputIndex, byte[] scriptCode, Coin prevValue, SigHash type,
+                                              boolean anyoneCanPay) {
+        if (type != SigHash.ALL || anyoneCanPay)
+            return tx.hashForWitnessSignature(inputIndex, scriptCode, prevValue, type, anyoneCanPay);
+        ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(160 + scriptCode.length);
+        try {
+            uint32ToByteStreamLE(tx.getVersion(), bos);
+            bos.write(hashPrevouts);
+            bos.write(hashSequence);
+            // The outpoint of the input, as serialized in emptyInputs, is the same as in the preimage.
+            bos.write(emptyInputs, inputOffsets[inputIndex], 36);
+            bos.write(scriptCode);
+            uint64ToByteStreamLE(BigInteger.valueOf(prevValue.getValue()), bos);
+            bos.write(emptyInputs, inputOffsets[inputIndex + 1] - 4, 4);
+            bos.write(hashOutputs);
+            uint32ToByteStreamLE(tx.getLockTime(), bos);
+            bos.write(sigHashTypeBytes(type, anyoneCanPay));
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        return Sha256Hash.twiceOf(bos.toByteArray());
+    }
+
+    private static byte[] sigHashTypeBytes(SigHash type, boolean anyoneCanPay) {
+        byte[] bytes = new byte[4];
+        Utils.uint32ToByteArrayLE(0x000000ff & TransactionSignature.calcSigHashValue(type, anyoneCanPay), bytes, 0);
+        return bytes;
+    }
+}
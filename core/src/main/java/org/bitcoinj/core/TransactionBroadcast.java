@@ -49,6 +49,14 @@ public class TransactionBroadcast {
     /** Used for shuffling the peers before broadcast: unit tests can replace this to make themselves deterministic. */
     @VisibleForTesting
     public static Random random = new Random();
+
+    // Orders peers able to take more data before those with a backlog, keeping the order otherwise.
+    private static final Comparator<Peer> WRITABLE_FIRST = new Comparator<Peer>() {
+        @Override
+        public int compare(Peer a, Peer b) {
+            return Boolean.compare(b.isWritable(), a.isWritable());
+        }
+    };
     
     // Tracks which nodes sent us a reject message about this broadcast, if any. Useful for debugging.
     private Map<Peer, RejectMessage> rejects = Collections.synchronizedMap(new HashMap<Peer, RejectMessage>());
@@ -151,6 +159,8 @@ public class TransactionBroadcast {
             int numToBroadcastTo = (int) Math.max(1, Math.round(Math.ceil(peers.size() / 2.0)));
             numWaitingFor = (int) Math.ceil((peers.size() - numToBroadcastTo) / 2.0);
             Collections.shuffle(peers, random);
+            // Peers whose connections are backed up only get the transaction if there aren't enough others
+            Collections.sort(peers, WRITABLE_FIRST);
             peers = peers.subList(0, numToBroadcastTo);
             log.info("broadcastTransaction: We have {} peers, adding {} to the memory pool", numConnected, tx.getTxId());
             log.info("Sending to {} peers, will wait for {}, sending to: {}", numToBroadcastTo, numWaitingFor, Joiner.on(",").join(peers));
@@ -174,7 +184,7 @@ public class TransactionBroadcast {
         }
     }
 
-    private int numSeemPeers;
+        private int numSeemPeers;
     private boolean mined;
 
     private class ConfidenceChange implements TransactionConfidence.Listener {
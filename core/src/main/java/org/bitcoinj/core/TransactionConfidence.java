@@ -27,6 +27,7 @@ import org.bitcoinj.wallet.Wallet;
 import javax.annotation.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -79,6 +80,8 @@ public class TransactionConfidence {
     private final Sha256Hash hash;
     // Lazily created listeners array.
     private CopyOnWriteArrayList<ListenerRegistration<Listener>> listeners;
+    // Incremented on every change, see addChangeCounter().
+    private final CopyOnWriteArrayList<AtomicLong> changeCounters = new CopyOnWriteArrayList<>();
 
     // The depth of the transaction on the best chain in blocks. An unconfirmed block has depth 0.
     private int depth;
@@ -259,6 +262,7 @@ public class TransactionConfidence {
         this.appearedAtChainHeight = appearedAtChainHeight;
         this.depth = 1;
         setConfidenceType(ConfidenceType.BUILDING);
+        changed();
     }
 
     /**
@@ -283,6 +287,7 @@ public class TransactionConfidence {
             depth = 0;
             appearedAtChainHeight = -1;
         }
+        changed();
     }
 
 
@@ -303,6 +308,7 @@ public class TransactionConfidence {
                 this.confidenceType = ConfidenceType.PENDING;
             }
         }
+        changed();
         return true;
     }
 
@@ -376,7 +382,9 @@ public class TransactionConfidence {
      * @return the new depth
      */
     public synchronized int incrementDepthInBlocks() {
-        return ++this.depth;
+        ++this.depth;
+        changed();
+        return depth;
     }
 
     /**
@@ -398,6 +406,7 @@ public class TransactionConfidence {
      */
     public synchronized void setDepthInBlocks(int depth) {
         this.depth = depth;
+        changed();
     }
 
     /**
@@ -408,6 +417,7 @@ public class TransactionConfidence {
         checkState(getConfidenceType() != ConfidenceType.PENDING);
         broadcastBy.clear();
         lastBroadcastedAt = null;
+        changed();
     }
 
     /**
@@ -434,9 +444,32 @@ public class TransactionConfidence {
     public synchronized void setOverridingTransaction(@Nullable Transaction overridingTransaction) {
         this.overridingTransaction = overridingTransaction;
         setConfidenceType(ConfidenceType.DEAD);
+        changed();
+    }
+
+    /**
+     * <p>Adds a counter that is incremented, on the thread making the change, whenever this confidence changes. Unlike
+     * listeners, counters also learn about changes nobody calls {@link #queueListeners(Listener.ChangeReason)} for, and
+     * they learn about them right away. A {@link Wallet} uses one counter for all its transactions, so it can cheaply
+     * tell whether anything it computed from their confidences is out of date.</p>
+     *
+     * <p>Adding the same counter twice has no effect.</p>
+     */
+    public void addChangeCounter(AtomicLong counter) {
+        changeCounters.addIfAbsent(checkNotNull(counter));
+    }
+
+    /** Removes a counter added with {@link #addChangeCounter(AtomicLong)}. */
+    public boolean removeChangeCounter(AtomicLong counter) {
+        return changeCounters.remove(counter);
+    }
+
+    private void changed() {
+        for (AtomicLong counter : changeCounters)
+            counter.incrementAndGet();
     }
 
-    /** Returns a copy of this object. Event listeners are not duplicated. */
+    /** Returns a copy of this object. Event listeners and change counters are not duplicated. */
     public TransactionConfidence duplicate() {
         TransactionConfidence c = new TransactionConfidence(hash);
         c.broadcastBy.addAll(broadcastBy);
@@ -484,6 +517,7 @@ public class TransactionConfidence {
      */
     public synchronized void setSource(Source source) {
         this.source = source;
+        changed();
     }
 
     /**
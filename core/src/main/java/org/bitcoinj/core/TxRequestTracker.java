@@ -0,0 +1,215 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.utils.Threading;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Coordinates the download of announced transactions across the peers of a {@link PeerGroup}, so that a
+ * transaction many peers announce is only requested from one of them at a time. The peers that announce a transaction
+ * while it is being requested are remembered, and if the request is not answered in time, answered with a notfound or
+ * its peer disconnects, the transaction is requested from the next of them.</p>
+ *
+ * <p>Peers report to the tracker as they receive inv, tx and notfound messages. {@link PeerGroup} creates one, gives it
+ * to every peer it connects to and calls {@link #checkTimeouts()} regularly.</p>
+ */
+public class TxRequestTracker {
+    private static final Logger log = LoggerFactory.getLogger(TxRequestTracker.class);
+
+    /** How long a peer has to answer a getdata for a transaction before it is asked from another peer. */
+    public static final long DEFAULT_REQUEST_TIMEOUT_MILLIS = 10000;
+    /** The number of transactions tracked at most. The ones announced longest ago are forgotten first. */
+    public static final int MAX_SIZE = 10000;
+    // Fallback peers remembered per transaction.
+    private static final int MAX_ANNOUNCERS = 8;
+
+    private final ReentrantLock lock = Threading.lock("txrequesttracker");
+
+    private static class Request {
+        // The peer the transaction is being requested from, or null if there is none.
+        @Nullable Peer peer;
+        long requestTimeMillis;
+        // Peers that announced the transaction and were not asked yet, in the order they announced it.
+        final LinkedHashSet<Peer> announcers = new LinkedHashSet<>();
+        // Set once the transaction arrived: later announcements are then ignored.
+        boolean received;
+    }
+
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, Request> requests =
+            new LinkedHashMap<Sha256Hash, Request>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Request> eldest) {
+            return size() > MAX_SIZE;
+        }
+    };
+    @GuardedBy("lock") private long requestTimeoutMillis = DEFAULT_REQUEST_TIMEOUT_MILLIS;
+
+    /** Sets how long a peer has to answer a getdata for a transaction before it is asked from another peer. */
+    public void setRequestTimeoutMillis(long requestTimeoutMillis) {
+        checkArgument(requestTimeoutMillis > 0);
+        lock.lock();
+        try {
+            this.requestTimeoutMillis = requestTimeoutMillis;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called when the given peer announces a transaction. Returns true if the peer should request the transaction now,
+     * in which case the tracker expects it to be requested. Otherwise the transaction is already on its way or here,
+     * and the peer is remembered in case it has to be asked later.
+     */
+    public boolean announced(Peer peer, Sha256Hash txHash) {
+        lock.lock();
+        try {
+            Request request = requests.get(txHash);
+            if (request == null) {
+                request = new Request();
+                requests.put(txHash, request);
+            }
+            if (request.received || request.peer == peer)
+                return false;
+            if (request.peer == null) {
+                request.peer = peer;
+                request.requestTimeMillis = Utils.currentTimeMillis();
+                return true;
+            }
+            if (request.announcers.size() < MAX_ANNOUNCERS)
+                request.announcers.add(peer);
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Called when a transaction arrived, from any peer. */
+    public void received(Sha256Hash txHash) {
+        lock.lock();
+        try {
+            Request request = requests.get(txHash);
+            if (request == null)
+                return;
+            request.received = true;
+            request.peer = null;
+            request.announcers.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Called when the given peer answers a request for the transaction with a notfound message. */
+    public void notFound(Peer peer, Sha256Hash txHash) {
+        Map<Peer, List<Sha256Hash>> retries = new HashMap<>();
+        lock.lock();
+        try {
+            Request request = requests.get(txHash);
+            if (request == null)
+                return;
+            request.announcers.remove(peer);
+            if (request.peer == peer)
+                retry(txHash, request, retries);
+        } finally {
+            lock.unlock();
+        }
+        sendRequests(retries);
+    }
+
+    /** Called when the given peer disconnected. What it was asked for is asked from other peers. */
+    public void peerDisconnected(Peer peer) {
+        Map<Peer, List<Sha256Hash>> retries = new HashMap<>();
+        lock.lock();
+        try {
+            for (Map.Entry<Sha256Hash, Request> entry : requests.entrySet()) {
+                Request request = entry.getValue();
+                request.announcers.remove(peer);
+                if (request.peer == peer)
+                    retry(entry.getKey(), request, retries);
+            }
+        } finally {
+            lock.unlock();
+        }
+        sendRequests(retries);
+    }
+
+    /** Asks other peers for the transactions whose requests timed out. */
+    public void checkTimeouts() {
+        Map<Peer, List<Sha256Hash>> retries = new HashMap<>();
+        lock.lock();
+        try {
+            long cutoff = Utils.currentTimeMillis() - requestTimeoutMillis;
+            for (Map.Entry<Sha256Hash, Request> entry : requests.entrySet()) {
+                Request request = entry.getValue();
+                if (request.peer != null && request.requestTimeMillis <= cutoff) {
+                    log.debug("{}: Timed out waiting for tx {}", request.peer, entry.getKey());
+                    retry(entry.getKey(), request, retries);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        sendRequests(retries);
+    }
+
+    /** Returns the peer the given transaction is currently requested from, or null if there is none. */
+    @Nullable
+    public Peer getRequestPeer(Sha256Hash txHash) {
+        lock.lock();
+        try {
+            Request request = requests.get(txHash);
+            return request != null ? request.peer : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Moves the request to the next announcer, if there is one.
+    @GuardedBy("lock")
+    private void retry(Sha256Hash txHash, Request request, Map<Peer, List<Sha256Hash>> retries) {
+        request.peer = null;
+        Iterator<Peer> it = request.announcers.iterator();
+        if (!it.hasNext())
+            return;
+        Peer next = it.next();
+        it.remove();
+        request.peer = next;
+        request.requestTimeMillis = Utils.currentTimeMillis();
+        List<Sha256Hash> hashes = retries.get(next);
+        if (hashes == null) {
+            hashes = new ArrayList<>();
+            retries.put(next, hashes);
+        }
+        hashes.add(txHash);
+    }
+
+    private void sendRequests(Map<Peer, List<Sha256Hash>> retries) {
+        for (Map.Entry<Peer, List<Sha256Hash>> entry : retries.entrySet()) {
+            log.info("{}: Requesting {} transactions other peers did not deliver", entry.getKey(),
+                    entry.getValue().size());
+            entry.getKey().requestTransactions(entry.getValue());
+        }
+    }
+}
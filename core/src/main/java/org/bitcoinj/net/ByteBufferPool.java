@@ -0,0 +1,120 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A thread-safe pool of direct {@link ByteBuffer}s, used for socket reads, message framing and outbound messages so
+ * that the network code doesn't allocate (and the OS doesn't copy through) a fresh buffer for every message.</p>
+ *
+ * <p>Buffers come in power of two size classes from {@link #MIN_POOLED_SIZE} to {@link #MAX_POOLED_SIZE}. A request
+ * for more than the largest class gets an ordinary heap buffer which is simply dropped when released. Each class keeps
+ * at most a fixed number of bytes of free buffers; buffers released beyond that are left to the garbage collector.</p>
+ *
+ * <p>Whoever holds a buffer from {@link #acquire(int)} must release it exactly once, and must not touch it afterwards.
+ * </p>
+ */
+public final class ByteBufferPool {
+    /** The size of the smallest size class. */
+    public static final int MIN_POOLED_SIZE = 4096;
+    /** The size of the largest size class. */
+    public static final int MAX_POOLED_SIZE = 1024 * 1024;
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_POOLED_SIZE);
+    private static final int CLASS_COUNT = Integer.numberOfTrailingZeros(MAX_POOLED_SIZE) - MIN_SHIFT + 1;
+
+    private static final ByteBufferPool DEFAULT = new ByteBufferPool(4 * MAX_POOLED_SIZE);
+
+    private final List<ConcurrentLinkedQueue<ByteBuffer>> free;
+    private final AtomicInteger[] freeCounts;
+    private final int[] maxFree;
+
+    /**
+     * Creates a pool that keeps up to the given number of bytes of free buffers in each size class, and at least one
+     * buffer.
+     */
+    public ByteBufferPool(int maxFreeBytesPerClass) {
+        checkArgument(maxFreeBytesPerClass >= 0);
+        free = new ArrayList<>(CLASS_COUNT);
+        freeCounts = new AtomicInteger[CLASS_COUNT];
+        maxFree = new int[CLASS_COUNT];
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            free.add(new ConcurrentLinkedQueue<ByteBuffer>());
+            freeCounts[i] = new AtomicInteger();
+            maxFree[i] = Math.max(1, maxFreeBytesPerClass >> (MIN_SHIFT + i));
+        }
+    }
+
+    /** Returns the pool shared by all connections. */
+    public static ByteBufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns a cleared, big endian buffer of at least the given capacity: position 0 and limit at its capacity, which
+     * may be more than was asked for.
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        checkArgument(minCapacity >= 0);
+        int sizeClass = sizeClass(minCapacity);
+        if (sizeClass < 0)
+            return ByteBuffer.allocate(minCapacity);
+        ByteBuffer buffer = free.get(sizeClass).poll();
+        if (buffer == null)
+            return ByteBuffer.allocateDirect(MIN_POOLED_SIZE << sizeClass);
+        freeCounts[sizeClass].decrementAndGet();
+        buffer.clear();
+        return buffer.order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /** Gives a buffer back to the pool. Buffers that are not the pool's kind are ignored. */
+    public void release(ByteBuffer buffer) {
+        if (!buffer.isDirect() || buffer.isReadOnly())
+            return;
+        int capacity = buffer.capacity();
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass < 0 || capacity != MIN_POOLED_SIZE << sizeClass)
+            return;
+        if (freeCounts[sizeClass].incrementAndGet() > maxFree[sizeClass]) {
+            freeCounts[sizeClass].decrementAndGet();
+            return;
+        }
+        free.get(sizeClass).offer(buffer);
+    }
+
+    /** Returns the number of free buffers held in the size class serving the given capacity. For tests. */
+    int getFreeCount(int capacity) {
+        int sizeClass = sizeClass(capacity);
+        return sizeClass < 0 ? 0 : freeCounts[sizeClass].get();
+    }
+
+    // Index of the smallest class holding the given number of bytes, or -1 if there is none.
+    private static int sizeClass(int capacity) {
+        if (capacity <= MIN_POOLED_SIZE)
+            return 0;
+        if (capacity > MAX_POOLED_SIZE)
+            return -1;
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link MessageWriteTarget} that can write a buffer from the {@link ByteBufferPool} without copying it to a byte
+ * array first.
+ */
+public interface ByteBufferWriteTarget extends MessageWriteTarget {
+    /**
+     * Writes the remaining bytes of the given buffer to the remote server, taking ownership of it: once written, or
+     * if writing fails, it is given back to {@link ByteBufferPool#getDefault()}. The caller must not touch it again.
+     */
+    void writeBuffer(ByteBuffer message) throws IOException;
+}
@@ -17,187 +17,329 @@
 package org.bitcoinj.net;
 
 import org.bitcoinj.core.Message;
-import org.bitcoinj.utils.Threading;
 import com.google.common.base.Throwables;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
-import javax.annotation.concurrent.GuardedBy;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Set;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
-// TODO: The locking in all this class is horrible and not really necessary. We should just run all network stuff on one thread.
-
 /**
  * A simple NIO MessageWriteTarget which handles all the business logic of a connection (reading+writing bytes).
- * Used only by the NioClient and NioServer classes
+ * Used only by the NioClient and NioServer classes.
+ *
+ * <p>All state is owned by the {@link NioEventLoop} thread the channel is registered on, so there is no locking.
+ * {@link #writeBytes(byte[])} and {@link #closeConnection()} may be called from any thread; off the loop thread they
+ * hand the work to the loop, which does it in the order it was submitted.</p>
+ *
+ * <p>Reads and queued writes use buffers from the shared {@link ByteBufferPool}. A connection only holds a read buffer
+ * while part of a message is waiting in it, so idle connections hold no large buffers.</p>
+ *
+ * <p>Once more bytes are waiting to be written than the loop's high watermark, {@link #isWritable()} turns false and
+ * a {@link FlowControlledConnection} is told through {@link FlowControlledConnection#writabilityChanged(boolean)};
+ * once the socket has taken enough of them to get below the low watermark it is told it may write again. Only going over the hard limit, enough for
+ * the largest message, closes the connection.</p>
  */
-class ConnectionHandler implements MessageWriteTarget {
+class ConnectionHandler implements FlowControlledWriteTarget, ByteBufferWriteTarget {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(ConnectionHandler.class);
 
     private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
     private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
 
     private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte message header
+    // A connection holding back messages for the coalescing window sends them early once this many bytes are waiting
+    private static final int COALESCING_FLUSH_BYTES = 64 * 1024;
 
-    // We lock when touching local flags and when writing data, but NEVER when calling any methods which leave this
-    // class into non-Java classes.
-    private final ReentrantLock lock = Threading.lock("nioConnectionHandler");
-    @GuardedBy("lock") private final ByteBuffer readBuff;
-    @GuardedBy("lock") private final SocketChannel channel;
-    @GuardedBy("lock") private final SelectionKey key;
-    @GuardedBy("lock") StreamConnection connection;
-    @GuardedBy("lock") private boolean closeCalled = false;
-
-    @GuardedBy("lock") private long bytesToWriteRemaining = 0;
-    @GuardedBy("lock") private final LinkedList<ByteBuffer> bytesToWrite = new LinkedList<>();
+    private final NioEventLoop loop;
+    private final ByteBufferPool pool = ByteBufferPool.getDefault();
+    private final int readBuffSize;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    StreamConnection connection;
 
+    // Only touched on the loop thread.
+    @Nullable private ByteBuffer readBuff;
+    private boolean closeCalled = false;
+    private boolean waitingForWritable = false;
+    private boolean flushScheduled = false;
+    private long firstQueuedNanos;
+    private boolean notifiedWritable = true;
+    private final ArrayDeque<ByteBuffer> bytesToWrite = new ArrayDeque<>();
     private Set<ConnectionHandler> connectedHandlers;
 
-    public ConnectionHandler(StreamConnectionFactory connectionFactory, SelectionKey key) throws IOException {
-        this(connectionFactory.getNewConnection(((SocketChannel) key.channel()).socket().getInetAddress(), ((SocketChannel) key.channel()).socket().getPort()), key);
+    // Written from any thread. Bytes accepted by writeBytes and not yet handed to the socket, including those still
+    // on their way to the loop thread.
+    private final AtomicLong bytesToWriteRemaining = new AtomicLong();
+    private volatile boolean closed = false;
+    private final AtomicBoolean writable = new AtomicBoolean(true);
+    private final Runnable writabilityNotifier = new Runnable() {
+        @Override
+        public void run() {
+            notifyWritability();
+        }
+    };
+
+    public ConnectionHandler(StreamConnectionFactory connectionFactory, SelectionKey key, NioEventLoop loop)
+            throws IOException {
+        this(connectionFactory.getNewConnection(((SocketChannel) key.channel()).socket().getInetAddress(), ((SocketChannel) key.channel()).socket().getPort()), key, loop);
         if (connection == null)
             throw new IOException("Parser factory.getNewConnection returned null");
     }
 
-    private ConnectionHandler(@Nullable StreamConnection connection, SelectionKey key) {
+    private ConnectionHandler(@Nullable StreamConnection connection, SelectionKey key, NioEventLoop loop) {
         this.key = key;
+        this.loop = loop;
         this.channel = checkNotNull(((SocketChannel)key.channel()));
         if (connection == null) {
-            readBuff = null;
+            readBuffSize = 0;
             return;
         }
         this.connection = connection;
-        readBuff = ByteBuffer.allocateDirect(Math.min(Math.max(connection.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
+        readBuffSize = Math.min(Math.max(connection.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND);
         connection.setWriteTarget(this); // May callback into us (eg closeConnection() now)
         connectedHandlers = null;
     }
 
-    public ConnectionHandler(StreamConnection connection, SelectionKey key, Set<ConnectionHandler> connectedHandlers) {
-        this(checkNotNull(connection), key);
+    public ConnectionHandler(StreamConnection connection, SelectionKey key, NioEventLoop loop,
+                             Set<ConnectionHandler> connectedHandlers) {
+        this(checkNotNull(connection), key, loop);
 
         // closeConnection() may have already happened because we invoked the other c'tor above, which called
         // connection.setWriteTarget which might have re-entered already. In this case we shouldn't add ourselves
         // to the connectedHandlers set.
-        lock.lock();
+        this.connectedHandlers = connectedHandlers;
+        if (!closeCalled)
+            checkState(this.connectedHandlers.add(this));
+    }
+
+    // Writes as much of the outbound queue as the OS' network buffer takes, a batch of buffers per call. Loop thread
+    // only.
+    private void tryWriteBytes() throws IOException {
+        ByteBuffer[] gather = loop.gatherBuffers;
+        while (!bytesToWrite.isEmpty()) {
+            int count = 0;
+            long total = 0;
+            for (ByteBuffer buff : bytesToWrite) {
+                gather[count++] = buff;
+                total += buff.remaining();
+                if (count == gather.length)
+                    break;
+            }
+            long written;
+            try {
+                written = channel.write(gather, 0, count);
+            } finally {
+                Arrays.fill(gather, 0, count, null);
+            }
+            loop.writeCalls.incrementAndGet();
+            bytesToWriteRemaining.addAndGet(-written);
+            ByteBuffer buff;
+            while ((buff = bytesToWrite.peek()) != null && !buff.hasRemaining())
+                pool.release(bytesToWrite.poll());
+            if (written < total) {
+                // Make sure we are told when writing is available again
+                if (!waitingForWritable) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    waitingForWritable = true;
+                }
+                return;
+            }
+        }
+        // We are done writing, clear the OP_WRITE interestOps
+        if (waitingForWritable) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            waitingForWritable = false;
+        }
+    }
+
+    // Queues a message, to go out when the loop flushes this connection. Loop thread only. A buffer we own goes back
+    // to the pool once written; one wrapping the caller's array is copied into a pooled buffer, as the caller may
+    // reuse the array.
+    private void write(ByteBuffer buff, boolean owned) {
+        if (closeCalled) {
+            bytesToWriteRemaining.addAndGet(-buff.remaining());
+            if (owned)
+                pool.release(buff);
+            return;
+        }
+        if (!owned) {
+            ByteBuffer copy = pool.acquire(buff.remaining());
+            copy.put(buff).flip();
+            buff = copy;
+        }
+        bytesToWrite.offer(buff);
+        loop.messagesWritten.incrementAndGet();
+        // While the socket is full OP_WRITE tells us when to carry on, otherwise the loop flushes us once it has done
+        // the rest of its work, so that a burst of messages goes out in as few writes as possible.
+        if (!waitingForWritable && !flushScheduled) {
+            flushScheduled = true;
+            firstQueuedNanos = System.nanoTime();
+            loop.scheduleFlush(this);
+        }
+    }
+
+    /** Returns true if a connection waiting for a flush has held back its messages long enough. Loop thread only. */
+    boolean isFlushDue(long now, long windowNanos) {
+        return now - firstQueuedNanos >= windowNanos || bytesToWriteRemaining.get() >= COALESCING_FLUSH_BYTES;
+    }
+
+    /** Returns when {@link #isFlushDue(long, long)} will be true at the latest. Loop thread only. */
+    long getFlushDeadline(long windowNanos) {
+        return firstQueuedNanos + windowNanos;
+    }
+
+    /** Writes out what has been queued since the last flush. Called by the loop. */
+    void flush() {
+        flushScheduled = false;
+        if (closeCalled)
+            return;
         try {
-            this.connectedHandlers = connectedHandlers;
-            if (!closeCalled)
-                checkState(this.connectedHandlers.add(this));
-        } finally {
-            lock.unlock();
+            tryWriteBytes();
+            updateWritability();
+        } catch (IOException | CancelledKeyException e) {
+            log.warn("Error writing message to connection, closing connection", e);
+            closeConnection();
         }
     }
 
-    @GuardedBy("lock")
-    private void setWriteOps() {
-        // Make sure we are registered to get updated when writing is available again
-        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
-        // Refresh the selector to make sure it gets the new interestOps
-        key.selector().wakeup();
+    // Makes us writable again once the socket has taken enough of the queue. Loop thread only.
+    private void updateWritability() {
+        if (!writable.get() && bytesToWriteRemaining.get() <= loop.getLowWatermark()
+                && writable.compareAndSet(false, true))
+            notifyWritability();
     }
 
-    // Tries to write any outstanding write bytes, runs in any thread (possibly unlocked)
-    private void tryWriteBytes() throws IOException {
-        lock.lock();
+    // Tells the connection if its writability has changed since it was last told. Loop thread only, so that the
+    // callbacks arrive in order however the changes raced.
+    private void notifyWritability() {
+        boolean now = writable.get();
+        if (closeCalled || now == notifiedWritable)
+            return;
+        notifiedWritable = now;
+        if (!(connection instanceof FlowControlledConnection))
+            return;
         try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
-            while (bytesIterator.hasNext()) {
-                ByteBuffer buff = bytesIterator.next();
-                bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining())
-                    bytesIterator.remove();
-                else {
-                    setWriteOps();
-                    break;
-                }
-            }
-            // If we are done writing, clear the OP_WRITE interestOps
-            if (bytesToWrite.isEmpty())
-                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
-            // Don't bother waking up the selector here, since we're just removing an op, not adding
-        } finally {
-            lock.unlock();
+            ((FlowControlledConnection) connection).writabilityChanged(now);
+        } catch (RuntimeException e) {
+            log.error("Error in writability callback, closing connection", e);
+            closeConnection();
         }
     }
 
+    @Override
+    public boolean isWritable() {
+        return writable.get();
+    }
+
+    // Accounts for bytes about to be queued, failing if the connection is closed or would buffer too much. Network
+    // buffers are not unlimited (and are often smaller than some messages we may wish to send), and thus we have to
+    // buffer outbound messages sometimes. The loop thread queues each message, and registers our SelectionKey to
+    // wakeup when we have free outbound buffer space available if the socket doesn't take all of them.
+    private void reserve(int length) throws IOException {
+        if (closed) // Closing cancels our key, which is what writers have always been told
+            throw new IOException("Connection closed", new CancelledKeyException());
+        long total = bytesToWriteRemaining.addAndGet(length);
+        if (total > OUTBOUND_BUFFER_BYTE_COUNT) {
+            bytesToWriteRemaining.addAndGet(-length);
+            IOException e = new IOException("Outbound buffer overflowed");
+            log.warn("Error writing message to connection, closing connection", e);
+            closeConnection();
+            throw e;
+        }
+        if (total > loop.getHighWatermark() && writable.compareAndSet(true, false))
+            loop.execute(writabilityNotifier);
+    }
+
     @Override
     public void writeBytes(byte[] message) throws IOException {
-        boolean andUnlock = true;
-        lock.lock();
+        reserve(message.length);
+        if (loop.inEventLoop()) {
+            write(ByteBuffer.wrap(message), false);
+        } else {
+            // The caller may reuse the array once we return, so the loop gets a copy.
+            ByteBuffer buff = pool.acquire(message.length);
+            buff.put(message).flip();
+            writeOnLoop(buff);
+        }
+    }
+
+    @Override
+    public void writeBuffer(ByteBuffer message) throws IOException {
         try {
-            // Network buffers are not unlimited (and are often smaller than some messages we may wish to send), and
-            // thus we have to buffer outbound messages sometimes. To do this, we use a queue of ByteBuffers and just
-            // append to it when we want to send a message. We then let tryWriteBytes() either send the message or
-            // register our SelectionKey to wakeup when we have free outbound buffer space available.
-
-            if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
-                throw new IOException("Outbound buffer overflowed");
-            // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
-            bytesToWriteRemaining += message.length;
-            setWriteOps();
+            reserve(message.remaining());
         } catch (IOException e) {
-            lock.unlock();
-            andUnlock = false;
-            log.warn("Error writing message to connection, closing connection", e);
-            closeConnection();
+            pool.release(message);
             throw e;
-        } catch (CancelledKeyException e) {
-            lock.unlock();
-            andUnlock = false;
-            log.warn("Error writing message to connection, closing connection", e);
-            closeConnection();
-            throw new IOException(e);
-        } finally {
-            if (andUnlock)
-                lock.unlock();
         }
+        if (loop.inEventLoop())
+            write(message, true);
+        else
+            writeOnLoop(message);
     }
 
-    // May NOT be called with lock held
+    private void writeOnLoop(final ByteBuffer buff) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(buff, true);
+            }
+        });
+    }
+
+    /**
+     * Closes the channel right away, from any thread. The {@link StreamConnection#connectionClosed()} callback runs on
+     * the loop thread, after anything queued for this connection before.
+     */
     @Override
     public void closeConnection() {
-        checkState(!lock.isHeldByCurrentThread());
+        if (loop.inEventLoop() && !closed) {
+            // Give messages queued just before closing a last chance to go out, without waiting for the socket
+            try {
+                tryWriteBytes();
+            } catch (IOException | CancelledKeyException e) {
+                // We're closing anyway
+            }
+        }
+        closed = true;
         try {
             channel.close();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        connectionClosed();
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                connectionClosed();
+            }
+        });
     }
 
+    // Loop thread only.
     private void connectionClosed() {
-        boolean callClosed = false;
-        lock.lock();
-        try {
-            callClosed = !closeCalled;
-            closeCalled = true;
-        } finally {
-            lock.unlock();
-        }
-        if (callClosed) {
-            checkState(connectedHandlers == null || connectedHandlers.remove(this));
-            connection.connectionClosed();
-        }
+        if (closeCalled)
+            return;
+        closeCalled = true;
+        bytesToWriteRemaining.set(0);
+        ByteBuffer buff;
+        while ((buff = bytesToWrite.poll()) != null)
+            pool.release(buff);
+        checkState(connectedHandlers == null || connectedHandlers.remove(this));
+        loop.channelReleased();
+        connection.connectionClosed();
     }
 
-    // Handle a SelectionKey which was selected
-    // Runs unlocked as the caller is single-threaded (or if not, should enforce that handleKey is only called
-    // atomically for a given ConnectionHandler)
+    // Handle a SelectionKey which was selected. Loop thread only.
     public static void handleKey(SelectionKey key) {
         ConnectionHandler handler = ((ConnectionHandler)key.attachment());
         try {
@@ -209,6 +351,8 @@ class ConnectionHandler implements MessageWriteTarget {
             }
             if (key.isReadable()) {
                 // Do a socket read and invoke the connection's receiveBytes message
+                if (handler.readBuff == null)
+                    handler.readBuff = handler.pool.acquire(handler.readBuffSize);
                 int read = handler.channel.read(handler.readBuff);
                 if (read == 0)
                     return; // Was probably waiting on a write
@@ -226,14 +370,24 @@ class ConnectionHandler implements MessageWriteTarget {
                 // position)
                 handler.readBuff.compact();
             }
-            if (key.isWritable())
+            if (key.isWritable()) {
                 handler.tryWriteBytes();
+                handler.updateWritability();
+            }
         } catch (Exception e) {
             // This can happen eg if the channel closes while the thread is about to get killed
             // (ClosedByInterruptException), or if handler.connection.receiveBytes throws something
             Throwable t = Throwables.getRootCause(e);
             log.warn("Error handling SelectionKey: {} {}", t.getClass().getName(), t.getMessage() != null ? t.getMessage() : "", e);
             handler.closeConnection();
+        } finally {
+            // Hand the read buffer back unless part of a message is waiting in it. A closed connection's is left to
+            // the garbage collector if it was closed from elsewhere.
+            if (handler != null && handler.readBuff != null
+                    && (handler.closeCalled || handler.readBuff.position() == 0)) {
+                handler.pool.release(handler.readBuff);
+                handler.readBuff = null;
+            }
         }
     }
 }
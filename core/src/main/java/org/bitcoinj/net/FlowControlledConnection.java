@@ -0,0 +1,30 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+/**
+ * A {@link StreamConnection} that wants to hear when its {@link FlowControlledWriteTarget} has a backlog, so that it
+ * can hold back further messages until the backlog has drained.
+ */
+public interface FlowControlledConnection extends StreamConnection {
+    /**
+     * Called when the write target's {@link FlowControlledWriteTarget#isWritable()} changes: with false once the bytes
+     * waiting to be written pass its high watermark, and with true once they have dropped back below its low
+     * watermark.
+     */
+    void writabilityChanged(boolean writable);
+}
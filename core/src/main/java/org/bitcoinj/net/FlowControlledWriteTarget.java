@@ -0,0 +1,30 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+/**
+ * A {@link MessageWriteTarget} that buffers the bytes written to it, and reports when it is buffering more than it
+ * likes to. Write targets that don't implement this are always considered writable.
+ */
+public interface FlowControlledWriteTarget extends MessageWriteTarget {
+    /**
+     * Returns false while more bytes are waiting to be written than the connection likes to buffer. Writes still
+     * succeed, up to a hard limit, but callers that can wait should hold further messages back until
+     * {@link FlowControlledConnection#writabilityChanged(boolean)} reports the connection writable again.
+     */
+    boolean isWritable();
+}
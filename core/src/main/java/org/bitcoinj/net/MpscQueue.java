@@ -0,0 +1,81 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>An unbounded lock-free queue for many producer threads and a single consumer thread, used to hand work to a
+ * network thread.</p>
+ *
+ * <p>{@link #offer(Object)} is one atomic swap and may be called from any thread. {@link #poll()} and
+ * {@link #isEmpty()} must only ever be called by one thread at a time, normally the network thread. An element offered
+ * concurrently with a poll may not be seen by that poll, but is seen by a later one.</p>
+ */
+final class MpscQueue<E> {
+    private static final class Node<E> {
+        @SuppressWarnings("rawtypes")
+        private static final AtomicReferenceFieldUpdater<Node, Node> NEXT =
+                AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "next");
+
+        volatile Node<E> next;
+        E value;
+
+        Node(@Nullable E value) {
+            this.value = value;
+        }
+    }
+
+    // Producers append after the last node. The consumer reads from the node after first, which is a spent stub.
+    private final AtomicReference<Node<E>> last;
+    private Node<E> first;
+
+    MpscQueue() {
+        Node<E> stub = new Node<>(null);
+        last = new AtomicReference<>(stub);
+        first = stub;
+    }
+
+    /** Appends an element. Safe to call from any thread. */
+    void offer(E value) {
+        Node<E> node = new Node<>(checkNotNull(value));
+        Node<E> previous = last.getAndSet(node);
+        // Between the swap and this store the consumer just sees the queue ending at previous.
+        Node.NEXT.lazySet(previous, node);
+    }
+
+    /** Removes and returns the first element, or null if there is none. Consumer thread only. */
+    @Nullable
+    E poll() {
+        Node<E> next = first.next;
+        if (next == null)
+            return null;
+        E value = next.value;
+        next.value = null;
+        first = next;
+        return value;
+    }
+
+    /** Returns true if there is nothing to poll. Consumer thread only. */
+    boolean isEmpty() {
+        return first.next == null;
+    }
+}
@@ -28,13 +28,13 @@ import java.nio.*;
 /**
  * Creates a simple connection to a server using a {@link StreamConnection} to process data.
  */
-public class NioClient implements MessageWriteTarget {
+public class NioClient implements FlowControlledWriteTarget, ByteBufferWriteTarget {
     private static final Logger log = LoggerFactory.getLogger(NioClient.class);
 
     private final Handler handler;
     private final NioClientManager manager = new NioClientManager();
 
-    class Handler extends AbstractTimeoutHandler implements StreamConnection {
+    class Handler extends AbstractTimeoutHandler implements FlowControlledConnection {
         private final StreamConnection upstreamConnection;
         private MessageWriteTarget writeTarget;
         private boolean closeOnOpen = false;
@@ -66,6 +66,12 @@ public class NioClient implements MessageWriteTarget {
                 upstreamConnection.connectionOpened();
         }
 
+        @Override
+        public void writabilityChanged(boolean writable) {
+            if (upstreamConnection instanceof FlowControlledConnection)
+                ((FlowControlledConnection) upstreamConnection).writabilityChanged(writable);
+        }
+
         @Override
         public int receiveBytes(ByteBuffer buff) throws Exception {
             return upstreamConnection.receiveBytes(buff);
@@ -123,4 +129,26 @@ public class NioClient implements MessageWriteTarget {
     public synchronized void writeBytes(byte[] message) throws IOException {
         handler.writeTarget.writeBytes(message);
     }
+
+    @Override
+    public synchronized void writeBuffer(ByteBuffer message) throws IOException {
+        MessageWriteTarget target = handler.writeTarget;
+        if (target instanceof ByteBufferWriteTarget) {
+            ((ByteBufferWriteTarget) target).writeBuffer(message);
+            return;
+        }
+        try {
+            byte[] bytes = new byte[message.remaining()];
+            message.get(bytes);
+            target.writeBytes(bytes);
+        } finally {
+            ByteBufferPool.getDefault().release(message);
+        }
+    }
+
+    @Override
+    public boolean isWritable() {
+        MessageWriteTarget target = handler.writeTarget;
+        return !(target instanceof FlowControlledWriteTarget) || ((FlowControlledWriteTarget) target).isWritable();
+    }
 }
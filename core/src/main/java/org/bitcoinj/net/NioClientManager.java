@@ -25,31 +25,35 @@ import java.io.IOException;
 import java.net.ConnectException;
 import java.net.SocketAddress;
 import java.nio.channels.*;
-import java.nio.channels.spi.SelectorProvider;
 import java.util.*;
 import java.util.concurrent.*;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * A class which manages a set of client connections. Uses Java NIO to select network events and processes them in a
- * single network processing thread.
+ * network processing thread, which also does all work on the connections handed to it by other threads (see
+ * {@link NioEventLoop}). By default there is a single such thread; managers with many connections can spread them over
+ * several, with each connection handled by one thread for its whole life.
  */
 public class NioClientManager extends AbstractExecutionThreadService implements ClientConnectionManager {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioClientManager.class);
 
-    private final Selector selector;
+    private final NioEventLoopGroup loops;
 
     class PendingConnect {
         SocketChannel sc;
         StreamConnection connection;
         SocketAddress address;
+        NioEventLoop loop;
         SettableFuture<SocketAddress> future = SettableFuture.create();
 
-        PendingConnect(SocketChannel sc, StreamConnection connection, SocketAddress address) { this.sc = sc; this.connection = connection; this.address = address; }
+        PendingConnect(SocketChannel sc, StreamConnection connection, SocketAddress address, NioEventLoop loop) { this.sc = sc; this.connection = connection; this.address = address; this.loop = loop; }
     }
-    final Queue<PendingConnect> newConnectionChannels = new LinkedBlockingQueue<>();
 
-    // Added to/removed from by the individual ConnectionHandler's, thus must by synchronized on its own.
-    private final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
+    // Added to/removed from by the individual ConnectionHandler's on the network thread, read from any thread.
+    private final Set<ConnectionHandler> connectedHandlers =
+            Collections.newSetFromMap(new ConcurrentHashMap<ConnectionHandler, Boolean>());
 
     // Handle a SelectionKey which was selected
     private void handleKey(SelectionKey key) throws IOException {
@@ -59,7 +63,7 @@ public class NioClientManager extends AbstractExecutionThreadService implements
             PendingConnect data = (PendingConnect) key.attachment();
             StreamConnection connection = data.connection;
             SocketChannel sc = (SocketChannel) key.channel();
-            ConnectionHandler handler = new ConnectionHandler(connection, key, connectedHandlers);
+            ConnectionHandler handler = new ConnectionHandler(connection, key, data.loop, connectedHandlers);
             try {
                 if (sc.finishConnect()) {
                     log.info("Connected to {}", sc.socket().getRemoteSocketAddress());
@@ -91,8 +95,16 @@ public class NioClientManager extends AbstractExecutionThreadService implements
      * calls.
      */
     public NioClientManager() {
+        this(1);
+    }
+
+    /**
+     * Creates a new client manager which uses Java NIO for socket management, spreading its connections over the given
+     * number of select threads. Each new connection goes to the thread with the fewest connections.
+     */
+    public NioClientManager(int loopCount) {
         try {
-            selector = SelectorProvider.provider().openSelector();
+            loops = new NioEventLoopGroup("NioClientManager", loopCount);
         } catch (IOException e) {
             throw new RuntimeException(e); // Shouldn't ever happen
         }
@@ -100,48 +112,13 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
     @Override
     public void run() {
-        try {
-            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-            while (isRunning()) {
-                PendingConnect conn;
-                while ((conn = newConnectionChannels.poll()) != null) {
-                    try {
-                        SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
-                        key.attach(conn);
-                    } catch (ClosedChannelException e) {
-                        log.warn("SocketChannel was closed before it could be registered");
-                    }
-                }
-
-                selector.select();
-
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-                    handleKey(key);
-                }
-            }
-        } catch (Exception e) {
-            log.warn("Error trying to open/read from connection: ", e);
-        } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    key.channel().close();
-                } catch (IOException e) {
-                    log.warn("Error closing channel", e);
-                }
-                key.cancel();
-                if (key.attachment() instanceof ConnectionHandler)
-                    ConnectionHandler.handleKey(key); // Close connection if relevant
-            }
-            try {
-                selector.close();
-            } catch (IOException e) {
-                log.warn("Error closing client manager selector", e);
+        Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+        loops.run(new NioEventLoop.KeyHandler() {
+            @Override
+            public void handleKey(SelectionKey key) throws IOException {
+                NioClientManager.this.handleKey(key);
             }
-        }
+        }, new ContextPropagatingThreadFactory("NioClientManager", Thread.MIN_PRIORITY));
     }
 
     @Override
@@ -153,18 +130,39 @@ public class NioClientManager extends AbstractExecutionThreadService implements
             SocketChannel sc = SocketChannel.open();
             sc.configureBlocking(false);
             sc.connect(serverAddress);
-            PendingConnect data = new PendingConnect(sc, connection, serverAddress);
-            newConnectionChannels.offer(data);
-            selector.wakeup();
+            final PendingConnect data = new PendingConnect(sc, connection, serverAddress, loops.next());
+            data.loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    register(data);
+                }
+            });
             return data.future;
         } catch (Throwable e) {
             return Futures.immediateFailedFuture(e);
         }
     }
 
+    // Runs on the network thread, or on the caller's if the manager has stopped in the meantime.
+    private void register(PendingConnect conn) {
+        try {
+            SelectionKey key = conn.sc.register(conn.loop.selector, SelectionKey.OP_CONNECT);
+            key.attach(conn);
+        } catch (ClosedChannelException | ClosedSelectorException e) {
+            log.warn("SocketChannel was closed before it could be registered");
+            conn.loop.channelReleased();
+            try {
+                conn.sc.close();
+            } catch (IOException x) {
+                log.warn("Error closing channel", x);
+            }
+            conn.future.setException(e);
+        }
+    }
+
     @Override
     public void triggerShutdown() {
-        selector.wakeup();
+        loops.stop();
     }
 
     @Override
@@ -174,14 +172,63 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
     @Override
     public void closeConnections(int n) {
-        while (n-- > 0) {
-            ConnectionHandler handler;
-            synchronized (connectedHandlers) {
-                handler = connectedHandlers.iterator().next();
-            }
-            if (handler != null)
-                handler.closeConnection(); // Removes handler from connectedHandlers before returning
-        }
+        // Handlers leave connectedHandlers on the network thread once closed, so pick the ones to close up front
+        List<ConnectionHandler> toClose = new ArrayList<>(n);
+        for (Iterator<ConnectionHandler> it = connectedHandlers.iterator(); it.hasNext() && toClose.size() < n; )
+            toClose.add(it.next());
+        for (ConnectionHandler handler : toClose)
+            handler.closeConnection();
+    }
+
+    /**
+     * Lets each connection hold back outbound messages for up to the given time, so that bursts of small messages go
+     * out in fewer writes and TCP segments at the cost of that much latency. 0, the default, sends everything queued
+     * during one pass of the network thread together without waiting any longer.
+     */
+    public void setWriteCoalescingMillis(int millis) {
+        checkArgument(millis >= 0);
+        loops.setCoalescingWindow(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets how many bytes a connection may have waiting to be written before it reports itself unwritable to its
+     * {@link StreamConnection}, and how far they must drop before it reports itself writable again. Writes go on
+     * being accepted in between, up to the size of the largest message.
+     */
+    public void setWriteBufferWatermarks(int low, int high) {
+        checkArgument(low >= 0 && low < high, "need 0 <= low < high");
+        loops.setWriteBufferWatermarks(low, high);
+    }
+
+    /**
+     * Returns the number of write calls made on sockets so far. Together with {@link #getWrittenMessageCount()} this
+     * shows how well outbound messages are being batched.
+     */
+    public long getWriteCallCount() {
+        return loops.getWriteCalls();
+    }
+
+    /** Returns the number of messages queued for writing so far. */
+    public long getWrittenMessageCount() {
+        return loops.getMessagesWritten();
+    }
+
+    /** Returns the number of select threads this manager spreads its connections over. */
+    public int getLoopCount() {
+        return loops.size();
+    }
+
+    /** Returns the number of connections, including those still connecting, handled by the given select thread. */
+    public int getLoopConnectionCount(int loop) {
+        return loops.get(loop).getChannelCount();
+    }
+
+    /**
+     * Returns the share of its time the given select thread has spent handling connections since it started, rather
+     * than waiting for them, between 0 and 1. A value near 1 means the thread is saturated.
+     */
+    public double getLoopUtilization(int loop) {
+        return loops.get(loop).getUtilization();
     }
 
     @Override
@@ -0,0 +1,307 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>A selector together with the one thread that uses it. Everything touching the channels registered with the
+ * selector, and the state of their {@link ConnectionHandler}s, happens on that thread, so none of it needs locking.
+ * Other threads hand work to it through {@link #execute(Runnable)}, which queues the task on a lock-free queue and
+ * wakes the selector.</p>
+ *
+ * <p>The owning service gives a thread to {@link #run(KeyHandler)} for each of its loops and calls {@link #stop()} when
+ * it is told to shut down. Once the loop has finished, tasks run on the thread that submits them, so that for example
+ * close callbacks are never lost.</p>
+ *
+ * <p>A connection stays on the loop it was first registered with, which is what keeps its reads, writes and callbacks
+ * in order. The loop counts the channels assigned to it and the share of its time it spends working rather than
+ * waiting in select, so that the service can spread connections over several loops.</p>
+ *
+ * <p>Connections don't write messages as they are queued. The loop flushes them after it has handled the selected
+ * keys and the queued tasks, so that everything one connection queued in that time goes out in one gathering write.
+ * With a coalescing window set, a connection holds its messages back for up to that long before being flushed, unless
+ * plenty of data is waiting.</p>
+ */
+class NioEventLoop implements Executor {
+    private static final Logger log = LoggerFactory.getLogger(NioEventLoop.class);
+
+    /** What a service does with the keys its loops select. */
+    interface KeyHandler {
+        void handleKey(SelectionKey key) throws IOException;
+    }
+
+    final Selector selector;
+    private final String name;
+    private final MpscQueue<Runnable> tasks = new MpscQueue<>();
+    // Set once a wakeup has been requested since the last select, so that a burst of tasks costs one wakeup.
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private volatile Thread thread;
+    private volatile boolean stopRequested;
+    private volatile boolean terminated;
+
+    /** The most buffers handed to one gathering write. */
+    static final int MAX_GATHER = 64;
+
+    // Loop thread only.
+    final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER];
+    private ArrayList<ConnectionHandler> pendingFlushes = new ArrayList<>();
+    private ArrayList<ConnectionHandler> flushing = new ArrayList<>();
+    private volatile long coalescingNanos;
+
+    /** Bytes waiting to be written above which a connection reports itself unwritable, unless set otherwise. */
+    static final int DEFAULT_HIGH_WATERMARK = 1024 * 1024;
+    /** Bytes waiting to be written below which an unwritable connection becomes writable again, unless set otherwise. */
+    static final int DEFAULT_LOW_WATERMARK = 256 * 1024;
+    private volatile int highWatermark = DEFAULT_HIGH_WATERMARK;
+    private volatile int lowWatermark = DEFAULT_LOW_WATERMARK;
+
+    // Counted by the connections on this loop.
+    final AtomicLong writeCalls = new AtomicLong();
+    final AtomicLong messagesWritten = new AtomicLong();
+
+    private final AtomicInteger channelCount = new AtomicInteger();
+    private volatile boolean started;
+    private volatile long startedNanos;
+    private final AtomicLong busyNanos = new AtomicLong();
+
+    NioEventLoop(String name) throws IOException {
+        this.name = name;
+        selector = SelectorProvider.provider().openSelector();
+    }
+
+    /**
+     * Runs the loop on the calling thread until {@link #stop()}, passing each selected key to the handler. Afterwards
+     * closes every channel still registered, letting their {@link ConnectionHandler}s run their close callbacks, and
+     * the selector.
+     */
+    void run(KeyHandler handler) {
+        bindToCurrentThread();
+        startedNanos = System.nanoTime();
+        started = true;
+        try {
+            while (!stopRequested) {
+                select();
+                long workStarted = System.nanoTime();
+
+                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                while (keyIterator.hasNext()) {
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+                    handler.handleKey(key);
+                }
+                runTasks();
+                flushWrites();
+                busyNanos.addAndGet(System.nanoTime() - workStarted);
+            }
+        } catch (Exception e) {
+            log.warn(name + ": error trying to open/read from connection: ", e);
+        } finally {
+            // Go through and close everything, without letting IOExceptions get in our way
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    log.warn("Error closing channel", e);
+                }
+                key.cancel();
+                if (key.attachment() instanceof ConnectionHandler)
+                    ConnectionHandler.handleKey(key); // Close connection if relevant
+            }
+            // Connections opened, written to or closed from now on are handled by the thread doing so
+            terminate();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                log.warn(name + ": error closing selector", e);
+            }
+        }
+    }
+
+    /** Asks the loop to finish; {@link #run(KeyHandler)} returns once it has closed everything. */
+    void stop() {
+        stopRequested = true;
+        wakeup();
+    }
+
+    /** Returns true once the loop has finished running and closed its selector. */
+    boolean isTerminated() {
+        return terminated;
+    }
+
+    /**
+     * Sets how long a connection may hold back queued messages so that more of them go out in one write. 0, the
+     * default, flushes connections at the end of each pass of the loop.
+     */
+    void setCoalescingWindow(long time, TimeUnit unit) {
+        coalescingNanos = unit.toNanos(time);
+    }
+
+    /** Sets the watermarks the connections on this loop report their writability by. */
+    void setWriteBufferWatermarks(int low, int high) {
+        highWatermark = high;
+        lowWatermark = low;
+    }
+
+    int getHighWatermark() {
+        return highWatermark;
+    }
+
+    int getLowWatermark() {
+        return lowWatermark;
+    }
+
+    /** Asks for the given connection to be flushed once its coalescing window is over. Loop thread only. */
+    void scheduleFlush(ConnectionHandler handler) {
+        pendingFlushes.add(handler);
+    }
+
+    // Flushes the connections that are due. Flushing may close connections and so queue more flushes, which go to the
+    // other list.
+    private void flushWrites() {
+        if (pendingFlushes.isEmpty())
+            return;
+        ArrayList<ConnectionHandler> due = pendingFlushes;
+        pendingFlushes = flushing;
+        flushing = due;
+        long window = coalescingNanos;
+        long now = window == 0 ? 0 : System.nanoTime();
+        for (ConnectionHandler handler : due) {
+            if (window == 0 || handler.isFlushDue(now, window))
+                handler.flush();
+            else
+                pendingFlushes.add(handler);
+        }
+        due.clear();
+    }
+
+    /** Counts a channel the service has just assigned to this loop. */
+    void channelAssigned() {
+        channelCount.incrementAndGet();
+    }
+
+    /** Uncounts a channel assigned with {@link #channelAssigned()} once it is closed. */
+    void channelReleased() {
+        channelCount.decrementAndGet();
+    }
+
+    /** Returns the number of channels assigned to this loop and not yet closed. */
+    int getChannelCount() {
+        return channelCount.get();
+    }
+
+    /**
+     * Returns the share of the time since the loop started that it spent handling keys and running tasks, as
+     * opposed to waiting for I/O, between 0 and 1.
+     */
+    double getUtilization() {
+        if (!started)
+            return 0;
+        long elapsed = System.nanoTime() - startedNanos;
+        return elapsed <= 0 ? 0 : Math.min(1.0, (double) busyNanos.get() / elapsed);
+    }
+
+    // Makes the calling thread the loop thread.
+    private void bindToCurrentThread() {
+        thread = Thread.currentThread();
+    }
+
+    /** Returns true if called on the loop thread. */
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /** Runs the task on the loop thread: right away if called on it, otherwise after the current select. */
+    @Override
+    public void execute(Runnable task) {
+        if (inEventLoop()) {
+            task.run();
+            return;
+        }
+        tasks.offer(task);
+        if (terminated) {
+            // Nobody is left to run it, so run it (and anything else stranded) here.
+            synchronized (this) {
+                drainTasks();
+            }
+        } else if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /** Waits for I/O, or returns straight away if tasks are waiting. Loop thread only. */
+    private int select() throws IOException {
+        int selected;
+        if (!tasks.isEmpty()) {
+            selected = selector.selectNow();
+        } else if (!pendingFlushes.isEmpty()) {
+            // Sleep until the first connection holding back messages is due
+            long window = coalescingNanos;
+            long deadline = Long.MAX_VALUE;
+            for (ConnectionHandler handler : pendingFlushes)
+                deadline = Math.min(deadline, handler.getFlushDeadline(window));
+            long waitMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime() + 999999);
+            selected = waitMillis > 0 ? selector.select(waitMillis) : selector.selectNow();
+        } else {
+            selected = selector.select();
+        }
+        wakeupPending.set(false);
+        return selected;
+    }
+
+    /** Runs the tasks queued so far. Loop thread only. */
+    private void runTasks() {
+        drainTasks();
+    }
+
+    // Marks the loop as finished, and runs the tasks still queued.
+    private void terminate() {
+        synchronized (this) {
+            terminated = true;
+            drainTasks();
+        }
+    }
+
+    private void wakeup() {
+        selector.wakeup();
+    }
+
+    private void drainTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("Network task threw", e);
+            }
+        }
+    }
+}
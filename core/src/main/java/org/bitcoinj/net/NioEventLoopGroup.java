@@ -0,0 +1,136 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The {@link NioEventLoop}s of one {@link NioClientManager} or {@link NioServer}. The service's own thread runs the
+ * first loop and the others get a thread each. New connections go to the loop with the fewest channels, taking turns
+ * among equally loaded loops.
+ */
+final class NioEventLoopGroup {
+    private final NioEventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    NioEventLoopGroup(String name, int loopCount) throws IOException {
+        checkArgument(loopCount > 0, "loopCount must be positive");
+        loops = new NioEventLoop[loopCount];
+        try {
+            for (int i = 0; i < loopCount; i++)
+                loops[i] = new NioEventLoop(name + " loop " + i);
+        } catch (IOException e) {
+            for (NioEventLoop loop : loops) {
+                if (loop != null)
+                    loop.selector.close();
+            }
+            throw e;
+        }
+    }
+
+    int size() {
+        return loops.length;
+    }
+
+    NioEventLoop get(int index) {
+        return loops[index];
+    }
+
+    /** Picks the loop a new connection should be registered with, and counts the connection against it. */
+    NioEventLoop next() {
+        int start = (nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length;
+        NioEventLoop best = null;
+        for (int i = 0; i < loops.length; i++) {
+            NioEventLoop loop = loops[(start + i) % loops.length];
+            if (loop.isTerminated())
+                continue;
+            if (best == null || loop.getChannelCount() < best.getChannelCount())
+                best = loop;
+        }
+        if (best == null)
+            best = loops[start]; // All finished: registering fails and the caller reports that
+        best.channelAssigned();
+        return best;
+    }
+
+    /**
+     * Runs the first loop on the calling thread and the others on threads from the given factory. Returns when the
+     * first loop has finished, after stopping the others and waiting for them to finish too.
+     */
+    void run(final NioEventLoop.KeyHandler handler, ThreadFactory threadFactory) {
+        List<Thread> threads = new ArrayList<>(loops.length - 1);
+        try {
+            for (int i = 1; i < loops.length; i++) {
+                final NioEventLoop loop = loops[i];
+                Thread thread = threadFactory.newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        loop.run(handler);
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            loops[0].run(handler);
+        } finally {
+            stop();
+            for (Thread thread : threads)
+                Uninterruptibles.joinUninterruptibly(thread);
+        }
+    }
+
+    void setCoalescingWindow(long time, TimeUnit unit) {
+        for (NioEventLoop loop : loops)
+            loop.setCoalescingWindow(time, unit);
+    }
+
+    void setWriteBufferWatermarks(int low, int high) {
+        for (NioEventLoop loop : loops)
+            loop.setWriteBufferWatermarks(low, high);
+    }
+
+    /** Returns the number of write calls made on the sockets of all loops. */
+    long getWriteCalls() {
+        long total = 0;
+        for (NioEventLoop loop : loops)
+            total += loop.writeCalls.get();
+        return total;
+    }
+
+    /** Returns the number of messages queued for writing on all loops. */
+    long getMessagesWritten() {
+        long total = 0;
+        for (NioEventLoop loop : loops)
+            total += loop.messagesWritten.get();
+        return total;
+    }
+
+    /** Asks every loop to finish. */
+    void stop() {
+        for (NioEventLoop loop : loops)
+            loop.stop();
+    }
+}
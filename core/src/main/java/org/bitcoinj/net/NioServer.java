@@ -19,17 +19,20 @@ package org.bitcoinj.net;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.*;
-import java.nio.channels.spi.SelectorProvider;
-import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
+import org.bitcoinj.utils.DaemonThreadFactory;
 import org.slf4j.LoggerFactory;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * Creates a simple server listener which listens for incoming client connections and uses a {@link StreamConnection} to
- * process data.
+ * process data. Connections are accepted on the server's own thread and can be spread over several select threads,
+ * each of which handles a connection for its whole life.
  */
 public class NioServer extends AbstractExecutionThreadService {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioServer.class);
@@ -37,26 +40,48 @@ public class NioServer extends AbstractExecutionThreadService {
     private final StreamConnectionFactory connectionFactory;
 
     private final ServerSocketChannel sc;
+    private final NioEventLoopGroup loops;
     @VisibleForTesting final Selector selector;
 
     // Handle a SelectionKey which was selected
-    private void handleKey(Selector selector, SelectionKey key) throws IOException {
+    private void handleKey(SelectionKey key) throws IOException {
         if (key.isValid() && key.isAcceptable()) {
-            // Accept a new connection, give it a stream connection as an attachment
-            SocketChannel newChannel = sc.accept();
+            // Accept a new connection and hand it to the least loaded loop, which gives it a stream connection
+            final SocketChannel newChannel = sc.accept();
             newChannel.configureBlocking(false);
-            SelectionKey newKey = newChannel.register(selector, SelectionKey.OP_READ);
+            final NioEventLoop loop = loops.next();
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    register(newChannel, loop);
+                }
+            });
+        } else { // Got a closing channel or a channel to a client connection
+            ConnectionHandler.handleKey(key);
+        }
+    }
+
+    // Runs on the given loop's thread, or on the accepting thread if the loop has stopped in the meantime.
+    private void register(SocketChannel newChannel, NioEventLoop loop) {
+        try {
+            SelectionKey newKey = newChannel.register(loop.selector, SelectionKey.OP_READ);
             try {
-                ConnectionHandler handler = new ConnectionHandler(connectionFactory, newKey);
+                ConnectionHandler handler = new ConnectionHandler(connectionFactory, newKey, loop);
                 newKey.attach(handler);
                 handler.connection.connectionOpened();
+                return;
             } catch (IOException e) {
                 // This can happen if ConnectionHandler's call to get a new handler returned null
                 log.error("Error handling new connection", Throwables.getRootCause(e).getMessage());
-                newKey.channel().close();
             }
-        } else { // Got a closing channel or a channel to a client connection
-            ConnectionHandler.handleKey(key);
+        } catch (ClosedChannelException | ClosedSelectorException e) {
+            log.warn("SocketChannel was closed before it could be registered");
+        }
+        loop.channelReleased();
+        try {
+            newChannel.close();
+        } catch (IOException e) {
+            log.error("Error closing channel", e);
         }
     }
 
@@ -67,51 +92,43 @@ public class NioServer extends AbstractExecutionThreadService {
      * @throws IOException If there is an issue opening the server socket or binding fails for some reason
      */
     public NioServer(final StreamConnectionFactory connectionFactory, InetSocketAddress bindAddress) throws IOException {
+        this(connectionFactory, bindAddress, 1);
+    }
+
+    /**
+     * Creates a new server which is capable of listening for incoming connections and processing client provided data
+     * using {@link StreamConnection}s created by the given {@link StreamConnectionFactory}, spreading its connections
+     * over the given number of select threads. Each new connection goes to the thread with the fewest connections.
+     *
+     * @throws IOException If there is an issue opening the server socket or binding fails for some reason
+     */
+    public NioServer(final StreamConnectionFactory connectionFactory, InetSocketAddress bindAddress, int loopCount)
+            throws IOException {
         this.connectionFactory = connectionFactory;
 
         sc = ServerSocketChannel.open();
         sc.configureBlocking(false);
         sc.socket().bind(bindAddress);
-        selector = SelectorProvider.provider().openSelector();
+        loops = new NioEventLoopGroup("NioServer", loopCount);
+        selector = loops.get(0).selector;
         sc.register(selector, SelectionKey.OP_ACCEPT);
     }
 
+    /** Returns the address the server socket is bound to, including the port picked if it was bound to port 0. */
+    public InetSocketAddress getLocalAddress() {
+        return (InetSocketAddress) sc.socket().getLocalSocketAddress();
+    }
+
     @Override
     protected void run() throws Exception {
         try {
-            while (isRunning()) {
-                selector.select();
-
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-
-                    handleKey(selector, key);
+            loops.run(new NioEventLoop.KeyHandler() {
+                @Override
+                public void handleKey(SelectionKey key) throws IOException {
+                    NioServer.this.handleKey(key);
                 }
-            }
-        } catch (Exception e) {
-            log.error("Error trying to open/read from connection: {}", e);
+            }, new DaemonThreadFactory("NioServer"));
         } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    key.channel().close();
-                } catch (IOException e) {
-                    log.error("Error closing channel", e);
-                }
-                try {
-                    key.cancel();
-                    handleKey(selector, key);
-                } catch (IOException e) {
-                    log.error("Error closing selection key", e);
-                }
-            }
-            try {
-                selector.close();
-            } catch (IOException e) {
-                log.error("Error closing server selector", e);
-            }
             try {
                 sc.close();
             } catch (IOException e) {
@@ -120,6 +137,57 @@ public class NioServer extends AbstractExecutionThreadService {
         }
     }
 
+    /**
+     * Lets each connection hold back outbound messages for up to the given time, so that bursts of small messages go
+     * out in fewer writes and TCP segments at the cost of that much latency. 0, the default, sends everything queued
+     * during one pass of the network thread together without waiting any longer.
+     */
+    public void setWriteCoalescingMillis(int millis) {
+        checkArgument(millis >= 0);
+        loops.setCoalescingWindow(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets how many bytes a connection may have waiting to be written before it reports itself unwritable to its
+     * {@link StreamConnection}, and how far they must drop before it reports itself writable again. Writes go on
+     * being accepted in between, up to the size of the largest message.
+     */
+    public void setWriteBufferWatermarks(int low, int high) {
+        checkArgument(low >= 0 && low < high, "need 0 <= low < high");
+        loops.setWriteBufferWatermarks(low, high);
+    }
+
+    /**
+     * Returns the number of write calls made on sockets so far. Together with {@link #getWrittenMessageCount()} this
+     * shows how well outbound messages are being batched.
+     */
+    public long getWriteCallCount() {
+        return loops.getWriteCalls();
+    }
+
+    /** Returns the number of messages queued for writing so far. */
+    public long getWrittenMessageCount() {
+        return loops.getMessagesWritten();
+    }
+
+    /** Returns the number of select threads this server spreads its connections over. */
+    public int getLoopCount() {
+        return loops.size();
+    }
+
+    /** Returns the number of open connections handled by the given select thread. */
+    public int getLoopConnectionCount(int loop) {
+        return loops.get(loop).getChannelCount();
+    }
+
+    /**
+     * Returns the share of its time the given select thread has spent handling connections since it started, rather
+     * than waiting for them, between 0 and 1. A value near 1 means the thread is saturated.
+     */
+    public double getLoopUtilization(int loop) {
+        return loops.get(loop).getUtilization();
+    }
+
     /**
      * Invoked by the Execution service when it's time to stop.
      * Calling this method directly will NOT stop the service, call
@@ -127,7 +195,7 @@ public class NioServer extends AbstractExecutionThreadService {
      */
     @Override
     public void triggerShutdown() {
-        // Wake up the selector and let the selection thread break its loop as the ExecutionService !isRunning()
-        selector.wakeup();
+        // Wake up the selectors and let the selection threads break their loops
+        loops.stop();
     }
 }
@@ -225,8 +225,15 @@ public class ProtobufConnection<MessageType extends MessageLite> extends Abstrac
         Utils.uint32ToByteArrayBE(messageBytes.length, messageLength, 0);
         try {
             MessageWriteTarget target = writeTarget.get();
-            target.writeBytes(messageLength);
-            target.writeBytes(messageBytes);
+            if (target instanceof ByteBufferWriteTarget) {
+                // Length prefix and message go out as one write
+                ByteBuffer buffer = ByteBufferPool.getDefault().acquire(messageLength.length + messageBytes.length);
+                buffer.put(messageLength).put(messageBytes).flip();
+                ((ByteBufferWriteTarget) target).writeBuffer(buffer);
+            } else {
+                target.writeBytes(messageLength);
+                target.writeBytes(messageBytes);
+            }
         } catch (IOException e) {
             closeConnection();
         }
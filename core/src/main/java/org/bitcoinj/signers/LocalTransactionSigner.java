@@ -17,11 +17,20 @@
 
 package org.bitcoinj.signers;
 
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import javax.annotation.Nullable;
 
 import org.bitcoinj.core.Coin;
 import org.bitcoinj.core.ECKey;
 import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.SigHashContext;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionInput;
 import org.bitcoinj.core.TransactionOutput;
@@ -49,6 +58,8 @@ import org.slf4j.LoggerFactory;
  * signers to use correct signing key for P2SH inputs, because all the keys involved in a single P2SH address have
  * the same derivation path.</p>
  * <p>This signer always uses {@link Transaction.SigHash#ALL} signing mode.</p>
+ * <p>If given an executor with {@link #setExecutor(Executor)}, transactions with many inputs are signed on it in
+ * parallel. Signatures are deterministic (RFC 6979), so they are the same either way.</p>
  */
 public class LocalTransactionSigner implements TransactionSigner {
     private static final Logger log = LoggerFactory.getLogger(LocalTransactionSigner.class);
@@ -60,15 +71,53 @@ public class LocalTransactionSigner implements TransactionSigner {
     private static final EnumSet<VerifyFlag> MINIMUM_VERIFY_FLAGS = EnumSet.of(VerifyFlag.P2SH,
         VerifyFlag.NULLDUMMY);
 
+    // Number of inputs signed by one task when signing in parallel. Fewer inputs are signed on the calling thread.
+    private static final int INPUTS_PER_TASK = 32;
+
+    @Nullable private volatile Executor executor;
+
+    // An input to sign, and its signature once calculated.
+    private static class InputToSign {
+        final int index;
+        final ECKey key;
+        final Script scriptPubKey;
+        // The script to sign: the scriptPubKey, redeem script or P2WPKH script code.
+        final byte[] script;
+        @Nullable final Coin value;
+        @Nullable TransactionSignature signature;
+
+        InputToSign(int index, ECKey key, Script scriptPubKey, byte[] script, @Nullable Coin value) {
+            this.index = index;
+            this.key = key;
+            this.scriptPubKey = scriptPubKey;
+            this.script = script;
+            this.value = value;
+        }
+    }
+
     @Override
     public boolean isReady() {
         return true;
     }
 
+    /**
+     * Sets the executor to sign the inputs of large transactions on in parallel, or null to sign them on the calling
+     * thread.
+     */
+    public void setExecutor(@Nullable Executor executor) {
+        this.executor = executor;
+    }
+
+    @Nullable
+    public Executor getExecutor() {
+        return executor;
+    }
+
     @Override
     public boolean signInputs(ProposedTransaction propTx, KeyBag keyBag) {
         Transaction tx = propTx.partialTx;
         int numInputs = tx.getInputs().size();
+        List<InputToSign> toSign = new ArrayList<>();
         for (int i = 0; i < numInputs; i++) {
             TransactionInput txIn = tx.getInput(i);
             final TransactionOutput connectedOutput = txIn.getConnectedOutput();
@@ -108,48 +157,109 @@ public class LocalTransactionSigner implements TransactionSigner {
                 continue;
             }
 
-            Script inputScript = txIn.getScriptSig();
             // script here would be either a standard CHECKSIG program for P2PKH or P2PK inputs or
             // a CHECKMULTISIG program for P2SH inputs
             byte[] script = redeemData.redeemScript.getProgram();
-            try {
-                if (ScriptPattern.isP2PK(scriptPubKey) || ScriptPattern.isP2PKH(scriptPubKey)
-                        || ScriptPattern.isP2SH(scriptPubKey)) {
-                    TransactionSignature signature = tx.calculateSignature(i, key, script, Transaction.SigHash.ALL,
-                            false);
-
-                    // at this point we have incomplete inputScript with OP_0 in place of one or more signatures. We
-                    // already have calculated the signature using the local key and now need to insert it in the
-                    // correct place within inputScript. For P2PKH and P2PK script there is only one signature and it
-                    // always goes first in an inputScript (sigIndex = 0). In P2SH input scripts we need to figure out
-                    // our relative position relative to other signers. Since we don't have that information at this
-                    // point, and since we always run first, we have to depend on the other signers rearranging the
-                    // signatures as needed. Therefore, always place as first signature.
-                    int sigIndex = 0;
-                    inputScript = scriptPubKey.getScriptSigWithSignature(inputScript, signature.encodeToBitcoin(),
-                            sigIndex);
-                    txIn.setScriptSig(inputScript);
-                    txIn.setWitness(null);
-                } else if (ScriptPattern.isP2WPKH(scriptPubKey)) {
-                    Script scriptCode = new ScriptBuilder().data(
-                            ScriptBuilder.createOutputScript(LegacyAddress.fromKey(tx.getParams(), key)).getProgram())
-                            .build();
-                    Coin value = txIn.getValue();
-                    TransactionSignature signature = tx.calculateWitnessSignature(i, key, scriptCode, value,
-                            Transaction.SigHash.ALL, false);
-                    txIn.setScriptSig(ScriptBuilder.createEmpty());
-                    txIn.setWitness(TransactionWitness.redeemP2WPKH(signature, key));
-                } else {
-                    throw new IllegalStateException(script.toString());
-                }
-            } catch (ECKey.KeyIsEncryptedException e) {
-                throw e;
-            } catch (ECKey.MissingPrivateKeyException e) {
-                log.warn("No private key in keypair for input {}", i);
+            if (ScriptPattern.isP2PK(scriptPubKey) || ScriptPattern.isP2PKH(scriptPubKey)
+                    || ScriptPattern.isP2SH(scriptPubKey)) {
+                toSign.add(new InputToSign(i, key, scriptPubKey, script, null));
+            } else if (ScriptPattern.isP2WPKH(scriptPubKey)) {
+                Script scriptCode = new ScriptBuilder().data(
+                        ScriptBuilder.createOutputScript(LegacyAddress.fromKey(tx.getParams(), key)).getProgram())
+                        .build();
+                toSign.add(new InputToSign(i, key, scriptPubKey, scriptCode.getProgram(), txIn.getValue()));
+            } else {
+                throw new IllegalStateException(script.toString());
             }
+        }
+        if (toSign.isEmpty())
+            return true;
 
+        // The parts of the signature hashes that are the same for all inputs are only calculated once.
+        SigHashContext context = new SigHashContext(tx);
+        calculateSignatures(context, toSign);
+
+        for (InputToSign input : toSign) {
+            if (input.signature == null)
+                continue;
+            TransactionInput txIn = tx.getInput(input.index);
+            if (input.value == null) {
+                // at this point we have incomplete inputScript with OP_0 in place of one or more signatures. We
+                // already have calculated the signature using the local key and now need to insert it in the
+                // correct place within inputScript. For P2PKH and P2PK script there is only one signature and it
+                // always goes first in an inputScript (sigIndex = 0). In P2SH input scripts we need to figure out
+                // our relative position relative to other signers. Since we don't have that information at this
+                // point, and since we always run first, we have to depend on the other signers rearranging the
+                // signatures as needed. Therefore, always place as first signature.
+                int sigIndex = 0;
+                Script inputScript = input.scriptPubKey.getScriptSigWithSignature(txIn.getScriptSig(),
+                        input.signature.encodeToBitcoin(), sigIndex);
+                txIn.setScriptSig(inputScript);
+                txIn.setWitness(null);
+            } else {
+                txIn.setScriptSig(ScriptBuilder.createEmpty());
+                txIn.setWitness(TransactionWitness.redeemP2WPKH(input.signature, input.key));
+            }
         }
         return true;
     }
 
+    // Calculates the signatures of the given inputs, in parallel if there is an executor and enough of them. The last
+    // batch is always signed by the calling thread.
+    private void calculateSignatures(final SigHashContext context, List<InputToSign> toSign) {
+        Executor executor = this.executor;
+        List<FutureTask<Void>> tasks = new ArrayList<>();
+        int start = 0;
+        if (executor != null) {
+            for (; start + INPUTS_PER_TASK < toSign.size(); start += INPUTS_PER_TASK) {
+                final List<InputToSign> batch = toSign.subList(start, start + INPUTS_PER_TASK);
+                FutureTask<Void> task = new FutureTask<>(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        signAll(context, batch);
+                        return null;
+                    }
+                });
+                executor.execute(task);
+                tasks.add(task);
+            }
+        }
+        signAll(context, toSign.subList(start, toSign.size()));
+        for (FutureTask<Void> task : tasks) {
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while signing", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                if (cause instanceof Error)
+                    throw (Error) cause;
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+
+    private static void signAll(SigHashContext context, List<InputToSign> toSign) {
+        for (InputToSign input : toSign)
+            calculateSignature(context, input);
+    }
+
+    private static void calculateSignature(SigHashContext context, InputToSign input) {
+        try {
+            if (input.value == null) {
+                input.signature = new TransactionSignature(input.key.sign(context.hashForSignature(input.index,
+                        input.script, Transaction.SigHash.ALL, false)), Transaction.SigHash.ALL, false);
+            } else {
+                input.signature = new TransactionSignature(input.key.sign(context.hashForWitnessSignature(input.index,
+                        input.script, input.value, Transaction.SigHash.ALL, false)), Transaction.SigHash.ALL, false);
+            }
+        } catch (ECKey.KeyIsEncryptedException e) {
+            throw e;
+        } catch (ECKey.MissingPrivateKeyException e) {
+            log.warn("No private key in keypair for input {}", input.index);
+        }
+    }
 }
@@ -0,0 +1,280 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.TransactionOutputChanges;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.core.VarInt;
+import org.bitcoinj.script.Script;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * <p>A compact binary encoding of {@link UTXO}s, used where many of them are held in memory or on disk.</p>
+ *
+ * <p>A record is the transaction hash, then the output index, height and value as {@link VarInt}s, a coinbase flag
+ * and the scriptPubKey. The standard P2PKH, P2SH, P2WPKH and P2WSH scripts are stored as a one byte template id
+ * followed by their hash, which typically brings a record down to around 60 bytes. The address is not stored; it is
+ * derived from the script when decoding, the same way {@link org.bitcoinj.core.FullPrunedBlockChain} derives it.</p>
+ *
+ * <p>The undo data of a block, its {@link TransactionOutputChanges}, is encoded as a marker followed by the created
+ * and spent outputs in this form. The marker reads as an impossible output count in the older
+ * {@link TransactionOutputChanges#serializeToStream(java.io.OutputStream)} format, so stores can read undo data
+ * written in either.</p>
+ */
+final class CompactUTXOCodec {
+    private static final byte SCRIPT_RAW = 0;
+    private static final byte SCRIPT_P2PKH = 1;
+    private static final byte SCRIPT_P2SH = 2;
+    private static final byte SCRIPT_P2WPKH = 3;
+    private static final byte SCRIPT_P2WSH = 4;
+
+    private static final byte[] CHANGES_MARKER = { (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff };
+
+    private CompactUTXOCodec() {
+    }
+
+    /** Returns the number of bytes {@link #write(UTXO, ByteBuffer)} uses for the given output. */
+    static int encodedSize(UTXO out) {
+        return 32 + VarInt.sizeOf(out.getIndex()) + VarInt.sizeOf(out.getHeight()) + 1 +
+                VarInt.sizeOf(out.getValue().value) + scriptSize(out.getScript().getProgram());
+    }
+
+    /** Encodes the given output into a new array. */
+    static byte[] encode(UTXO out) {
+        ByteBuffer buf = ByteBuffer.allocate(encodedSize(out));
+        write(out, buf);
+        return buf.array();
+    }
+
+    /** Appends the encoding of the given output to the buffer, which must have enough space remaining. */
+    static void write(UTXO out, ByteBuffer buf) {
+        buf.put(out.getHash().getBytes());
+        buf.put(new VarInt(out.getIndex()).encode());
+        buf.put(new VarInt(out.getHeight()).encode());
+        buf.put((byte) (out.isCoinbase() ? 1 : 0));
+        buf.put(new VarInt(out.getValue().value).encode());
+        writeScript(out.getScript().getProgram(), buf);
+    }
+
+    /** Decodes an output from an array produced by {@link #encode(UTXO)}. */
+    static UTXO decode(byte[] record, NetworkParameters params) {
+        return read(ByteBuffer.wrap(record), params);
+    }
+
+    /**
+     * Reads one output from the buffer, advancing its position past it.
+     * @throws BufferUnderflowException if the buffer ends before the record does.
+     */
+    static UTXO read(ByteBuffer buf, NetworkParameters params) {
+        byte[] hash = new byte[32];
+        buf.get(hash);
+        long index = readVarInt(buf);
+        int height = (int) readVarInt(buf);
+        boolean coinbase = buf.get() != 0;
+        Coin value = Coin.valueOf(readVarInt(buf));
+        Script script = new Script(readScript(buf));
+        return new UTXO(Sha256Hash.wrap(hash), index, value, height, coinbase, script, addressOf(script, params));
+    }
+
+    /** Returns true if the record encodes the output at the given outpoint. */
+    static boolean isOutPoint(byte[] record, Sha256Hash hash, long index) {
+        byte[] hashBytes = hash.getBytes();
+        for (int i = 0; i < 32; i++)
+            if (record[i] != hashBytes[i])
+                return false;
+        return new VarInt(record, 32).value == index;
+    }
+
+    /** Returns the scriptPubKey of the output encoded in the record. */
+    static byte[] scriptOf(byte[] record) {
+        ByteBuffer buf = ByteBuffer.wrap(record);
+        buf.position(32);
+        readVarInt(buf);
+        readVarInt(buf);
+        buf.get();
+        readVarInt(buf);
+        return readScript(buf);
+    }
+
+    /** Encodes the undo data of a block. */
+    static byte[] encodeChanges(TransactionOutputChanges changes) {
+        int size = CHANGES_MARKER.length + VarInt.sizeOf(changes.txOutsCreated.size())
+                + VarInt.sizeOf(changes.txOutsSpent.size());
+        for (UTXO out : changes.txOutsCreated)
+            size += encodedSize(out);
+        for (UTXO out : changes.txOutsSpent)
+            size += encodedSize(out);
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.put(CHANGES_MARKER);
+        buf.put(new VarInt(changes.txOutsCreated.size()).encode());
+        for (UTXO out : changes.txOutsCreated)
+            write(out, buf);
+        buf.put(new VarInt(changes.txOutsSpent.size()).encode());
+        for (UTXO out : changes.txOutsSpent)
+            write(out, buf);
+        return buf.array();
+    }
+
+    /**
+     * Decodes the undo data of a block, in the form produced by {@link #encodeChanges(TransactionOutputChanges)} or by
+     * {@link TransactionOutputChanges#serializeToStream(java.io.OutputStream)}.
+     */
+    static TransactionOutputChanges decodeChanges(byte[] bytes, int offset, int length, NetworkParameters params)
+            throws IOException {
+        boolean compact = length >= CHANGES_MARKER.length;
+        for (int i = 0; compact && i < CHANGES_MARKER.length; i++)
+            compact = bytes[offset + i] == CHANGES_MARKER[i];
+        if (!compact)
+            return new TransactionOutputChanges(new ByteArrayInputStream(bytes, offset, length));
+        ByteBuffer buf = ByteBuffer.wrap(bytes, offset + CHANGES_MARKER.length, length - CHANGES_MARKER.length);
+        try {
+            List<UTXO> created = new LinkedList<>();
+            for (long i = readVarInt(buf); i > 0; i--)
+                created.add(read(buf, params));
+            List<UTXO> spent = new LinkedList<>();
+            for (long i = readVarInt(buf); i > 0; i--)
+                spent.add(read(buf, params));
+            return new TransactionOutputChanges(created, spent);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Truncated or corrupt undo data", e);
+        }
+    }
+
+    private static String addressOf(Script script, NetworkParameters params) {
+        try {
+            return script.getToAddress(params, true).toString();
+        } catch (Exception e) {
+            return "";
+        }
+    }
+
+    private static long readVarInt(ByteBuffer buf) {
+        int first = buf.get() & 0xFF;
+        if (first < 253)
+            return first;
+        ByteBuffer le = buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+        long value;
+        if (first == 253) {
+            value = le.getShort() & 0xFFFFL;
+            buf.position(buf.position() + 2);
+        } else if (first == 254) {
+            value = le.getInt() & 0xFFFFFFFFL;
+            buf.position(buf.position() + 4);
+        } else {
+            value = le.getLong();
+            buf.position(buf.position() + 8);
+        }
+        return value;
+    }
+
+    private static byte templateOf(byte[] s) {
+        if (s.length == 25 && s[0] == (byte) 0x76 && s[1] == (byte) 0xa9 && s[2] == 20 && s[23] == (byte) 0x88
+                && s[24] == (byte) 0xac)
+            return SCRIPT_P2PKH;
+        if (s.length == 23 && s[0] == (byte) 0xa9 && s[1] == 20 && s[22] == (byte) 0x87)
+            return SCRIPT_P2SH;
+        if (s.length == 22 && s[0] == 0 && s[1] == 20)
+            return SCRIPT_P2WPKH;
+        if (s.length == 34 && s[0] == 0 && s[1] == 32)
+            return SCRIPT_P2WSH;
+        return SCRIPT_RAW;
+    }
+
+    private static int scriptSize(byte[] s) {
+        switch (templateOf(s)) {
+            case SCRIPT_P2PKH:
+            case SCRIPT_P2SH:
+            case SCRIPT_P2WPKH:
+                return 1 + 20;
+            case SCRIPT_P2WSH:
+                return 1 + 32;
+            default:
+                return 1 + VarInt.sizeOf(s.length) + s.length;
+        }
+    }
+
+    private static void writeScript(byte[] s, ByteBuffer buf) {
+        byte template = templateOf(s);
+        buf.put(template);
+        switch (template) {
+            case SCRIPT_P2PKH:
+                buf.put(s, 3, 20);
+                break;
+            case SCRIPT_P2SH:
+                buf.put(s, 2, 20);
+                break;
+            case SCRIPT_P2WPKH:
+                buf.put(s, 2, 20);
+                break;
+            case SCRIPT_P2WSH:
+                buf.put(s, 2, 32);
+                break;
+            default:
+                buf.put(new VarInt(s.length).encode());
+                buf.put(s);
+        }
+    }
+
+    private static byte[] readScript(ByteBuffer buf) {
+        byte template = buf.get();
+        byte[] s;
+        switch (template) {
+            case SCRIPT_P2PKH:
+                s = new byte[25];
+                s[0] = (byte) 0x76;
+                s[1] = (byte) 0xa9;
+                s[2] = 20;
+                buf.get(s, 3, 20);
+                s[23] = (byte) 0x88;
+                s[24] = (byte) 0xac;
+                return s;
+            case SCRIPT_P2SH:
+                s = new byte[23];
+                s[0] = (byte) 0xa9;
+                s[1] = 20;
+                buf.get(s, 2, 20);
+                s[22] = (byte) 0x87;
+                return s;
+            case SCRIPT_P2WPKH:
+                s = new byte[22];
+                s[1] = 20;
+                buf.get(s, 2, 20);
+                return s;
+            case SCRIPT_P2WSH:
+                s = new byte[34];
+                s[1] = 32;
+                buf.get(s, 2, 32);
+                return s;
+            case SCRIPT_RAW:
+                s = new byte[(int) readVarInt(buf)];
+                buf.get(s);
+                return s;
+            default:
+                throw new IllegalArgumentException("Unknown script template " + template);
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.core.VarInt;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>A set of unspent outputs held as {@link CompactUTXOCodec} records in an open addressing hash table. Each slot
+ * is a 64 bit key derived from the outpoint, kept in a {@code long[]}, and a reference to the encoded output, so an
+ * entry costs roughly a third of the memory of a {@link UTXO} in a {@link HashMap}. Two outpoints that truncate to the
+ * same key are told apart by the outpoint stored at the start of each record; the rare loser is kept in a small
+ * overflow map.</p>
+ *
+ * <p>The committed outputs are also indexed by script hash (see {@link ScriptHashIndex}), so that
+ * {@link #recordsForScripts(Set)} does not have to walk the table. The index costs an outpoint per output on top of
+ * the table.</p>
+ *
+ * <p>Like {@link TransactionalHashMap}, changes made between {@link #beginDatabaseBatchWrite()} and
+ * {@link #commitDatabaseBatchWrite()} go to a per-thread overlay and are only applied to the table on commit.</p>
+ *
+ * This class is not thread-safe.
+ */
+class CompactUTXOSet {
+    private static final long EMPTY = 0;
+    private static final int MIN_CAPACITY = 16;
+    // Marks an outpoint removed in the per-thread overlay.
+    private static final byte[] REMOVED = new byte[0];
+
+    private long[] keys;
+    private byte[][] records;
+    private int size;
+    private int mask;
+    private final Map<StoredTransactionOutPoint, byte[]> overflow = new HashMap<>();
+    private final Map<Sha256Hash, Set<StoredTransactionOutPoint>> byScript = new HashMap<>();
+
+    private final ThreadLocal<HashMap<StoredTransactionOutPoint, byte[]>> tempMap = new ThreadLocal<>();
+    private final ThreadLocal<Boolean> inTransaction = new ThreadLocal<>();
+
+    /** Creates a set sized to hold the given number of outputs without growing. */
+    CompactUTXOSet(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 / 4 < expectedSize)
+            capacity <<= 1;
+        allocate(capacity);
+    }
+
+    void beginDatabaseBatchWrite() {
+        inTransaction.set(true);
+    }
+
+    void commitDatabaseBatchWrite() {
+        HashMap<StoredTransactionOutPoint, byte[]> temp = tempMap.get();
+        if (temp != null) {
+            for (Map.Entry<StoredTransactionOutPoint, byte[]> entry : temp.entrySet()) {
+                StoredTransactionOutPoint outPoint = entry.getKey();
+                if (entry.getValue() == REMOVED)
+                    removeCommitted(outPoint.getHash(), outPoint.getIndex());
+                else
+                    putCommitted(outPoint.getHash(), outPoint.getIndex(), entry.getValue());
+            }
+        }
+        abortDatabaseBatchWrite();
+    }
+
+    void abortDatabaseBatchWrite() {
+        inTransaction.set(false);
+        tempMap.remove();
+    }
+
+    /** Returns the encoded output at the given outpoint, or null if it is not in the set. */
+    @Nullable
+    byte[] get(Sha256Hash hash, long index) {
+        if (Boolean.TRUE.equals(inTransaction.get()) && tempMap.get() != null) {
+            byte[] record = tempMap.get().get(new StoredTransactionOutPoint(hash, index));
+            if (record != null)
+                return record == REMOVED ? null : record;
+        }
+        return getCommitted(hash, index);
+    }
+
+    void put(UTXO out) {
+        byte[] record = CompactUTXOCodec.encode(out);
+        if (Boolean.TRUE.equals(inTransaction.get()))
+            temp().put(new StoredTransactionOutPoint(out), record);
+        else
+            putCommitted(out.getHash(), out.getIndex(), record);
+    }
+
+    /** Removes the output at the given outpoint, returning false if it was not in the set. */
+    boolean remove(Sha256Hash hash, long index) {
+        if (Boolean.TRUE.equals(inTransaction.get())) {
+            if (get(hash, index) == null)
+                return false;
+            temp().put(new StoredTransactionOutPoint(hash, index), REMOVED);
+            return true;
+        }
+        return removeCommitted(hash, index);
+    }
+
+    /** Returns the encoded outputs in the set, as seen by the calling thread. */
+    List<byte[]> records() {
+        HashMap<StoredTransactionOutPoint, byte[]> temp = Boolean.TRUE.equals(inTransaction.get()) ? tempMap.get() : null;
+        List<byte[]> result = new ArrayList<>(size + overflow.size());
+        for (byte[] record : records)
+            if (record != null && (temp == null || !temp.containsKey(outPointOf(record))))
+                result.add(record);
+        for (Map.Entry<StoredTransactionOutPoint, byte[]> entry : overflow.entrySet())
+            if (temp == null || !temp.containsKey(entry.getKey()))
+                result.add(entry.getValue());
+        if (temp != null)
+            for (byte[] record : temp.values())
+                if (record != REMOVED)
+                    result.add(record);
+        return result;
+    }
+
+    /** Returns the encoded outputs paying to any of the given script hashes, as seen by the calling thread. */
+    List<byte[]> recordsForScripts(Set<Sha256Hash> scriptHashes) {
+        HashMap<StoredTransactionOutPoint, byte[]> temp = Boolean.TRUE.equals(inTransaction.get()) ? tempMap.get() : null;
+        List<byte[]> result = new ArrayList<>();
+        for (Sha256Hash scriptHash : scriptHashes) {
+            Set<StoredTransactionOutPoint> outPoints = byScript.get(scriptHash);
+            if (outPoints == null)
+                continue;
+            for (StoredTransactionOutPoint outPoint : outPoints)
+                if (temp == null || !temp.containsKey(outPoint))
+                    result.add(getCommitted(outPoint.getHash(), outPoint.getIndex()));
+        }
+        if (temp != null)
+            for (byte[] record : temp.values())
+                if (record != REMOVED && scriptHashes.contains(ScriptHashIndex.hash(CompactUTXOCodec.scriptOf(record))))
+                    result.add(record);
+        return result;
+    }
+
+    /** Returns the number of committed outputs. */
+    int size() {
+        return size + overflow.size();
+    }
+
+    private HashMap<StoredTransactionOutPoint, byte[]> temp() {
+        HashMap<StoredTransactionOutPoint, byte[]> temp = tempMap.get();
+        if (temp == null) {
+            temp = new HashMap<>();
+            tempMap.set(temp);
+        }
+        return temp;
+    }
+
+    @Nullable
+    private byte[] getCommitted(Sha256Hash hash, long index) {
+        long key = keyOf(hash, index);
+        for (int slot = slotOf(key); keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                if (CompactUTXOCodec.isOutPoint(records[slot], hash, index))
+                    return records[slot];
+                break;
+            }
+        }
+        return overflow.isEmpty() ? null : overflow.get(new StoredTransactionOutPoint(hash, index));
+    }
+
+    private void putCommitted(Sha256Hash hash, long index, byte[] record) {
+        byte[] replaced = getCommitted(hash, index);
+        if (replaced != null)
+            unindex(replaced);
+        index(record);
+        long key = keyOf(hash, index);
+        int slot = slotOf(key);
+        for (; keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                if (CompactUTXOCodec.isOutPoint(records[slot], hash, index))
+                    records[slot] = record;
+                else
+                    overflow.put(new StoredTransactionOutPoint(hash, index), record);
+                return;
+            }
+        }
+        if (!overflow.isEmpty())
+            overflow.remove(new StoredTransactionOutPoint(hash, index));
+        keys[slot] = key;
+        records[slot] = record;
+        if (++size > (mask + 1) * 3 / 4)
+            resize((mask + 1) * 2);
+    }
+
+    private boolean removeCommitted(Sha256Hash hash, long index) {
+        long key = keyOf(hash, index);
+        for (int slot = slotOf(key); keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                if (!CompactUTXOCodec.isOutPoint(records[slot], hash, index))
+                    break;
+                unindex(records[slot]);
+                deleteSlot(slot);
+                size--;
+                return true;
+            }
+        }
+        if (overflow.isEmpty())
+            return false;
+        byte[] removed = overflow.remove(new StoredTransactionOutPoint(hash, index));
+        if (removed == null)
+            return false;
+        unindex(removed);
+        return true;
+    }
+
+    private void index(byte[] record) {
+        Sha256Hash scriptHash = ScriptHashIndex.hash(CompactUTXOCodec.scriptOf(record));
+        Set<StoredTransactionOutPoint> outPoints = byScript.get(scriptHash);
+        if (outPoints == null) {
+            outPoints = new HashSet<>(2);
+            byScript.put(scriptHash, outPoints);
+        }
+        outPoints.add(outPointOf(record));
+    }
+
+    private void unindex(byte[] record) {
+        Sha256Hash scriptHash = ScriptHashIndex.hash(CompactUTXOCodec.scriptOf(record));
+        Set<StoredTransactionOutPoint> outPoints = byScript.get(scriptHash);
+        if (outPoints != null && outPoints.remove(outPointOf(record)) && outPoints.isEmpty())
+            byScript.remove(scriptHash);
+    }
+
+    // Backward shift deletion: move later entries of the probe run into the hole so that no tombstones are needed.
+    private void deleteSlot(int hole) {
+        int slot = hole;
+        while (true) {
+            slot = (slot + 1) & mask;
+            long key = keys[slot];
+            if (key == EMPTY)
+                break;
+            int home = slotOf(key);
+            // Move the entry if its home slot is not cyclically within (hole, slot].
+            boolean between = hole <= slot ? (hole < home && home <= slot) : (hole < home || home <= slot);
+            if (!between) {
+                keys[hole] = key;
+                records[hole] = records[slot];
+                hole = slot;
+            }
+        }
+        keys[hole] = EMPTY;
+        records[hole] = null;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        byte[][] oldRecords = records;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == EMPTY)
+                continue;
+            int slot = slotOf(oldKeys[i]);
+            while (keys[slot] != EMPTY)
+                slot = (slot + 1) & mask;
+            keys[slot] = oldKeys[i];
+            records[slot] = oldRecords[i];
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        records = new byte[capacity][];
+        mask = capacity - 1;
+    }
+
+    private int slotOf(long key) {
+        return (int) (key ^ (key >>> 32)) & mask;
+    }
+
+    private static StoredTransactionOutPoint outPointOf(byte[] record) {
+        byte[] hash = new byte[32];
+        System.arraycopy(record, 0, hash, 0, 32);
+        return new StoredTransactionOutPoint(Sha256Hash.wrap(hash), new VarInt(record, 32).value);
+    }
+
+    // Transaction hashes are already uniformly distributed, so the first eight bytes are a good hash of their own.
+    private static long keyOf(Sha256Hash hash, long index) {
+        byte[] bytes = hash.getBytes();
+        long key = 0;
+        for (int i = 0; i < 8; i++)
+            key = (key << 8) | (bytes[i] & 0xFF);
+        key ^= (index + 1) * 0x9E3779B97F4A7C15L;
+        return key == EMPTY ? 1 : key;
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A bounded pool of JDBC connections to a single database URL, as used by {@link DatabaseFullPrunedBlockStore}
+ * for its writer and reader connections.</p>
+ *
+ * <p>At most {@code maxConnections} connections are handed out at any one time. Connections are borrowed with
+ * {@link #acquire()} and must be handed back with {@link #release(Connection)}. If the pool is exhausted
+ * {@link #acquire()} waits for up to the configured timeout and then throws a {@link BlockStoreException}, so a
+ * burst of callers queues up instead of opening an unbounded number of connections to the database.</p>
+ *
+ * <p>Connections are opened lazily and the most recently returned one is handed out first, which keeps the number
+ * of open connections close to the actual concurrency.</p>
+ */
+public class DatabaseConnectionPool {
+    private static final Logger log = LoggerFactory.getLogger(DatabaseConnectionPool.class);
+
+    /** The default time {@link #acquire()} waits for a connection to be returned to an exhausted pool. */
+    public static final long DEFAULT_ACQUIRE_TIMEOUT_MILLIS = 30000;
+
+    private final String name;
+    private final String connectionURL;
+    @Nullable private final String username;
+    @Nullable private final String password;
+    private final List<String> initSQL;
+    private final boolean readOnly;
+    private final int maxConnections;
+    private final long acquireTimeoutMillis;
+
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<Connection> idle = new LinkedBlockingDeque<>();
+    private final Set<Connection> borrowed = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+
+    /**
+     * Creates a new pool. No connection is opened until the first call to {@link #acquire()}.
+     *
+     * @param name A short name for the pool, used in log and error messages.
+     * @param connectionURL The jdbc url to connect to the database.
+     * @param username The database username, or null if the url carries the credentials.
+     * @param password The password to the database, or null if the url carries the credentials.
+     * @param initSQL Statements executed on every newly opened connection, e.g. to select a schema.
+     * @param readOnly Whether connections should be marked read-only, allowing the driver to route them to a replica.
+     * @param maxConnections The maximum number of connections handed out at the same time.
+     * @param acquireTimeoutMillis How long {@link #acquire()} waits on an exhausted pool before giving up.
+     */
+    public DatabaseConnectionPool(String name, String connectionURL, @Nullable String username,
+                                  @Nullable String password, List<String> initSQL, boolean readOnly,
+                                  int maxConnections, long acquireTimeoutMillis) {
+        checkArgument(maxConnections > 0, "maxConnections must be positive: %s", maxConnections);
+        checkArgument(acquireTimeoutMillis >= 0, "acquireTimeoutMillis must not be negative: %s", acquireTimeoutMillis);
+        this.name = name;
+        this.connectionURL = connectionURL;
+        this.username = username;
+        this.password = password;
+        this.initSQL = new ArrayList<>(initSQL);
+        this.readOnly = readOnly;
+        this.maxConnections = maxConnections;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.permits = new Semaphore(maxConnections, true);
+    }
+
+    /**
+     * Borrows a connection from the pool, opening a new one if no idle connection is available and the pool is not
+     * yet at its limit. The returned connection is in auto-commit mode.
+     *
+     * @throws BlockStoreException If no connection became available within the timeout, or a new connection could not
+     * be opened.
+     */
+    public Connection acquire() throws BlockStoreException {
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS))
+                throw new BlockStoreException("Timed out waiting for a connection from the " + name + " pool (" +
+                        maxConnections + " connections in use)");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BlockStoreException("Interrupted waiting for a connection from the " + name + " pool", e);
+        }
+        try {
+            Connection connection;
+            while ((connection = idle.pollFirst()) != null) {
+                if (!connection.isClosed())
+                    break;
+            }
+            if (connection == null)
+                connection = open();
+            borrowed.add(connection);
+            return connection;
+        } catch (SQLException e) {
+            permits.release();
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /**
+     * Hands a connection previously obtained from {@link #acquire()} back to the pool. Any open transaction is rolled
+     * back. Closed connections are discarded. Releasing a connection that is not currently borrowed has no effect.
+     */
+    public void release(Connection connection) {
+        if (!borrowed.remove(connection))
+            return;
+        try {
+            if (!connection.isClosed()) {
+                if (!connection.getAutoCommit()) {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+                idle.offerFirst(connection);
+            }
+        } catch (SQLException e) {
+            log.warn("Discarding broken connection from the {} pool", name, e);
+            closeQuietly(connection);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Closes all idle connections. Borrowed connections are left to their holders; they are discarded when released
+     * if they have been closed in the meantime. The pool stays usable and opens new connections on demand.
+     */
+    public void closeIdleConnections() {
+        Connection connection;
+        while ((connection = idle.pollFirst()) != null)
+            closeQuietly(connection);
+    }
+
+    /** Returns the name of this pool. */
+    public String getName() {
+        return name;
+    }
+
+    /** Returns the maximum number of connections handed out at the same time. */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /** Returns the number of connections currently borrowed from this pool. */
+    public int getBorrowedConnections() {
+        return borrowed.size();
+    }
+
+    /** Returns the number of open connections currently waiting in this pool to be borrowed. */
+    public int getIdleConnections() {
+        return idle.size();
+    }
+
+    private Connection open() throws SQLException {
+        Connection connection;
+        if (username == null || password == null) {
+            connection = DriverManager.getConnection(connectionURL);
+        } else {
+            Properties props = new Properties();
+            props.setProperty("user", username);
+            props.setProperty("password", password);
+            connection = DriverManager.getConnection(connectionURL, props);
+        }
+        try {
+            if (!initSQL.isEmpty()) {
+                Statement s = connection.createStatement();
+                for (String sql : initSQL)
+                    s.execute(sql);
+                s.close();
+            }
+            if (readOnly)
+                connection.setReadOnly(true);
+        } catch (SQLException e) {
+            closeQuietly(connection);
+            throw e;
+        }
+        log.info("Made a new {} connection to database {}", name, connectionURL);
+        return connection;
+    }
+
+    private void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            log.warn("Failed to close connection from the {} pool", name, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + " pool: " + borrowed.size() + " borrowed, " + idle.size() + " idle, max " + maxConnections;
+    }
+}
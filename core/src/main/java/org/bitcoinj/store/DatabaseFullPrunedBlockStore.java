@@ -26,7 +26,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
@@ -76,15 +75,35 @@ import java.util.*;
  *     <tr><td>toaddress</td><td>string</td></tr>
  *     <tr><td>addresstargetable</td><td>integer</td></tr>
  *     <tr><td>coinbase</td><td>boolean</td></tr>
+ *     <tr><td>scripthash</td><td>binary</td></tr>
  * </table>
+ *
+ * <p>Connections are drawn from two bounded {@link DatabaseConnectionPool}s. A thread writing to the store (or
+ * reading as part of block processing) borrows a connection from the writer pool for the duration of each statement,
+ * or from {@link #beginDatabaseBatchWrite()} until the batch is committed or aborted, so that batch writes see their
+ * own uncommitted changes. The read-only queries of {@link UTXOProvider} and
+ * {@link #calculateBalanceForAddress(Address)} borrow a connection from the reader pool for the duration of the
+ * query only. The reader pool may point to a read replica of the database.</p>
+ *
+ * <p>The scripthash column holds the SHA-256 of scriptbytes and must be indexed. It lets
+ * {@link #getOpenTransactionOutputsForScripts(List)} resolve large numbers of keys or scripts with a handful of
+ * queries. Databases created before the column existed are migrated when opened: the statements of
+ * {@link #getAddScriptHashSQL()} add it, and it is then filled in from scriptbytes. Stores that do not provide these
+ * statements reject such databases, which then have to be recreated.</p>
  */
-public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockStore {
+public abstract class DatabaseFullPrunedBlockStore implements ScriptIndexedFullPrunedBlockStore,
+        OrderedFullPrunedBlockStore {
     private static final Logger log = LoggerFactory.getLogger(DatabaseFullPrunedBlockStore.class);
 
     private static final String CHAIN_HEAD_SETTING                              = "chainhead";
     private static final String VERIFIED_CHAIN_HEAD_SETTING                     = "verifiedchainhead";
     private static final String VERSION_SETTING                                 = "version";
 
+    /** The default maximum number of connections bound to writing threads. */
+    public static final int DEFAULT_MAX_WRITER_CONNECTIONS                      = 8;
+    /** The default maximum number of connections used for concurrent read-only queries. */
+    public static final int DEFAULT_MAX_READER_CONNECTIONS                      = 8;
+
     // Drop table SQL.
     private static final String DROP_SETTINGS_TABLE                             = "DROP TABLE settings";
     private static final String DROP_HEADERS_TABLE                              = "DROP TABLE headers";
@@ -103,11 +122,12 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     private static final String SELECT_UNDOABLEBLOCKS_SQL                       = "SELECT txoutchanges, transactions FROM undoableblocks WHERE hash = ?";
     private static final String INSERT_UNDOABLEBLOCKS_SQL                       = "INSERT INTO undoableblocks(hash, height, txoutchanges, transactions) VALUES(?, ?, ?, ?)";
     private static final String UPDATE_UNDOABLEBLOCKS_SQL                       = "UPDATE undoableblocks SET txoutchanges=?, transactions=? WHERE hash = ?";
-    private static final String DELETE_UNDOABLEBLOCKS_SQL                       = "DELETE FROM undoableblocks WHERE height <= ?";
+    private static final String DELETE_UNDOABLEBLOCKS_SQL                       = "DELETE FROM undoableblocks WHERE height >= ? AND height <= ?";
+    private static final String SELECT_UNDOABLEBLOCKS_MIN_HEIGHT_SQL            = "SELECT MIN(height) FROM undoableblocks";
 
     private static final String SELECT_OPENOUTPUTS_SQL                          = "SELECT height, value, scriptbytes, coinbase, toaddress, addresstargetable FROM openoutputs WHERE hash = ? AND index = ?";
     private static final String SELECT_OPENOUTPUTS_COUNT_SQL                    = "SELECT COUNT(*) FROM openoutputs WHERE hash = ?";
-    private static final String INSERT_OPENOUTPUTS_SQL                          = "INSERT INTO openoutputs (hash, index, height, value, scriptbytes, toaddress, addresstargetable, coinbase) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String INSERT_OPENOUTPUTS_SQL                          = "INSERT INTO openoutputs (hash, index, height, value, scriptbytes, toaddress, addresstargetable, coinbase, scripthash) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
     private static final String DELETE_OPENOUTPUTS_SQL                          = "DELETE FROM openoutputs WHERE hash = ? AND index = ?";
 
     // Dump table SQL (this is just for data sizing statistics).
@@ -117,6 +137,11 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     private static final String SELECT_DUMP_OPENOUTPUTS_SQL                     = "SELECT value, scriptbytes FROM openoutputs";
 
     private static final String SELECT_TRANSACTION_OUTPUTS_SQL                  = "SELECT hash, value, scriptbytes, height, index, coinbase, toaddress, addresstargetable FROM openoutputs where toaddress = ?";
+    private static final String SELECT_TRANSACTION_OUTPUTS_BY_SCRIPTHASH_SQL    = "SELECT hash, value, scriptbytes, height, index, coinbase, toaddress, addresstargetable FROM openoutputs WHERE scripthash IN ";
+    private static final String SELECT_ALL_OPENOUTPUTS_SQL                      = "SELECT hash, value, scriptbytes, height, index, coinbase, toaddress FROM openoutputs ORDER BY hash, index";
+
+    // Maximum number of script hashes bound into a single IN clause.
+    protected static final int SCRIPTHASH_QUERY_BATCH_SIZE                      = 500;
 
     // Select the balance of an address SQL.
     private static final String SELECT_BALANCE_SQL                              = "select sum(value) from openoutputs where toaddress = ?";
@@ -126,6 +151,14 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     // Compatibility SQL.
     private static final String SELECT_COMPATIBILITY_COINBASE_SQL               = "SELECT coinbase FROM openoutputs WHERE 1 = 2";
+    private static final String SELECT_COMPATIBILITY_SCRIPTHASH_SQL             = "SELECT scripthash FROM openoutputs WHERE 1 = 2";
+
+    // Script hash migration SQL.
+    private static final String SELECT_OPENOUTPUTS_WITHOUT_SCRIPTHASH_SQL        = "SELECT hash, index, scriptbytes FROM openoutputs WHERE scripthash IS NULL LIMIT ?";
+    private static final String UPDATE_OPENOUTPUTS_SCRIPTHASH_SQL               = "UPDATE openoutputs SET scripthash = ? WHERE hash = ? AND index = ?";
+
+    // Number of outputs given a script hash per transaction when migrating.
+    private static final int SCRIPTHASH_MIGRATION_BATCH_SIZE                    = 1000;
 
     protected Sha256Hash chainHeadHash;
     protected StoredBlock chainHeadBlock;
@@ -133,12 +166,17 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     protected StoredBlock verifiedChainHeadBlock;
     protected NetworkParameters params;
     protected ThreadLocal<Connection> conn;
+    // How many operations on each thread use its connection, a batch write counting as one.
+    private final ThreadLocal<Integer> connectionHolds = new ThreadLocal<>();
     protected List<Connection> allConnections;
     protected String connectionURL;
     protected int fullStoreDepth;
     protected String username;
     protected String password;
     protected String schemaName;
+    protected DatabaseConnectionPool writerPool;
+    protected DatabaseConnectionPool readerPool;
+    protected UndoPruner undoPruner;
 
     /**
      * <p>Create a new DatabaseFullPrunedBlockStore, using the full connection URL instead of a hostname and password,
@@ -154,6 +192,31 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      */
     public DatabaseFullPrunedBlockStore(NetworkParameters params, String connectionURL, int fullStoreDepth,
                                         @Nullable String username, @Nullable String password, @Nullable String schemaName) throws BlockStoreException {
+        this(params, connectionURL, null, fullStoreDepth, username, password, schemaName,
+                DEFAULT_MAX_WRITER_CONNECTIONS, DEFAULT_MAX_READER_CONNECTIONS);
+    }
+
+    /**
+     * <p>Create a new DatabaseFullPrunedBlockStore with bounded connection pools, optionally sending read-only
+     * queries to a read replica.</p>
+     *
+     * @param params A copy of the NetworkParameters used.
+     * @param connectionURL The jdbc url to connect to the database.
+     * @param readerConnectionURL The jdbc url used for read-only queries, e.g. a read replica. May be null to use
+     *                            connectionURL.
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe).
+     * @param username The database username.
+     * @param password The password to the database.
+     * @param schemaName The name of the schema to put the tables in.  May be null if no schema is being used.
+     * @param maxWriterConnections The maximum number of threads that may be bound to a writer connection at once.
+     * @param maxReaderConnections The maximum number of concurrent read-only queries.
+     * @throws BlockStoreException If there is a failure to connect and/or initialise the database.
+     */
+    public DatabaseFullPrunedBlockStore(NetworkParameters params, String connectionURL,
+                                        @Nullable String readerConnectionURL, int fullStoreDepth,
+                                        @Nullable String username, @Nullable String password,
+                                        @Nullable String schemaName, int maxWriterConnections,
+                                        int maxReaderConnections) throws BlockStoreException {
         this.params = params;
         this.fullStoreDepth = fullStoreDepth;
         this.connectionURL = connectionURL;
@@ -170,18 +233,40 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             log.error("check CLASSPATH for database driver jar ", e);
         }
 
-        maybeConnect();
+        List<String> initSQL = schemaName != null ? getCreateSchemeSQL() : Collections.<String>emptyList();
+        this.writerPool = new DatabaseConnectionPool("writer", connectionURL, username, password, initSQL, false,
+                maxWriterConnections, DatabaseConnectionPool.DEFAULT_ACQUIRE_TIMEOUT_MILLIS);
+        this.readerPool = new DatabaseConnectionPool("reader",
+                readerConnectionURL != null ? readerConnectionURL : connectionURL, username, password, initSQL, true,
+                maxReaderConnections, DatabaseConnectionPool.DEFAULT_ACQUIRE_TIMEOUT_MILLIS);
+        this.undoPruner = new UndoPruner(getClass().getSimpleName(), new UndoPruner.Target() {
+            @Override
+            public int getLowestUndoableHeight() throws BlockStoreException {
+                return getLowestUndoableBlockHeight();
+            }
+
+            @Override
+            public void deleteUndoableBlocks(int fromHeight, int toHeight) throws BlockStoreException {
+                removeUndoableBlocks(fromHeight, toHeight);
+            }
+        });
 
+        maybeConnect();
         try {
-            // Create tables if needed
-            if (!tablesExists()) {
-                createTables();
-            } else {
-                checkCompatibility();
+            try {
+                // Create tables if needed
+                if (!tablesExists()) {
+                    createTables();
+                } else {
+                    maybeAddScriptHashes();
+                    checkCompatibility();
+                }
+                initFromDatabase();
+            } catch (SQLException e) {
+                throw new BlockStoreException(e);
             }
-            initFromDatabase();
-        } catch (SQLException e) {
-            throw new BlockStoreException(e);
+        } finally {
+            releaseConnection();
         }
     }
 
@@ -240,17 +325,73 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     protected List<String> getCompatibilitySQL() {
         List<String> sqlStatements = new ArrayList<>();
         sqlStatements.add(SELECT_COMPATIBILITY_COINBASE_SQL);
+        sqlStatements.add(SELECT_COMPATIBILITY_SCRIPTHASH_SQL);
         return sqlStatements;
     }
 
+    /**
+     * Get the SQL statements that add the scripthash column and its index to a database created before it existed
+     * (DDL), and widen toaddress to fit bech32 addresses. The column is filled in afterwards.
+     * @return The list of SQL statements, or an empty list if this store cannot migrate such databases.
+     */
+    protected List<String> getAddScriptHashSQL() {
+        return new ArrayList<>();
+    }
+
+    /**
+     * Get the SQL to select a limited number of unspent outputs that have no script hash yet.
+     * @return The SQL prepared statement.
+     */
+    protected String getSelectOpenoutputsWithoutScriptHashSQL() {
+        return SELECT_OPENOUTPUTS_WITHOUT_SCRIPTHASH_SQL;
+    }
+
+    /**
+     * Get the SQL to set the script hash of an unspent output.
+     * @return The SQL prepared statement.
+     */
+    protected String getUpdateOpenoutputsScriptHashSQL() {
+        return UPDATE_OPENOUTPUTS_SCRIPTHASH_SQL;
+    }
+
     /**
      * Get the SQL to select the transaction outputs for a given address.
      * @return The SQL prepared statement.
+     * @deprecated Outputs are now looked up by script hash, see {@link #getTransactionOutputsByScriptHashSelectSQL(int)}.
      */
+    @Deprecated
     protected String getTransactionOutputSelectSQL() {
         return SELECT_TRANSACTION_OUTPUTS_SQL;
     }
 
+    /**
+     * Get the SQL to select the transaction outputs paying to any of a number of script hashes.
+     * @param count The number of script hash parameters to bind.
+     * @return The SQL prepared statement.
+     */
+    protected String getTransactionOutputsByScriptHashSelectSQL(int count) {
+        return SELECT_TRANSACTION_OUTPUTS_BY_SCRIPTHASH_SQL + inClause(count);
+    }
+
+    /**
+     * Get the SQL to select all unspent outputs, ordered by transaction hash (compared as unsigned bytes) and index.
+     * @return The SQL prepared statement.
+     */
+    protected String getSelectAllOpenoutputsSQL() {
+        return SELECT_ALL_OPENOUTPUTS_SQL;
+    }
+
+    /**
+     * Builds the parenthesized list of parameter placeholders for an IN clause.
+     */
+    protected static String inClause(int count) {
+        StringBuilder sb = new StringBuilder(count * 3 + 1);
+        sb.append('(');
+        for (int i = 0; i < count; i++)
+            sb.append(i == 0 ? "?" : ", ?");
+        return sb.append(')').toString();
+    }
+
     /**
      * Get the SQL to drop all the tables (DDL).
      * @return The SQL drop statements.
@@ -337,13 +478,21 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     }
 
     /**
-     * Get the SQL to delete a undoableblocks record.
+     * Get the SQL to delete the undoableblocks records in a range of heights.
      * @return The SQL delete statement.
      */
     protected String getDeleteUndoableBlocksSQL() {
         return DELETE_UNDOABLEBLOCKS_SQL;
     }
 
+    /**
+     * Get the SQL to select the lowest height in the undoableblocks table.
+     * @return The SQL select statement.
+     */
+    protected String getSelectUndoableBlocksMinHeightSQL() {
+        return SELECT_UNDOABLEBLOCKS_MIN_HEIGHT_SQL;
+    }
+
     /**
      * Get the SQL to select a openoutputs record.
      * @return The SQL select statement.
@@ -409,40 +558,78 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     }
 
     /**
-     * <p>If there isn't a connection on the {@link ThreadLocal} then create and store it.</p>
-     * <p>This will also automatically set up the schema if it does not exist within the DB.</p>
+     * <p>If there isn't a connection on the {@link ThreadLocal} then take one from the writer pool and store it.</p>
+     * <p>Every call must be matched by a call to {@link #releaseConnection()} in a finally block, which hands the
+     * connection back to the pool once the thread no longer uses it.</p>
      * @throws BlockStoreException if successful connection to the DB couldn't be made.
      */
-    protected synchronized final void maybeConnect() throws BlockStoreException {
+    protected final void maybeConnect() throws BlockStoreException {
         try {
-            if (conn.get() != null && !conn.get().isClosed())
-                return;
-
-            if (username == null || password == null) {
-                conn.set(DriverManager.getConnection(connectionURL));
-            } else {
-                Properties props = new Properties();
-                props.setProperty("user", this.username);
-                props.setProperty("password", this.password);
-                conn.set(DriverManager.getConnection(connectionURL, props));
+            Connection current = conn.get();
+            if (current != null && current.isClosed()) {
+                // Closed underneath us, give the slot back before taking a new one.
+                synchronized (this) {
+                    allConnections.remove(current);
+                }
+                writerPool.release(current);
+                current = null;
             }
-            allConnections.add(conn.get());
-            Connection connection = conn.get();
-            // set the schema if one is needed
-            if (schemaName != null) {
-                Statement s = connection.createStatement();
-                for (String sql : getCreateSchemeSQL()) {
-                    s.execute(sql);
+            if (current == null) {
+                Connection connection = writerPool.acquire();
+                conn.set(connection);
+                synchronized (this) {
+                    allConnections.add(connection);
                 }
             }
-            log.info("Made a new connection to database " + connectionURL);
+            Integer holds = connectionHolds.get();
+            connectionHolds.set(holds == null ? 1 : holds + 1);
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
     }
 
+    /**
+     * <p>Matches a call to {@link #maybeConnect()}. The connection of the thread goes back to the writer pool once
+     * no operation or batch write on the thread uses it any more.</p>
+     */
+    protected final void releaseConnection() {
+        Integer holds = connectionHolds.get();
+        if (holds == null)
+            return;
+        if (holds > 1) {
+            connectionHolds.set(holds - 1);
+            return;
+        }
+        connectionHolds.remove();
+        Connection connection = conn.get();
+        conn.remove();
+        if (connection != null) {
+            synchronized (this) {
+                allConnections.remove(connection);
+            }
+            writerPool.release(connection);
+        }
+    }
+
+    /**
+     * <p>Borrow a connection from the reader pool for a read-only query. The connection must be handed back with
+     * {@link #releaseReadConnection(Connection)} once the query is complete.</p>
+     * @throws BlockStoreException if no connection could be obtained.
+     */
+    protected Connection getReadConnection() throws BlockStoreException {
+        return readerPool.acquire();
+    }
+
+    /**
+     * <p>Hand a connection obtained from {@link #getReadConnection()} back to the reader pool.</p>
+     */
+    protected void releaseReadConnection(Connection connection) {
+        readerPool.release(connection);
+    }
+
     @Override
     public synchronized void close() {
+        undoPruner.stop();
         for (Connection conn : allConnections) {
             try {
                 if (!conn.getAutoCommit()) {
@@ -450,13 +637,18 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
                 }
                 conn.close();
                 if (conn == this.conn.get()) {
-                    this.conn.set(null);
+                    this.conn.remove();
+                    connectionHolds.remove();
                 }
             } catch (SQLException ex) {
                 throw new RuntimeException(ex);
+            } finally {
+                writerPool.release(conn);
             }
         }
         allConnections.clear();
+        writerPool.closeIdleConnections();
+        readerPool.closeIdleConnections();
     }
 
     /**
@@ -507,6 +699,72 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         }
     }
 
+    /**
+     * Adds the scripthash column to a database created before it existed, if this store knows how to, and fills in
+     * the script hash of any outputs that lack one. Filling in is done in batches that are committed as they go, so
+     * that an interrupted migration picks up where it left off the next time the store is opened.
+     * @throws java.sql.SQLException If there is a database error.
+     */
+    private void maybeAddScriptHashes() throws SQLException {
+        List<String> addScriptHashSQL = getAddScriptHashSQL();
+        if (addScriptHashSQL.isEmpty())
+            return;
+        Connection connection = conn.get();
+        PreparedStatement ps = null;
+        try {
+            ps = connection.prepareStatement(SELECT_COMPATIBILITY_SCRIPTHASH_SQL);
+            ps.executeQuery().close();
+        } catch (SQLException e) {
+            log.info("Adding script hashes to the unspent outputs of an older database, this may take a while");
+            Statement s = connection.createStatement();
+            for (String sql : addScriptHashSQL) {
+                if (log.isDebugEnabled()) {
+                    log.debug("DatabaseFullPrunedBlockStore : ALTER table [SQL= {0}]", sql);
+                }
+                s.executeUpdate(sql);
+            }
+            s.close();
+        } finally {
+            if (ps != null && !ps.isClosed()) {
+                ps.close();
+            }
+        }
+
+        PreparedStatement select = connection.prepareStatement(getSelectOpenoutputsWithoutScriptHashSQL());
+        PreparedStatement update = connection.prepareStatement(getUpdateOpenoutputsScriptHashSQL());
+        long migrated = 0;
+        try {
+            connection.setAutoCommit(false);
+            while (true) {
+                select.setInt(1, SCRIPTHASH_MIGRATION_BATCH_SIZE);
+                ResultSet rs = select.executeQuery();
+                int count = 0;
+                while (rs.next()) {
+                    update.setBytes(1, ScriptHashIndex.hash(rs.getBytes(3)).getBytes());
+                    update.setBytes(2, rs.getBytes(1));
+                    update.setInt(3, rs.getInt(2));
+                    update.addBatch();
+                    count++;
+                }
+                rs.close();
+                if (count == 0)
+                    break;
+                update.executeBatch();
+                connection.commit();
+                migrated += count;
+            }
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+            select.close();
+            update.close();
+        }
+        if (migrated > 0)
+            log.info("Added script hashes to {} unspent outputs", migrated);
+    }
+
     /**
      * Create the tables/block store in the database and
      * @throws java.sql.SQLException If there is a database error.
@@ -637,9 +895,13 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     public void put(StoredBlock storedBlock) throws BlockStoreException {
         maybeConnect();
         try {
-            putUpdateStoredBlock(storedBlock, false);
-        } catch (SQLException e) {
-            throw new BlockStoreException(e);
+            try {
+                putUpdateStoredBlock(storedBlock, false);
+            } catch (SQLException e) {
+                throw new BlockStoreException(e);
+            }
+        } finally {
+            releaseConnection();
         }
     }
 
@@ -647,69 +909,72 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     @Override
     public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
         maybeConnect();
-        // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
-        byte[] hashBytes = new byte[28];
-        System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 4, hashBytes, 0, 28);
-        int height = storedBlock.getHeight();
-        byte[] transactions = null;
-        byte[] txOutChanges = null;
-        try {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            if (undoableBlock.getTxOutChanges() != null) {
-                undoableBlock.getTxOutChanges().serializeToStream(bos);
-                txOutChanges = bos.toByteArray();
-            } else {
-                int numTxn = undoableBlock.getTransactions().size();
-                Utils.uint32ToByteStreamLE(numTxn, bos);
-                for (Transaction tx : undoableBlock.getTransactions())
-                    tx.bitcoinSerialize(bos);
-                transactions = bos.toByteArray();
-            }
-            bos.close();
-        } catch (IOException e) {
-            throw new BlockStoreException(e);
-        }
-
         try {
+            // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
+            byte[] hashBytes = new byte[28];
+            System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 4, hashBytes, 0, 28);
+            int height = storedBlock.getHeight();
+            byte[] transactions = null;
+            byte[] txOutChanges = null;
             try {
-                PreparedStatement s =
-                        conn.get().prepareStatement(getInsertUndoableBlocksSQL());
-                s.setBytes(1, hashBytes);
-                s.setInt(2, height);
-                if (transactions == null) {
-                    s.setBytes(3, txOutChanges);
-                    s.setNull(4, Types.BINARY);
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                if (undoableBlock.getTxOutChanges() != null) {
+                    txOutChanges = CompactUTXOCodec.encodeChanges(undoableBlock.getTxOutChanges());
                 } else {
-                    s.setNull(3, Types.BINARY);
-                    s.setBytes(4, transactions);
+                    int numTxn = undoableBlock.getTransactions().size();
+                    Utils.uint32ToByteStreamLE(numTxn, bos);
+                    for (Transaction tx : undoableBlock.getTransactions())
+                        tx.bitcoinSerialize(bos);
+                    transactions = bos.toByteArray();
                 }
-                s.executeUpdate();
-                s.close();
+                bos.close();
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            }
+
+            try {
                 try {
-                    putUpdateStoredBlock(storedBlock, true);
+                    PreparedStatement s =
+                            conn.get().prepareStatement(getInsertUndoableBlocksSQL());
+                    s.setBytes(1, hashBytes);
+                    s.setInt(2, height);
+                    if (transactions == null) {
+                        s.setBytes(3, txOutChanges);
+                        s.setNull(4, Types.BINARY);
+                    } else {
+                        s.setNull(3, Types.BINARY);
+                        s.setBytes(4, transactions);
+                    }
+                    s.executeUpdate();
+                    s.close();
+                    try {
+                        putUpdateStoredBlock(storedBlock, true);
+                    } catch (SQLException e) {
+                        throw new BlockStoreException(e);
+                    }
                 } catch (SQLException e) {
-                    throw new BlockStoreException(e);
-                }
-            } catch (SQLException e) {
-                if (!e.getSQLState().equals(getDuplicateKeyErrorCode()))
-                    throw new BlockStoreException(e);
-
-                // There is probably an update-or-insert statement, but it wasn't obvious from the docs
-                PreparedStatement s =
-                        conn.get().prepareStatement(getUpdateUndoableBlocksSQL());
-                s.setBytes(3, hashBytes);
-                if (transactions == null) {
-                    s.setBytes(1, txOutChanges);
-                    s.setNull(2, Types.BINARY);
-                } else {
-                    s.setNull(1, Types.BINARY);
-                    s.setBytes(2, transactions);
+                    if (!e.getSQLState().equals(getDuplicateKeyErrorCode()))
+                        throw new BlockStoreException(e);
+
+                    // There is probably an update-or-insert statement, but it wasn't obvious from the docs
+                    PreparedStatement s =
+                            conn.get().prepareStatement(getUpdateUndoableBlocksSQL());
+                    s.setBytes(3, hashBytes);
+                    if (transactions == null) {
+                        s.setBytes(1, txOutChanges);
+                        s.setNull(2, Types.BINARY);
+                    } else {
+                        s.setNull(1, Types.BINARY);
+                        s.setBytes(2, transactions);
+                    }
+                    s.executeUpdate();
+                    s.close();
                 }
-                s.executeUpdate();
-                s.close();
+            } catch (SQLException ex) {
+                throw new BlockStoreException(ex);
             }
-        } catch (SQLException ex) {
-            throw new BlockStoreException(ex);
+        } finally {
+            releaseConnection();
         }
     }
 
@@ -720,46 +985,50 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         if (verifiedChainHeadHash != null && verifiedChainHeadHash.equals(hash))
             return verifiedChainHeadBlock;
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get()
-                    .prepareStatement(getSelectHeadersSQL());
-            // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
-            byte[] hashBytes = new byte[28];
-            System.arraycopy(hash.getBytes(), 4, hashBytes, 0, 28);
-            s.setBytes(1, hashBytes);
-            ResultSet results = s.executeQuery();
-            if (!results.next()) {
-                return null;
-            }
-            // Parse it.
+            PreparedStatement s = null;
+            try {
+                s = conn.get()
+                        .prepareStatement(getSelectHeadersSQL());
+                // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
+                byte[] hashBytes = new byte[28];
+                System.arraycopy(hash.getBytes(), 4, hashBytes, 0, 28);
+                s.setBytes(1, hashBytes);
+                ResultSet results = s.executeQuery();
+                if (!results.next()) {
+                    return null;
+                }
+                // Parse it.
 
-            if (wasUndoableOnly && !results.getBoolean(4))
-                return null;
+                if (wasUndoableOnly && !results.getBoolean(4))
+                    return null;
 
-            BigInteger chainWork = new BigInteger(results.getBytes(1));
-            int height = results.getInt(2);
-            Block b = params.getDefaultSerializer().makeBlock(results.getBytes(3));
-            b.verifyHeader();
-            StoredBlock stored = new StoredBlock(b, chainWork, height);
-            return stored;
-        } catch (SQLException ex) {
-            throw new BlockStoreException(ex);
-        } catch (ProtocolException e) {
-            // Corrupted database.
-            throw new BlockStoreException(e);
-        } catch (VerificationException e) {
-            // Should not be able to happen unless the database contains bad
-            // blocks.
-            throw new BlockStoreException(e);
-        } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
+                BigInteger chainWork = new BigInteger(results.getBytes(1));
+                int height = results.getInt(2);
+                Block b = params.getDefaultSerializer().makeBlock(results.getBytes(3));
+                b.verifyHeader();
+                StoredBlock stored = new StoredBlock(b, chainWork, height);
+                return stored;
+            } catch (SQLException ex) {
+                throw new BlockStoreException(ex);
+            } catch (ProtocolException e) {
+                // Corrupted database.
+                throw new BlockStoreException(e);
+            } catch (VerificationException e) {
+                // Should not be able to happen unless the database contains bad
+                // blocks.
+                throw new BlockStoreException(e);
+            } finally {
+                if (s != null) {
+                    try {
+                        s.close();
+                    } catch (SQLException e) {
+                        throw new BlockStoreException("Failed to close PreparedStatement");
+                    }
                 }
             }
+        } finally {
+            releaseConnection();
         }
     }
 
@@ -776,61 +1045,65 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     @Override
     public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get()
-                    .prepareStatement(getSelectUndoableBlocksSQL());
-            // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
+            PreparedStatement s = null;
+            try {
+                s = conn.get()
+                        .prepareStatement(getSelectUndoableBlocksSQL());
+                // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
 
-            byte[] hashBytes = new byte[28];
-            System.arraycopy(hash.getBytes(), 4, hashBytes, 0, 28);
-            s.setBytes(1, hashBytes);
-            ResultSet results = s.executeQuery();
-            if (!results.next()) {
-                return null;
-            }
-            // Parse it.
-            byte[] txOutChanges = results.getBytes(1);
-            byte[] transactions = results.getBytes(2);
-            StoredUndoableBlock block;
-            if (txOutChanges == null) {
-                int numTxn = (int) Utils.readUint32(transactions, 0);
-                int offset = 4;
-                List<Transaction> transactionList = new LinkedList<>();
-                for (int i = 0; i < numTxn; i++) {
-                    Transaction tx = params.getDefaultSerializer().makeTransaction(transactions, offset);
-                    transactionList.add(tx);
-                    offset += tx.getMessageSize();
+                byte[] hashBytes = new byte[28];
+                System.arraycopy(hash.getBytes(), 4, hashBytes, 0, 28);
+                s.setBytes(1, hashBytes);
+                ResultSet results = s.executeQuery();
+                if (!results.next()) {
+                    return null;
                 }
-                block = new StoredUndoableBlock(hash, transactionList);
-            } else {
-                TransactionOutputChanges outChangesObject =
-                        new TransactionOutputChanges(new ByteArrayInputStream(txOutChanges));
-                block = new StoredUndoableBlock(hash, outChangesObject);
-            }
-            return block;
-        } catch (SQLException ex) {
-            throw new BlockStoreException(ex);
-        } catch (NullPointerException e) {
-            // Corrupted database.
-            throw new BlockStoreException(e);
-        } catch (ClassCastException e) {
-            // Corrupted database.
-            throw new BlockStoreException(e);
-        } catch (ProtocolException e) {
-            // Corrupted database.
-            throw new BlockStoreException(e);
-        } catch (IOException e) {
-            // Corrupted database.
-            throw new BlockStoreException(e);
-        } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
+                // Parse it.
+                byte[] txOutChanges = results.getBytes(1);
+                byte[] transactions = results.getBytes(2);
+                StoredUndoableBlock block;
+                if (txOutChanges == null) {
+                    int numTxn = (int) Utils.readUint32(transactions, 0);
+                    int offset = 4;
+                    List<Transaction> transactionList = new LinkedList<>();
+                    for (int i = 0; i < numTxn; i++) {
+                        Transaction tx = params.getDefaultSerializer().makeTransaction(transactions, offset);
+                        transactionList.add(tx);
+                        offset += tx.getMessageSize();
+                    }
+                    block = new StoredUndoableBlock(hash, transactionList);
+                } else {
+                    TransactionOutputChanges outChangesObject =
+                            CompactUTXOCodec.decodeChanges(txOutChanges, 0, txOutChanges.length, params);
+                    block = new StoredUndoableBlock(hash, outChangesObject);
+                }
+                return block;
+            } catch (SQLException ex) {
+                throw new BlockStoreException(ex);
+            } catch (NullPointerException e) {
+                // Corrupted database.
+                throw new BlockStoreException(e);
+            } catch (ClassCastException e) {
+                // Corrupted database.
+                throw new BlockStoreException(e);
+            } catch (ProtocolException e) {
+                // Corrupted database.
+                throw new BlockStoreException(e);
+            } catch (IOException e) {
+                // Corrupted database.
+                throw new BlockStoreException(e);
+            } finally {
+                if (s != null) {
+                    try {
+                        s.close();
+                    } catch (SQLException e) {
+                        throw new BlockStoreException("Failed to close PreparedStatement");
+                    }
                 }
             }
+        } finally {
+            releaseConnection();
         }
     }
 
@@ -846,14 +1119,18 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         this.chainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getUpdateSettingsSLQ());
-            s.setString(2, CHAIN_HEAD_SETTING);
-            s.setBytes(1, hash.getBytes());
-            s.executeUpdate();
-            s.close();
-        } catch (SQLException ex) {
-            throw new BlockStoreException(ex);
+            try {
+                PreparedStatement s = conn.get()
+                        .prepareStatement(getUpdateSettingsSLQ());
+                s.setString(2, CHAIN_HEAD_SETTING);
+                s.setBytes(1, hash.getBytes());
+                s.executeUpdate();
+                s.close();
+            } catch (SQLException ex) {
+                throw new BlockStoreException(ex);
+            }
+        } finally {
+            releaseConnection();
         }
     }
 
@@ -869,126 +1146,167 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         this.verifiedChainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getUpdateSettingsSLQ());
-            s.setString(2, VERIFIED_CHAIN_HEAD_SETTING);
-            s.setBytes(1, hash.getBytes());
-            s.executeUpdate();
-            s.close();
+            try {
+                PreparedStatement s = conn.get()
+                        .prepareStatement(getUpdateSettingsSLQ());
+                s.setString(2, VERIFIED_CHAIN_HEAD_SETTING);
+                s.setBytes(1, hash.getBytes());
+                s.executeUpdate();
+                s.close();
+            } catch (SQLException ex) {
+                throw new BlockStoreException(ex);
+            }
+            if (this.chainHeadBlock.getHeight() < chainHead.getHeight())
+                setChainHead(chainHead);
+            // Deleting is left to the pruner thread, so connecting a block doesn't wait for it.
+            undoPruner.pruneTo(chainHead.getHeight() - fullStoreDepth);
+        } finally {
+            releaseConnection();
+        }
+    }
+
+    // Called on the pruner thread, which borrows a writer connection per statement so it never holds one for long.
+    private int getLowestUndoableBlockHeight() throws BlockStoreException {
+        Connection connection = writerPool.acquire();
+        try {
+            Statement s = connection.createStatement();
+            try {
+                ResultSet results = s.executeQuery(getSelectUndoableBlocksMinHeightSQL());
+                int height = results.next() ? results.getInt(1) : -1;
+                return results.wasNull() ? -1 : height;
+            } finally {
+                s.close();
+            }
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
+        } finally {
+            writerPool.release(connection);
         }
-        if (this.chainHeadBlock.getHeight() < chainHead.getHeight())
-            setChainHead(chainHead);
-        removeUndoableBlocksWhereHeightIsLessThan(chainHead.getHeight() - fullStoreDepth);
     }
 
-    private void removeUndoableBlocksWhereHeightIsLessThan(int height) throws BlockStoreException {
+    private void removeUndoableBlocks(int fromHeight, int toHeight) throws BlockStoreException {
+        Connection connection = writerPool.acquire();
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getDeleteUndoableBlocksSQL());
-            s.setInt(1, height);
+            PreparedStatement s = connection.prepareStatement(getDeleteUndoableBlocksSQL());
+            s.setInt(1, fromHeight);
+            s.setInt(2, toHeight);
             if (log.isDebugEnabled())
-                log.debug("Deleting undoable undoable block with height <= " + height);
+                log.debug("Deleting undoable blocks with heights " + fromHeight + " to " + toHeight);
             s.executeUpdate();
             s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
+        } finally {
+            writerPool.release(connection);
         }
     }
 
     @Override
     public UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get()
-                    .prepareStatement(getSelectOpenoutputsSQL());
-            s.setBytes(1, hash.getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int) index);
-            ResultSet results = s.executeQuery();
-            if (!results.next()) {
-                return null;
-            }
-            // Parse it.
-            int height = results.getInt(1);
-            Coin value = Coin.valueOf(results.getLong(2));
-            byte[] scriptBytes = results.getBytes(3);
-            boolean coinbase = results.getBoolean(4);
-            String address = results.getString(5);
-            UTXO txout = new UTXO(hash,
-                    index,
-                    value,
-                    height,
-                    coinbase,
-                    new Script(scriptBytes),
-                    address);
-            return txout;
-        } catch (SQLException ex) {
-            throw new BlockStoreException(ex);
-        } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
+            PreparedStatement s = null;
+            try {
+                s = conn.get()
+                        .prepareStatement(getSelectOpenoutputsSQL());
+                s.setBytes(1, hash.getBytes());
+                // index is actually an unsigned int
+                s.setInt(2, (int) index);
+                ResultSet results = s.executeQuery();
+                if (!results.next()) {
+                    return null;
+                }
+                // Parse it.
+                int height = results.getInt(1);
+                Coin value = Coin.valueOf(results.getLong(2));
+                byte[] scriptBytes = results.getBytes(3);
+                boolean coinbase = results.getBoolean(4);
+                String address = results.getString(5);
+                UTXO txout = new UTXO(hash,
+                        index,
+                        value,
+                        height,
+                        coinbase,
+                        new Script(scriptBytes),
+                        address);
+                return txout;
+            } catch (SQLException ex) {
+                throw new BlockStoreException(ex);
+            } finally {
+                if (s != null) {
+                    try {
+                        s.close();
+                    } catch (SQLException e) {
+                        throw new BlockStoreException("Failed to close PreparedStatement");
+                    }
                 }
             }
+        } finally {
+            releaseConnection();
         }
     }
 
     @Override
     public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get().prepareStatement(getInsertOpenoutputsSQL());
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int) out.getIndex());
-            s.setInt(3, out.getHeight());
-            s.setLong(4, out.getValue().value);
-            s.setBytes(5, out.getScript().getProgram());
-            s.setString(6, out.getAddress());
-            ScriptType scriptType = out.getScript().getScriptType();
-            s.setInt(7, scriptType != null ? scriptType.id : 0);
-            s.setBoolean(8, out.isCoinbase());
-            s.executeUpdate();
-            s.close();
-        } catch (SQLException e) {
-            if (!(e.getSQLState().equals(getDuplicateKeyErrorCode())))
-                throw new BlockStoreException(e);
-        } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
+            PreparedStatement s = null;
+            try {
+                s = conn.get().prepareStatement(getInsertOpenoutputsSQL());
+                s.setBytes(1, out.getHash().getBytes());
+                // index is actually an unsigned int
+                s.setInt(2, (int) out.getIndex());
+                s.setInt(3, out.getHeight());
+                s.setLong(4, out.getValue().value);
+                s.setBytes(5, out.getScript().getProgram());
+                s.setString(6, out.getAddress());
+                ScriptType scriptType = out.getScript().getScriptType();
+                s.setInt(7, scriptType != null ? scriptType.id : 0);
+                s.setBoolean(8, out.isCoinbase());
+                s.setBytes(9, ScriptHashIndex.hash(out.getScript()).getBytes());
+                s.executeUpdate();
+                s.close();
+            } catch (SQLException e) {
+                if (!(e.getSQLState().equals(getDuplicateKeyErrorCode())))
                     throw new BlockStoreException(e);
+            } finally {
+                if (s != null) {
+                    try {
+                        s.close();
+                    } catch (SQLException e) {
+                        throw new BlockStoreException(e);
+                    }
                 }
             }
+        } finally {
+            releaseConnection();
         }
     }
 
     @Override
     public void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
         maybeConnect();
-        // TODO: This should only need one query (maybe a stored procedure)
-        if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
-            throw new BlockStoreException("Tried to remove a UTXO from DatabaseFullPrunedBlockStore that it didn't have!");
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getDeleteOpenoutputsSQL());
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)out.getIndex());
-            s.executeUpdate();
-            s.close();
-        } catch (SQLException e) {
-            throw new BlockStoreException(e);
+            // TODO: This should only need one query (maybe a stored procedure)
+            if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
+                throw new BlockStoreException("Tried to remove a UTXO from DatabaseFullPrunedBlockStore that it didn't have!");
+            try {
+                PreparedStatement s = conn.get()
+                        .prepareStatement(getDeleteOpenoutputsSQL());
+                s.setBytes(1, out.getHash().getBytes());
+                // index is actually an unsigned int
+                s.setInt(2, (int)out.getIndex());
+                s.executeUpdate();
+                s.close();
+            } catch (SQLException e) {
+                throw new BlockStoreException(e);
+            }
+        } finally {
+            releaseConnection();
         }
     }
 
+    // The connection stays bound to the thread from here until the batch is committed or aborted.
     @Override
     public void beginDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
@@ -997,63 +1315,80 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         try {
             conn.get().setAutoCommit(false);
         } catch (SQLException e) {
+            releaseConnection();
             throw new BlockStoreException(e);
         }
     }
 
     @Override
     public void commitDatabaseBatchWrite() throws BlockStoreException {
-        maybeConnect();
+        Connection connection = conn.get();
+        if (connection == null)
+            throw new BlockStoreException("Commit attempt without batch write");
         if (log.isDebugEnabled())
-            log.debug("Committing database batch write with connection: " + conn.get().toString());
+            log.debug("Committing database batch write with connection: " + connection.toString());
         try {
-            conn.get().commit();
-            conn.get().setAutoCommit(true);
+            connection.commit();
+            connection.setAutoCommit(true);
         } catch (SQLException e) {
             throw new BlockStoreException(e);
+        } finally {
+            // If the commit failed, the pool rolls back what is left.
+            releaseConnection();
         }
     }
 
     @Override
     public void abortDatabaseBatchWrite() throws BlockStoreException {
-        maybeConnect();
+        Connection connection = conn.get();
+        if (connection == null) {
+            // Already given back, e.g. by a failed commit.
+            log.warn("Warning: Rollback attempt without transaction");
+            return;
+        }
         if (log.isDebugEnabled())
-            log.debug("Rollback database batch write with connection: " + conn.get().toString());
+            log.debug("Rollback database batch write with connection: " + connection.toString());
         try {
-            if (!conn.get().getAutoCommit()) {
-                conn.get().rollback();
-                conn.get().setAutoCommit(true);
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
             } else {
                 log.warn("Warning: Rollback attempt without transaction");
             }
         } catch (SQLException e) {
             throw new BlockStoreException(e);
+        } finally {
+            releaseConnection();
         }
     }
 
     @Override
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get().prepareStatement(getSelectOpenoutputsCountSQL());
-            s.setBytes(1, hash.getBytes());
-            ResultSet results = s.executeQuery();
-            if (!results.next()) {
-                throw new BlockStoreException("Got no results from a COUNT(*) query");
-            }
-            int count = results.getInt(1);
-            return count != 0;
-        } catch (SQLException ex) {
-            throw new BlockStoreException(ex);
-        } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
+            PreparedStatement s = null;
+            try {
+                s = conn.get().prepareStatement(getSelectOpenoutputsCountSQL());
+                s.setBytes(1, hash.getBytes());
+                ResultSet results = s.executeQuery();
+                if (!results.next()) {
+                    throw new BlockStoreException("Got no results from a COUNT(*) query");
+                }
+                int count = results.getInt(1);
+                return count != 0;
+            } catch (SQLException ex) {
+                throw new BlockStoreException(ex);
+            } finally {
+                if (s != null) {
+                    try {
+                        s.close();
+                    } catch (SQLException e) {
+                        throw new BlockStoreException("Failed to close PreparedStatement");
+                    }
                 }
             }
+        } finally {
+            releaseConnection();
         }
     }
 
@@ -1078,11 +1413,15 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     public void resetStore() throws BlockStoreException {
         maybeConnect();
         try {
-            deleteStore();
-            createTables();
-            initFromDatabase();
-        } catch (SQLException ex) {
-            throw new RuntimeException(ex);
+            try {
+                deleteStore();
+                createTables();
+                initFromDatabase();
+            } catch (SQLException ex) {
+                throw new RuntimeException(ex);
+            }
+        } finally {
+            releaseConnection();
         }
     }
 
@@ -1091,15 +1430,20 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      * @throws BlockStoreException If tables couldn't be deleted.
      */
     public void deleteStore() throws BlockStoreException {
+        undoPruner.stop();
         maybeConnect();
         try {
-            Statement s = conn.get().createStatement();
-            for(String sql : getDropTablesSQL()) {
-                s.execute(sql);
+            try {
+                Statement s = conn.get().createStatement();
+                for(String sql : getDropTablesSQL()) {
+                    s.execute(sql);
+                }
+                s.close();
+            } catch (SQLException ex) {
+                throw new RuntimeException(ex);
             }
-            s.close();
-        } catch (SQLException ex) {
-            throw new RuntimeException(ex);
+        } finally {
+            releaseConnection();
         }
     }
 
@@ -1118,10 +1462,10 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      * @throws BlockStoreException If there is an error getting the balance.
      */
     public BigInteger calculateBalanceForAddress(Address address) throws BlockStoreException {
-        maybeConnect();
+        Connection connection = getReadConnection();
         PreparedStatement s = null;
         try {
-            s = conn.get().prepareStatement(getBalanceSelectSQL());
+            s = connection.prepareStatement(getBalanceSelectSQL());
             s.setString(1, address.toString());
             ResultSet rs = s.executeQuery();
             BigInteger balance = BigInteger.ZERO;
@@ -1132,26 +1476,43 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
-            if (s != null) {
-                try {
+            try {
+                if (s != null)
                     s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Could not close statement");
-                }
+            } catch (SQLException e) {
+                throw new BlockStoreException("Could not close statement");
+            } finally {
+                releaseReadConnection(connection);
             }
         }
     }
 
     @Override
     public List<UTXO> getOpenTransactionOutputs(List<ECKey> keys) throws UTXOProviderException {
-        PreparedStatement s = null;
+        return getOpenTransactionOutputsForScripts(ScriptHashIndex.scriptsForKeys(keys));
+    }
+
+    @Override
+    public List<UTXO> getOpenTransactionOutputsForScripts(List<Script> scripts) throws UTXOProviderException {
+        List<byte[]> scriptHashes = ScriptHashIndex.sortedHashes(scripts);
         List<UTXO> outputs = new ArrayList<>();
+        if (scriptHashes.isEmpty())
+            return outputs;
+        Connection connection = null;
+        PreparedStatement s = null;
         try {
-            maybeConnect();
-            s = conn.get().prepareStatement(getTransactionOutputSelectSQL());
-            for (ECKey key : keys) {
-                // TODO switch to pubKeyHash in order to support native segwit addresses
-                s.setString(1, LegacyAddress.fromKey(params, key).toString());
+            connection = getReadConnection();
+            int batchSize = Math.min(SCRIPTHASH_QUERY_BATCH_SIZE, scriptHashes.size());
+            s = connection.prepareStatement(getTransactionOutputsByScriptHashSelectSQL(batchSize));
+            for (int offset = 0; offset < scriptHashes.size(); offset += batchSize) {
+                int count = Math.min(batchSize, scriptHashes.size() - offset);
+                if (count < batchSize) {
+                    // Last, partial batch.
+                    s.close();
+                    s = connection.prepareStatement(getTransactionOutputsByScriptHashSelectSQL(count));
+                }
+                for (int i = 0; i < count; i++)
+                    s.setBytes(i + 1, scriptHashes.get(offset + i));
                 ResultSet rs = s.executeQuery();
                 while (rs.next()) {
                     Sha256Hash hash = Sha256Hash.wrap(rs.getBytes(1));
@@ -1170,6 +1531,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
                             toAddress);
                     outputs.add(output);
                 }
+                rs.close();
             }
             return outputs;
         } catch (SQLException ex) {
@@ -1177,12 +1539,50 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         } catch (BlockStoreException bse) {
             throw new UTXOProviderException(bse);
         } finally {
-            if (s != null)
-                try {
+            try {
+                if (s != null)
                     s.close();
-                } catch (SQLException e) {
-                    throw new UTXOProviderException("Could not close statement", e);
-                }
+            } catch (SQLException e) {
+                throw new UTXOProviderException("Could not close statement", e);
+            } finally {
+                if (connection != null)
+                    releaseReadConnection(connection);
+            }
+        }
+    }
+
+    @Override
+    public void visitUnspentOutputs(UnspentOutputVisitor visitor) throws BlockStoreException {
+        Connection connection = getReadConnection();
+        PreparedStatement s = null;
+        try {
+            // Some drivers (PostgreSQL) only stream results, rather than load them all at once, inside a transaction.
+            connection.setAutoCommit(false);
+            s = connection.prepareStatement(getSelectAllOpenoutputsSQL());
+            s.setFetchSize(1000);
+            ResultSet rs = s.executeQuery();
+            while (rs.next()) {
+                UTXO output = new UTXO(Sha256Hash.wrap(rs.getBytes(1)),
+                        rs.getInt(5),
+                        Coin.valueOf(rs.getLong(2)),
+                        rs.getInt(4),
+                        rs.getBoolean(6),
+                        new Script(rs.getBytes(3)),
+                        rs.getString(7));
+                visitor.visit(output);
+            }
+            rs.close();
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        } finally {
+            try {
+                if (s != null)
+                    s.close();
+            } catch (SQLException e) {
+                throw new BlockStoreException("Could not close statement", e);
+            } finally {
+                releaseReadConnection(connection);
+            }
         }
     }
 
@@ -1192,8 +1592,16 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      * This does not take database indexes into account.
      */
     public void dumpSizes() throws SQLException, BlockStoreException {
-        maybeConnect();
-        Statement s = conn.get().createStatement();
+        Connection connection = getReadConnection();
+        try {
+            dumpSizes(connection);
+        } finally {
+            releaseReadConnection(connection);
+        }
+    }
+
+    private void dumpSizes(Connection connection) throws SQLException {
+        Statement s = connection.createStatement();
         long size = 0;
         long totalSize = 0;
         int count = 0;
@@ -65,9 +65,10 @@ public class H2FullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
             + "height INT NOT NULL,"
             + "value BIGINT NOT NULL,"
             + "scriptbytes BLOB NOT NULL,"
-            + "toaddress VARCHAR(35),"
+            + "toaddress VARCHAR(90),"
             + "addresstargetable TINYINT,"
             + "coinbase BOOLEAN,"
+            + "scripthash BINARY(32),"
             + "PRIMARY KEY (hash, index),"
             + ")";
 
@@ -76,8 +77,16 @@ public class H2FullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
     private static final String CREATE_OUTPUTS_TOADDRESS_INDEX          = "CREATE INDEX openoutputs_toaddress_idx ON openoutputs (toaddress)";
     private static final String CREATE_OUTPUTS_ADDRESSTARGETABLE_INDEX  = "CREATE INDEX openoutputs_addresstargetable_idx ON openoutputs (addresstargetable)";
     private static final String CREATE_OUTPUTS_HASH_INDEX               = "CREATE INDEX openoutputs_hash_idx ON openoutputs (hash)";
+    private static final String CREATE_OUTPUTS_SCRIPTHASH_INDEX         = "CREATE INDEX openoutputs_scripthash_idx ON openoutputs (scripthash)";
+
+    // H2 compares binary values as signed bytes, so order by their hex form to get unsigned order.
+    private static final String SELECT_ALL_OPENOUTPUTS_SQL              = "SELECT hash, value, scriptbytes, height, index, coinbase, toaddress FROM openoutputs ORDER BY RAWTOHEX(hash), index";
     private static final String CREATE_UNDOABLE_TABLE_INDEX             = "CREATE INDEX undoableblocks_height_idx ON undoableblocks (height)";
 
+    // Migration of databases created before the scripthash column
+    private static final String ADD_OUTPUTS_SCRIPTHASH_COLUMN           = "ALTER TABLE openoutputs ADD COLUMN scripthash BINARY(32)";
+    private static final String ALTER_OUTPUTS_TOADDRESS_COLUMN          = "ALTER TABLE openoutputs ALTER COLUMN toaddress VARCHAR(90)";
+
     /**
      * Creates a new H2FullPrunedBlockStore, with given credentials for H2 database
      * @param params A copy of the NetworkParameters used
@@ -117,12 +126,15 @@ public class H2FullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
     public H2FullPrunedBlockStore(NetworkParameters params, String dbName, int fullStoreDepth, int cacheSize)
             throws BlockStoreException {
         this(params, dbName, fullStoreDepth);
+        maybeConnect();
         try {
             Statement s = conn.get().createStatement();
             s.executeUpdate("SET CACHE_SIZE " + cacheSize);
             s.close();
         } catch (SQLException e) {
             throw new BlockStoreException(e);
+        } finally {
+            releaseConnection();
         }
     }
 
@@ -131,6 +143,11 @@ public class H2FullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         return H2_DUPLICATE_KEY_ERROR_CODE;
     }
 
+    @Override
+    protected String getSelectAllOpenoutputsSQL() {
+        return SELECT_ALL_OPENOUTPUTS_SQL;
+    }
+
     @Override
     protected List<String> getCreateTablesSQL() {
         List<String> sqlStatements = new ArrayList<>();
@@ -149,6 +166,16 @@ public class H2FullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         sqlStatements.add(CREATE_OUTPUTS_ADDRESSTARGETABLE_INDEX);
         sqlStatements.add(CREATE_OUTPUTS_HASH_INDEX);
         sqlStatements.add(CREATE_OUTPUTS_TOADDRESS_INDEX);
+        sqlStatements.add(CREATE_OUTPUTS_SCRIPTHASH_INDEX);
+        return sqlStatements;
+    }
+
+    @Override
+    protected List<String> getAddScriptHashSQL() {
+        List<String> sqlStatements = new ArrayList<>();
+        sqlStatements.add(ADD_OUTPUTS_SCRIPTHASH_COLUMN);
+        sqlStatements.add(ALTER_OUTPUTS_TOADDRESS_COLUMN);
+        sqlStatements.add(CREATE_OUTPUTS_SCRIPTHASH_INDEX);
         return sqlStatements;
     }
 
@@ -28,10 +28,7 @@ import java.util.concurrent.TimeUnit;
 import java.io.*;
 import java.nio.ByteBuffer;
 
-import org.bitcoinj.core.Address;
-import org.bitcoinj.core.AddressFormatException;
 import org.bitcoinj.core.ECKey;
-import org.bitcoinj.core.LegacyAddress;
 import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
@@ -61,9 +58,15 @@ import com.google.common.collect.Lists;
  * <p>
  * Includes number of caches to optimise the initial blockchain download.
  * </p>
+ *
+ * <p>
+ * Unspent outputs are also indexed by script hash, so that
+ * {@link #getOpenTransactionOutputsForScripts(List)} can resolve many scripts with one ordered scan. Databases
+ * created before this index existed have it built on first open.
+ * </p>
  */
 
-public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
+public class LevelDBFullPrunedBlockStore implements ScriptIndexedFullPrunedBlockStore, OrderedFullPrunedBlockStore {
     private static final Logger log = LoggerFactory.getLogger(LevelDBFullPrunedBlockStore.class);
 
     NetworkParameters params;
@@ -119,6 +122,19 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     // Bloomfilter for caching calls to hasUnspentOutputs
     protected BloomFilter bloom;
 
+    // Deletes undo data that is out of the reorg window in the background.
+    protected final UndoPruner undoPruner = new UndoPruner("LevelDBFullPrunedBlockStore", new UndoPruner.Target() {
+        @Override
+        public int getLowestUndoableHeight() {
+            return getLowestUndoableBlockHeight();
+        }
+
+        @Override
+        public void deleteUndoableBlocks(int fromHeight, int toHeight) throws BlockStoreException {
+            removeUndoableBlocks(fromHeight, toHeight);
+        }
+    });
+
     // Defaults for cache sizes
     static final long LEVELDB_READ_CACHE_DEFAULT = 100 * 1048576; // 100 meg
     static final int LEVELDB_WRITE_CACHE_DEFAULT = 10 * 1048576; // 10 meg
@@ -274,6 +290,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         totalStopwatch = Stopwatch.createStarted();
         openDB();
         bloom.reloadCache(db);
+        maybeBuildScriptHashIndex();
 
         // Reset after bloom filter loaded
         totalStopwatch = Stopwatch.createStarted();
@@ -339,6 +356,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             setChainHead(storedGenesisHeader);
             setVerifiedChainHead(storedGenesisHeader);
             batchPut(getKey(KeyType.CREATED), bytes("done"));
+            batchPut(getKey(KeyType.SCRIPTHASH_INDEX_BUILT), bytes("done"));
             commitDatabaseBatchWrite();
         } catch (VerificationException e) {
             throw new RuntimeException(e); // Cannot happen.
@@ -409,6 +427,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     @Override
     public void close() throws BlockStoreException {
+        undoPruner.stop();
         try {
             db.close();
         } catch (IOException e) {
@@ -423,61 +442,126 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     @Override
     public List<UTXO> getOpenTransactionOutputs(List<ECKey> keys) throws UTXOProviderException {
+        return getOpenTransactionOutputsForScripts(ScriptHashIndex.scriptsForKeys(keys));
+    }
+
+    @Override
+    public List<UTXO> getOpenTransactionOutputsForScripts(List<Script> scripts) throws UTXOProviderException {
         // Run this on a snapshot of database so internally consistent result
         // This is critical or if one address paid another could get incorrect
         // results
-
         List<UTXO> results = new LinkedList<>();
-        for (ECKey key : keys) {
-            ByteBuffer bb = ByteBuffer.allocate(21);
-            bb.put((byte) KeyType.ADDRESS_HASHINDEX.ordinal());
-            bb.put(key.getPubKeyHash());
+        List<byte[]> scriptHashes = ScriptHashIndex.sortedHashes(scripts);
+        if (scriptHashes.isEmpty())
+            return results;
+
+        ReadOptions ro = new ReadOptions();
+        Snapshot sn = db.getSnapshot();
+        ro.snapshot(sn);
+        DBIterator iterator = db.iterator(ro);
+        try {
+            // The script hashes are sorted, so this is a single forward pass over the index.
+            byte[] prefix = new byte[33];
+            prefix[0] = (byte) KeyType.SCRIPTHASH_INDEX.ordinal();
+            for (byte[] scriptHash : scriptHashes) {
+                System.arraycopy(scriptHash, 0, prefix, 1, 32);
+                for (iterator.seek(prefix); iterator.hasNext(); iterator.next()) {
+                    byte[] indexKey = iterator.peekNext().getKey();
+                    if (!hasPrefix(indexKey, prefix))
+                        break;
+                    ByteBuffer bbKey = ByteBuffer.wrap(indexKey, 33, 36);
+                    byte[] hashBytes = new byte[32];
+                    bbKey.get(hashBytes);
+                    int index = bbKey.getInt();
+                    Sha256Hash hash = Sha256Hash.wrap(hashBytes);
+                    byte[] inbytes = db.get(getTxKey(KeyType.OPENOUT_ALL, hash, index), ro);
+                    if (inbytes == null)
+                        continue;
+                    UTXO txout = new UTXO(new ByteArrayInputStream(inbytes));
+                    String address = "";
+                    try {
+                        address = txout.getScript().getToAddress(params, true).toString();
+                    } catch (ScriptException e) {
+                        // Not an address, e.g. a bare multisig script.
+                    }
+                    results.add(new UTXO(txout.getHash(), txout.getIndex(), txout.getValue(), txout.getHeight(),
+                            txout.isCoinbase(), txout.getScript(), address));
+                }
+            }
+        } catch (IOException e) {
+            throw new UTXOProviderException("block store exception", e);
+        } finally {
+            try {
+                iterator.close();
+                sn.close();
+            } catch (IOException e) {
+                log.error("Error closing snapshot/iterator?", e);
+            }
+        }
+        return results;
+    }
 
-            ReadOptions ro = new ReadOptions();
-            Snapshot sn = db.getSnapshot();
-            ro.snapshot(sn);
+    private static boolean hasPrefix(byte[] key, byte[] prefix) {
+        if (key.length < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++)
+            if (key[i] != prefix[i])
+                return false;
+        return true;
+    }
 
-            // Scanning over iterator very fast
+    private byte[] getScriptHashIndexKey(UTXO out) {
+        ByteBuffer bb = ByteBuffer.allocate(69);
+        bb.put((byte) KeyType.SCRIPTHASH_INDEX.ordinal());
+        bb.put(ScriptHashIndex.hash(out.getScript()).getBytes());
+        bb.put(out.getHash().getBytes());
+        bb.putInt((int) out.getIndex());
+        return bb.array();
+    }
 
-            DBIterator iterator = db.iterator(ro);
-            for (iterator.seek(bb.array()); iterator.hasNext(); iterator.next()) {
-                ByteBuffer bbKey = ByteBuffer.wrap(iterator.peekNext().getKey());
-                bbKey.get(); // remove the address_hashindex byte.
-                byte[] addressKey = new byte[20];
-                bbKey.get(addressKey);
-                if (!Arrays.equals(addressKey, key.getPubKeyHash())) {
+    // Builds the script hash index for databases written before it existed, and drops the address index it replaces.
+    private void maybeBuildScriptHashIndex() {
+        if (batchGet(getKey(KeyType.SCRIPTHASH_INDEX_BUILT)) != null)
+            return;
+        log.info("Building script hash index");
+        Stopwatch watch = Stopwatch.createStarted();
+        long count = 0;
+        WriteBatch indexBatch = db.createWriteBatch();
+        DBIterator iterator = db.iterator();
+        try {
+            byte[] key = getKey(KeyType.OPENOUT_ALL);
+            for (iterator.seek(key); iterator.hasNext(); iterator.next()) {
+                Map.Entry<byte[], byte[]> entry = iterator.peekNext();
+                if (entry.getKey()[0] != key[0])
                     break;
+                UTXO out = new UTXO(new ByteArrayInputStream(entry.getValue()));
+                indexBatch.put(getScriptHashIndexKey(out), new byte[0]);
+                if (++count % 100000 == 0) {
+                    db.write(indexBatch);
+                    indexBatch.close();
+                    indexBatch = db.createWriteBatch();
                 }
-                byte[] hashBytes = new byte[32];
-                bbKey.get(hashBytes);
-                int index = bbKey.getInt();
-                Sha256Hash hash = Sha256Hash.wrap(hashBytes);
-                UTXO txout;
-                try {
-                    // TODO this should be on the SNAPSHOT too......
-                    // this is really a BUG.
-                    txout = getTransactionOutput(hash, index);
-                } catch (BlockStoreException e) {
-                    throw new UTXOProviderException("block store execption", e);
-                }
-                if (txout != null) {
-                    Script sc = txout.getScript();
-                    Address address = sc.getToAddress(params, true);
-                    UTXO output = new UTXO(txout.getHash(), txout.getIndex(), txout.getValue(), txout.getHeight(),
-                            txout.isCoinbase(), txout.getScript(), address.toString());
-                    results.add(output);
-                }
             }
+            key = getKey(KeyType.ADDRESS_HASHINDEX);
+            for (iterator.seek(key); iterator.hasNext(); iterator.next()) {
+                byte[] addressKey = iterator.peekNext().getKey();
+                if (addressKey[0] != key[0])
+                    break;
+                indexBatch.delete(addressKey);
+            }
+            indexBatch.put(getKey(KeyType.SCRIPTHASH_INDEX_BUILT), bytes("done"));
+            db.write(indexBatch);
+        } catch (IOException e) {
+            throw new RuntimeException("Can not build script hash index", e);
+        } finally {
             try {
+                indexBatch.close();
                 iterator.close();
-                ro = null;
-                sn.close();
-                sn = null;
             } catch (IOException e) {
-                log.error("Error closing snapshot/iterator?", e);
+                log.error("Error closing iterator", e);
             }
         }
-        return results;
+        log.info("Indexed {} unspent outputs by script hash in {}", count, watch);
     }
 
     @Override
@@ -512,8 +596,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         try {
             ByteArrayOutputStream bos = new ByteArrayOutputStream();
             if (undoableBlock.getTxOutChanges() != null) {
-                undoableBlock.getTxOutChanges().serializeToStream(bos);
-                txOutChanges = bos.toByteArray();
+                txOutChanges = CompactUTXOCodec.encodeChanges(undoableBlock.getTxOutChanges());
             } else {
                 int numTxn = undoableBlock.getTransactions().size();
                 Utils.uint32ToByteStreamLE(numTxn, bos);
@@ -559,7 +642,10 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     // in.
     // Do wonder if grouping each "table" like this is efficient or not...
     enum KeyType {
-        CREATED, CHAIN_HEAD_SETTING, VERIFIED_CHAIN_HEAD_SETTING, VERSION_SETTING, HEADERS_ALL, UNDOABLEBLOCKS_ALL, HEIGHT_UNDOABLEBLOCKS, OPENOUT_ALL, ADDRESS_HASHINDEX
+        CREATED, CHAIN_HEAD_SETTING, VERIFIED_CHAIN_HEAD_SETTING, VERSION_SETTING, HEADERS_ALL, UNDOABLEBLOCKS_ALL, HEIGHT_UNDOABLEBLOCKS, OPENOUT_ALL,
+        // No longer written, superseded by SCRIPTHASH_INDEX.
+        ADDRESS_HASHINDEX,
+        SCRIPTHASH_INDEX, SCRIPTHASH_INDEX_BUILT
     }
 
     // These helpers just get the key for an input
@@ -683,8 +769,8 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             } else {
                 byte[] txOutChanges = new byte[txOutSize];
                 bb.get(txOutChanges);
-                TransactionOutputChanges outChangesObject = new TransactionOutputChanges(
-                        new ByteArrayInputStream(txOutChanges));
+                TransactionOutputChanges outChangesObject = CompactUTXOCodec.decodeChanges(txOutChanges, 0,
+                        txOutChanges.length, params);
                 block = new StoredUndoableBlock(hash, outChangesObject);
             }
             if (instrument)
@@ -786,29 +872,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             utxoUncommittedDeletedCache.remove(ByteBuffer.wrap(key));
         }
 
-        // Could run this in parallel with above too.
-        // Should update instrumentation to see if worth while.
-        Address a;
-        if (out.getAddress() == null || out.getAddress().equals("")) {
-            if (instrument)
-                endMethod("addUnspentTransactionOutput");
-            return;
-        } else {
-            try {
-                a = LegacyAddress.fromBase58(params, out.getAddress());
-            } catch (AddressFormatException e) {
-                if (instrument)
-                    endMethod("addUnspentTransactionOutput");
-                return;
-            }
-        }
-        ByteBuffer bb = ByteBuffer.allocate(57);
-        bb.put((byte) KeyType.ADDRESS_HASHINDEX.ordinal());
-        bb.put(a.getHash());
-        bb.put(out.getHash().getBytes());
-        bb.putInt((int) out.getIndex());
-        byte[] value = new byte[0];
-        batchPut(bb.array(), value);
+        batchPut(getScriptHashIndexKey(out), new byte[0]);
         if (instrument)
             endMethod("addUnspentTransactionOutput");
     }
@@ -876,43 +940,39 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         }
 
         batchDelete(key);
-        // could run this and the above in parallel
-        // Need to update instrumentation to check if worth the effort
-
-        // TODO storing as byte[] hash to save space. But think should just
-        // store as String of address. Might be faster. Need to test.
-        ByteBuffer bb = ByteBuffer.allocate(57);
-        Address a;
-        byte[] hashBytes = null;
-        try {
-            String address = out.getAddress();
-            if (address == null || address.equals("")) {
-                Script sc = out.getScript();
-                a = sc.getToAddress(params);
-                hashBytes = a.getHash();
-            } else {
-                a = LegacyAddress.fromBase58(params, out.getAddress());
-                hashBytes = a.getHash();
-            }
-        } catch (AddressFormatException e) {
-            if (instrument)
-                endMethod("removeUnspentTransactionOutput");
-            return;
-        } catch (ScriptException e) {
-            if (instrument)
-                endMethod("removeUnspentTransactionOutput");
-            return;
-        }
-        bb.put((byte) KeyType.ADDRESS_HASHINDEX.ordinal());
-        bb.put(hashBytes);
-        bb.put(out.getHash().getBytes());
-        bb.putInt((int) out.getIndex());
-        batchDelete(bb.array());
+        batchDelete(getScriptHashIndexKey(out));
 
         if (instrument)
             endMethod("removeUnspentTransactionOutput");
     }
 
+    @Override
+    public void visitUnspentOutputs(UnspentOutputVisitor visitor) throws BlockStoreException {
+        // The keys are the transaction hash followed by the big-endian index, so they already sort as required.
+        ReadOptions ro = new ReadOptions();
+        Snapshot sn = db.getSnapshot();
+        ro.snapshot(sn);
+        DBIterator iterator = db.iterator(ro);
+        try {
+            byte[] key = getKey(KeyType.OPENOUT_ALL);
+            for (iterator.seek(key); iterator.hasNext(); iterator.next()) {
+                Map.Entry<byte[], byte[]> entry = iterator.peekNext();
+                if (entry.getKey()[0] != key[0])
+                    break;
+                visitor.visit(new UTXO(new ByteArrayInputStream(entry.getValue())));
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            try {
+                iterator.close();
+                sn.close();
+            } catch (IOException e) {
+                log.error("Error closing snapshot/iterator?", e);
+            }
+        }
+    }
+
     // Instrumentation of bloom filter to check theory
     // matches reality. Without this initial chain sync takes
     // 50-75% longer.
@@ -987,41 +1047,60 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         batchPut(getKey(KeyType.VERIFIED_CHAIN_HEAD_SETTING), hash.getBytes());
         if (this.chainHeadBlock.getHeight() < chainHead.getHeight())
             setChainHead(chainHead);
-        removeUndoableBlocksWhereHeightIsLessThan(chainHead.getHeight() - fullStoreDepth);
+        undoPruner.pruneTo(chainHead.getHeight() - fullStoreDepth);
         if (instrument)
             endMethod("setVerifiedChainHead");
     }
 
-    void removeUndoableBlocksWhereHeightIsLessThan(int height) {
-        if (height < 0)
-            return;
+    // Called on the pruner thread. Deletes go straight to the database in their own write batch, leaving any batch
+    // of the thread connecting blocks alone.
+    int getLowestUndoableBlockHeight() {
         DBIterator iterator = db.iterator();
-        ByteBuffer keyBuf = ByteBuffer.allocate(5);
-        keyBuf.put((byte) KeyType.HEIGHT_UNDOABLEBLOCKS.ordinal());
-        keyBuf.putInt(height);
-
-        for (iterator.seek(keyBuf.array()); iterator.hasNext(); iterator.next()) {
-
-            byte[] bytekey = iterator.peekNext().getKey();
-            ByteBuffer buff = ByteBuffer.wrap(bytekey);
-            buff.get(); // Just remove byte from buffer.
-            int keyHeight = buff.getInt();
-
-            byte[] hashbytes = new byte[32];
-            buff.get(hashbytes, 4, 28);
-
-            if (keyHeight > height)
-                break;
-
-            batchDelete(getKey(KeyType.UNDOABLEBLOCKS_ALL, hashbytes));
-            batchDelete(bytekey);
-        }
         try {
-            iterator.close();
-        } catch (IOException e) {
-            log.error("Error closing iterator", e);
+            iterator.seek(getKey(KeyType.HEIGHT_UNDOABLEBLOCKS));
+            if (!iterator.hasNext())
+                return -1;
+            byte[] key = iterator.peekNext().getKey();
+            if (key[0] != (byte) KeyType.HEIGHT_UNDOABLEBLOCKS.ordinal())
+                return -1;
+            return ByteBuffer.wrap(key, 1, 4).getInt();
+        } finally {
+            try {
+                iterator.close();
+            } catch (IOException e) {
+                log.error("Error closing iterator", e);
+            }
         }
+    }
 
+    void removeUndoableBlocks(int fromHeight, int toHeight) throws BlockStoreException {
+        DBIterator iterator = db.iterator();
+        WriteBatch deletes = db.createWriteBatch();
+        try {
+            ByteBuffer keyBuf = ByteBuffer.allocate(5);
+            keyBuf.put((byte) KeyType.HEIGHT_UNDOABLEBLOCKS.ordinal());
+            keyBuf.putInt(fromHeight);
+            for (iterator.seek(keyBuf.array()); iterator.hasNext(); iterator.next()) {
+                byte[] bytekey = iterator.peekNext().getKey();
+                ByteBuffer buff = ByteBuffer.wrap(bytekey);
+                if (buff.get() != (byte) KeyType.HEIGHT_UNDOABLEBLOCKS.ordinal() || buff.getInt() > toHeight)
+                    break;
+                byte[] hashbytes = new byte[32];
+                buff.get(hashbytes, 4, 28);
+                deletes.delete(getKey(KeyType.UNDOABLEBLOCKS_ALL, hashbytes));
+                deletes.delete(bytekey);
+            }
+            db.write(deletes);
+        } catch (DBException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            try {
+                deletes.close();
+                iterator.close();
+            } catch (IOException e) {
+                log.error("Error closing iterator", e);
+            }
+        }
     }
 
     WriteBatch batch;
@@ -1111,6 +1190,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     public void resetStore() {
         // only used in unit tests.
         // bit dangerous and deletes files!
+        undoPruner.stop();
         try {
             db.close();
             uncommited = null;
@@ -63,9 +63,10 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
             "    height integer NOT NULL,\n" +
             "    value bigint NOT NULL,\n" +
             "    scriptbytes mediumblob NOT NULL,\n" +
-            "    toaddress varchar(35),\n" +
+            "    toaddress varchar(90),\n" +
             "    addresstargetable tinyint(1),\n" +
             "    coinbase boolean,\n" +
+            "    scripthash varbinary(32),\n" +
             "    CONSTRAINT openoutputs_pk PRIMARY KEY (hash, `index`) USING BTREE \n" +
             ")\n";
 
@@ -74,14 +75,22 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
     private static final String CREATE_OUTPUTS_TOADDRESS_INDEX                  = "CREATE INDEX openoutputs_toaddress_idx ON openoutputs (toaddress) USING btree";
     private static final String CREATE_OUTPUTS_ADDRESSTARGETABLE_INDEX          = "CREATE INDEX openoutputs_addresstargetable_idx ON openoutputs (addresstargetable) USING btree";
     private static final String CREATE_OUTPUTS_HASH_INDEX                       = "CREATE INDEX openoutputs_hash_idx ON openoutputs (hash) USING btree";
+    private static final String CREATE_OUTPUTS_SCRIPTHASH_INDEX                 = "CREATE INDEX openoutputs_scripthash_idx ON openoutputs (scripthash) USING btree";
     private static final String CREATE_UNDOABLE_TABLE_INDEX                     = "CREATE INDEX undoableblocks_height_idx ON undoableblocks (height) USING btree";
 
+    // Migration of databases created before the scripthash column
+    private static final String ADD_OUTPUTS_SCRIPTHASH_COLUMN                   = "ALTER TABLE openoutputs ADD COLUMN scripthash varbinary(32)";
+    private static final String ALTER_OUTPUTS_TOADDRESS_COLUMN                  = "ALTER TABLE openoutputs MODIFY toaddress varchar(90)";
+
     // SQL involving index column (table openOutputs) overridden as it is a reserved word and must be back ticked in MySQL.
     private static final String SELECT_OPENOUTPUTS_SQL                          = "SELECT height, value, scriptbytes, coinbase, toaddress, addresstargetable FROM openoutputs WHERE hash = ? AND `index` = ?";
-    private static final String INSERT_OPENOUTPUTS_SQL                          = "INSERT INTO openoutputs (hash, `index`, height, value, scriptbytes, toaddress, addresstargetable, coinbase) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String INSERT_OPENOUTPUTS_SQL                          = "INSERT INTO openoutputs (hash, `index`, height, value, scriptbytes, toaddress, addresstargetable, coinbase, scripthash) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
     private static final String DELETE_OPENOUTPUTS_SQL                          = "DELETE FROM openoutputs WHERE hash = ? AND `index`= ?";
 
-    private static final String SELECT_TRANSACTION_OUTPUTS_SQL                  = "SELECT hash, value, scriptbytes, height, `index`, coinbase, toaddress, addresstargetable FROM openoutputs where toaddress = ?";
+    private static final String SELECT_TRANSACTION_OUTPUTS_BY_SCRIPTHASH_SQL    = "SELECT hash, value, scriptbytes, height, `index`, coinbase, toaddress, addresstargetable FROM openoutputs WHERE scripthash IN ";
+    private static final String SELECT_ALL_OPENOUTPUTS_SQL                      = "SELECT hash, value, scriptbytes, height, `index`, coinbase, toaddress FROM openoutputs ORDER BY hash, `index`";
+    private static final String SELECT_OPENOUTPUTS_WITHOUT_SCRIPTHASH_SQL       = "SELECT hash, `index`, scriptbytes FROM openoutputs WHERE scripthash IS NULL LIMIT ?";
+    private static final String UPDATE_OPENOUTPUTS_SCRIPTHASH_SQL               = "UPDATE openoutputs SET scripthash = ? WHERE hash = ? AND `index` = ?";
 
     /**
      * Creates a new MySQLFullPrunedBlockStore.
@@ -120,8 +129,23 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
     }
 
     @Override
-    protected String getTransactionOutputSelectSQL() {
-        return SELECT_TRANSACTION_OUTPUTS_SQL;
+    protected String getTransactionOutputsByScriptHashSelectSQL(int count) {
+        return SELECT_TRANSACTION_OUTPUTS_BY_SCRIPTHASH_SQL + inClause(count);
+    }
+
+    @Override
+    protected String getSelectAllOpenoutputsSQL() {
+        return SELECT_ALL_OPENOUTPUTS_SQL;
+    }
+
+    @Override
+    protected String getSelectOpenoutputsWithoutScriptHashSQL() {
+        return SELECT_OPENOUTPUTS_WITHOUT_SCRIPTHASH_SQL;
+    }
+
+    @Override
+    protected String getUpdateOpenoutputsScriptHashSQL() {
+        return UPDATE_OPENOUTPUTS_SCRIPTHASH_SQL;
     }
 
     @Override
@@ -142,6 +166,16 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         sqlStatements.add(CREATE_OUTPUTS_ADDRESSTARGETABLE_INDEX);
         sqlStatements.add(CREATE_OUTPUTS_HASH_INDEX);
         sqlStatements.add(CREATE_OUTPUTS_TOADDRESS_INDEX);
+        sqlStatements.add(CREATE_OUTPUTS_SCRIPTHASH_INDEX);
+        return sqlStatements;
+    }
+
+    @Override
+    protected List<String> getAddScriptHashSQL() {
+        List<String> sqlStatements = new ArrayList<>();
+        sqlStatements.add(ADD_OUTPUTS_SCRIPTHASH_COLUMN);
+        sqlStatements.add(ALTER_OUTPUTS_TOADDRESS_COLUMN);
+        sqlStatements.add(CREATE_OUTPUTS_SCRIPTHASH_INDEX);
         return sqlStatements;
     }
 
@@ -0,0 +1,39 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.UTXO;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} that can walk its whole UTXO set in a fixed order, which is what
+ * {@link UTXOSnapshot#exportSnapshot(OrderedFullPrunedBlockStore, java.io.OutputStream)} needs.</p>
+ */
+public interface OrderedFullPrunedBlockStore extends FullPrunedBlockStore {
+    /** Receives the unspent outputs of a store, see {@link #visitUnspentOutputs(UnspentOutputVisitor)}. */
+    interface UnspentOutputVisitor {
+        void visit(UTXO output) throws BlockStoreException;
+    }
+
+    /**
+     * <p>Passes every unspent output in the store to the visitor, in ascending order of transaction hash (its bytes
+     * compared as unsigned values) and then of output index. This fixed order is what makes a {@link UTXOSnapshot} of a
+     * given UTXO set the same, whichever store it was taken from. The address of the outputs may not be set.</p>
+     *
+     * <p>The store must not be written to while this runs.</p>
+     */
+    void visitUnspentOutputs(UnspentOutputVisitor visitor) throws BlockStoreException;
+}
@@ -74,9 +74,10 @@ public class PostgresFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
             "    height integer NOT NULL,\n" +
             "    value bigint NOT NULL,\n" +
             "    scriptbytes bytea NOT NULL,\n" +
-            "    toaddress character varying(35),\n" +
+            "    toaddress character varying(90),\n" +
             "    addresstargetable smallint,\n" +
             "    coinbase boolean,\n" +
+            "    scripthash bytea,\n" +
             "    CONSTRAINT openoutputs_pk PRIMARY KEY (hash,index)\n" +
             ")\n";
 
@@ -85,8 +86,13 @@ public class PostgresFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
     private static final String CREATE_OUTPUTS_TOADDRESS_INDEX          = "CREATE INDEX openoutputs_toaddress_idx ON openoutputs USING btree (toaddress)";
     private static final String CREATE_OUTPUTS_ADDRESSTARGETABLE_INDEX  = "CREATE INDEX openoutputs_addresstargetable_idx ON openoutputs USING btree (addresstargetable)";
     private static final String CREATE_OUTPUTS_HASH_INDEX               = "CREATE INDEX openoutputs_hash_idx ON openoutputs USING btree (hash)";
+    private static final String CREATE_OUTPUTS_SCRIPTHASH_INDEX         = "CREATE INDEX openoutputs_scripthash_idx ON openoutputs USING btree (scripthash)";
     private static final String CREATE_UNDOABLE_TABLE_INDEX             = "CREATE INDEX undoableblocks_height_idx ON undoableBlocks USING btree (height)";
 
+    // Migration of databases created before the scripthash column
+    private static final String ADD_OUTPUTS_SCRIPTHASH_COLUMN           = "ALTER TABLE openoutputs ADD COLUMN scripthash bytea";
+    private static final String ALTER_OUTPUTS_TOADDRESS_COLUMN          = "ALTER TABLE openoutputs ALTER COLUMN toaddress TYPE character varying(90)";
+
     private static final String SELECT_UNDOABLEBLOCKS_EXISTS_SQL        = "select 1 from undoableblocks where hash = ?";
 
     /**
@@ -126,6 +132,32 @@ public class PostgresFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         super(params, DATABASE_CONNECTION_URL_PREFIX + hostname + "/" + dbName, fullStoreDepth, username, password, schemaName);
     }
 
+    /**
+     * <p>Create a new PostgresFullPrunedBlockStore that sends the read-only queries of
+     * {@link org.bitcoinj.core.UTXOProvider} to a read replica, and bounds the number of connections to both the
+     * primary and the replica.</p>
+     *
+     * @param params A copy of the NetworkParameters used.
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe).
+     * @param hostname The hostname of the primary database to connect to.
+     * @param replicaHostname The hostname of the read replica to connect to.
+     * @param dbName The database to connect to.
+     * @param username The database username.
+     * @param password The password to the database.
+     * @param schemaName The name of the schema to put the tables in.  May be null if no schema is being used.
+     * @param maxWriterConnections The maximum number of connections to the primary.
+     * @param maxReaderConnections The maximum number of connections to the replica.
+     * @throws BlockStoreException If the database fails to open for any reason.
+     */
+    public PostgresFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth, String hostname,
+                                        String replicaHostname, String dbName, String username, String password,
+                                        @Nullable String schemaName, int maxWriterConnections,
+                                        int maxReaderConnections) throws BlockStoreException {
+        super(params, DATABASE_CONNECTION_URL_PREFIX + hostname + "/" + dbName,
+                DATABASE_CONNECTION_URL_PREFIX + replicaHostname + "/" + dbName, fullStoreDepth, username, password,
+                schemaName, maxWriterConnections, maxReaderConnections);
+    }
+
     @Override
     protected String getDuplicateKeyErrorCode() {
         return POSTGRES_DUPLICATE_KEY_ERROR_CODE;
@@ -149,6 +181,16 @@ public class PostgresFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         sqlStatements.add(CREATE_OUTPUTS_ADDRESSTARGETABLE_INDEX);
         sqlStatements.add(CREATE_OUTPUTS_HASH_INDEX);
         sqlStatements.add(CREATE_OUTPUTS_TOADDRESS_INDEX);
+        sqlStatements.add(CREATE_OUTPUTS_SCRIPTHASH_INDEX);
+        return sqlStatements;
+    }
+
+    @Override
+    protected List<String> getAddScriptHashSQL() {
+        List<String> sqlStatements = new ArrayList<>();
+        sqlStatements.add(ADD_OUTPUTS_SCRIPTHASH_COLUMN);
+        sqlStatements.add(ALTER_OUTPUTS_TOADDRESS_COLUMN);
+        sqlStatements.add(CREATE_OUTPUTS_SCRIPTHASH_INDEX);
         return sqlStatements;
     }
 
@@ -168,91 +210,95 @@ public class PostgresFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
     @Override
     public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
         maybeConnect();
-        // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
-        byte[] hashBytes = new byte[28];
-        System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 4, hashBytes, 0, 28);
-        int height = storedBlock.getHeight();
-        byte[] transactions = null;
-        byte[] txOutChanges = null;
         try {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            if (undoableBlock.getTxOutChanges() != null) {
-                undoableBlock.getTxOutChanges().serializeToStream(bos);
-                txOutChanges = bos.toByteArray();
-            } else {
-                int numTxn = undoableBlock.getTransactions().size();
-                Utils.uint32ToByteStreamLE(numTxn, bos);
-                for (Transaction tx : undoableBlock.getTransactions())
-                    tx.bitcoinSerialize(bos);
-                transactions = bos.toByteArray();
+            // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
+            byte[] hashBytes = new byte[28];
+            System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 4, hashBytes, 0, 28);
+            int height = storedBlock.getHeight();
+            byte[] transactions = null;
+            byte[] txOutChanges = null;
+            try {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                if (undoableBlock.getTxOutChanges() != null) {
+                    undoableBlock.getTxOutChanges().serializeToStream(bos);
+                    txOutChanges = bos.toByteArray();
+                } else {
+                    int numTxn = undoableBlock.getTransactions().size();
+                    Utils.uint32ToByteStreamLE(numTxn, bos);
+                    for (Transaction tx : undoableBlock.getTransactions())
+                        tx.bitcoinSerialize(bos);
+                    transactions = bos.toByteArray();
+                }
+                bos.close();
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
             }
-            bos.close();
-        } catch (IOException e) {
-            throw new BlockStoreException(e);
-        }
 
 
-        try {
-            if (log.isDebugEnabled())
-                log.debug("Looking for undoable block with hash: " + Utils.HEX.encode(hashBytes));
+            try {
+                if (log.isDebugEnabled())
+                    log.debug("Looking for undoable block with hash: " + Utils.HEX.encode(hashBytes));
+
+                PreparedStatement findS = conn.get().prepareStatement(SELECT_UNDOABLEBLOCKS_EXISTS_SQL);
+                findS.setBytes(1, hashBytes);
+
+                ResultSet rs = findS.executeQuery();
+                if (rs.next())
+                {
+                    // We already have this output, update it.
+                    findS.close();
 
-            PreparedStatement findS = conn.get().prepareStatement(SELECT_UNDOABLEBLOCKS_EXISTS_SQL);
-            findS.setBytes(1, hashBytes);
+                    // Postgres insert-or-updates are very complex (and finnicky).  This level of transaction isolation
+                    // seems to work for bitcoinj
+                    PreparedStatement s =
+                            conn.get().prepareStatement(getUpdateUndoableBlocksSQL());
+                    s.setBytes(3, hashBytes);
 
-            ResultSet rs = findS.executeQuery();
-            if (rs.next())
-            {
-                // We already have this output, update it.
-                findS.close();
+                    if (log.isDebugEnabled())
+                        log.debug("Updating undoable block with hash: " + Utils.HEX.encode(hashBytes));
+
+                    if (transactions == null) {
+                        s.setBytes(1, txOutChanges);
+                        s.setNull(2, Types.BINARY);
+                    } else {
+                        s.setNull(1, Types.BINARY);
+                        s.setBytes(2, transactions);
+                    }
+                    s.executeUpdate();
+                    s.close();
+
+                    return;
+                }
 
-                // Postgres insert-or-updates are very complex (and finnicky).  This level of transaction isolation
-                // seems to work for bitcoinj
                 PreparedStatement s =
-                        conn.get().prepareStatement(getUpdateUndoableBlocksSQL());
-                s.setBytes(3, hashBytes);
+                        conn.get().prepareStatement(getInsertUndoableBlocksSQL());
+                s.setBytes(1, hashBytes);
+                s.setInt(2, height);
 
                 if (log.isDebugEnabled())
-                    log.debug("Updating undoable block with hash: " + Utils.HEX.encode(hashBytes));
+                    log.debug("Inserting undoable block with hash: " + Utils.HEX.encode(hashBytes)  + " at height " + height);
 
                 if (transactions == null) {
-                    s.setBytes(1, txOutChanges);
-                    s.setNull(2, Types.BINARY);
+                    s.setBytes(3, txOutChanges);
+                    s.setNull(4, Types.BINARY);
                 } else {
-                    s.setNull(1, Types.BINARY);
-                    s.setBytes(2, transactions);
+                    s.setNull(3, Types.BINARY);
+                    s.setBytes(4, transactions);
                 }
                 s.executeUpdate();
                 s.close();
-
-                return;
-            }
-
-            PreparedStatement s =
-                    conn.get().prepareStatement(getInsertUndoableBlocksSQL());
-            s.setBytes(1, hashBytes);
-            s.setInt(2, height);
-
-            if (log.isDebugEnabled())
-                log.debug("Inserting undoable block with hash: " + Utils.HEX.encode(hashBytes)  + " at height " + height);
-
-            if (transactions == null) {
-                s.setBytes(3, txOutChanges);
-                s.setNull(4, Types.BINARY);
-            } else {
-                s.setNull(3, Types.BINARY);
-                s.setBytes(4, transactions);
-            }
-            s.executeUpdate();
-            s.close();
-            try {
-                putUpdateStoredBlock(storedBlock, true);
+                try {
+                    putUpdateStoredBlock(storedBlock, true);
+                } catch (SQLException e) {
+                    throw new BlockStoreException(e);
+                }
             } catch (SQLException e) {
-                throw new BlockStoreException(e);
+                if (!e.getSQLState().equals(POSTGRES_DUPLICATE_KEY_ERROR_CODE))
+                    throw new BlockStoreException(e);
             }
-        } catch (SQLException e) {
-            if (!e.getSQLState().equals(POSTGRES_DUPLICATE_KEY_ERROR_CODE))
-                throw new BlockStoreException(e);
-        }
 
+        } finally {
+            releaseConnection();
+        }
     }
 }
\ No newline at end of file
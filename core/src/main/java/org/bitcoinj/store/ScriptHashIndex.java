@@ -0,0 +1,77 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import com.google.common.primitives.UnsignedBytes;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Helpers shared by the {@link FullPrunedBlockStore} implementations for their index from script hash (the single
+ * SHA-256 of an output's scriptPubKey) to unspent outputs.
+ */
+final class ScriptHashIndex {
+    private ScriptHashIndex() {
+    }
+
+    /** Returns the script hash under which outputs paying to the given script are indexed. */
+    static Sha256Hash hash(Script script) {
+        return Sha256Hash.of(script.getProgram());
+    }
+
+    /** Returns the script hash under which outputs with the given scriptPubKey bytes are indexed. */
+    static Sha256Hash hash(byte[] scriptBytes) {
+        return Sha256Hash.of(scriptBytes);
+    }
+
+    /**
+     * Returns the raw bytes of the distinct script hashes of the given scripts in ascending unsigned lexicographic
+     * order, so that an ordered index can be walked front to back in a single pass.
+     */
+    static List<byte[]> sortedHashes(Collection<Script> scripts) {
+        Set<Sha256Hash> distinct = new HashSet<>();
+        for (Script script : scripts)
+            distinct.add(hash(script));
+        List<byte[]> hashes = new ArrayList<>(distinct.size());
+        for (Sha256Hash hash : distinct)
+            hashes.add(hash.getBytes());
+        Collections.sort(hashes, UnsignedBytes.lexicographicalComparator());
+        return hashes;
+    }
+
+    /**
+     * Returns the output scripts an {@link org.bitcoinj.core.UTXOProvider} matches for the given keys: pay to pubkey
+     * hash and pay to pubkey. These are the outputs whose legacy address is the address of the key.
+     */
+    static List<Script> scriptsForKeys(List<ECKey> keys) {
+        List<Script> scripts = new ArrayList<>(keys.size() * 2);
+        for (ECKey key : keys) {
+            scripts.add(ScriptBuilder.createP2PKHOutputScript(key));
+            scripts.add(ScriptBuilder.createP2PKOutputScript(key));
+        }
+        return scripts;
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.core.UTXOProviderException;
+import org.bitcoinj.script.Script;
+
+import java.util.List;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} that can look up its unspent outputs by script.</p>
+ *
+ * <p>Implementations keep a secondary index from script hash (the single SHA-256 of the scriptPubKey) to outpoint,
+ * maintained by {@link #addUnspentTransactionOutput(UTXO)} and {@link #removeUnspentTransactionOutput(UTXO)}, so
+ * that thousands of scripts are resolved in a single pass rather than one lookup per script.
+ * {@link #getOpenTransactionOutputs(List)} is answered the same way, using the pay to pubkey hash and pay to pubkey
+ * scripts of each key.</p>
+ */
+public interface ScriptIndexedFullPrunedBlockStore extends FullPrunedBlockStore {
+    /**
+     * Returns the unspent outputs whose scriptPubKey is any of the given scripts.
+     */
+    List<UTXO> getOpenTransactionOutputsForScripts(List<Script> scripts) throws UTXOProviderException;
+}
@@ -0,0 +1,480 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import com.google.common.primitives.UnsignedBytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A small embedded key-value store made of append-only segment files, used by
+ * {@link SegmentLogFullPrunedBlockStore}.</p>
+ *
+ * <p>Every {@link Batch} is appended to the newest segment as one frame, prefixed by its length and CRC32. A frame
+ * that was only partly written when the process died fails its checksum and is cut off when the log is next opened,
+ * so a batch, including any chain head it carries, is applied completely or not at all. The location of the newest
+ * value of every key is kept in a sorted in-memory index, which also serves range queries over keys.</p>
+ *
+ * <p>Once a segment reaches its maximum size a new one is started. When less than half of the bytes on disk are
+ * still live, a background thread compacts the oldest segment by copying its live entries to the head of the log and
+ * then deleting it. Only the oldest segment is ever compacted, so deletions recorded in it can never be needed to
+ * hide an older value and are simply dropped.</p>
+ */
+class SegmentLog {
+    private static final Logger log = LoggerFactory.getLogger(SegmentLog.class);
+
+    static final long DEFAULT_MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+    static final double DEFAULT_MIN_LIVE_RATIO = 0.5;
+
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int FRAME_HEADER_SIZE = 8; // length, crc32
+    private static final byte OP_DELETE = 0;
+    private static final byte OP_PUT = 1;
+    // Frames written while compacting are kept well below the segment size so writers are not held up for long.
+    private static final int COMPACTION_FRAME_SIZE = 1024 * 1024;
+
+    /** An ordered list of writes applied to the log as one atomic frame. */
+    static class Batch {
+        private final List<byte[]> keys = new ArrayList<>();
+        private final List<byte[]> values = new ArrayList<>();
+        private int size;
+
+        void put(byte[] key, byte[] value) {
+            keys.add(key);
+            values.add(value);
+            size += entrySize(key, value);
+        }
+
+        void delete(byte[] key) {
+            keys.add(key);
+            values.add(null);
+            size += entrySize(key, null);
+        }
+
+        boolean isEmpty() {
+            return keys.isEmpty();
+        }
+    }
+
+    private static class Location {
+        final Segment segment;
+        final int offset; // of the entry within its segment
+        final int size; // of the whole entry
+
+        Location(Segment segment, int offset, int size) {
+            this.segment = segment;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    private static class Segment {
+        final int id;
+        final File file;
+        final RandomAccessFile raf;
+        long size;
+        long liveBytes;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.size = raf.length();
+        }
+
+        // RandomAccessFile rather than FileChannel, as an interrupt would close a channel for every other thread too.
+        void read(long position, byte[] buf, int length) throws IOException {
+            raf.seek(position);
+            raf.readFully(buf, 0, length);
+        }
+
+        void sync() throws IOException {
+            raf.getFD().sync();
+        }
+    }
+
+    private final File directory;
+    private final long maxSegmentSize;
+    private final double minLiveRatio;
+    private final boolean syncWrites;
+
+    private final TreeMap<byte[], Location> index = new TreeMap<>(UnsignedBytes.lexicographicalComparator());
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private Segment head;
+    private long totalBytes;
+    private long liveBytes;
+    private boolean closed;
+    private volatile boolean closing;
+
+    private final ScheduledThreadPoolExecutor compactor;
+    private boolean compactionScheduled;
+    // Held while compacting, so that an explicit compact() and the background one never work on a segment together.
+    private final Object compactionLock = new Object();
+
+    /**
+     * Opens the log in the given directory, creating it if needed and replaying all segments into the index.
+     * @param maxSegmentSize the size at which a new segment is started
+     * @param minLiveRatio compaction starts when the proportion of live bytes on disk falls below this
+     * @param syncWrites whether to force every batch to disk before returning
+     */
+    SegmentLog(File directory, long maxSegmentSize, double minLiveRatio, boolean syncWrites) throws IOException {
+        checkArgument(maxSegmentSize > FRAME_HEADER_SIZE && maxSegmentSize <= Integer.MAX_VALUE);
+        checkArgument(minLiveRatio >= 0 && minLiveRatio < 1);
+        this.directory = directory;
+        this.maxSegmentSize = maxSegmentSize;
+        this.minLiveRatio = minLiveRatio;
+        this.syncWrites = syncWrites;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Could not create directory " + directory);
+        File[] files = directory.listFiles();
+        List<Integer> ids = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    ids.add(Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException x) {
+                    // Not one of ours.
+                }
+            }
+        }
+        Collections.sort(ids);
+        for (int i = 0; i < ids.size(); i++)
+            replay(openSegment(ids.get(i)), i == ids.size() - 1);
+        head = segments.isEmpty() ? openSegment(0) : segments.lastEntry().getValue();
+        // Compaction needs no bitcoinj Context, so a plain daemon thread will do.
+        compactor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setName("Segment log compaction");
+                t.setPriority(Thread.MIN_PRIORITY);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        compactor.setKeepAliveTime(5, TimeUnit.SECONDS);
+        compactor.allowCoreThreadTimeOut(true);
+        maybeScheduleCompaction();
+    }
+
+    /** Returns the newest value of the given key, or null if there is none. */
+    @Nullable
+    synchronized byte[] get(byte[] key) throws IOException {
+        checkState(!closed, "closed");
+        Location location = index.get(key);
+        if (location == null)
+            return null;
+        ByteBuffer entry = ByteBuffer.allocate(location.size);
+        location.segment.read(location.offset, entry.array(), location.size);
+        entry.position(1 + 4 + key.length);
+        byte[] value = new byte[entry.getInt()];
+        entry.get(value);
+        return value;
+    }
+
+    /** Returns whether the key currently has a value. */
+    synchronized boolean contains(byte[] key) {
+        checkState(!closed, "closed");
+        return index.containsKey(key);
+    }
+
+    /** Returns the keys from {@code from} inclusive to {@code to} exclusive, in unsigned lexicographic order. */
+    synchronized List<byte[]> keys(byte[] from, byte[] to) {
+        checkState(!closed, "closed");
+        return new ArrayList<>(index.subMap(from, true, to, false).keySet());
+    }
+
+    /** Returns the number of keys that currently have a value. */
+    synchronized int size() {
+        return index.size();
+    }
+
+    /** Appends the batch to the log as one frame and applies it to the index. */
+    synchronized void write(Batch batch) throws IOException {
+        checkState(!closed, "closed");
+        if (batch.isEmpty())
+            return;
+        if (head.size > 0 && head.size + FRAME_HEADER_SIZE + batch.size > maxSegmentSize)
+            roll();
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + batch.size);
+        frame.position(FRAME_HEADER_SIZE);
+        for (int i = 0; i < batch.keys.size(); i++)
+            writeEntry(frame, batch.keys.get(i), batch.values.get(i));
+        CRC32 crc = new CRC32();
+        crc.update(frame.array(), FRAME_HEADER_SIZE, batch.size);
+        frame.putInt(0, batch.size);
+        frame.putInt(4, (int) crc.getValue());
+        long frameStart = head.size;
+        head.raf.seek(frameStart);
+        head.raf.write(frame.array());
+        if (syncWrites)
+            head.sync();
+        head.size += frame.capacity();
+        totalBytes += frame.capacity();
+        int offset = (int) frameStart + FRAME_HEADER_SIZE;
+        for (int i = 0; i < batch.keys.size(); i++) {
+            byte[] key = batch.keys.get(i);
+            byte[] value = batch.values.get(i);
+            int size = entrySize(key, value);
+            apply(key, value == null ? null : new Location(head, offset, size));
+            offset += size;
+        }
+        maybeScheduleCompaction();
+    }
+
+    /** Forces everything written so far to disk. */
+    synchronized void sync() throws IOException {
+        if (!closed)
+            head.sync();
+    }
+
+    /** Stops compaction, syncs and closes all segments. The log can't be used afterwards. */
+    void close() throws IOException {
+        closing = true;
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            head.sync();
+            for (Segment segment : segments.values())
+                segment.raf.close();
+            segments.clear();
+            index.clear();
+        }
+    }
+
+    /** Returns the proportion of bytes on disk that hold live values. */
+    synchronized double getLiveRatio() {
+        return totalBytes == 0 ? 1 : (double) liveBytes / totalBytes;
+    }
+
+    /** Returns the number of segment files. */
+    synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Compacts oldest segments until the live ratio is at least the configured minimum or only the head segment is
+     * left. Normally this runs on a background thread.
+     */
+    void compact() throws IOException {
+        synchronized (compactionLock) {
+            while (true) {
+                Segment oldest;
+                synchronized (this) {
+                    if (closing || closed || segments.size() < 2 || getLiveRatio() >= minLiveRatio)
+                        return;
+                    oldest = segments.firstEntry().getValue();
+                }
+                compact(oldest);
+            }
+        }
+    }
+
+    private void compact(Segment segment) throws IOException {
+        // The lock is taken per frame, so writers only ever wait for one frame's worth of copying.
+        long position = 0;
+        long copied = 0;
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        while (position < segment.size) {
+            int length;
+            Batch batch = new Batch();
+            synchronized (this) {
+                if (closing || closed)
+                    return;
+                segment.read(position, header.array(), FRAME_HEADER_SIZE);
+                length = header.getInt(0);
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                segment.read(position + FRAME_HEADER_SIZE, payload.array(), length);
+                int offset = (int) position + FRAME_HEADER_SIZE;
+                while (payload.hasRemaining()) {
+                    int entryStart = payload.position();
+                    byte op = payload.get();
+                    byte[] key = new byte[payload.getInt()];
+                    payload.get(key);
+                    byte[] value = null;
+                    if (op == OP_PUT) {
+                        value = new byte[payload.getInt()];
+                        payload.get(value);
+                    }
+                    Location location = index.get(key);
+                    if (value != null && location != null && location.segment == segment
+                            && location.offset == offset + entryStart) {
+                        batch.put(key, value);
+                        if (batch.size >= COMPACTION_FRAME_SIZE) {
+                            write(batch);
+                            copied += batch.size;
+                            batch = new Batch();
+                        }
+                    }
+                }
+                write(batch);
+                copied += batch.size;
+            }
+            position += FRAME_HEADER_SIZE + length;
+        }
+        synchronized (this) {
+            if (closed)
+                return;
+            checkState(segment.liveBytes == 0, "Segment %s still has live entries", segment.id);
+            // The copies must be durable before the originals go away.
+            head.sync();
+            segments.remove(segment.id);
+            totalBytes -= segment.size;
+            segment.raf.close();
+        }
+        if (!segment.file.delete())
+            log.warn("Could not delete compacted segment {}", segment.file);
+        log.info("Compacted segment {}, copied {} live bytes", segment.id, copied);
+    }
+
+    private void maybeScheduleCompaction() {
+        if (compactionScheduled || segments.size() < 2 || getLiveRatio() >= minLiveRatio)
+            return;
+        compactionScheduled = true;
+        compactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (Exception e) {
+                    log.error("Compaction failed", e);
+                } finally {
+                    synchronized (SegmentLog.this) {
+                        compactionScheduled = false;
+                    }
+                }
+            }
+        });
+    }
+
+    private void apply(byte[] key, @Nullable Location location) {
+        Location previous = location == null ? index.remove(key) : index.put(key, location);
+        if (previous != null) {
+            previous.segment.liveBytes -= previous.size;
+            liveBytes -= previous.size;
+        }
+        if (location != null) {
+            location.segment.liveBytes += location.size;
+            liveBytes += location.size;
+        }
+    }
+
+    private void roll() throws IOException {
+        // Drop whatever a failed write may have left behind, so only the newest segment can ever end in a torn frame.
+        head.raf.setLength(head.size);
+        head.sync();
+        head = openSegment(head.id + 1);
+    }
+
+    private Segment openSegment(int id) throws IOException {
+        Segment segment = new Segment(id, new File(directory, String.format("%08d%s", id, SEGMENT_SUFFIX)));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    // Reads all complete frames of a segment into the index. A torn frame at the end of the newest segment is what
+    // an interrupted write looks like and is cut off; anywhere else it means the log is corrupt.
+    private void replay(Segment segment, boolean newest) throws IOException {
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        while (position < segment.size) {
+            ByteBuffer payload = null;
+            if (segment.size - position >= FRAME_HEADER_SIZE) {
+                segment.read(position, header.array(), FRAME_HEADER_SIZE);
+                int length = header.getInt(0);
+                if (length > 0 && length <= segment.size - position - FRAME_HEADER_SIZE) {
+                    payload = ByteBuffer.allocate(length);
+                    segment.read(position + FRAME_HEADER_SIZE, payload.array(), length);
+                    crc.reset();
+                    crc.update(payload.array(), 0, length);
+                    if ((int) crc.getValue() != header.getInt(4))
+                        payload = null;
+                }
+            }
+            if (payload == null) {
+                if (!newest)
+                    throw new IOException("Corrupt frame at " + position + " in " + segment.file);
+                log.warn("Discarding incomplete write at {} in {}", position, segment.file);
+                segment.raf.setLength(position);
+                segment.size = position;
+                break;
+            }
+            int offset = (int) position + FRAME_HEADER_SIZE;
+            while (payload.hasRemaining()) {
+                int entryStart = payload.position();
+                byte op = payload.get();
+                byte[] key = new byte[payload.getInt()];
+                payload.get(key);
+                if (op == OP_PUT) {
+                    int valueLength = payload.getInt();
+                    payload.position(payload.position() + valueLength);
+                    apply(key, new Location(segment, offset + entryStart, payload.position() - entryStart));
+                } else {
+                    apply(key, null);
+                }
+            }
+            position += FRAME_HEADER_SIZE + payload.limit();
+        }
+        totalBytes += segment.size;
+    }
+
+    private static int entrySize(byte[] key, @Nullable byte[] value) {
+        return 1 + 4 + key.length + (value == null ? 0 : 4 + value.length);
+    }
+
+    private static void writeEntry(ByteBuffer buf, byte[] key, @Nullable byte[] value) {
+        buf.put(value == null ? OP_DELETE : OP_PUT);
+        buf.putInt(key.length);
+        buf.put(key);
+        if (value != null) {
+            buf.putInt(value.length);
+            buf.put(value);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SegmentLog " + directory + " " + Arrays.toString(segments.keySet().toArray());
+    }
+}
@@ -0,0 +1,680 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import com.google.common.collect.Lists;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.StoredUndoableBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutputChanges;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.core.UTXOProviderException;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptException;
+import org.bitcoinj.utils.Threading;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} written in pure Java, so it runs wherever the JVM does. It uses the same key layout
+ * as {@link LevelDBFullPrunedBlockStore}, but keeps the data in a log of append-only segment files (see
+ * {@link SegmentLog}) with the location of every key held in memory. Lookups therefore never touch more than one file,
+ * writes are sequential, and space held by spent outputs and pruned undo data is reclaimed by a background
+ * compaction thread.</p>
+ *
+ * <p>Everything written between {@link #beginDatabaseBatchWrite()} and {@link #commitDatabaseBatchWrite()}, including
+ * the chain heads, is appended as one checksummed frame. After a crash the store reopens at the last committed
+ * block, never in between.</p>
+ *
+ * <p>The in-memory index costs roughly 150 bytes per key. With an unspent output and its script hash index entry
+ * each being a key, a heap of a few gigabytes is needed for a mainnet-sized UTXO set.</p>
+ */
+public class SegmentLogFullPrunedBlockStore implements ScriptIndexedFullPrunedBlockStore, OrderedFullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(SegmentLogFullPrunedBlockStore.class);
+
+    private final NetworkParameters params;
+    private final File directory;
+    private final int fullStoreDepth;
+    private final long maxSegmentSize;
+    private final boolean syncWrites;
+
+    private SegmentLog segmentLog;
+    // Deletes undo data that is out of the reorg window in the background.
+    private final UndoPruner undoPruner;
+
+    private Sha256Hash chainHeadHash;
+    private StoredBlock chainHeadBlock;
+    private Sha256Hash verifiedChainHeadHash;
+    private StoredBlock verifiedChainHeadBlock;
+
+    // Uncommitted writes of the current batch, so that reads see them (dirty reads) before they are appended. The
+    // pruner thread adds its deletes to the batch too, if there is one, so the lock guards the batch and the appends.
+    private final ReentrantLock lock = Threading.lock("SegmentLogFullPrunedBlockStore");
+    @GuardedBy("lock") private boolean autoCommit = true;
+    @GuardedBy("lock") private SegmentLog.Batch batch;
+    @GuardedBy("lock") private Map<ByteBuffer, byte[]> uncommitted;
+    @GuardedBy("lock") private Set<ByteBuffer> uncommittedDeletes;
+
+    /**
+     * Opens or creates a store in the given directory, with 64MB segments and unsynced writes.
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param directory The directory holding the segment files
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe)
+     * @throws BlockStoreException if the store could not be opened
+     */
+    public SegmentLogFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth)
+            throws BlockStoreException {
+        this(params, directory, fullStoreDepth, SegmentLog.DEFAULT_MAX_SEGMENT_SIZE, false);
+    }
+
+    /**
+     * Opens or creates a store in the given directory.
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param directory The directory holding the segment files
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe)
+     * @param maxSegmentSize The size in bytes at which a new segment file is started
+     * @param syncWrites If true, every committed batch is forced to disk before the commit returns. Otherwise a
+     *                   crash of the machine (not just the process) may lose the last few blocks, which are then
+     *                   downloaded again.
+     * @throws BlockStoreException if the store could not be opened
+     */
+    public SegmentLogFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth,
+                                          long maxSegmentSize, boolean syncWrites) throws BlockStoreException {
+        this.params = params;
+        this.directory = directory;
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        this.maxSegmentSize = maxSegmentSize;
+        this.syncWrites = syncWrites;
+        this.undoPruner = new UndoPruner("SegmentLogFullPrunedBlockStore", new UndoPruner.Target() {
+            @Override
+            public int getLowestUndoableHeight() {
+                return getLowestUndoableBlockHeight();
+            }
+
+            @Override
+            public void deleteUndoableBlocks(int fromHeight, int toHeight) throws BlockStoreException {
+                removeUndoableBlocks(fromHeight, toHeight);
+            }
+        });
+        open();
+    }
+
+    private void open() throws BlockStoreException {
+        try {
+            segmentLog = new SegmentLog(directory, maxSegmentSize, SegmentLog.DEFAULT_MIN_LIVE_RATIO, syncWrites);
+        } catch (IOException e) {
+            throw new BlockStoreException("Could not open segment log in " + directory, e);
+        }
+        if (batchGet(getKey(KeyType.CREATED)) == null)
+            createNewStore();
+        else
+            initFromLog();
+    }
+
+    private void initFromLog() throws BlockStoreException {
+        Sha256Hash hash = Sha256Hash.wrap(batchGet(getKey(KeyType.CHAIN_HEAD_SETTING)));
+        this.chainHeadBlock = get(hash);
+        this.chainHeadHash = hash;
+        if (this.chainHeadBlock == null)
+            throw new BlockStoreException("corrupt block store - head block not found");
+
+        hash = Sha256Hash.wrap(batchGet(getKey(KeyType.VERIFIED_CHAIN_HEAD_SETTING)));
+        this.verifiedChainHeadBlock = get(hash);
+        this.verifiedChainHeadHash = hash;
+        if (this.verifiedChainHeadBlock == null)
+            throw new BlockStoreException("corrupt block store - verified head block not found");
+    }
+
+    private void createNewStore() throws BlockStoreException {
+        try {
+            // The coinbase in the genesis block is not spendable.
+            StoredBlock storedGenesisHeader = new StoredBlock(params.getGenesisBlock().cloneAsHeader(),
+                    params.getGenesisBlock().getWork(), 0);
+            List<Transaction> genesisTransactions = Lists.newLinkedList();
+            StoredUndoableBlock storedGenesis = new StoredUndoableBlock(params.getGenesisBlock().getHash(),
+                    genesisTransactions);
+            beginDatabaseBatchWrite();
+            put(storedGenesisHeader, storedGenesis);
+            setChainHead(storedGenesisHeader);
+            setVerifiedChainHead(storedGenesisHeader);
+            batchPut(getKey(KeyType.CREATED), new byte[] { 1 });
+            commitDatabaseBatchWrite();
+        } catch (VerificationException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+    }
+
+    // A log has no tables, so the first byte of each key says which "table" it is in.
+    enum KeyType {
+        CREATED, CHAIN_HEAD_SETTING, VERIFIED_CHAIN_HEAD_SETTING, HEADERS_ALL, UNDOABLEBLOCKS_ALL,
+        HEIGHT_UNDOABLEBLOCKS, OPENOUT_ALL, SCRIPTHASH_INDEX
+    }
+
+    private static byte[] getKey(KeyType keyType) {
+        return new byte[] { (byte) keyType.ordinal() };
+    }
+
+    private static byte[] getKey(KeyType keyType, Sha256Hash hash) {
+        byte[] key = new byte[29];
+        key[0] = (byte) keyType.ordinal();
+        System.arraycopy(hash.getBytes(), 4, key, 1, 28);
+        return key;
+    }
+
+    private static byte[] getTxKey(Sha256Hash hash, long index) {
+        ByteBuffer bb = ByteBuffer.allocate(37);
+        bb.put((byte) KeyType.OPENOUT_ALL.ordinal());
+        bb.put(hash.getBytes());
+        bb.putInt((int) index);
+        return bb.array();
+    }
+
+    private static byte[] getHeightKey(int height, @Nullable Sha256Hash hash) {
+        ByteBuffer bb = ByteBuffer.allocate(hash == null ? 5 : 33);
+        bb.put((byte) KeyType.HEIGHT_UNDOABLEBLOCKS.ordinal());
+        bb.putInt(height);
+        if (hash != null)
+            bb.put(hash.getBytes(), 4, 28);
+        return bb.array();
+    }
+
+    private static byte[] getScriptHashIndexKey(UTXO out) {
+        ByteBuffer bb = ByteBuffer.allocate(69);
+        bb.put((byte) KeyType.SCRIPTHASH_INDEX.ordinal());
+        bb.put(ScriptHashIndex.hash(out.getScript()).getBytes());
+        bb.put(out.getHash().getBytes());
+        bb.putInt((int) out.getIndex());
+        return bb.array();
+    }
+
+    private void checkOpen() {
+        checkState(segmentLog != null, "SegmentLogFullPrunedBlockStore is closed");
+    }
+
+    @Nullable
+    private byte[] batchGet(byte[] key) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            if (!autoCommit) {
+                ByteBuffer bbKey = ByteBuffer.wrap(key);
+                if (uncommittedDeletes.contains(bbKey))
+                    return null;
+                byte[] value = uncommitted.get(bbKey);
+                if (value != null)
+                    return value;
+            }
+            return segmentLog.get(key);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean batchContains(byte[] key) {
+        lock.lock();
+        try {
+            checkOpen();
+            if (!autoCommit) {
+                ByteBuffer bbKey = ByteBuffer.wrap(key);
+                if (uncommittedDeletes.contains(bbKey))
+                    return false;
+                if (uncommitted.containsKey(bbKey))
+                    return true;
+            }
+            return segmentLog.contains(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void batchPut(byte[] key, byte[] value) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            if (autoCommit) {
+                SegmentLog.Batch single = new SegmentLog.Batch();
+                single.put(key, value);
+                write(single);
+            } else {
+                batch.put(key, value);
+                uncommitted.put(ByteBuffer.wrap(key), value);
+                uncommittedDeletes.remove(ByteBuffer.wrap(key));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void batchDelete(byte[] key) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            if (autoCommit) {
+                SegmentLog.Batch single = new SegmentLog.Batch();
+                single.delete(key);
+                write(single);
+            } else {
+                batchDeleteLocked(key);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void batchDeleteLocked(byte[] key) {
+        batch.delete(key);
+        uncommitted.remove(ByteBuffer.wrap(key));
+        uncommittedDeletes.add(ByteBuffer.wrap(key));
+    }
+
+    @GuardedBy("lock")
+    private void write(SegmentLog.Batch batch) throws BlockStoreException {
+        try {
+            segmentLog.write(batch);
+        } catch (IOException e) {
+            throw new BlockStoreException("Could not write to segment log", e);
+        }
+    }
+
+    @Override
+    public void put(StoredBlock block) throws BlockStoreException {
+        putUpdateStoredBlock(block, false);
+    }
+
+    private void putUpdateStoredBlock(StoredBlock storedBlock, boolean wasUndoable) throws BlockStoreException {
+        ByteBuffer bb = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE + 1);
+        storedBlock.serializeCompact(bb);
+        bb.put((byte) (wasUndoable ? 1 : 0));
+        batchPut(getKey(KeyType.HEADERS_ALL, storedBlock.getHeader().getHash()), bb.array());
+    }
+
+    @Override
+    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        int height = storedBlock.getHeight();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            // A leading flag says whether the undo data is output changes or whole transactions.
+            if (undoableBlock.getTxOutChanges() != null) {
+                bos.write(1);
+                bos.write(CompactUTXOCodec.encodeChanges(undoableBlock.getTxOutChanges()));
+            } else {
+                bos.write(0);
+                Utils.uint32ToByteStreamLE(undoableBlock.getTransactions().size(), bos);
+                for (Transaction tx : undoableBlock.getTransactions())
+                    tx.bitcoinSerialize(bos);
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        Sha256Hash hash = storedBlock.getHeader().getHash();
+        batchPut(getHeightKey(height, hash), new byte[0]);
+        batchPut(getKey(KeyType.UNDOABLEBLOCKS_ALL, hash), bos.toByteArray());
+        putUpdateStoredBlock(storedBlock, true);
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, false);
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, true);
+    }
+
+    @Nullable
+    private StoredBlock get(Sha256Hash hash, boolean wasUndoableOnly) throws BlockStoreException {
+        // Optimize for chain head
+        if (chainHeadHash != null && chainHeadHash.equals(hash))
+            return chainHeadBlock;
+        if (verifiedChainHeadHash != null && verifiedChainHeadHash.equals(hash))
+            return verifiedChainHeadBlock;
+        byte[] result = batchGet(getKey(KeyType.HEADERS_ALL, hash));
+        if (result == null)
+            return null;
+        if (wasUndoableOnly && result[StoredBlock.COMPACT_SERIALIZED_SIZE] != 1)
+            return null;
+        StoredBlock stored = StoredBlock.deserializeCompact(params, ByteBuffer.wrap(result));
+        stored.getHeader().verifyHeader();
+        return stored;
+    }
+
+    @Override
+    @Nullable
+    public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        byte[] result = batchGet(getKey(KeyType.UNDOABLEBLOCKS_ALL, hash));
+        if (result == null)
+            return null;
+        try {
+            if (result[0] == 1) {
+                TransactionOutputChanges changes = CompactUTXOCodec.decodeChanges(result, 1, result.length - 1,
+                        params);
+                return new StoredUndoableBlock(hash, changes);
+            }
+            int numTxn = (int) Utils.readUint32(result, 1);
+            int offset = 5;
+            List<Transaction> transactionList = new LinkedList<>();
+            for (int i = 0; i < numTxn; i++) {
+                Transaction tx = new Transaction(params, result, offset);
+                transactionList.add(tx);
+                offset += tx.getMessageSize();
+            }
+            return new StoredUndoableBlock(hash, transactionList);
+        } catch (IOException e) {
+            // Corrupted store.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        return chainHeadBlock;
+    }
+
+    @Override
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Sha256Hash hash = chainHead.getHeader().getHash();
+        this.chainHeadHash = hash;
+        this.chainHeadBlock = chainHead;
+        batchPut(getKey(KeyType.CHAIN_HEAD_SETTING), hash.getBytes());
+    }
+
+    @Override
+    public StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        return verifiedChainHeadBlock;
+    }
+
+    @Override
+    public void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Sha256Hash hash = chainHead.getHeader().getHash();
+        this.verifiedChainHeadHash = hash;
+        this.verifiedChainHeadBlock = chainHead;
+        batchPut(getKey(KeyType.VERIFIED_CHAIN_HEAD_SETTING), hash.getBytes());
+        if (this.chainHeadBlock.getHeight() < chainHead.getHeight())
+            setChainHead(chainHead);
+        undoPruner.pruneTo(chainHead.getHeight() - fullStoreDepth);
+    }
+
+    // Called on the pruner thread. Only committed undo blocks are considered, but undo data that old is never part of
+    // an uncommitted batch anyway.
+    private int getLowestUndoableBlockHeight() {
+        lock.lock();
+        try {
+            checkOpen();
+            List<byte[]> keys = segmentLog.keys(getHeightKey(0, null), getKey(KeyType.OPENOUT_ALL));
+            return keys.isEmpty() ? -1 : ByteBuffer.wrap(keys.get(0), 1, 4).getInt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called on the pruner thread. The deletes are appended as a batch of their own, or become part of the batch in
+    // progress, so they never land in the middle of it. If that batch is aborted, they are found again next time.
+    private void removeUndoableBlocks(int fromHeight, int toHeight) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            List<byte[]> heightKeys = segmentLog.keys(getHeightKey(fromHeight, null), getHeightKey(toHeight + 1, null));
+            if (heightKeys.isEmpty())
+                return;
+            List<byte[]> keys = new ArrayList<>(heightKeys.size() * 2);
+            for (byte[] heightKey : heightKeys) {
+                byte[] undoKey = new byte[29];
+                undoKey[0] = (byte) KeyType.UNDOABLEBLOCKS_ALL.ordinal();
+                System.arraycopy(heightKey, 5, undoKey, 1, 28);
+                keys.add(undoKey);
+                keys.add(heightKey);
+            }
+            if (autoCommit) {
+                SegmentLog.Batch deletes = new SegmentLog.Batch();
+                for (byte[] key : keys)
+                    deletes.delete(key);
+                write(deletes);
+            } else {
+                for (byte[] key : keys)
+                    batchDeleteLocked(key);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    @Nullable
+    public UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        byte[] result = batchGet(getTxKey(hash, index));
+        if (result == null)
+            return null;
+        try {
+            return new UTXO(new ByteArrayInputStream(result));
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            out.serializeToStream(bos);
+        } catch (IOException e) {
+            throw new BlockStoreException("problem serialising utxo", e);
+        }
+        batchPut(getTxKey(out.getHash(), out.getIndex()), bos.toByteArray());
+        batchPut(getScriptHashIndexKey(out), new byte[0]);
+    }
+
+    @Override
+    public void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        byte[] key = getTxKey(out.getHash(), out.getIndex());
+        if (!batchContains(key))
+            throw new BlockStoreException("Tried to remove a UTXO from SegmentLogFullPrunedBlockStore that it didn't have!");
+        batchDelete(key);
+        batchDelete(getScriptHashIndexKey(out));
+    }
+
+    @Override
+    public void visitUnspentOutputs(UnspentOutputVisitor visitor) throws BlockStoreException {
+        checkOpen();
+        // The keys are the transaction hash followed by the big-endian index, so they already sort as required.
+        synchronized (segmentLog) {
+            try {
+                for (byte[] key : segmentLog.keys(getKey(KeyType.OPENOUT_ALL), getKey(KeyType.SCRIPTHASH_INDEX)))
+                    visitor.visit(new UTXO(new ByteArrayInputStream(segmentLog.get(key))));
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            }
+        }
+    }
+
+    @Override
+    public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        for (int i = 0; i < numOutputs; i++)
+            if (batchContains(getTxKey(hash, i)))
+                return true;
+        return false;
+    }
+
+    @Override
+    public void beginDatabaseBatchWrite() throws BlockStoreException {
+        lock.lock();
+        try {
+            // Like LevelDBFullPrunedBlockStore, a second call is not a nested transaction and is ignored.
+            if (!autoCommit)
+                return;
+            batch = new SegmentLog.Batch();
+            uncommitted = new HashMap<>();
+            uncommittedDeletes = new HashSet<>();
+            autoCommit = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void commitDatabaseBatchWrite() throws BlockStoreException {
+        lock.lock();
+        try {
+            SegmentLog.Batch toWrite = batch;
+            abortDatabaseBatchWrite();
+            if (toWrite != null)
+                write(toWrite);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void abortDatabaseBatchWrite() throws BlockStoreException {
+        lock.lock();
+        try {
+            batch = null;
+            uncommitted = null;
+            uncommittedDeletes = null;
+            autoCommit = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    @Override
+    public int getChainHeadHeight() throws UTXOProviderException {
+        try {
+            return getVerifiedChainHead().getHeight();
+        } catch (BlockStoreException e) {
+            throw new UTXOProviderException(e);
+        }
+    }
+
+    @Override
+    public List<UTXO> getOpenTransactionOutputs(List<ECKey> keys) throws UTXOProviderException {
+        return getOpenTransactionOutputsForScripts(ScriptHashIndex.scriptsForKeys(keys));
+    }
+
+    @Override
+    public List<UTXO> getOpenTransactionOutputsForScripts(List<Script> scripts) throws UTXOProviderException {
+        checkOpen();
+        List<UTXO> results = new ArrayList<>();
+        byte[] from = new byte[33];
+        byte[] to = new byte[33];
+        from[0] = to[0] = (byte) KeyType.SCRIPTHASH_INDEX.ordinal();
+        // Holding the log's lock for the whole query gives an internally consistent result, as a snapshot would.
+        synchronized (segmentLog) {
+            try {
+                for (byte[] scriptHash : ScriptHashIndex.sortedHashes(scripts)) {
+                    System.arraycopy(scriptHash, 0, from, 1, 32);
+                    System.arraycopy(scriptHash, 0, to, 1, 32);
+                    if (!increment(to))
+                        to = new byte[] { (byte) (KeyType.SCRIPTHASH_INDEX.ordinal() + 1) };
+                    for (byte[] indexKey : segmentLog.keys(from, to)) {
+                        ByteBuffer bb = ByteBuffer.wrap(indexKey, 33, 36);
+                        byte[] hashBytes = new byte[32];
+                        bb.get(hashBytes);
+                        byte[] value = segmentLog.get(getTxKey(Sha256Hash.wrap(hashBytes), bb.getInt()));
+                        if (value == null)
+                            continue;
+                        // The serialized form doesn't include the address.
+                        UTXO txout = new UTXO(new ByteArrayInputStream(value));
+                        String address = "";
+                        try {
+                            address = txout.getScript().getToAddress(params, true).toString();
+                        } catch (ScriptException e) {
+                            // Not an address, e.g. a bare multisig script.
+                        }
+                        results.add(new UTXO(txout.getHash(), txout.getIndex(), txout.getValue(), txout.getHeight(),
+                                txout.isCoinbase(), txout.getScript(), address));
+                    }
+                    to = new byte[33];
+                    to[0] = (byte) KeyType.SCRIPTHASH_INDEX.ordinal();
+                }
+            } catch (IOException e) {
+                throw new UTXOProviderException("block store exception", e);
+            }
+        }
+        return results;
+    }
+
+    // Increments the big-endian number in the key, returning false if it overflowed.
+    private static boolean increment(byte[] key) {
+        for (int i = key.length - 1; i > 0; i--) {
+            if (++key[i] != 0)
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        undoPruner.stop();
+        if (segmentLog == null)
+            return;
+        try {
+            segmentLog.close();
+        } catch (IOException e) {
+            throw new BlockStoreException("Could not close segment log", e);
+        } finally {
+            segmentLog = null;
+        }
+    }
+
+    /** Deletes all data and reopens the store with just the genesis block. Only used in unit tests. */
+    public void resetStore() throws BlockStoreException {
+        close();
+        abortDatabaseBatchWrite();
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                if (!file.delete())
+                    log.warn("Could not delete {}", file);
+        chainHeadHash = verifiedChainHeadHash = null;
+        chainHeadBlock = verifiedChainHeadBlock = null;
+        open();
+    }
+}
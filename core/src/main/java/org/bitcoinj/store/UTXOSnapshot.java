@@ -0,0 +1,261 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import com.google.common.primitives.UnsignedBytes;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.StoredUndoableBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.core.VarInt;
+import org.bitcoinj.core.VerificationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Exports the UTXO set of a {@link FullPrunedBlockStore} to a stream, and imports it into an empty store, so a new
+ * node can start fully verifying from the snapshot's block rather than from the genesis block.</p>
+ *
+ * <p>A snapshot holds the headers of the last difficulty interval up to and including its block (enough to check the
+ * difficulty of the blocks that follow), then every unspent output in {@link CompactUTXOCodec} form in the order
+ * defined by {@link OrderedFullPrunedBlockStore#visitUnspentOutputs(OrderedFullPrunedBlockStore.UnspentOutputVisitor)},
+ * then the number of outputs and the snapshot hash. That hash is the SHA-256 of the snapshot's block in compact form
+ * (its header, height and chain work), the length prefixed output records and their number, and so commits to the
+ * exact UTXO set at that block. It is independent of the store the snapshot was taken from.</p>
+ *
+ * <p>On import the hash is checked against one the caller got from a source it trusts, and the chain heads are only
+ * moved to the snapshot's block if it matches. A failed import leaves the store at the genesis block, but with some
+ * of the outputs added, so it should be discarded.</p>
+ */
+public class UTXOSnapshot {
+    private static final Logger log = LoggerFactory.getLogger(UTXOSnapshot.class);
+
+    private static final int MAGIC = 0x5554584f; // "UTXO"
+    private static final int VERSION = 1;
+    private static final int IMPORT_BATCH_SIZE = 10000;
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+
+    /** Ascending transaction hash, compared as unsigned bytes, then ascending output index. */
+    static final Comparator<UTXO> OUTPOINT_ORDER = new Comparator<UTXO>() {
+        @Override
+        public int compare(UTXO a, UTXO b) {
+            int result = UnsignedBytes.lexicographicalComparator().compare(a.getHash().getBytes(),
+                    b.getHash().getBytes());
+            return result != 0 ? result : Long.compare(a.getIndex(), b.getIndex());
+        }
+    };
+
+    private UTXOSnapshot() {
+    }
+
+    /**
+     * Writes a snapshot of the store's UTXO set at its verified chain head. The chain must not advance meanwhile.
+     * @return the snapshot hash, to be checked on import
+     */
+    public static Sha256Hash exportSnapshot(OrderedFullPrunedBlockStore store, OutputStream stream)
+            throws IOException, BlockStoreException {
+        NetworkParameters params = store.getParams();
+        StoredBlock head = store.getVerifiedChainHead();
+        LinkedList<StoredBlock> headers = new LinkedList<>();
+        for (StoredBlock cursor = head; cursor != null && headers.size() <= params.getInterval()
+                && cursor.getHeight() > 0; cursor = cursor.getPrev(store))
+            headers.addFirst(cursor);
+
+        final DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(params.getId());
+        out.writeInt(headers.size());
+        ByteBuffer buf = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        for (StoredBlock header : headers) {
+            buf.clear();
+            header.serializeCompact(buf);
+            out.write(buf.array());
+        }
+
+        final MessageDigest digest = Sha256Hash.newDigest();
+        buf.clear();
+        head.serializeCompact(buf);
+        digest.update(buf.array());
+        final long[] count = new long[1];
+        try {
+            store.visitUnspentOutputs(new OrderedFullPrunedBlockStore.UnspentOutputVisitor() {
+                private UTXO previous;
+
+                @Override
+                public void visit(UTXO output) throws BlockStoreException {
+                    checkState(previous == null || OUTPOINT_ORDER.compare(previous, output) < 0,
+                            "Store returned outputs out of order: %s after %s", output, previous);
+                    previous = output;
+                    byte[] record = CompactUTXOCodec.encode(output);
+                    byte[] length = new VarInt(record.length).encode();
+                    digest.update(length);
+                    digest.update(record);
+                    try {
+                        out.write(length);
+                        out.write(record);
+                    } catch (IOException e) {
+                        throw new BlockStoreException(e);
+                    }
+                    count[0]++;
+                }
+            });
+        } catch (BlockStoreException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw e;
+        }
+        // A zero length, which no record has, ends the records.
+        byte[] end = new VarInt(0).encode();
+        digest.update(end);
+        out.write(end);
+        digest.update(ByteBuffer.allocate(8).putLong(count[0]).array());
+        Sha256Hash hash = Sha256Hash.wrap(digest.digest());
+        out.writeLong(count[0]);
+        out.write(hash.getBytes());
+        out.flush();
+        log.info("Exported {} unspent outputs at height {}, snapshot hash {}", count[0], head.getHeight(), hash);
+        return hash;
+    }
+
+    /**
+     * Imports a snapshot into an empty store, verifying it against the given hash, as returned by
+     * {@link #exportSnapshot(OrderedFullPrunedBlockStore, OutputStream)} on a node the caller trusts.
+     * @return the snapshot's block, now the chain head and verified chain head of the store
+     * @throws VerificationException if the snapshot is damaged, for another network, or its hash doesn't match
+     */
+    public static StoredBlock importSnapshot(FullPrunedBlockStore store, InputStream stream, Sha256Hash expectedHash)
+            throws IOException, BlockStoreException, VerificationException {
+        checkNotNull(expectedHash);
+        NetworkParameters params = store.getParams();
+        checkState(store.getVerifiedChainHead().getHeight() == 0, "Snapshots can only be imported into an empty store");
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != MAGIC)
+            throw new VerificationException("Not a UTXO snapshot");
+        int version = in.readInt();
+        if (version != VERSION)
+            throw new VerificationException("Unsupported UTXO snapshot version " + version);
+        String id = in.readUTF();
+        if (!id.equals(params.getId()))
+            throw new VerificationException("UTXO snapshot is for " + id + ", not " + params.getId());
+
+        // Headers, oldest first, each connecting to the one before.
+        int headerCount = in.readInt();
+        if (headerCount < 1 || headerCount > params.getInterval() + 1)
+            throw new VerificationException("Bad header count in UTXO snapshot: " + headerCount);
+        byte[] buf = new byte[StoredBlock.COMPACT_SERIALIZED_SIZE];
+        StoredBlock[] headers = new StoredBlock[headerCount];
+        for (int i = 0; i < headerCount; i++) {
+            in.readFully(buf);
+            headers[i] = StoredBlock.deserializeCompact(params, ByteBuffer.wrap(buf));
+            headers[i].getHeader().verifyHeader();
+            if (i > 0 && (!headers[i].getHeader().getPrevBlockHash().equals(headers[i - 1].getHeader().getHash())
+                    || headers[i].getHeight() != headers[i - 1].getHeight() + 1))
+                throw new VerificationException("UTXO snapshot headers do not connect at height "
+                        + headers[i].getHeight());
+        }
+        StoredBlock block = headers[headerCount - 1];
+        if (!params.passesCheckpoint(block.getHeight(), block.getHeader().getHash()))
+            throw new VerificationException("UTXO snapshot block fails checkpoint at height " + block.getHeight());
+
+        MessageDigest digest = Sha256Hash.newDigest();
+        ByteBuffer blockBytes = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        block.serializeCompact(blockBytes);
+        digest.update(blockBytes.array());
+        long count = 0;
+        store.beginDatabaseBatchWrite();
+        try {
+            // Like the genesis block, the snapshot's block is stored as undoable so the chain can connect to it, but
+            // with nothing to undo. The headers before it are only there for difficulty checks, so a reorg can never
+            // reach below the snapshot.
+            for (int i = 0; i < headerCount - 1; i++)
+                store.put(headers[i]);
+            store.put(block, new StoredUndoableBlock(block.getHeader().getHash(),
+                    Collections.<Transaction>emptyList()));
+            long length;
+            while ((length = readVarInt(in, digest)) != 0) {
+                if (length > MAX_RECORD_SIZE)
+                    throw new VerificationException("Bad record length in UTXO snapshot: " + length);
+                byte[] record = new byte[(int) length];
+                in.readFully(record);
+                digest.update(record);
+                store.addUnspentTransactionOutput(CompactUTXOCodec.decode(record, params));
+                if (++count % IMPORT_BATCH_SIZE == 0) {
+                    store.commitDatabaseBatchWrite();
+                    store.beginDatabaseBatchWrite();
+                    log.info("Imported {} unspent outputs", count);
+                }
+            }
+            long expectedCount = in.readLong();
+            digest.update(ByteBuffer.allocate(8).putLong(expectedCount).array());
+            Sha256Hash hash = Sha256Hash.wrap(digest.digest());
+            byte[] trailerHash = new byte[32];
+            in.readFully(trailerHash);
+            if (expectedCount != count || !hash.equals(Sha256Hash.wrap(trailerHash)))
+                throw new VerificationException("UTXO snapshot is damaged");
+            if (!hash.equals(expectedHash))
+                throw new VerificationException("UTXO snapshot hash " + hash + " does not match expected "
+                        + expectedHash);
+            store.setChainHead(block);
+            store.setVerifiedChainHead(block);
+            store.commitDatabaseBatchWrite();
+        } catch (BlockStoreException | IOException | RuntimeException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        }
+        log.info("Imported {} unspent outputs at height {}", count, block.getHeight());
+        return block;
+    }
+
+    /** Reads a {@link VarInt}, adding its bytes to the digest. */
+    private static long readVarInt(DataInputStream in, MessageDigest digest) throws IOException {
+        int first = in.readUnsignedByte();
+        digest.update((byte) first);
+        int size;
+        if (first < 253)
+            return first;
+        else if (first == 253)
+            size = 2;
+        else if (first == 254)
+            size = 4;
+        else
+            size = 8;
+        byte[] bytes = new byte[size];
+        in.readFully(bytes);
+        digest.update(bytes);
+        long value = 0;
+        for (int i = size - 1; i >= 0; i--)
+            value = (value << 8) | (bytes[i] & 0xff);
+        return value;
+    }
+}
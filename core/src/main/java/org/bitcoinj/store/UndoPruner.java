@@ -0,0 +1,183 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Deletes the undo data of blocks that have fallen out of a store's reorg window on a background thread, so that
+ * connecting a block never waits for a bulk delete.</p>
+ *
+ * <p>The store tells the pruner how far it may prune each time its verified chain head moves, which only records the
+ * height. The pruner thread then deletes up to {@code batchSize} blocks' worth of undo data at a time, and pauses for
+ * {@code pauseMillis} after each batch to leave the store to block connection. Whatever is left after a crash is
+ * found again through {@link Target#getLowestUndoableHeight()} and deleted after restart.</p>
+ */
+final class UndoPruner {
+    private static final Logger log = LoggerFactory.getLogger(UndoPruner.class);
+
+    static final int DEFAULT_BATCH_SIZE = 500;
+    static final long DEFAULT_PAUSE_MILLIS = 200;
+    // How long to back off after the store failed a delete.
+    private static final long ERROR_PAUSE_MILLIS = 10000;
+
+    /** The store side of pruning, called on the pruner thread only. */
+    interface Target {
+        /** Returns the lowest height that still has undo data, or -1 if there is none. */
+        int getLowestUndoableHeight() throws BlockStoreException;
+
+        /** Deletes the undo data of all blocks from {@code fromHeight} to {@code toHeight} inclusive, at once. */
+        void deleteUndoableBlocks(int fromHeight, int toHeight) throws BlockStoreException;
+    }
+
+    private final String name;
+    private final Target target;
+    private final int batchSize;
+    private final long pauseMillis;
+
+    // All guarded by this.
+    private Thread thread;
+    private int requestedHeight = -1;
+    private int prunedHeight = -1;
+    private boolean busy;
+    private boolean stopping;
+
+    UndoPruner(String name, Target target) {
+        this(name, target, DEFAULT_BATCH_SIZE, DEFAULT_PAUSE_MILLIS);
+    }
+
+    UndoPruner(String name, Target target, int batchSize, long pauseMillis) {
+        checkArgument(batchSize > 0);
+        checkArgument(pauseMillis >= 0);
+        this.name = name;
+        this.target = target;
+        this.batchSize = batchSize;
+        this.pauseMillis = pauseMillis;
+    }
+
+    /**
+     * Allows undo data up to and including the given height to be deleted. Returns immediately; the deleting happens
+     * on the pruner thread, which is started on first use.
+     */
+    synchronized void pruneTo(int height) {
+        if (stopping || height <= requestedHeight)
+            return;
+        requestedHeight = height;
+        if (thread == null) {
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runLoop();
+                }
+            }, "Undo pruner: " + name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        notifyAll();
+    }
+
+    /** Waits until everything requested so far has been deleted, or the pruner is stopped. For tests. */
+    synchronized void awaitPruned() throws InterruptedException {
+        while (thread != null && !stopping && (busy || prunedHeight < requestedHeight))
+            wait();
+    }
+
+    /**
+     * Stops the pruner thread, letting a batch in progress finish first, and forgets what was requested. Must be
+     * called before the store closes or deletes what the {@link Target} uses. Pruning starts again on the next
+     * {@link #pruneTo(int)}.
+     */
+    void stop() {
+        Thread toJoin;
+        synchronized (this) {
+            stopping = true;
+            notifyAll();
+            toJoin = thread;
+        }
+        if (toJoin != null && toJoin != Thread.currentThread()) {
+            boolean interrupted = false;
+            while (toJoin.isAlive()) {
+                try {
+                    toJoin.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            thread = null;
+            stopping = false;
+            busy = false;
+            requestedHeight = -1;
+            prunedHeight = -1;
+            notifyAll();
+        }
+    }
+
+    private void runLoop() {
+        while (true) {
+            int height;
+            synchronized (this) {
+                busy = false;
+                notifyAll();
+                while (!stopping && prunedHeight >= requestedHeight)
+                    waitUninterruptibly(0);
+                if (stopping)
+                    return;
+                busy = true;
+                height = requestedHeight;
+            }
+            long pause = pauseMillis;
+            try {
+                int lowest = target.getLowestUndoableHeight();
+                if (lowest < 0 || lowest > height) {
+                    synchronized (this) {
+                        prunedHeight = height;
+                    }
+                    continue;
+                }
+                int to = (int) Math.min((long) lowest + batchSize - 1, height);
+                target.deleteUndoableBlocks(lowest, to);
+                if (log.isDebugEnabled())
+                    log.debug("{}: deleted undo data of heights {} to {}", name, lowest, to);
+            } catch (BlockStoreException | RuntimeException e) {
+                log.warn(name + ": failed to delete undo data, will retry", e);
+                pause = ERROR_PAUSE_MILLIS;
+            }
+            // Rate limit: give block connection the store between batches. New requests don't cut the pause short.
+            long until = System.currentTimeMillis() + pause;
+            synchronized (this) {
+                for (long now = System.currentTimeMillis(); !stopping && now < until; now = System.currentTimeMillis())
+                    waitUninterruptibly(until - now);
+            }
+        }
+    }
+
+    // Called holding the monitor. Callers check their condition again after waking up.
+    private void waitUninterruptibly(long millis) {
+        try {
+            wait(millis);
+        } catch (InterruptedException e) {
+            // Nobody interrupts the pruner thread; the store uses stop().
+        }
+    }
+}
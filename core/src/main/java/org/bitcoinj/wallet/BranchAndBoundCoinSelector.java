@@ -0,0 +1,199 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.script.ScriptBuilder;
+import com.google.common.base.Predicate;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A {@link CoinSelector} that avoids change where it can, and otherwise spends few coins. It picks, in this order:</p>
+ *
+ * <ol>
+ * <li>the smallest coin that covers the target, if what is left over is less than the cost of change,</li>
+ * <li>a set of smaller coins that covers the target with less than the cost of change left over, found by a bounded
+ * branch and bound search, largest coins first,</li>
+ * <li>the largest coins, until the smallest coin that covers what remains.</li>
+ * </ol>
+ *
+ * <p>What is left over of a changeless selection is given up as fee. The cost of change defaults to the smallest
+ * P2PKH output that isn't dust, see {@link TransactionOutput#getMinNonDustValue()}, as the wallet adds smaller change
+ * to the fee anyway. Wallets with segwit change outputs may want to pass the smaller value of those.</p>
+ *
+ * <p>Set as the coin selector of a wallet, it selects from the wallet's {@link UnspentOutputIndex} rather than from a
+ * list of all candidates, which takes O(k log n) time to select k of n coins, plus the bounded search. Like
+ * {@link DefaultCoinSelector} it only spends coins whose transactions are in the chain, or are ours and pending.</p>
+ */
+public class BranchAndBoundCoinSelector implements CoinSelector {
+    // The most steps the branch and bound search takes, and the most coins it considers.
+    private static final int MAX_TRIES = 100000;
+    private static final int MAX_COINS = 1000;
+
+    private final long costOfChange;
+
+    public BranchAndBoundCoinSelector(NetworkParameters params) {
+        this(new TransactionOutput(params, null, Coin.ZERO,
+                ScriptBuilder.createP2PKHOutputScript(new byte[20]).getProgram()).getMinNonDustValue());
+    }
+
+    /**
+     * @param costOfChange Less than this may be left over in a selection without change. Must be positive.
+     */
+    public BranchAndBoundCoinSelector(Coin costOfChange) {
+        checkArgument(costOfChange.signum() > 0, "Cost of change must be positive: %s", costOfChange);
+        this.costOfChange = costOfChange.value;
+    }
+
+    /** Returns the value less than which may be left over in a selection without change. */
+    public Coin getCostOfChange() {
+        return Coin.valueOf(costOfChange);
+    }
+
+    @Override
+    public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+        return select(target, UnspentOutputIndex.sort(candidates), null);
+    }
+
+    /**
+     * Selects coins from the given index, skipping the outputs the filter (if any) doesn't accept.
+     */
+    public CoinSelection select(Coin target, UnspentOutputIndex index, @Nullable Predicate<TransactionOutput> filter) {
+        return select(target, index.entries(), filter);
+    }
+
+    private CoinSelection select(Coin target, NavigableSet<UnspentOutputIndex.Entry> entries,
+                                 @Nullable Predicate<TransactionOutput> filter) {
+        List<TransactionOutput> selected = new ArrayList<>();
+        if (target.signum() <= 0)
+            return new CoinSelection(Coin.ZERO, selected);
+
+        // The smallest coin that covers the target, if it needs no change.
+        UnspentOutputIndex.Entry single = first(entries.tailSet(UnspentOutputIndex.key(target.value), true).iterator(),
+                filter);
+        if (single != null && single.value - target.value < costOfChange) {
+            selected.add(single.output);
+            return new CoinSelection(Coin.valueOf(single.value), selected);
+        }
+
+        // Coins smaller than the target that add up to it without change.
+        List<UnspentOutputIndex.Entry> changeless = branchAndBound(target.value,
+                entries.headSet(UnspentOutputIndex.key(target.value), false).descendingIterator(), filter);
+        if (changeless != null) {
+            long total = 0;
+            for (UnspentOutputIndex.Entry entry : changeless) {
+                selected.add(entry.output);
+                total += entry.value;
+            }
+            return new CoinSelection(Coin.valueOf(total), selected);
+        }
+
+        // The largest coins, until one coin covers the rest. All selected coins are ordered after the next largest
+        // one, so the smallest coin covering the rest, which is at most that one, can't have been selected already.
+        long total = 0;
+        Iterator<UnspentOutputIndex.Entry> largest = entries.descendingIterator();
+        while (total < target.value) {
+            UnspentOutputIndex.Entry next = first(largest, filter);
+            if (next == null)
+                break;  // Not enough money.
+            long remaining = target.value - total;
+            if (next.value >= remaining)
+                next = first(entries.tailSet(UnspentOutputIndex.key(remaining), true).iterator(), filter);
+            selected.add(next.output);
+            total += next.value;
+        }
+        return new CoinSelection(Coin.valueOf(total), selected);
+    }
+
+    // Searches the given coins, largest first, for a set adding up to at least the target and less than the target
+    // plus the cost of change. Returns null if there is none, or it takes too long to find.
+    @Nullable
+    private List<UnspentOutputIndex.Entry> branchAndBound(long target, Iterator<UnspentOutputIndex.Entry> descending,
+                                                          @Nullable Predicate<TransactionOutput> filter) {
+        List<UnspentOutputIndex.Entry> coins = new ArrayList<>();
+        UnspentOutputIndex.Entry entry;
+        while (coins.size() < MAX_COINS && (entry = first(descending, filter)) != null)
+            coins.add(entry);
+        int n = coins.size();
+        // available[i] is the total of coins i and smaller.
+        long[] available = new long[n + 1];
+        for (int i = n - 1; i >= 0; i--)
+            available[i] = available[i + 1] + coins.get(i).value;
+        if (available[0] < target)
+            return null;
+
+        // Depth first, including each coin before excluding it. i is the next coin to decide on.
+        boolean[] included = new boolean[n];
+        long total = 0;
+        int i = 0;
+        for (int tries = 0; tries < MAX_TRIES; tries++) {
+            if (total >= target && total - target < costOfChange) {
+                List<UnspentOutputIndex.Entry> result = new ArrayList<>();
+                for (int j = 0; j < i; j++) {
+                    if (included[j])
+                        result.add(coins.get(j));
+                }
+                return result;
+            }
+            if (total >= target || total + available[i] < target) {
+                // Too much, or not enough left: exclude the last included coin and go on from there.
+                do {
+                    i--;
+                } while (i >= 0 && !included[i]);
+                if (i < 0)
+                    return null;  // Searched everything.
+                included[i] = false;
+                total -= coins.get(i).value;
+            } else {
+                // Including a coin of the same value as one just excluded would only repeat that search.
+                long value = coins.get(i).value;
+                included[i] = i == 0 || included[i - 1] || coins.get(i - 1).value != value;
+                if (included[i])
+                    total += value;
+            }
+            i++;
+        }
+        return null;
+    }
+
+    // The next coin from the iterator that may be spent.
+    @Nullable
+    private UnspentOutputIndex.Entry first(Iterator<UnspentOutputIndex.Entry> it,
+                                          @Nullable Predicate<TransactionOutput> filter) {
+        while (it.hasNext()) {
+            UnspentOutputIndex.Entry entry = it.next();
+            if ((filter == null || filter.apply(entry.output)) && shouldSelect(entry.output.getParentTransaction()))
+                return entry;
+        }
+        return null;
+    }
+
+    /** Sub-classes can override this to customize whether transactions are usable. */
+    protected boolean shouldSelect(@Nullable Transaction tx) {
+        return tx == null || DefaultCoinSelector.isSelectable(tx);
+    }
+}
@@ -23,18 +23,22 @@ import org.bouncycastle.crypto.params.KeyParameter;
 import javax.annotation.Nullable;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
  * A DecryptingKeyBag filters a pre-existing key bag, decrypting keys as they are requested using the provided
  * AES key. If the keys are encrypted and no AES key provided, {@link ECKey.KeyIsEncryptedException}
- * will be thrown.
+ * will be thrown. Each key is only decrypted once, so a bag should be used for one transaction rather than kept around.
  */
 public class DecryptingKeyBag implements KeyBag {
     protected final KeyBag target;
     protected final KeyParameter aesKey;
+    // Decrypted keys by encrypted key, as signing a transaction looks up the same keys several times.
+    private final Map<ECKey, ECKey> decryptedKeys = new HashMap<>();
 
     public DecryptingKeyBag(KeyBag target, @Nullable KeyParameter aesKey) {
         this.target = checkNotNull(target);
@@ -48,7 +52,14 @@ public class DecryptingKeyBag implements KeyBag {
         else if (key.isEncrypted()) {
             if (aesKey == null)
                 throw new ECKey.KeyIsEncryptedException();
-            return key.decrypt(aesKey);
+            synchronized (decryptedKeys) {
+                ECKey decrypted = decryptedKeys.get(key);
+                if (decrypted == null) {
+                    decrypted = key.decrypt(aesKey);
+                    decryptedKeys.put(key, decrypted);
+                }
+                return decrypted;
+            }
         } else {
             return key;
         }
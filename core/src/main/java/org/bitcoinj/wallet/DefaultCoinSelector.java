@@ -23,6 +23,7 @@ import org.bitcoinj.core.TransactionConfidence;
 import org.bitcoinj.core.TransactionOutput;
 import com.google.common.annotations.VisibleForTesting;
 
+import javax.annotation.Nullable;
 import java.math.BigInteger;
 import java.util.*;
 
@@ -36,7 +37,7 @@ public class DefaultCoinSelector implements CoinSelector {
     public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
         ArrayList<TransactionOutput> selected = new ArrayList<>();
         // Sort the inputs by age*value so we get the highest "coindays" spent.
-        // TODO: Consider changing the wallets internal format to track just outputs and keep them ordered.
+        // See BranchAndBoundCoinSelector for a selector that uses the ordered index of outputs the wallet keeps.
         ArrayList<TransactionOutput> sortedOutputs = new ArrayList<>(candidates);
         // When calculating the wallet balance, we may be asked to select all possible coins, if so, avoid sorting
         // them in order to improve performance.
@@ -60,26 +61,44 @@ public class DefaultCoinSelector implements CoinSelector {
     }
 
     @VisibleForTesting static void sortOutputs(ArrayList<TransactionOutput> outputs) {
-        Collections.sort(outputs, new Comparator<TransactionOutput>() {
-            @Override
-            public int compare(TransactionOutput a, TransactionOutput b) {
-                int depth1 = a.getParentTransactionDepthInBlocks();
-                int depth2 = b.getParentTransactionDepthInBlocks();
-                Coin aValue = a.getValue();
-                Coin bValue = b.getValue();
-                BigInteger aCoinDepth = BigInteger.valueOf(aValue.value).multiply(BigInteger.valueOf(depth1));
-                BigInteger bCoinDepth = BigInteger.valueOf(bValue.value).multiply(BigInteger.valueOf(depth2));
-                int c1 = bCoinDepth.compareTo(aCoinDepth);
-                if (c1 != 0) return c1;
-                // The "coin*days" destroyed are equal, sort by value alone to get the lowest transaction size.
-                int c2 = bValue.compareTo(aValue);
-                if (c2 != 0) return c2;
-                // They are entirely equivalent (possibly pending) so sort by hash to ensure a total ordering.
-                BigInteger aHash = a.getParentTransactionHash().toBigInteger();
-                BigInteger bHash = b.getParentTransactionHash().toBigInteger();
-                return aHash.compareTo(bHash);
-            }
-        });
+        // The keys are calculated once per output rather than on every comparison, as getting the depth takes a lock.
+        List<SortKey> keys = new ArrayList<>(outputs.size());
+        for (TransactionOutput output : outputs)
+            keys.add(new SortKey(output));
+        Collections.sort(keys);
+        for (int i = 0; i < keys.size(); i++)
+            outputs.set(i, keys.get(i).output);
+    }
+
+    private static class SortKey implements Comparable<SortKey> {
+        final TransactionOutput output;
+        final BigInteger coinDepth;
+        final Coin value;
+        @Nullable BigInteger hash;
+
+        SortKey(TransactionOutput output) {
+            this.output = output;
+            this.value = output.getValue();
+            int depth = output.getParentTransactionDepthInBlocks();
+            this.coinDepth = BigInteger.valueOf(value.value).multiply(BigInteger.valueOf(depth));
+        }
+
+        @Override
+        public int compareTo(SortKey other) {
+            int c1 = other.coinDepth.compareTo(coinDepth);
+            if (c1 != 0) return c1;
+            // The "coin*days" destroyed are equal, sort by value alone to get the lowest transaction size.
+            int c2 = other.value.compareTo(value);
+            if (c2 != 0) return c2;
+            // They are entirely equivalent (possibly pending) so sort by hash to ensure a total ordering.
+            return hash().compareTo(other.hash());
+        }
+
+        private BigInteger hash() {
+            if (hash == null)
+                hash = output.getParentTransactionHash().toBigInteger();
+            return hash;
+        }
     }
 
     /** Sub-classes can override this to just customize whether transactions are usable, but keep age sorting. */
@@ -0,0 +1,110 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.TransactionOutput;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * <p>The unspent outputs of a wallet ordered by value, so that a {@link BranchAndBoundCoinSelector} can find the coins
+ * it needs in logarithmic time instead of sorting all of them for every transaction. Outputs of equal value are
+ * ordered by when they were added, oldest first. The depth of an output isn't part of the order, as it changes with
+ * every block.</p>
+ *
+ * <p>The wallet keeps its index up to date as outputs are received and spent. This class is not thread safe.</p>
+ */
+public class UnspentOutputIndex {
+    // An output and the key it is ordered by. The key doesn't change while the output is in the index.
+    static class Entry implements Comparable<Entry> {
+        final long value;
+        final long sequence;
+        final TransactionOutput output;
+
+        Entry(long value, long sequence, TransactionOutput output) {
+            this.value = value;
+            this.sequence = sequence;
+            this.output = output;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if (value != other.value)
+                return value < other.value ? -1 : 1;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private final NavigableSet<Entry> entries = new TreeSet<>();
+    private final Map<TransactionOutput, Entry> entriesByOutput = new HashMap<>();
+    private long nextSequence;
+
+    /** Adds the given output, returning false if it was already in the index. */
+    public boolean add(TransactionOutput output) {
+        if (entriesByOutput.containsKey(output))
+            return false;
+        Entry entry = new Entry(output.getValue().value, nextSequence++, output);
+        entriesByOutput.put(output, entry);
+        entries.add(entry);
+        return true;
+    }
+
+    /** Removes the given output, returning false if it wasn't in the index. */
+    public boolean remove(TransactionOutput output) {
+        Entry entry = entriesByOutput.remove(output);
+        if (entry == null)
+            return false;
+        entries.remove(entry);
+        return true;
+    }
+
+    public boolean contains(TransactionOutput output) {
+        return entriesByOutput.containsKey(output);
+    }
+
+    public void clear() {
+        entries.clear();
+        entriesByOutput.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    NavigableSet<Entry> entries() {
+        return entries;
+    }
+
+    // The given outputs in index order, for a one off selection. Unlike add(), this doesn't compare outputs, so they
+    // don't need to be attached to their transactions.
+    static NavigableSet<Entry> sort(Collection<TransactionOutput> outputs) {
+        NavigableSet<Entry> sorted = new TreeSet<>();
+        long sequence = 0;
+        for (TransactionOutput output : outputs)
+            sorted.add(new Entry(output.getValue().value, sequence++, output));
+        return sorted;
+    }
+
+    // A key that is ordered before all entries of the given value, and after all entries of smaller values.
+    static Entry key(long value) {
+        return new Entry(value, Long.MIN_VALUE, null);
+    }
+}
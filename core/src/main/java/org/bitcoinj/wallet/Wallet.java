@@ -18,6 +18,7 @@
 package org.bitcoinj.wallet;
 
 import com.google.common.annotations.*;
+import com.google.common.base.Predicate;
 import com.google.common.collect.*;
 import com.google.common.util.concurrent.*;
 import com.google.protobuf.*;
@@ -128,7 +129,7 @@ public class Wallet extends BaseTaggableObject
 
     // Ordering: lock > keyChainGroupLock. KeyChainGroup is protected separately to allow fast querying of current receive address
     // even if the wallet itself is busy e.g. saving or processing a big reorg. Useful for reducing UI latency.
-    protected final ReentrantLock lock = Threading.lock("wallet");
+    protected final ReentrantLock lock = new WalletLock(Threading.lock("wallet"));
     protected final ReentrantLock keyChainGroupLock = Threading.lock("wallet-keychaingroup");
 
     // The various pools below give quick access to wallet-relevant transactions by the state they're in:
@@ -157,10 +158,171 @@ public class Wallet extends BaseTaggableObject
 
     // All transactions together.
     protected final Map<Sha256Hash, Transaction> transactions;
+    // Changes of the pools above, counted so that a published PoolsSnapshot can tell whether it is current.
+    private volatile long poolsVersion;
+    // The pools as of the end of the last change, published when the outermost hold of the lock is released. Queries
+    // answer from it without waiting while another thread holds the lock, for example to process a block, and without
+    // taking the lock at all while it is current. Null until the pools are first queried.
+    @Nullable private volatile PoolsSnapshot poolsSnapshot;
+    @GuardedBy("lock") private boolean poolsQueried;
+    // The balances that were queried, as of the end of the last change, for the same purpose. Refreshed when the
+    // outermost hold of the lock is released.
+    private volatile Map<BalanceType, Coin> publishedBalances = Collections.emptyMap();
+    // Transactions changed since the last save, when saving to a WalletJournal. Null if not journaling.
+    @GuardedBy("lock") @Nullable private Set<Sha256Hash> unsavedTransactions;
+    // Set by changes a journal can't express, for example a re-org: the next save has to write the whole wallet.
+    @GuardedBy("lock") private boolean snapshotRequired;
+    // Where deeply buried spent transactions are moved to, if anywhere.
+    @Nullable private volatile WalletArchive archive;
+    // The spent pool, but looking up archived transactions too, so that the value a transaction sends from this wallet
+    // doesn't change when the transactions it spends are archived.
+    private final Map<Sha256Hash, Transaction> spentWithArchive = new ForwardingMap<Sha256Hash, Transaction>() {
+        @Override
+        protected Map<Sha256Hash, Transaction> delegate() {
+            return spent;
+        }
+
+        @Override
+        public Transaction get(@Nullable Object key) {
+            Transaction tx = super.get(key);
+            if (tx == null && key instanceof Sha256Hash)
+                tx = getArchivedTransaction((Sha256Hash) key);
+            return tx;
+        }
+    };
+
+    private static class PoolsSnapshot {
+        final long version;
+        final ImmutableMap<Sha256Hash, Transaction> unspent, spent, pending, dead, transactions;
+
+        PoolsSnapshot(long version, Map<Sha256Hash, Transaction> unspent, Map<Sha256Hash, Transaction> spent,
+                      Map<Sha256Hash, Transaction> pending, Map<Sha256Hash, Transaction> dead,
+                      Map<Sha256Hash, Transaction> transactions) {
+            this.version = version;
+            this.unspent = ((PoolMap) unspent).copy();
+            this.spent = ((PoolMap) spent).copy();
+            this.pending = ((PoolMap) pending).copy();
+            this.dead = ((PoolMap) dead).copy();
+            this.transactions = ((PoolMap) transactions).copy();
+        }
+
+        ImmutableMap<Sha256Hash, Transaction> getPool(Pool pool) {
+            switch (pool) {
+                case UNSPENT:
+                    return unspent;
+                case SPENT:
+                    return spent;
+                case PENDING:
+                    return pending;
+                case DEAD:
+                    return dead;
+            }
+            throw new RuntimeException("Unreachable");
+        }
+    }
+
+    // The transactions in the wallet that spend each outpoint, so that conflicts can be found without scanning the
+    // pools. There can be several, for example a dead transaction and the one that double spent it.
+    @GuardedBy("lock") private final Map<TransactionOutPoint, Set<Transaction>> spenders = new HashMap<>();
 
     // All the TransactionOutput objects that we could spend (ignoring whether we have the private key or not).
-    // Used to speed up various calculations.
-    protected final HashSet<TransactionOutput> myUnspents = Sets.newHashSet();
+    // Used to speed up various calculations. Keeps myUnspentsValue and unspentIndex up to date as outputs come and go.
+    // Everything that removes outputs goes through remove(Object) or the iterator, including removeAll and retainAll.
+    protected final HashSet<TransactionOutput> myUnspents = new HashSet<TransactionOutput>() {
+        @Override
+        public boolean add(TransactionOutput output) {
+            if (!super.add(output))
+                return false;
+            myUnspentsValue = myUnspentsValue.add(output.getValue());
+            myUnspentsVersion++;
+            if (unspentIndex != null)
+                unspentIndex.add(output);
+            return true;
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!super.remove(o))
+                return false;
+            removed((TransactionOutput) o);
+            return true;
+        }
+
+        @Override
+        public Iterator<TransactionOutput> iterator() {
+            final Iterator<TransactionOutput> iterator = super.iterator();
+            return new Iterator<TransactionOutput>() {
+                private TransactionOutput last;
+
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public TransactionOutput next() {
+                    return last = iterator.next();
+                }
+
+                @Override
+                public void remove() {
+                    iterator.remove();
+                    removed(last);
+                }
+            };
+        }
+
+        private void removed(TransactionOutput output) {
+            myUnspentsValue = myUnspentsValue.subtract(output.getValue());
+            myUnspentsVersion++;
+            if (unspentIndex != null)
+                unspentIndex.remove(output);
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            myUnspentsValue = Coin.ZERO;
+            myUnspentsVersion++;
+            if (unspentIndex != null)
+                unspentIndex.clear();
+        }
+    };
+    // myUnspents ordered by value, created the first time a coin selector uses it.
+    @GuardedBy("lock") @Nullable private UnspentOutputIndex unspentIndex;
+    // The sum of the values of myUnspents, which is the ESTIMATED balance, and how often myUnspents changed.
+    @GuardedBy("lock") private Coin myUnspentsValue = Coin.ZERO;
+    @GuardedBy("lock") private long myUnspentsVersion;
+    // Incremented whenever the confidence of one of our transactions changes, see TransactionConfidence.addChangeCounter.
+    private final AtomicLong confidenceChanges = new AtomicLong();
+    // Incremented whenever keys are added or removed, as that changes what we can sign for.
+    private final AtomicLong keyChanges = new AtomicLong();
+    // The output scripts paying to any key, lookahead keys included, and the watched scripts. Read without any lock, so
+    // that most outputs are found irrelevant with one lookup. It may contain scripts isMineOrWatched doesn't accept, as
+    // key chains only accept their own script type. The P2SH scripts of married key chains aren't included.
+    private volatile Set<ByteString> relevantScripts = newRelevantScripts();
+    private volatile boolean hasMarriedKeyChains;
+    private final KeyChainEventListener keyChainListener = new KeyChainEventListener() {
+        @Override
+        public void onKeysAdded(List<ECKey> keys) {
+            keyChanges.incrementAndGet();
+            List<ByteString> added = new ArrayList<>(keys.size() * 3);
+            for (ECKey key : keys)
+                addRelevantScripts(added, key);
+            relevantScripts.addAll(added);
+            for (WalletRelevanceIndex index : relevanceIndexes)
+                index.addScripts(Wallet.this, added);
+        }
+    };
+    // The indexes of block chains this wallet is dispatched to by, kept up to date with relevantScripts and the
+    // transactions the wallet knows about.
+    private final CopyOnWriteArrayList<WalletRelevanceIndex> relevanceIndexes = new CopyOnWriteArrayList<>();
+    // Balances computed by getBalance(BalanceType), valid as long as the state they were computed from is unchanged.
+    @GuardedBy("lock") private final EnumMap<BalanceType, Coin> cachedBalances = new EnumMap<>(BalanceType.class);
+    @GuardedBy("lock") private long cachedBalancesUnspentsVersion = -1;
+    @GuardedBy("lock") private long cachedBalancesConfidenceChanges;
+    @GuardedBy("lock") private long cachedBalancesKeyChanges;
+    @GuardedBy("lock") @Nullable private CoinSelector cachedBalancesCoinSelector;
 
     // Transactions that were dropped by the risk analysis system. These are not in any pools and not serialized
     // to disk. We have to keep them around because if we ignore a tx because we think it will never confirm, but
@@ -456,16 +618,144 @@ public class Wallet extends BaseTaggableObject
         this(Context.getOrCreate(params), keyChainGroup);
     }
 
+    // A transaction pool. Counts its changes in poolsVersion, and keeps the copy a PoolsSnapshot took of it until it
+    // changes, so that publishing a snapshot only copies the pools that changed. Pools are only changed with put,
+    // remove and clear.
+    private class PoolMap extends HashMap<Sha256Hash, Transaction> {
+        private static final long serialVersionUID = 1L;
+
+        @Nullable private ImmutableMap<Sha256Hash, Transaction> copy;
+
+        @Override
+        public Transaction put(Sha256Hash key, Transaction value) {
+            poolsVersion++;
+            copy = null;
+            markUnsaved(value);
+            return super.put(key, value);
+        }
+
+        @Override
+        public Transaction remove(Object key) {
+            Transaction removed = super.remove(key);
+            if (removed != null) {
+                poolsVersion++;
+                copy = null;
+                markUnsaved(removed);
+            }
+            return removed;
+        }
+
+        @Override
+        public void clear() {
+            poolsVersion++;
+            copy = null;
+            snapshotRequired = true;
+            super.clear();
+        }
+
+        ImmutableMap<Sha256Hash, Transaction> copy() {
+            if (copy == null)
+                copy = ImmutableMap.copyOf(this);
+            return copy;
+        }
+    }
+
+    // The wallet lock. When the outermost hold is released, it publishes the pools for the queries, so that they see
+    // every completed change, the changes of the querying thread included. Everything else is done by the lock it
+    // wraps, which Threading may have made cycle detecting.
+    private class WalletLock extends ReentrantLock {
+        private static final long serialVersionUID = 1L;
+
+        private final ReentrantLock delegate;
+
+        WalletLock(ReentrantLock delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void lock() {
+            delegate.lock();
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            delegate.lockInterruptibly();
+        }
+
+        @Override
+        public boolean tryLock() {
+            return delegate.tryLock();
+        }
+
+        @Override
+        public boolean tryLock(long timeout, TimeUnit unit) throws InterruptedException {
+            return delegate.tryLock(timeout, unit);
+        }
+
+        @Override
+        public void unlock() {
+            try {
+                if (delegate.getHoldCount() == 1) {
+                    publishPoolsSnapshot();
+                    publishBalances();
+                }
+            } finally {
+                delegate.unlock();
+            }
+        }
+
+        @Override
+        public Condition newCondition() {
+            return delegate.newCondition();
+        }
+
+        @Override
+        public int getHoldCount() {
+            return delegate.getHoldCount();
+        }
+
+        @Override
+        public boolean isHeldByCurrentThread() {
+            return delegate.isHeldByCurrentThread();
+        }
+
+        @Override
+        public boolean isLocked() {
+            return delegate.isLocked();
+        }
+
+        @Override
+        public boolean hasWaiters(Condition condition) {
+            return delegate.hasWaiters(condition);
+        }
+
+        @Override
+        public int getWaitQueueLength(Condition condition) {
+            return delegate.getWaitQueueLength(condition);
+        }
+
+        @Override
+        public String toString() {
+            return delegate.toString();
+        }
+    }
+
+    private Map<Sha256Hash, Transaction> newPool() {
+        return new PoolMap();
+    }
+
     private Wallet(Context context, KeyChainGroup keyChainGroup) {
         this.context = checkNotNull(context);
         this.params = checkNotNull(context.getParams());
         this.keyChainGroup = checkNotNull(keyChainGroup);
+        keyChainGroup.addEventListener(keyChainListener, Threading.SAME_THREAD);
         watchedScripts = Sets.newHashSet();
-        unspent = new HashMap<>();
-        spent = new HashMap<>();
-        pending = new HashMap<>();
-        dead = new HashMap<>();
-        transactions = new HashMap<>();
+        rebuildRelevantScripts();
+        unspent = newPool();
+        spent = newPool();
+        pending = newPool();
+        dead = newPool();
+        transactions = newPool();
         extensions = new HashMap<>();
         // Use a linked hash map to ensure ordering of event listeners is correct.
         confidenceChanged = new LinkedHashMap<>();
@@ -490,6 +780,8 @@ public class Wallet extends BaseTaggableObject
                     try {
                         checkBalanceFuturesLocked(null);
                         Transaction tx = getTransaction(confidence.getTransactionHash());
+                        if (tx != null)
+                            markUnsaved(tx);
                         queueOnTransactionConfidenceChanged(tx);
                         maybeQueueOnWalletChanged();
                     } finally {
@@ -557,6 +849,22 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Sets the executor the {@link LocalTransactionSigner} of this wallet signs the inputs of large transactions on in
+     * parallel, or null to sign them on the calling thread, which is the default.
+     */
+    public void setSigningExecutor(@Nullable Executor executor) {
+        lock.lock();
+        try {
+            for (TransactionSigner signer : signers) {
+                if (signer instanceof LocalTransactionSigner)
+                    ((LocalTransactionSigner) signer).setExecutor(executor);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     // ***************************************************************************************************************
 
     //region Key Management
@@ -757,6 +1065,7 @@ public class Wallet extends BaseTaggableObject
         try {
             long keyRotationTimeSecs = vKeyRotationTimestamp;
             keyChainGroup.upgradeToDeterministic(outputScriptType, structure, keyRotationTimeSecs, aesKey);
+            keyChainGroupChanged();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -803,7 +1112,12 @@ public class Wallet extends BaseTaggableObject
     public boolean removeKey(ECKey key) {
         keyChainGroupLock.lock();
         try {
-            return keyChainGroup.removeImportedKey(key);
+            boolean removed = keyChainGroup.removeImportedKey(key);
+            if (removed) {
+                keyChanges.incrementAndGet();
+                rebuildRelevantScripts();
+            }
+            return removed;
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -923,6 +1237,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keyChainGroup.addAndActivateHDChain(chain);
+            keyChainGroupChanged();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1044,6 +1359,10 @@ public class Wallet extends BaseTaggableObject
                 if (script.getCreationTimeSeconds() == 0)
                     log.warn("Adding a script to the wallet with a creation time of zero, this will disable the checkpointing optimization!    {}", script);
                 watchedScripts.add(script);
+                ByteString program = ByteString.copyFrom(script.getProgram());
+                relevantScripts.add(program);
+                for (WalletRelevanceIndex index : relevanceIndexes)
+                    index.addScripts(this, Collections.singletonList(program));
                 added++;
             }
         } finally {
@@ -1095,6 +1414,8 @@ public class Wallet extends BaseTaggableObject
 
                 watchedScripts.remove(script);
             }
+            // The script may be relevant for other reasons as well.
+            rebuildRelevantScripts();
 
             queueOnScriptsChanged(scripts, false);
             saveNow();
@@ -1314,6 +1635,7 @@ public class Wallet extends BaseTaggableObject
         try {
             final KeyCrypterScrypt scrypt = new KeyCrypterScrypt();
             keyChainGroup.encrypt(scrypt, scrypt.deriveKey(password));
+            keyChainGroupChanged();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1332,6 +1654,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keyChainGroup.encrypt(keyCrypter, aesKey);
+            keyChainGroupChanged();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1349,6 +1672,7 @@ public class Wallet extends BaseTaggableObject
             final KeyCrypter crypter = keyChainGroup.getKeyCrypter();
             checkState(crypter != null, "Not encrypted");
             keyChainGroup.decrypt(crypter.deriveKey(password));
+            keyChainGroupChanged();
         } catch (KeyCrypterException.InvalidCipherText e) {
             throw new BadWalletEncryptionKeyException(e);
         } catch (KeyCrypterException.PublicPrivateMismatch e) {
@@ -1370,6 +1694,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keyChainGroup.decrypt(aesKey);
+            keyChainGroupChanged();
         } catch (KeyCrypterException.InvalidCipherText e) {
             throw new BadWalletEncryptionKeyException(e);
         } catch (KeyCrypterException.PublicPrivateMismatch e) {
@@ -1679,6 +2004,78 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /** Starts or stops remembering which transactions changed since the last save, for {@link WalletJournal}. */
+    void setTrackingUnsavedTransactions(boolean tracking) {
+        lock.lock();
+        try {
+            unsavedTransactions = tracking ? new HashSet<Sha256Hash>() : null;
+            snapshotRequired = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the hashes of the transactions that changed since the last save, including removed ones. Returns null if
+     * there were changes other than those of transactions, and the whole wallet has to be saved.
+     */
+    @Nullable
+    Set<Sha256Hash> getUnsavedTransactions() {
+        checkState(lock.isHeldByCurrentThread());
+        checkState(unsavedTransactions != null, "Not tracking unsaved transactions.");
+        return snapshotRequired ? null : new HashSet<>(unsavedTransactions);
+    }
+
+    /** Forgets the changes returned by {@link #getUnsavedTransactions()}, once they are saved. */
+    void markSaved() {
+        checkState(lock.isHeldByCurrentThread());
+        checkState(unsavedTransactions != null, "Not tracking unsaved transactions.");
+        unsavedTransactions = new HashSet<>();
+        snapshotRequired = false;
+    }
+
+    /** Makes {@link #getUnsavedTransactions()} return null until the next save. */
+    void requireSnapshot() {
+        lock.lock();
+        try {
+            snapshotRequired = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Remembers that tx changed since the last save, and so did the wallet transactions it spends from.
+    private void markUnsaved(Transaction tx) {
+        if (unsavedTransactions == null)
+            return;
+        unsavedTransactions.add(tx.getTxId());
+        if (tx.isCoinBase())
+            return;
+        for (TransactionInput input : tx.getInputs()) {
+            Sha256Hash parent = input.getOutpoint().getHash();
+            if (transactions.containsKey(parent))
+                unsavedTransactions.add(parent);
+        }
+    }
+
+    /** Returns the transaction with the given hash together with its pool, or null if it isn't in the wallet. */
+    @Nullable
+    WalletTransaction getWalletTransaction(Sha256Hash hash) {
+        lock.lock();
+        try {
+            Transaction tx = transactions.get(hash);
+            if (tx == null)
+                return null;
+            for (Pool pool : Pool.values()) {
+                if (getTransactionPool(pool).containsKey(hash))
+                    return new WalletTransaction(pool, tx);
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Uses protobuf serialization to save the wallet to the given file stream. To learn more about this file format, see
      * {@link WalletProtobufSerializer}.
@@ -1706,10 +2103,14 @@ public class Wallet extends BaseTaggableObject
      * <p>Returns a wallet deserialized from the given file. Extensions previously saved with the wallet can be
      * deserialized by calling @{@link WalletExtension#deserializeWalletExtension(Wallet, byte[])}}</p>
      *
+     * <p>If the wallet was saved with a {@link WalletJournal}, the journal is replayed.</p>
+     *
      * @param file the wallet file to read
      * @param walletExtensions extensions possibly added to the wallet.
      */
     public static Wallet loadFromFile(File file, @Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
+        if (WalletJournal.hasJournal(file))
+            return WalletJournal.readWallet(file, walletExtensions);
         try {
             FileInputStream stream = null;
             try {
@@ -1897,6 +2298,8 @@ public class Wallet extends BaseTaggableObject
             if (isTransactionRisky(tx, dependencies) && !acceptRiskyTransactions) {
                 // isTransactionRisky already logged the reason.
                 riskDropped.put(tx.getTxId(), tx);
+                for (WalletRelevanceIndex index : relevanceIndexes)
+                    index.addTransactions(this, Collections.singletonList(tx));
                 log.warn("There are now {} risk dropped transactions being kept in memory", riskDropped.size());
                 return;
             }
@@ -1974,6 +2377,16 @@ public class Wallet extends BaseTaggableObject
                 log.debug("Received tx we already saw in a block or created ourselves: " + tx.getTxId());
                 return false;
             }
+            // Archived transactions, and double spends of them, could only come back with a very deep re-org.
+            WalletArchive archive = this.archive;
+            if (archive != null && !tx.isCoinBase()) {
+                for (TransactionInput input : tx.getInputs()) {
+                    if (archive.spends(input.getOutpoint())) {
+                        log.debug("Received tx that spends the same outputs as an archived tx: " + tx.getTxId());
+                        return false;
+                    }
+                }
+            }
             // We only care about transactions that:
             //   - Send us coins
             //   - Spend our coins
@@ -1997,16 +2410,105 @@ public class Wallet extends BaseTaggableObject
      * it will not be considered relevant.</p>
      */
     public boolean isTransactionRelevant(Transaction tx) throws ScriptException {
+        // Same as tx.getValueSentToMe(this).signum() > 0, but without taking any lock.
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (output.getValue().signum() > 0 && isRelevantOutput(output))
+                return true;
+        }
         lock.lock();
         try {
             return tx.getValueSentFromMe(this).signum() > 0 ||
-                   tx.getValueSentToMe(this).signum() > 0 ||
                    !findDoubleSpendsAgainst(tx, transactions).isEmpty();
         } finally {
             lock.unlock();
         }
     }
 
+    // Returns the same as output.isMineOrWatched(this), but only does the full check for outputs found in
+    // relevantScripts.
+    private boolean isRelevantOutput(TransactionOutput output) {
+        if (relevantScripts.contains(ByteString.copyFrom(output.getScriptBytes())))
+            return output.isMineOrWatched(this);
+        return hasMarriedKeyChains && ScriptPattern.isP2SH(output.getScriptPubKey()) && output.isMine(this);
+    }
+
+    private static Set<ByteString> newRelevantScripts() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<ByteString, Boolean>());
+    }
+
+    // Adds the standard output scripts paying to the given key to the given collection.
+    private static void addRelevantScripts(Collection<ByteString> scripts, ECKey key) {
+        scripts.add(ByteString.copyFrom(ScriptBuilder.createP2PKOutputScript(key).getProgram()));
+        scripts.add(ByteString.copyFrom(ScriptBuilder.createP2PKHOutputScript(key.getPubKeyHash()).getProgram()));
+        scripts.add(ByteString.copyFrom(ScriptBuilder.createP2WPKHOutputScript(key.getPubKeyHash()).getProgram()));
+    }
+
+    // Builds relevantScripts from scratch, for changes the key chain listener doesn't hear about.
+    private void rebuildRelevantScripts() {
+        keyChainGroupLock.lock();
+        try {
+            Set<ByteString> scripts = newRelevantScripts();
+            boolean married = false;
+            for (ECKey key : keyChainGroup.getImportedKeys())
+                addRelevantScripts(scripts, key);
+            if (keyChainGroup.isSupportsDeterministicChains()) {
+                for (DeterministicKeyChain chain : keyChainGroup.getDeterministicKeyChains()) {
+                    married |= chain.isMarried();
+                    for (ECKey key : chain.getKeys(true, true))
+                        addRelevantScripts(scripts, key);
+                }
+            }
+            for (Script script : watchedScripts)
+                scripts.add(ByteString.copyFrom(script.getProgram()));
+            relevantScripts = scripts;
+            hasMarriedKeyChains = married;
+            for (WalletRelevanceIndex index : relevanceIndexes)
+                index.addScripts(this, scripts, married);
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
+    /**
+     * Registers this wallet with the given index: gives it the scripts and transactions the wallet currently knows
+     * about, and keeps giving it new ones.
+     */
+    void addRelevanceIndex(WalletRelevanceIndex index) {
+        relevanceIndexes.add(index);
+        lock.lock();
+        try {
+            index.addTransactions(this, transactions.values());
+            index.addTransactions(this, riskDropped.values());
+        } finally {
+            lock.unlock();
+        }
+        keyChainGroupLock.lock();
+        try {
+            index.addScripts(this, relevantScripts, hasMarriedKeyChains);
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
+    /** Stops giving the given index new scripts and transactions. */
+    void removeRelevanceIndex(WalletRelevanceIndex index) {
+        relevanceIndexes.remove(index);
+    }
+
+    // Called after keyChainGroup got new chains, or new objects for them when encrypting or decrypting, which don't
+    // have our listener yet.
+    private void keyChainGroupChanged() {
+        keyChainGroupLock.lock();
+        try {
+            keyChainGroup.removeEventListener(keyChainListener);
+            keyChainGroup.addEventListener(keyChainListener, Threading.SAME_THREAD);
+            keyChanges.incrementAndGet();
+            rebuildRelevantScripts();
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
     /**
      * Finds transactions in the specified candidates that double spend "tx". Not a general check, but it can work even if
      * the double spent inputs are not ours.
@@ -2015,24 +2517,18 @@ public class Wallet extends BaseTaggableObject
     private Set<Transaction> findDoubleSpendsAgainst(Transaction tx, Map<Sha256Hash, Transaction> candidates) {
         checkState(lock.isHeldByCurrentThread());
         if (tx.isCoinBase()) return Sets.newHashSet();
-        // Compile a set of outpoints that are spent by tx.
-        HashSet<TransactionOutPoint> outpoints = new HashSet<>();
-        for (TransactionInput input : tx.getInputs()) {
-            outpoints.add(input.getOutpoint());
-        }
-        // Now for each pending transaction, see if it shares any outpoints with this tx.
+        // Look up the wallet transactions spending each outpoint of tx and keep the ones among the candidates. This
+        // relies on the fact that TransactionOutPoint equality is defined at the protocol not object level - outpoints
+        // from two different inputs that point to the same output compare the same.
         Set<Transaction> doubleSpendTxns = Sets.newHashSet();
-        for (Transaction p : candidates.values()) {
-            if (p.equals(tx))
+        for (TransactionInput input : tx.getInputs()) {
+            Set<Transaction> outpointSpenders = spenders.get(input.getOutpoint());
+            if (outpointSpenders == null)
                 continue;
-            for (TransactionInput input : p.getInputs()) {
-                // This relies on the fact that TransactionOutPoint equality is defined at the protocol not object
-                // level - outpoints from two different inputs that point to the same output compare the same.
-                TransactionOutPoint outpoint = input.getOutpoint();
-                if (outpoints.contains(outpoint)) {
-                    // It does, it's a double spend against the candidates, which makes it relevant.
+            for (Transaction p : outpointSpenders) {
+                // It's a double spend against the candidates, which makes it relevant.
+                if (!p.equals(tx) && candidates.containsKey(p.getTxId()))
                     doubleSpendTxns.add(p);
-                }
             }
         }
         return doubleSpendTxns;
@@ -2043,16 +2539,19 @@ public class Wallet extends BaseTaggableObject
      * and all txns spending the outputs of those txns, recursively.
      */
     void addTransactionsDependingOn(Set<Transaction> txSet, Set<Transaction> txPool) {
-        Map<Sha256Hash, Transaction> txQueue = new LinkedHashMap<>();
-        for (Transaction tx : txSet) {
-            txQueue.put(tx.getTxId(), tx);
-        }
-        while(!txQueue.isEmpty()) {
-            Transaction tx = txQueue.remove(txQueue.keySet().iterator().next());
-            for (Transaction anotherTx : txPool) {
-                if (anotherTx.equals(tx)) continue;
-                for (TransactionInput input : anotherTx.getInputs()) {
-                    if (input.getOutpoint().getHash().equals(tx.getTxId())) {
+        lock.lock();
+        try {
+            Map<Sha256Hash, Transaction> txQueue = new LinkedHashMap<>();
+            for (Transaction tx : txSet) {
+                txQueue.put(tx.getTxId(), tx);
+            }
+            while(!txQueue.isEmpty()) {
+                Transaction tx = txQueue.remove(txQueue.keySet().iterator().next());
+                for (int i = 0; i < tx.getOutputs().size(); i++) {
+                    Set<Transaction> outputSpenders = spenders.get(new TransactionOutPoint(params, i, tx.getTxId()));
+                    if (outputSpenders == null) continue;
+                    for (Transaction anotherTx : outputSpenders) {
+                        if (anotherTx.equals(tx) || !txPool.contains(anotherTx)) continue;
                         if (txQueue.get(anotherTx.getTxId()) == null) {
                             txQueue.put(anotherTx.getTxId(), anotherTx);
                             txSet.add(anotherTx);
@@ -2060,6 +2559,8 @@ public class Wallet extends BaseTaggableObject
                     }
                 }
             }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -2102,6 +2603,7 @@ public class Wallet extends BaseTaggableObject
                          int relativityOffset) throws VerificationException {
         // Runs in a peer thread.
         checkState(lock.isHeldByCurrentThread());
+        markUnsaved(tx);
 
         Coin prevBalance = getBalance();
         Sha256Hash txHash = tx.getTxId();
@@ -2291,6 +2793,9 @@ public class Wallet extends BaseTaggableObject
             return;
         for (Map.Entry<Transaction, TransactionConfidence.Listener.ChangeReason> entry : confidenceChanged.entrySet()) {
             final Transaction tx = entry.getKey();
+            // Depth changes are implied by the last seen block, so journals don't need to save them.
+            if (entry.getValue() != TransactionConfidence.Listener.ChangeReason.DEPTH)
+                markUnsaved(tx);
             tx.getConfidence().queueListeners(entry.getValue());
             queueOnTransactionConfidenceChanged(tx);
         }
@@ -3008,41 +3513,102 @@ public class Wallet extends BaseTaggableObject
     //region Vending transactions and other internal state
 
     /**
-     * Returns a set of all transactions in the wallet.
+     * Returns a set of all transactions in the wallet. Like the other queries of the pools, this doesn't wait for
+     * other threads changing the wallet, and returns the transactions as of the end of their last change instead.
      * @param includeDead     If true, transactions that were overridden by a double spend are included.
      */
     public Set<Transaction> getTransactions(boolean includeDead) {
-        lock.lock();
+        PoolsSnapshot snapshot = lockOrSnapshot();
+        if (snapshot != null)
+            return getTransactions(snapshot.unspent, snapshot.spent, snapshot.pending, includeDead ? snapshot.dead : null);
         try {
-            Set<Transaction> all = new HashSet<>();
-            all.addAll(unspent.values());
-            all.addAll(spent.values());
-            all.addAll(pending.values());
-            if (includeDead)
-                all.addAll(dead.values());
-            return all;
+            return getTransactions(unspent, spent, pending, includeDead ? dead : null);
         } finally {
             lock.unlock();
         }
     }
 
+    private static Set<Transaction> getTransactions(Map<Sha256Hash, Transaction> unspent,
+            Map<Sha256Hash, Transaction> spent, Map<Sha256Hash, Transaction> pending,
+            @Nullable Map<Sha256Hash, Transaction> dead) {
+        Set<Transaction> all = new HashSet<>();
+        all.addAll(unspent.values());
+        all.addAll(spent.values());
+        all.addAll(pending.values());
+        if (dead != null)
+            all.addAll(dead.values());
+        return all;
+    }
+
     /**
-     * Returns a set of all WalletTransactions in the wallet.
+     * Returns the published snapshot of the pools if it is current, or if another thread holds the lock. Otherwise
+     * takes the lock and returns null, and the caller has to unlock it.
      */
-    public Iterable<WalletTransaction> getWalletTransactions() {
-        lock.lock();
+    @Nullable
+    private PoolsSnapshot lockOrSnapshot() {
+        PoolsSnapshot snapshot = poolsSnapshot;
+        if (snapshot != null && (snapshot.version == poolsVersion || !lock.tryLock()))
+            return snapshot;
+        if (snapshot == null) {
+            lock.lock();
+            poolsQueried = true;
+        }
+        return null;
+    }
+
+    // Returns a snapshot of the pools, the published one if lockOrSnapshot() allows.
+    private PoolsSnapshot getPoolsSnapshot() {
+        PoolsSnapshot snapshot = lockOrSnapshot();
+        if (snapshot != null)
+            return snapshot;
         try {
-            Set<WalletTransaction> all = new HashSet<>();
-            addWalletTransactionsToSet(all, Pool.UNSPENT, unspent.values());
-            addWalletTransactionsToSet(all, Pool.SPENT, spent.values());
-            addWalletTransactionsToSet(all, Pool.DEAD, dead.values());
-            addWalletTransactionsToSet(all, Pool.PENDING, pending.values());
-            return all;
+            snapshot = poolsSnapshot;
+            if (snapshot == null || snapshot.version != poolsVersion)
+                snapshot = new PoolsSnapshot(poolsVersion, unspent, spent, pending, dead, transactions);
+            return snapshot;
         } finally {
             lock.unlock();
         }
     }
 
+    // Publishes the current pools once they have been queried. Only called as the lock is released, as the pools may
+    // be in the middle of a change before.
+    private void publishPoolsSnapshot() {
+        PoolsSnapshot snapshot = poolsSnapshot;
+        if (snapshot == null ? poolsQueried : snapshot.version != poolsVersion)
+            poolsSnapshot = new PoolsSnapshot(poolsVersion, unspent, spent, pending, dead, transactions);
+    }
+
+    // Refreshes the balances that were queried. Only called as the lock is released, like publishPoolsSnapshot(). The
+    // balances are only cached without a UTXO provider, so with one they are dropped instead.
+    private void publishBalances() {
+        Map<BalanceType, Coin> published = publishedBalances;
+        if (published.isEmpty())
+            return;
+        if (vUTXOProvider != null) {
+            publishedBalances = Collections.emptyMap();
+            return;
+        }
+        EnumMap<BalanceType, Coin> balances = new EnumMap<>(BalanceType.class);
+        for (BalanceType balanceType : published.keySet())
+            balances.put(balanceType, getBalanceLocked(balanceType));
+        if (!balances.equals(published))
+            publishedBalances = balances;
+    }
+
+    /**
+     * Returns a set of all WalletTransactions in the wallet.
+     */
+    public Iterable<WalletTransaction> getWalletTransactions() {
+        PoolsSnapshot snapshot = getPoolsSnapshot();
+        Set<WalletTransaction> all = new HashSet<>();
+        addWalletTransactionsToSet(all, Pool.UNSPENT, snapshot.unspent.values());
+        addWalletTransactionsToSet(all, Pool.SPENT, snapshot.spent.values());
+        addWalletTransactionsToSet(all, Pool.DEAD, snapshot.dead.values());
+        addWalletTransactionsToSet(all, Pool.PENDING, snapshot.pending.values());
+        return all;
+    }
+
     private static void addWalletTransactionsToSet(Set<WalletTransaction> txns,
                                                    Pool poolType, Collection<Transaction> pool) {
         for (Transaction tx : pool) {
@@ -3069,7 +3635,14 @@ public class Wallet extends BaseTaggableObject
      */
     private void addWalletTransaction(Pool pool, Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
-        transactions.put(tx.getTxId(), tx);
+        Transaction previous = transactions.put(tx.getTxId(), tx);
+        if (previous != tx) {
+            if (previous != null)
+                removeSpends(previous);
+            addSpends(tx);
+            for (WalletRelevanceIndex index : relevanceIndexes)
+                index.addTransactions(this, Collections.singletonList(tx));
+        }
         switch (pool) {
         case UNSPENT:
             checkState(unspent.put(tx.getTxId(), tx) == null);
@@ -3095,10 +3668,11 @@ public class Wallet extends BaseTaggableObject
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
         // registration requests. That makes the code in the wallet simpler.
         tx.getConfidence().addEventListener(Threading.SAME_THREAD, txConfidenceListener);
+        tx.getConfidence().addChangeCounter(confidenceChanges);
     }
 
     /**
-     * Returns all non-dead, active transactions ordered by recency.
+     * Returns all non-dead, active transactions ordered by recency, including the ones in the {@link WalletArchive}.
      */
     public List<Transaction> getTransactionsByTime() {
         return getRecentTransactions(0, false);
@@ -3110,43 +3684,178 @@ public class Wallet extends BaseTaggableObject
      * <p>Note: the current implementation is O(num transactions in wallet). Regardless of how many transactions are
      * requested, the cost is always the same. In future, requesting smaller numbers of transactions may be faster
      * depending on how the wallet is implemented (eg if backed by a database).</p>
+     * <p>Archived transactions are included. Only as many of them as requested are read from the archive.</p>
      */
     public List<Transaction> getRecentTransactions(int numTransactions, boolean includeDead) {
-        lock.lock();
-        try {
-            checkArgument(numTransactions >= 0);
-            // Firstly, put all transactions into an array.
-            int size = unspent.size() + spent.size() + pending.size();
-            if (numTransactions > size || numTransactions == 0) {
-                numTransactions = size;
+        checkArgument(numTransactions >= 0);
+        PoolsSnapshot snapshot = getPoolsSnapshot();
+        WalletArchive archive = this.archive;
+        // Firstly, put all transactions into an array.
+        int size = snapshot.unspent.size() + snapshot.spent.size() + snapshot.pending.size();
+        if (archive != null)
+            size += archive.size();
+        if (numTransactions > size || numTransactions == 0) {
+            numTransactions = size;
+        }
+        ArrayList<Transaction> all = new ArrayList<>(getTransactions(snapshot.unspent, snapshot.spent,
+                snapshot.pending, includeDead ? snapshot.dead : null));
+        if (archive != null) {
+            for (Transaction tx : getArchivedTransactions(archive, numTransactions)) {
+                if (!snapshot.transactions.containsKey(tx.getTxId()))
+                    all.add(tx);
             }
-            ArrayList<Transaction> all = new ArrayList<>(getTransactions(includeDead));
-            // Order by update time.
-            Collections.sort(all, Transaction.SORT_TX_BY_UPDATE_TIME);
-            if (numTransactions == all.size()) {
-                return all;
-            } else {
-                all.subList(numTransactions, all.size()).clear();
-                return all;
+            numTransactions = Math.min(numTransactions, all.size());
+        }
+        // Order by update time.
+        Collections.sort(all, Transaction.SORT_TX_BY_UPDATE_TIME);
+        if (numTransactions == all.size()) {
+            return all;
+        } else {
+            all.subList(numTransactions, all.size()).clear();
+            return all;
+        }
+    }
+
+    /**
+     * Returns a transaction object given its hash, if it exists in this wallet, or null otherwise. Archived transactions
+     * are read from the {@link WalletArchive}.
+     */
+    @Nullable
+    public Transaction getTransaction(Sha256Hash hash) {
+        Transaction tx;
+        PoolsSnapshot snapshot = lockOrSnapshot();
+        if (snapshot != null) {
+            tx = snapshot.transactions.get(hash);
+        } else {
+            try {
+                tx = transactions.get(hash);
+            } finally {
+                lock.unlock();
             }
+        }
+        return tx != null ? tx : getArchivedTransaction(hash);
+    }
+
+    /**
+     * Sets the archive that {@link #archiveSpentTransactions(int)} moves transactions to. The archive isn't part of
+     * the wallet file, so it has to be set again each time the wallet is loaded.
+     */
+    public void setArchive(@Nullable WalletArchive archive) {
+        lock.lock();
+        try {
+            this.archive = archive;
         } finally {
             lock.unlock();
         }
     }
 
+    /** Returns the archive set with {@link #setArchive(WalletArchive)}, or null if there is none. */
+    @Nullable
+    public WalletArchive getArchive() {
+        return archive;
+    }
+
     /**
-     * Returns a transaction object given its hash, if it exists in this wallet, or null otherwise.
+     * <p>Moves spent transactions out of the wallet into its {@link WalletArchive}, to free the memory they take. A
+     * transaction is archived once it is at least minDepth blocks deep, and so are all the transactions spending its
+     * outputs. Archived transactions are no longer in the pools or returned by {@link #getTransactions(boolean)},
+     * but {@link #getTransaction(Sha256Hash)} and the transaction history methods read them from the archive.</p>
+     *
+     * <p>Archived transactions don't take part in re-orgs anymore, so minDepth should be well beyond the deepest re-org
+     * you expect.</p>
+     *
+     * @return the number of transactions archived
      */
-    @Nullable
-    public Transaction getTransaction(Sha256Hash hash) {
+    public int archiveSpentTransactions(int minDepth) throws IOException {
+        checkArgument(minDepth > 0);
         lock.lock();
         try {
-            return transactions.get(hash);
+            WalletArchive archive = this.archive;
+            checkState(archive != null, "No archive set");
+            List<Transaction> archivable = new ArrayList<>();
+            for (Transaction tx : spent.values()) {
+                if (isArchivable(tx, minDepth))
+                    archivable.add(tx);
+            }
+            if (archivable.isEmpty())
+                return 0;
+            // The archive has them safely on disk before they leave the wallet.
+            archive.add(archivable);
+            Set<Sha256Hash> archived = new HashSet<>();
+            for (Transaction tx : archivable)
+                archived.add(tx.getTxId());
+            for (Transaction tx : archivable) {
+                spent.remove(tx.getTxId());
+                transactions.remove(tx.getTxId());
+                removeSpends(tx);
+                // Let go of the archived transactions it spends. Transactions still in the wallet keep theirs.
+                for (TransactionInput input : tx.getInputs()) {
+                    if (archived.contains(input.getOutpoint().getHash()))
+                        input.disconnect();
+                }
+            }
+            log.info("Archived {} spent transactions", archivable.size());
+            saveLater();
+            return archivable.size();
         } finally {
             lock.unlock();
         }
     }
 
+    @GuardedBy("lock")
+    private boolean isArchivable(Transaction tx, int minDepth) {
+        if (!isBuried(tx, minDepth))
+            return false;
+        for (TransactionOutput output : tx.getOutputs()) {
+            TransactionInput spentBy = output.getSpentBy();
+            if (spentBy == null) {
+                if (output.isMineOrWatched(this))
+                    return false;
+            } else if (!isBuried(spentBy.getParentTransaction(), minDepth)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isBuried(Transaction tx, int depth) {
+        TransactionConfidence confidence = tx.getConfidence();
+        return confidence.getConfidenceType() == ConfidenceType.BUILDING && confidence.getDepthInBlocks() >= depth;
+    }
+
+    @Nullable
+    private Transaction getArchivedTransaction(Sha256Hash hash) {
+        WalletArchive archive = this.archive;
+        if (archive == null)
+            return null;
+        try {
+            Transaction tx = archive.get(hash);
+            if (tx != null)
+                updateArchivedDepth(tx);
+            return tx;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private List<Transaction> getArchivedTransactions(WalletArchive archive, int numTransactions) {
+        try {
+            List<Transaction> txs = archive.getRecentTransactions(numTransactions);
+            for (Transaction tx : txs)
+                updateArchivedDepth(tx);
+            return txs;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Archived transactions are as deep as they were when archived. Bring them up to date with the wallet.
+    private void updateArchivedDepth(Transaction tx) {
+        TransactionConfidence confidence = tx.getConfidence();
+        if (confidence.getConfidenceType() == ConfidenceType.BUILDING)
+            confidence.setDepthInBlocks(getLastBlockSeenHeight() - confidence.getAppearedAtChainHeight() + 1);
+    }
+
     @Override
     public Map<Sha256Hash, Transaction> getTransactionPool(Pool pool) {
         lock.lock();
@@ -3155,7 +3864,7 @@ public class Wallet extends BaseTaggableObject
                 case UNSPENT:
                     return unspent;
                 case SPENT:
-                    return spent;
+                    return archive != null ? spentWithArchive : spent;
                 case PENDING:
                     return pending;
                 case DEAD:
@@ -3212,9 +3921,37 @@ public class Wallet extends BaseTaggableObject
         pending.clear();
         dead.clear();
         transactions.clear();
+        spenders.clear();
         myUnspents.clear();
     }
 
+    // Records the outpoints tx spends in the spenders index.
+    private void addSpends(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        if (tx.isCoinBase()) return;
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutPoint outpoint = input.getOutpoint();
+            Set<Transaction> outpointSpenders = spenders.get(outpoint);
+            if (outpointSpenders == null) {
+                // Almost always there is a single spender.
+                outpointSpenders = new HashSet<>(2);
+                spenders.put(outpoint, outpointSpenders);
+            }
+            outpointSpenders.add(tx);
+        }
+    }
+
+    // Removes tx from the spenders index.
+    private void removeSpends(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutPoint outpoint = input.getOutpoint();
+            Set<Transaction> outpointSpenders = spenders.get(outpoint);
+            if (outpointSpenders != null && outpointSpenders.remove(tx) && outpointSpenders.isEmpty())
+                spenders.remove(outpoint);
+        }
+    }
+
     /**
      * Returns all the outputs that match addresses or scripts added via {@link #addWatchedAddress(Address)} or
      * {@link #addWatchedScripts(java.util.List)}.
@@ -3253,8 +3990,7 @@ public class Wallet extends BaseTaggableObject
         lock.lock();
         try {
             boolean dirty = false;
-            for (Iterator<Transaction> i = pending.values().iterator(); i.hasNext();) {
-                Transaction tx = i.next();
+            for (Transaction tx : new ArrayList<>(pending.values())) {
                 if (isTransactionRisky(tx, null) && !acceptRiskyTransactions) {
                     log.debug("Found risky transaction {} in wallet during cleanup.", tx.getTxId());
                     if (!tx.isAnyOutputSpent()) {
@@ -3269,8 +4005,9 @@ public class Wallet extends BaseTaggableObject
                         for (TransactionOutput output : tx.getOutputs())
                             myUnspents.remove(output);
 
-                        i.remove();
+                        pending.remove(tx.getTxId());
                         transactions.remove(tx.getTxId());
+                        removeSpends(tx);
                         dirty = true;
                         log.info("Removed transaction {} from pending pool during cleanup.", tx.getTxId());
                     } else {
@@ -3316,7 +4053,9 @@ public class Wallet extends BaseTaggableObject
 
     @VisibleForTesting
     public int getPoolSize(WalletTransaction.Pool pool) {
-        lock.lock();
+        PoolsSnapshot snapshot = lockOrSnapshot();
+        if (snapshot != null)
+            return snapshot.getPool(pool).size();
         try {
             switch (pool) {
                 case UNSPENT:
@@ -3336,7 +4075,9 @@ public class Wallet extends BaseTaggableObject
 
     @VisibleForTesting
     public boolean poolContainsTxHash(final WalletTransaction.Pool pool, final Sha256Hash txHash) {
-        lock.lock();
+        PoolsSnapshot snapshot = lockOrSnapshot();
+        if (snapshot != null)
+            return snapshot.getPool(pool).containsKey(txHash);
         try {
             switch (pool) {
                 case UNSPENT:
@@ -3502,12 +4243,14 @@ public class Wallet extends BaseTaggableObject
     }
 
     /**
-     * Returns an immutable view of the transactions currently waiting for network confirmations.
+     * Returns an immutable collection of the transactions currently waiting for network confirmations.
      */
     public Collection<Transaction> getPendingTransactions() {
-        lock.lock();
+        PoolsSnapshot snapshot = lockOrSnapshot();
+        if (snapshot != null)
+            return snapshot.pending.values();
         try {
-            return Collections.unmodifiableCollection(pending.values());
+            return ImmutableList.copyOf(pending.values());
         } finally {
             lock.unlock();
         }
@@ -3703,28 +4446,79 @@ public class Wallet extends BaseTaggableObject
     }
 
     /**
-     * Returns the balance of this wallet as calculated by the provided balanceType.
+     * <p>Returns the balance of this wallet as calculated by the provided balanceType.</p>
+     *
+     * <p>Unless a {@link UTXOProvider} is set, this is cheap to call repeatedly. The ESTIMATED balance is kept up to
+     * date as outputs are received and spent, and the other types are remembered until one of our transactions or its
+     * confidence changes, or keys or the coin selector do. This requires the {@link CoinSelector} to make the same
+     * selection for the same candidates, like {@link DefaultCoinSelector} does.</p>
+     *
+     * <p>While another thread is changing the wallet, for example to process a block, the balance as of the end of the
+     * last change is returned instead of waiting for it.</p>
      */
     public Coin getBalance(BalanceType balanceType) {
-        lock.lock();
+        // While another thread holds the lock, answer with the balance as of the end of the last change.
+        if (!lock.tryLock()) {
+            Coin published = publishedBalances.get(balanceType);
+            if (published != null)
+                return published;
+            lock.lock();
+        }
         try {
-            if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
-                List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
-                CoinSelection selection = coinSelector.select(NetworkParameters.MAX_MONEY, candidates);
-                return selection.valueGathered;
-            } else if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE) {
-                List<TransactionOutput> all = calculateAllSpendCandidates(false, balanceType == BalanceType.ESTIMATED_SPENDABLE);
-                Coin value = Coin.ZERO;
-                for (TransactionOutput out : all) value = value.add(out.getValue());
-                return value;
-            } else {
-                throw new AssertionError("Unknown balance type");  // Unreachable.
+            Coin balance = getBalanceLocked(balanceType);
+            if (lock.getHoldCount() == 1 && !balance.equals(publishedBalances.get(balanceType))) {
+                EnumMap<BalanceType, Coin> balances = new EnumMap<>(BalanceType.class);
+                balances.putAll(publishedBalances);
+                balances.put(balanceType, balance);
+                publishedBalances = balances;
             }
+            return balance;
         } finally {
             lock.unlock();
         }
     }
 
+    private Coin getBalanceLocked(BalanceType balanceType) {
+        checkState(lock.isHeldByCurrentThread());
+        if (vUTXOProvider != null)
+            return calculateBalance(balanceType);
+        if (balanceType == BalanceType.ESTIMATED)
+            return myUnspentsValue;
+        long confidenceVersion = confidenceChanges.get();
+        long keysVersion = keyChanges.get();
+        if (cachedBalancesUnspentsVersion != myUnspentsVersion
+                || cachedBalancesConfidenceChanges != confidenceVersion || cachedBalancesKeyChanges != keysVersion
+                || cachedBalancesCoinSelector != coinSelector) {
+            cachedBalances.clear();
+            cachedBalancesUnspentsVersion = myUnspentsVersion;
+            cachedBalancesConfidenceChanges = confidenceVersion;
+            cachedBalancesKeyChanges = keysVersion;
+            cachedBalancesCoinSelector = coinSelector;
+        }
+        Coin balance = cachedBalances.get(balanceType);
+        if (balance == null) {
+            balance = calculateBalance(balanceType);
+            cachedBalances.put(balanceType, balance);
+        }
+        return balance;
+    }
+
+    private Coin calculateBalance(BalanceType balanceType) {
+        checkState(lock.isHeldByCurrentThread());
+        if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
+            List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
+            CoinSelection selection = coinSelector.select(NetworkParameters.MAX_MONEY, candidates);
+            return selection.valueGathered;
+        } else if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE) {
+            List<TransactionOutput> all = calculateAllSpendCandidates(false, balanceType == BalanceType.ESTIMATED_SPENDABLE);
+            Coin value = Coin.ZERO;
+            for (TransactionOutput out : all) value = value.add(out.getValue());
+            return value;
+        } else {
+            throw new AssertionError("Unknown balance type");  // Unreachable.
+        }
+    }
+
     /**
      * Returns the balance that would be considered spendable by the given coin selector, including watched outputs
      * (i.e. balance includes outputs we don't have the private keys for). Just asks it to select as many coins as
@@ -4199,15 +4993,19 @@ public class Wallet extends BaseTaggableObject
             // Calculate a list of ALL potential candidates for spending and then ask a coin selector to provide us
             // with the actual outputs that'll be used to gather the required amount of value. In this way, users
             // can customize coin selection policies. The call below will ignore immature coinbases and outputs
-            // we don't have the keys for.
-            List<TransactionOutput> candidates = calculateAllSpendCandidates(true, req.missingSigsMode == MissingSigsMode.THROW);
+            // we don't have the keys for. A selector that uses the index of unspent outputs doesn't need the list.
+            boolean excludeUnsignable = req.missingSigsMode == MissingSigsMode.THROW;
+            CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
+            List<TransactionOutput> candidates = usesUnspentIndex(selector) ? null
+                    : calculateAllSpendCandidates(true, excludeUnsignable);
 
             CoinSelection bestCoinSelection;
             TransactionOutput bestChangeOutput = null;
             List<Coin> updatedOutputValues = null;
             if (!req.emptyWallet) {
                 // This can throw InsufficientMoneyException.
-                FeeCalculation feeCalculation = calculateFee(req, value, originalInputs, req.ensureMinRequiredFee, candidates);
+                FeeCalculation feeCalculation = calculateFee(req, value, originalInputs, req.ensureMinRequiredFee, candidates,
+                        excludeUnsignable);
                 bestCoinSelection = feeCalculation.bestCoinSelection;
                 bestChangeOutput = feeCalculation.bestChangeOutput;
                 updatedOutputValues = feeCalculation.updatedOutputValues;
@@ -4215,8 +5013,7 @@ public class Wallet extends BaseTaggableObject
                 // We're being asked to empty the wallet. What this means is ensuring "tx" has only a single output
                 // of the total value we can currently spend as determined by the selector, and then subtracting the fee.
                 checkState(req.tx.getOutputs().size() == 1, "Empty wallet TX must have a single output only.");
-                CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
-                bestCoinSelection = selector.select(params.getMaxMoney(), candidates);
+                bestCoinSelection = selectCoins(selector, params.getMaxMoney(), candidates, excludeUnsignable);
                 candidates = null;  // Selector took ownership and might have changed candidates. Don't access again.
                 req.tx.getOutput(0).setValue(bestCoinSelection.valueGathered);
                 log.info("  emptying {}", bestCoinSelection.valueGathered.toFriendlyString());
@@ -4371,11 +5168,8 @@ public class Wallet extends BaseTaggableObject
             if (vUTXOProvider == null) {
                 candidates = new ArrayList<>(myUnspents.size());
                 for (TransactionOutput output : myUnspents) {
-                    if (excludeUnsignable && !canSignFor(output.getScriptPubKey())) continue;
-                    Transaction transaction = checkNotNull(output.getParentTransaction());
-                    if (excludeImmatureCoinbases && !transaction.isMature())
-                        continue;
-                    candidates.add(output);
+                    if (isSpendCandidate(output, excludeImmatureCoinbases, excludeUnsignable))
+                        candidates.add(output);
                 }
             } else {
                 candidates = calculateAllSpendCandidatesFromUTXOProvider(excludeImmatureCoinbases);
@@ -4386,6 +5180,38 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    private boolean isSpendCandidate(TransactionOutput output, boolean excludeImmatureCoinbases,
+                                     boolean excludeUnsignable) {
+        if (excludeUnsignable && !canSignFor(output.getScriptPubKey()))
+            return false;
+        Transaction transaction = checkNotNull(output.getParentTransaction());
+        return !excludeImmatureCoinbases || transaction.isMature();
+    }
+
+    // True if the given selector selects from unspentIndex, rather than from the list of spend candidates.
+    private boolean usesUnspentIndex(CoinSelector selector) {
+        return vUTXOProvider == null && selector instanceof BranchAndBoundCoinSelector;
+    }
+
+    // Selects from the candidates, or from unspentIndex if there are none because the selector uses it.
+    private CoinSelection selectCoins(CoinSelector selector, Coin target, @Nullable List<TransactionOutput> candidates,
+                                      final boolean excludeUnsignable) {
+        checkState(lock.isHeldByCurrentThread());
+        if (candidates != null)
+            return selector.select(target, candidates);
+        if (unspentIndex == null) {
+            unspentIndex = new UnspentOutputIndex();
+            for (TransactionOutput output : myUnspents)
+                unspentIndex.add(output);
+        }
+        return ((BranchAndBoundCoinSelector) selector).select(target, unspentIndex, new Predicate<TransactionOutput>() {
+            @Override
+            public boolean apply(TransactionOutput output) {
+                return isSpendCandidate(output, true, excludeUnsignable);
+            }
+        });
+    }
+
     /**
      * Returns true if this wallet has at least one of the private keys needed to sign for this scriptPubKey. Returns
      * false if the form of the script is not known or if the script is OP_RETURN.
@@ -4651,6 +5477,8 @@ public class Wallet extends BaseTaggableObject
             checkState(confidenceChanged.size() == 0);
             checkState(!insideReorg);
             insideReorg = true;
+            // The depths of all transactions change, which a journal can't express.
+            snapshotRequired = true;
             checkState(onWalletChangedSuppressions == 0);
             onWalletChangedSuppressions++;
 
@@ -5072,7 +5900,8 @@ public class Wallet extends BaseTaggableObject
     //region Fee calculation code
 
     private FeeCalculation calculateFee(SendRequest req, Coin value, List<TransactionInput> originalInputs,
-                                       boolean needAtLeastReferenceFee, List<TransactionOutput> candidates) throws InsufficientMoneyException {
+                                       boolean needAtLeastReferenceFee, @Nullable List<TransactionOutput> candidates,
+                                       boolean excludeUnsignable) throws InsufficientMoneyException {
         checkState(lock.isHeldByCurrentThread());
         FeeCalculation result;
         Coin fee = Coin.ZERO;
@@ -5108,7 +5937,8 @@ public class Wallet extends BaseTaggableObject
             }
             CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
             // selector is allowed to modify candidates list.
-            CoinSelection selection = selector.select(valueNeeded, new LinkedList<>(candidates));
+            CoinSelection selection = selectCoins(selector, valueNeeded,
+                    candidates == null ? null : new LinkedList<>(candidates), excludeUnsignable);
             result.bestCoinSelection = selection;
             // Can we afford this?
             if (selection.valueGathered.compareTo(valueNeeded) < 0) {
@@ -5469,6 +6299,7 @@ public class Wallet extends BaseTaggableObject
                     keyChainGroup.mergeActiveKeyChains(newChains, keyRotationTimestamp);
                 }
             }
+            keyChainGroupChanged();
             saveNow();
         }
 
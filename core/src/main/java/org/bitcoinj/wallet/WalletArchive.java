@@ -0,0 +1,292 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.utils.Threading;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Holds the transactions {@link Wallet#archiveSpentTransactions(int)} moved out of a wallet in a local file, and
+ * reads them back when they are asked for. Only an index is kept in memory: where each transaction is in the file,
+ * when it was last updated, and the outpoints it spends, so that the wallet still recognizes transactions that double
+ * spend archived ones.</p>
+ *
+ * <p>The file is only ever appended to. It belongs to the wallet file and should be kept with it: after loading the
+ * wallet, open the archive again and give it to the wallet with {@link Wallet#setArchive(WalletArchive)}.</p>
+ */
+public class WalletArchive implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(WalletArchive.class);
+
+    private static final int MAGIC = 0x624a4152; // "bJAR"
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+    // Transactions read recently, so that the ones asked for again and again don't have to be read every time.
+    private static final int CACHE_SIZE = 100;
+
+    private final NetworkParameters params;
+    private final File file;
+    private final ReentrantLock lock = Threading.lock("walletarchive");
+
+    private static class Entry {
+        final long offset;
+        final int length;
+        final long updateTime;
+
+        Entry(long offset, int length, long updateTime) {
+            this.offset = offset;
+            this.length = length;
+            this.updateTime = updateTime;
+        }
+    }
+
+    @GuardedBy("lock") private final RandomAccessFile data;
+    @GuardedBy("lock") private long size;
+    @GuardedBy("lock") private final Map<Sha256Hash, Entry> index = new HashMap<>();
+    @GuardedBy("lock") private final Set<TransactionOutPoint> spentOutPoints = new HashSet<>();
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, Transaction> cache =
+            new LinkedHashMap<Sha256Hash, Transaction>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Transaction> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Opens the archive in the given file, creating it if it doesn't exist yet. A record cut short by a crash at the
+     * end of the file is dropped.
+     */
+    public WalletArchive(NetworkParameters params, File file) throws IOException {
+        this.params = checkNotNull(params);
+        this.file = checkNotNull(file);
+        this.data = new RandomAccessFile(file, "rw");
+        try {
+            if (data.length() == 0) {
+                data.writeInt(MAGIC);
+                data.getFD().sync();
+                size = 4;
+            } else {
+                size = readIndex();
+                if (size < data.length()) {
+                    log.warn("Dropping {} bytes at the end of wallet archive {}", data.length() - size, file);
+                    data.setLength(size);
+                }
+            }
+        } catch (IOException e) {
+            data.close();
+            throw e;
+        }
+        log.info("Opened wallet archive {} with {} transactions", file, index.size());
+    }
+
+    // Reads the index of all complete records, and returns where the last of them ends.
+    private long readIndex() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a wallet archive: " + file);
+            long offset = 4;
+            while (true) {
+                byte[] payload;
+                try {
+                    int length = in.readInt();
+                    if (length < 0 || length > MAX_RECORD_SIZE)
+                        return offset;
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    if (in.readInt() != checksum(payload))
+                        return offset;
+                } catch (EOFException e) {
+                    return offset;
+                }
+                Protos.Transaction txProto = Protos.Transaction.parseFrom(payload);
+                addToIndex(txProto, offset, payload.length);
+                offset += 4 + payload.length + 4;
+            }
+        }
+    }
+
+    @GuardedBy("lock")
+    private void addToIndex(Protos.Transaction txProto, long offset, int length) {
+        Sha256Hash hash = WalletProtobufSerializer.byteStringToHash(txProto.getHash());
+        index.put(hash, new Entry(offset, length, txProto.getUpdatedAt()));
+        for (Protos.TransactionInput input : txProto.getTransactionInputList()) {
+            spentOutPoints.add(new TransactionOutPoint(params, input.getTransactionOutPointIndex() & 0xFFFFFFFFL,
+                    WalletProtobufSerializer.byteStringToHash(input.getTransactionOutPointHash())));
+        }
+    }
+
+    /**
+     * Appends the given transactions to the archive, skipping the ones already in it, and forces them to disk. They
+     * are archived as spent transactions.
+     */
+    void add(Collection<Transaction> txs) throws IOException {
+        lock.lock();
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            List<Protos.Transaction> added = new ArrayList<>();
+            List<Long> offsets = new ArrayList<>();
+            for (Transaction tx : txs) {
+                if (index.containsKey(tx.getTxId()))
+                    continue;
+                Protos.Transaction txProto =
+                        WalletProtobufSerializer.makeTxProto(new WalletTransaction(WalletTransaction.Pool.SPENT, tx));
+                byte[] payload = txProto.toByteArray();
+                offsets.add(size + out.size());
+                out.writeInt(payload.length);
+                out.write(payload);
+                out.writeInt(checksum(payload));
+                added.add(txProto);
+            }
+            if (added.isEmpty())
+                return;
+            try {
+                data.seek(size);
+                data.write(bytes.toByteArray());
+                data.getFD().sync();
+            } catch (IOException e) {
+                data.setLength(size);
+                throw e;
+            }
+            for (int i = 0; i < added.size(); i++)
+                addToIndex(added.get(i), offsets.get(i), added.get(i).getSerializedSize());
+            size += bytes.size();
+            log.info("Archived {} transactions, archive is now {} bytes", added.size(), size);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the archived transaction with the given hash, read from the file, or null if it isn't archived. */
+    @Nullable
+    public Transaction get(Sha256Hash hash) throws IOException {
+        lock.lock();
+        try {
+            Transaction tx = cache.get(hash);
+            if (tx != null)
+                return tx;
+            Entry entry = index.get(hash);
+            if (entry == null)
+                return null;
+            tx = read(entry);
+            cache.put(hash, tx);
+            return tx;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the given number of archived transactions that were updated last, or all of them if the number is zero,
+     * most recently updated first.
+     */
+    public List<Transaction> getRecentTransactions(int numTransactions) throws IOException {
+        checkArgument(numTransactions >= 0);
+        lock.lock();
+        try {
+            List<Map.Entry<Sha256Hash, Entry>> entries = new ArrayList<>(index.entrySet());
+            Collections.sort(entries, new Comparator<Map.Entry<Sha256Hash, Entry>>() {
+                @Override
+                public int compare(Map.Entry<Sha256Hash, Entry> a, Map.Entry<Sha256Hash, Entry> b) {
+                    return Long.compare(b.getValue().updateTime, a.getValue().updateTime);
+                }
+            });
+            if (numTransactions == 0 || numTransactions > entries.size())
+                numTransactions = entries.size();
+            List<Transaction> txs = new ArrayList<>(numTransactions);
+            for (Map.Entry<Sha256Hash, Entry> entry : entries.subList(0, numTransactions)) {
+                Transaction tx = cache.get(entry.getKey());
+                txs.add(tx != null ? tx : read(entry.getValue()));
+            }
+            return txs;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private Transaction read(Entry entry) throws IOException {
+        byte[] payload = new byte[entry.length];
+        data.seek(entry.offset + 4);
+        data.readFully(payload);
+        try {
+            return WalletProtobufSerializer.readDetachedTransaction(params, Protos.Transaction.parseFrom(payload));
+        } catch (UnreadableWalletException e) {
+            throw new IOException("Could not read archived transaction", e);
+        }
+    }
+
+    /** Returns true if the transaction with the given hash is archived. */
+    public boolean contains(Sha256Hash hash) {
+        lock.lock();
+        try {
+            return index.containsKey(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true if an archived transaction spends the given outpoint. */
+    public boolean spends(TransactionOutPoint outpoint) {
+        lock.lock();
+        try {
+            return spentOutPoints.contains(outpoint);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of archived transactions. */
+    public int size() {
+        lock.lock();
+        try {
+            return index.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Closes the archive file. */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            data.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+}
@@ -47,8 +47,10 @@ public class WalletFiles {
     private final long delay;
     private final TimeUnit delayTimeUnit;
     private final Callable<Void> saver;
+    private final Runnable compacter;
 
     private volatile Listener vListener;
+    @Nullable private volatile WalletJournal vJournal;
 
     /**
      * Implementors can do pre/post treatment of the wallet file. Useful for adjusting permissions and other things.
@@ -100,6 +102,19 @@ public class WalletFiles {
                 return null;
             }
         };
+        this.compacter = new Runnable() {
+            @Override public void run() {
+                // Runs in an auto save thread.
+                WalletJournal journal = vJournal;
+                if (journal == null)
+                    return;
+                try {
+                    journal.compact();
+                } catch (IOException e) {
+                    log.error("Failed to compact wallet journal", e);
+                }
+            }
+        };
     }
 
     /** Get the {@link Wallet} this {@link WalletFiles} is managing. */
@@ -114,6 +129,17 @@ public class WalletFiles {
         this.vListener = checkNotNull(listener);
     }
 
+    /**
+     * Saves changes by appending them to a journal next to the wallet file, instead of rewriting the whole wallet
+     * file each time. The wallet file is rewritten in the background once the journal has grown large. The next
+     * save writes the wallet file in full and starts the journal. See {@link WalletJournal}.
+     */
+    public synchronized WalletJournal enableJournal() {
+        if (vJournal == null)
+            vJournal = new WalletJournal(wallet, file);
+        return vJournal;
+    }
+
     /** Actually write the wallet file to disk, using an atomic rename when possible. Runs on the current thread. */
     public void saveNow() throws IOException {
         // Can be called by any thread. However the wallet is locked whilst saving, so we can have two saves in flight
@@ -129,12 +155,23 @@ public class WalletFiles {
 
     private void saveNowInternal() throws IOException {
         final Stopwatch watch = Stopwatch.createStarted();
+        final WalletJournal journal = vJournal;
+        if (journal != null && journal.append()) {
+            if (journal.needsCompaction() && !executor.isShutdown())
+                executor.execute(compacter);
+            watch.stop();
+            log.info("Save to journal completed in {}", watch);
+            return;
+        }
         File directory = file.getAbsoluteFile().getParentFile();
         File temp = File.createTempFile("wallet", null, directory);
         final Listener listener = vListener;
         if (listener != null)
             listener.onBeforeAutoSave(temp);
-        wallet.saveToFile(temp, file);
+        if (journal != null)
+            journal.writeSnapshot(temp);
+        else
+            wallet.saveToFile(temp, file);
         if (listener != null)
             listener.onAfterAutoSave(file);
         watch.stop();
@@ -156,5 +193,8 @@ public class WalletFiles {
         } catch (InterruptedException x) {
             throw new RuntimeException(x);
         }
+        WalletJournal journal = vJournal;
+        if (journal != null)
+            journal.close();
     }
 }
@@ -0,0 +1,461 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.ByteString;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Saves a wallet as a base file in the usual protobuf format, followed by a journal file with the changes made
+ * since. Saving then only appends the transactions that changed, and the rest of the wallet if it changed, instead of
+ * rewriting the whole wallet. Once the journal has grown large enough, the wallet is written to a new base file in
+ * the background, holding the wallet lock only while serializing it. Changes a journal can't express, like a re-org,
+ * cause the whole wallet to be written again.</p>
+ *
+ * <p>The journal is a file next to the base file, see {@link #getJournalFile(File)}. It starts with the hash of the
+ * base file it applies to, so that a journal left behind by an interrupted save is recognized and ignored.
+ * {@link Wallet#loadFromFile(File, WalletExtension...)} replays it. Use {@link WalletFiles#enableJournal()} to save
+ * a wallet this way.</p>
+ *
+ * <p>The wallet doesn't notice when the memo, exchange rate or purpose of a transaction is set. Each save compares
+ * them to what was last written, and appends the transactions where they differ.</p>
+ */
+public class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    /** The journal is merged into the base file once it is at least this large, and half as large as the base file. */
+    public static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+
+    private static final int MAGIC = 0x624a4e4c; // "bJNL"
+    private static final int HEADER_SIZE = 4 + 32;
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+    // Record types. The wallet without its transactions, a transaction with its pool, the hash of a removed transaction.
+    private static final byte RECORD_WALLET = 1;
+    private static final byte RECORD_TRANSACTION = 2;
+    private static final byte RECORD_REMOVAL = 3;
+
+    private final Wallet wallet;
+    private final File file;
+    private final File journalFile;
+    private final WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+
+    @GuardedBy("this") @Nullable private DataOutputStream journal;
+    @GuardedBy("this") @Nullable private FileOutputStream journalFileStream;
+    @GuardedBy("this") private long journalSize;
+    // The wallet without its transactions, as last written.
+    @GuardedBy("this") @Nullable private ByteString lastWallet;
+    // The memo, exchange rate and purpose of the transactions that have any of them, as last written.
+    @GuardedBy("this") private Map<Sha256Hash, List<Object>> lastDetails = Collections.emptyMap();
+    // To notice when the base file was replaced by someone else, and the journal doesn't apply to it anymore.
+    @GuardedBy("this") private long baseLength, baseLastModified;
+    // Incremented whenever the base file is written in full, which abandons a compaction in progress.
+    @GuardedBy("this") private int generation;
+    @GuardedBy("this") private boolean compacting;
+
+    /**
+     * Creates a journal for the given wallet and base file. The wallet starts remembering which transactions changed,
+     * and the first save writes the wallet in full.
+     */
+    public WalletJournal(Wallet wallet, File file) {
+        this.wallet = checkNotNull(wallet);
+        this.file = checkNotNull(file);
+        this.journalFile = getJournalFile(file);
+        wallet.setTrackingUnsavedTransactions(true);
+    }
+
+    /** Returns the journal file that belongs to the given wallet file. */
+    public static File getJournalFile(File walletFile) {
+        return new File(walletFile.getPath() + ".journal");
+    }
+
+    // The journal being replaced while the base file is.
+    private static File getOldJournalFile(File walletFile) {
+        return new File(walletFile.getPath() + ".journal.old");
+    }
+
+    /** Returns true if the given wallet file has a journal that may have to be replayed. */
+    public static boolean hasJournal(File walletFile) {
+        return getJournalFile(walletFile).exists() || getOldJournalFile(walletFile).exists();
+    }
+
+    /**
+     * Appends the changes since the last save to the journal. Returns false, without saving anything, if the wallet
+     * has to be written in full using {@link #writeSnapshot(File)} instead.
+     */
+    public boolean append() throws IOException {
+        wallet.lock.lock();
+        try {
+            synchronized (this) {
+                if (journal == null || file.length() != baseLength || file.lastModified() != baseLastModified)
+                    return false;
+            }
+            Set<Sha256Hash> changed = wallet.getUnsavedTransactions();
+            if (changed == null)
+                return false;
+            Map<Sha256Hash, List<Object>> details = getDetails();
+            synchronized (this) {
+                for (Map.Entry<Sha256Hash, List<Object>> entry : details.entrySet())
+                    if (!entry.getValue().equals(lastDetails.get(entry.getKey())))
+                        changed.add(entry.getKey());
+                for (Sha256Hash hash : lastDetails.keySet())
+                    if (!details.containsKey(hash))
+                        changed.add(hash);
+            }
+            ByteString walletBytes = serializer.walletToProto(wallet, false).toByteString();
+            List<byte[]> records = new ArrayList<>(changed.size());
+            List<Byte> types = new ArrayList<>(changed.size());
+            for (Sha256Hash hash : changed) {
+                WalletTransaction wtx = wallet.getWalletTransaction(hash);
+                if (wtx != null) {
+                    records.add(WalletProtobufSerializer.makeTxProto(wtx).toByteArray());
+                    types.add(RECORD_TRANSACTION);
+                } else {
+                    records.add(hash.getBytes());
+                    types.add(RECORD_REMOVAL);
+                }
+            }
+            long size;
+            synchronized (this) {
+                try {
+                    DataOutputStream out = checkNotNull(journal);
+                    if (!walletBytes.equals(lastWallet)) {
+                        writeRecord(out, RECORD_WALLET, walletBytes.toByteArray());
+                        lastWallet = walletBytes;
+                    }
+                    for (int i = 0; i < records.size(); i++)
+                        writeRecord(out, types.get(i), records.get(i));
+                    out.flush();
+                    checkNotNull(journalFileStream).getFD().sync();
+                    journalSize = size = journalFileStream.getChannel().size();
+                    lastDetails = details;
+                } catch (IOException e) {
+                    // The journal may end with part of a record now. Start a new one with the next save.
+                    closeJournal();
+                    throw e;
+                }
+            }
+            wallet.markSaved();
+            log.info("Appended {} transactions to wallet journal, now {} bytes", records.size(), size);
+            return true;
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the whole wallet to the given temporary file, renames it to the base file and starts an empty journal.
+     */
+    public void writeSnapshot(File temp) throws IOException {
+        wallet.lock.lock();
+        try {
+            ByteString walletBytes = serializer.walletToProto(wallet, false).toByteString();
+            Map<Sha256Hash, List<Object>> details = getDetails();
+            synchronized (this) {
+                generation++;
+                closeJournal();
+                writeFile(temp, new FileWriter() {
+                    @Override
+                    public void write(OutputStream out) throws IOException {
+                        wallet.saveToFileStream(out);
+                    }
+                });
+                replaceBase(temp, Sha256Hash.of(temp), null);
+                lastWallet = walletBytes;
+                lastDetails = details;
+            }
+            wallet.markSaved();
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    /** Returns true if the journal is large enough to be merged into the base file. */
+    public synchronized boolean needsCompaction() {
+        return journal != null && !compacting && journalSize >= Math.max(MIN_COMPACTION_SIZE, baseLength / 2);
+    }
+
+    /**
+     * Writes the wallet to a new base file and starts a new journal. The wallet lock is only held while the wallet is
+     * serialized, and saves can go on meanwhile: what they append is carried over to the new journal.
+     */
+    public void compact() throws IOException {
+        final Protos.Wallet snapshot;
+        final long snapshotSize;
+        final int startGeneration;
+        wallet.lock.lock();
+        try {
+            synchronized (this) {
+                if (journal == null || compacting)
+                    return;
+                snapshotSize = journalSize;
+                startGeneration = generation;
+            }
+            snapshot = serializer.walletToProto(wallet);
+            synchronized (this) {
+                compacting = true;
+            }
+        } finally {
+            wallet.lock.unlock();
+        }
+        try {
+            File temp = File.createTempFile("wallet", null, file.getAbsoluteFile().getParentFile());
+            writeFile(temp, new FileWriter() {
+                @Override
+                public void write(OutputStream out) throws IOException {
+                    snapshot.writeTo(out);
+                }
+            });
+            Sha256Hash hash = Sha256Hash.of(temp);
+            synchronized (this) {
+                if (generation != startGeneration || journal == null) {
+                    // The wallet was written in full meanwhile.
+                    temp.delete();
+                    return;
+                }
+                // Keep what was appended since the wallet was serialized.
+                byte[] tail = new byte[(int) (journalSize - snapshotSize)];
+                try (RandomAccessFile in = new RandomAccessFile(journalFile, "r")) {
+                    in.seek(snapshotSize);
+                    in.readFully(tail);
+                }
+                closeJournal();
+                replaceBase(temp, hash, tail);
+            }
+            log.info("Compacted wallet journal of {} bytes into {}", snapshotSize, file);
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    // The memo, exchange rate and purpose of each transaction that has any of them. The wallet doesn't notice when
+    // they are set.
+    private Map<Sha256Hash, List<Object>> getDetails() {
+        Map<Sha256Hash, List<Object>> details = new HashMap<>();
+        for (Transaction tx : wallet.getTransactions(true)) {
+            if (tx.getMemo() != null || tx.getExchangeRate() != null || tx.getPurpose() != Transaction.Purpose.UNKNOWN)
+                details.put(tx.getTxId(), Arrays.<Object>asList(tx.getMemo(), tx.getExchangeRate(), tx.getPurpose()));
+        }
+        return details;
+    }
+
+    /** Closes the journal file. */
+    public synchronized void close() {
+        closeJournal();
+    }
+
+    @GuardedBy("this")
+    private void closeJournal() {
+        if (journal == null)
+            return;
+        try {
+            journal.close();
+        } catch (IOException e) {
+            log.warn("Failed to close wallet journal", e);
+        }
+        journal = null;
+        journalFileStream = null;
+    }
+
+    // Replaces the base file with temp and the journal with one for it, holding the given records. The old journal is
+    // kept until the base file is replaced, so that whichever of them applies to the base file can be replayed.
+    @GuardedBy("this")
+    private void replaceBase(File temp, final Sha256Hash hash, @Nullable final byte[] records) throws IOException {
+        File newJournal = File.createTempFile("journal", null, file.getAbsoluteFile().getParentFile());
+        writeFile(newJournal, new FileWriter() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                DataOutputStream data = new DataOutputStream(out);
+                data.writeInt(MAGIC);
+                data.write(hash.getBytes());
+                if (records != null)
+                    data.write(records);
+                data.flush();
+            }
+        });
+        File oldJournal = getOldJournalFile(file);
+        if (journalFile.exists())
+            move(journalFile, oldJournal);
+        move(newJournal, journalFile);
+        move(temp, file);
+        oldJournal.delete();
+        baseLength = file.length();
+        baseLastModified = file.lastModified();
+        journalFileStream = new FileOutputStream(journalFile, true);
+        journal = new DataOutputStream(new BufferedOutputStream(journalFileStream));
+        journalSize = journalFile.length();
+    }
+
+    private interface FileWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
+    // Writes the given file and forces it to disk.
+    private static void writeFile(File file, FileWriter writer) throws IOException {
+        try (FileOutputStream stream = new FileOutputStream(file)) {
+            BufferedOutputStream out = new BufferedOutputStream(stream);
+            writer.write(out);
+            out.flush();
+            stream.getFD().sync();
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+    }
+
+    private static void move(File from, File to) throws IOException {
+        Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeRecord(DataOutputStream out, byte type, byte[] payload) throws IOException {
+        out.writeByte(type);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.writeInt(checksum(type, payload));
+    }
+
+    private static int checksum(byte type, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Reads the given wallet file and replays its journal, if there is one that applies to it. This is what
+     * {@link Wallet#loadFromFile(File, WalletExtension...)} does for wallets with a journal.
+     */
+    public static Wallet readWallet(File file, @Nullable WalletExtension[] extensions)
+            throws UnreadableWalletException {
+        try {
+            Protos.Wallet walletProto = parseBase(file);
+            Sha256Hash hash = Sha256Hash.of(file);
+            for (File journal : new File[] { getJournalFile(file), getOldJournalFile(file) }) {
+                if (hash.equals(readBaseHash(journal))) {
+                    walletProto = merge(walletProto, journal);
+                    break;
+                }
+            }
+            NetworkParameters params = NetworkParameters.fromID(walletProto.getNetworkIdentifier());
+            if (params == null)
+                throw new UnreadableWalletException("Unknown network parameters ID " + walletProto.getNetworkIdentifier());
+            Wallet wallet = new WalletProtobufSerializer().readWallet(params, extensions, walletProto);
+            if (!wallet.isConsistent())
+                log.error("Loaded an inconsistent wallet");
+            return wallet;
+        } catch (IOException e) {
+            throw new UnreadableWalletException("Could not read wallet with journal", e);
+        }
+    }
+
+    private static Protos.Wallet parseBase(File file) throws IOException {
+        try (InputStream stream = new BufferedInputStream(new FileInputStream(file))) {
+            return WalletProtobufSerializer.parseToProto(stream);
+        }
+    }
+
+    @Nullable
+    private static Sha256Hash readBaseHash(File journal) throws IOException {
+        if (!journal.exists())
+            return null;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(journal))) {
+            if (in.readInt() != MAGIC)
+                return null;
+            byte[] hash = new byte[Sha256Hash.LENGTH];
+            in.readFully(hash);
+            return Sha256Hash.wrap(hash);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    // Applies the records of the given journal to the wallet. Records that were cut short
+    // or are damaged end the journal.
+    private static Protos.Wallet merge(Protos.Wallet base, File journal) throws IOException {
+        Protos.Wallet wallet = base;
+        Map<ByteString, Protos.Transaction> transactions = new LinkedHashMap<>();
+        for (Protos.Transaction tx : base.getTransactionList())
+            transactions.put(tx.getHash(), tx);
+        // The last seen block height when each journaled transaction was written, to bring its depth up to date.
+        Map<ByteString, Integer> writtenAtHeight = new HashMap<>();
+        int records = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)))) {
+            in.skipBytes(HEADER_SIZE);
+            while (true) {
+                byte type;
+                byte[] payload;
+                try {
+                    type = in.readByte();
+                    int length = in.readInt();
+                    if (length < 0 || length > MAX_RECORD_SIZE)
+                        break;
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    if (in.readInt() != checksum(type, payload))
+                        break;
+                } catch (EOFException e) {
+                    break;
+                }
+                if (type == RECORD_WALLET) {
+                    wallet = Protos.Wallet.parseFrom(payload);
+                } else if (type == RECORD_TRANSACTION) {
+                    Protos.Transaction tx = Protos.Transaction.parseFrom(payload);
+                    transactions.put(tx.getHash(), tx);
+                    writtenAtHeight.put(tx.getHash(), wallet.getLastSeenBlockHeight());
+                } else if (type == RECORD_REMOVAL) {
+                    transactions.remove(ByteString.copyFrom(payload));
+                    writtenAtHeight.remove(ByteString.copyFrom(payload));
+                } else {
+                    break;
+                }
+                records++;
+            }
+        }
+        log.info("Replayed {} records of wallet journal {}", records, journal);
+        // Each new best block makes the transactions in the best chain one block deeper.
+        int height = wallet.getLastSeenBlockHeight();
+        Protos.Wallet.Builder merged = wallet.toBuilder().clearTransaction();
+        for (Protos.Transaction tx : transactions.values()) {
+            Integer writtenAt = writtenAtHeight.get(tx.getHash());
+            int blocks = height - (writtenAt != null ? writtenAt : base.getLastSeenBlockHeight());
+            if (blocks != 0 && tx.hasConfidence() && tx.getConfidence().hasDepth()
+                    && tx.getConfidence().getType() == Protos.TransactionConfidence.Type.BUILDING) {
+                Protos.TransactionConfidence.Builder confidence = tx.getConfidence().toBuilder()
+                        .setDepth(tx.getConfidence().getDepth() + blocks);
+                tx = tx.toBuilder().setConfidence(confidence).build();
+            }
+            merged.addTransaction(tx);
+        }
+        return merged.build();
+    }
+}
@@ -33,6 +33,7 @@ import org.bitcoinj.crypto.KeyCrypter;
 import org.bitcoinj.crypto.KeyCrypterScrypt;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptException;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
 import org.bitcoinj.utils.ExchangeRate;
 import org.bitcoinj.utils.Fiat;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
@@ -41,6 +42,7 @@ import com.google.common.collect.Lists;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.TextFormat;
 import com.google.protobuf.WireFormat;
 
@@ -58,7 +60,14 @@ import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.*;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -87,12 +96,15 @@ public class WalletProtobufSerializer {
     public static final int CURRENT_WALLET_VERSION = Protos.Wallet.getDefaultInstance().getVersion();
     // 512 MB
     private static final int WALLET_SIZE_LIMIT = 512 * 1024 * 1024;
+    // Transactions read from a stream are decoded in chunks of this many, so that large wallets use all cores.
+    private static final int TRANSACTION_CHUNK_SIZE = 1000;
     // Used for de-serialization
     protected Map<ByteString, Transaction> txMap;
 
     private boolean requireMandatoryExtensions = true;
     private boolean requireAllExtensionsKnown = false;
     private int walletWriteBufferSize = CodedOutputStream.DEFAULT_BUFFER_SIZE;
+    private int loadThreads = Runtime.getRuntime().availableProcessors();
 
     public interface WalletFactory {
         Wallet create(NetworkParameters params, KeyChainGroup keyChainGroup);
@@ -120,6 +132,15 @@ public class WalletProtobufSerializer {
         this.keyChainFactory = keyChainFactory;
     }
 
+    /**
+     * Sets how many threads decode transactions when a wallet is read from a stream. Defaults to the number of
+     * processors. With one thread, everything is done on the calling thread.
+     */
+    public void setLoadThreads(int loadThreads) {
+        checkArgument(loadThreads > 0);
+        this.loadThreads = loadThreads;
+    }
+
     /**
      * If this property is set to false, then unknown mandatory extensions will be ignored instead of causing load
      * errors. You should only use this if you know exactly what you are doing, as the extension data will NOT be
@@ -173,15 +194,25 @@ public class WalletProtobufSerializer {
      * additional data fields set, before serialization takes place.
      */
     public Protos.Wallet walletToProto(Wallet wallet) {
+        return walletToProto(wallet, true);
+    }
+
+    /**
+     * Converts the given wallet to the object representation of the protocol buffers, optionally leaving out the
+     * transactions. {@link WalletJournal} saves them separately.
+     */
+    Protos.Wallet walletToProto(Wallet wallet, boolean includeTransactions) {
         Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
         walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
         if (wallet.getDescription() != null) {
             walletBuilder.setDescription(wallet.getDescription());
         }
 
-        for (WalletTransaction wtx : wallet.getWalletTransactions()) {
-            Protos.Transaction txProto = makeTxProto(wtx);
-            walletBuilder.addTransaction(txProto);
+        if (includeTransactions) {
+            for (WalletTransaction wtx : wallet.getWalletTransactions()) {
+                Protos.Transaction txProto = makeTxProto(wtx);
+                walletBuilder.addTransaction(txProto);
+            }
         }
 
         walletBuilder.addAllKey(wallet.serializeKeyChainGroupToProtobuf());
@@ -250,7 +281,7 @@ public class WalletProtobufSerializer {
         }
     }
 
-    private static Protos.Transaction makeTxProto(WalletTransaction wtx) {
+    static Protos.Transaction makeTxProto(WalletTransaction wtx) {
         Transaction tx = wtx.getTransaction();
         Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
 
@@ -437,19 +468,36 @@ public class WalletProtobufSerializer {
      * @throws UnreadableWalletException thrown in various error conditions (see description).
      */
     public Wallet readWallet(InputStream input, boolean forceReset, @Nullable WalletExtension[] extensions) throws UnreadableWalletException {
+        // Transactions are decoded in parallel while the rest of the stream is read, and the key chains are rebuilt
+        // while the last of them are decoded.
+        TransactionDecoder decoder = forceReset ? null : new TransactionDecoder();
         try {
-            Protos.Wallet walletProto = parseToProto(input);
+            final Protos.Wallet walletProto = parseToProto(input, decoder);
             final String paramsID = walletProto.getNetworkIdentifier();
-            NetworkParameters params = NetworkParameters.fromID(paramsID);
+            final NetworkParameters params = NetworkParameters.fromID(paramsID);
             if (params == null)
                 throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
-            return readWallet(params, extensions, walletProto, forceReset);
+            checkWallet(params, walletProto);
+            if (decoder == null)
+                return readWallet(params, extensions, walletProto, readKeyChainGroup(params, walletProto),
+                        Collections.<DecodedTransaction>emptyList(), true);
+            Future<KeyChainGroup> keyChainGroup = decoder.submit(new Callable<KeyChainGroup>() {
+                @Override
+                public KeyChainGroup call() throws UnreadableWalletException {
+                    return readKeyChainGroup(params, walletProto);
+                }
+            });
+            List<DecodedTransaction> transactions = decoder.finish(params);
+            return readWallet(params, extensions, walletProto, getDecoded(keyChainGroup), transactions, false);
         } catch (IOException e) {
             throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
         } catch (IllegalStateException e) {
             throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
         } catch (IllegalArgumentException e) {
             throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
+        } finally {
+            if (decoder != null)
+                decoder.shutdown();
         }
     }
 
@@ -487,20 +535,38 @@ public class WalletProtobufSerializer {
      */
     public Wallet readWallet(NetworkParameters params, @Nullable WalletExtension[] extensions,
                              Protos.Wallet walletProto, boolean forceReset) throws UnreadableWalletException {
+        checkWallet(params, walletProto);
+        KeyChainGroup keyChainGroup = readKeyChainGroup(params, walletProto);
+        List<DecodedTransaction> transactions = new ArrayList<>();
+        if (!forceReset) {
+            for (Protos.Transaction txProto : walletProto.getTransactionList())
+                transactions.add(new DecodedTransaction(txProto, readTransaction(txProto, params)));
+        }
+        return readWallet(params, extensions, walletProto, keyChainGroup, transactions, forceReset);
+    }
+
+    private static void checkWallet(NetworkParameters params, Protos.Wallet walletProto) throws UnreadableWalletException {
         if (walletProto.getVersion() > CURRENT_WALLET_VERSION)
             throw new UnreadableWalletException.FutureVersion();
         if (!walletProto.getNetworkIdentifier().equals(params.getId()))
             throw new UnreadableWalletException.WrongNetwork();
+    }
 
+    private KeyChainGroup readKeyChainGroup(NetworkParameters params, Protos.Wallet walletProto) throws UnreadableWalletException {
         // Read the scrypt parameters that specify how encryption and decryption is performed.
-        KeyChainGroup keyChainGroup;
         if (walletProto.hasEncryptionParameters()) {
             Protos.ScryptParameters encryptionParameters = walletProto.getEncryptionParameters();
             final KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(encryptionParameters);
-            keyChainGroup = KeyChainGroup.fromProtobufEncrypted(params, walletProto.getKeyList(), keyCrypter, keyChainFactory);
+            return KeyChainGroup.fromProtobufEncrypted(params, walletProto.getKeyList(), keyCrypter, keyChainFactory);
         } else {
-            keyChainGroup = KeyChainGroup.fromProtobufUnencrypted(params, walletProto.getKeyList(), keyChainFactory);
+            return KeyChainGroup.fromProtobufUnencrypted(params, walletProto.getKeyList(), keyChainFactory);
         }
+    }
+
+    // Builds the wallet from the given decoded transactions. The transactions of walletProto itself are ignored.
+    private Wallet readWallet(NetworkParameters params, @Nullable WalletExtension[] extensions,
+                              Protos.Wallet walletProto, KeyChainGroup keyChainGroup,
+                              List<DecodedTransaction> transactions, boolean forceReset) throws UnreadableWalletException {
         Wallet wallet = factory.create(params, keyChainGroup);
 
         List<Script> scripts = Lists.newArrayList();
@@ -527,14 +593,15 @@ public class WalletProtobufSerializer {
             wallet.setLastBlockSeenHeight(-1);
             wallet.setLastBlockSeenTimeSecs(0);
         } else {
-            // Read all transactions and insert into the txMap.
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                readTransaction(txProto, wallet.getParams());
+            // Index all transactions by hash in the txMap.
+            for (DecodedTransaction decoded : transactions) {
+                if (txMap.put(decoded.proto.getHash(), decoded.tx) != null)
+                    throw new UnreadableWalletException("Wallet contained duplicate transaction " + decoded.tx.getTxId());
             }
 
             // Update transaction outputs to point to inputs that spend them
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                WalletTransaction wtx = connectTransactionOutputs(params, txProto);
+            for (DecodedTransaction decoded : transactions) {
+                WalletTransaction wtx = connectTransactionOutputs(params, decoded.proto);
                 wallet.addWalletTransaction(wtx);
             }
 
@@ -611,6 +678,180 @@ public class WalletProtobufSerializer {
         }
     }
 
+    // Reads a wallet from the stream like parseToProto, but hands the transactions to the decoder as they go past
+    // instead of keeping them in the result. They are dropped if there is no decoder.
+    private static Protos.Wallet parseToProto(InputStream input, @Nullable TransactionDecoder decoder) throws IOException {
+        CodedInputStream codedInput = CodedInputStream.newInstance(input);
+        codedInput.setSizeLimit(WALLET_SIZE_LIMIT);
+        ByteString.Output rest = ByteString.newOutput();
+        CodedOutputStream restOutput = CodedOutputStream.newInstance(rest);
+        while (true) {
+            int tag = codedInput.readTag();
+            if (tag == 0)
+                break;
+            int fieldNumber = WireFormat.getTagFieldNumber(tag);
+            boolean lengthDelimited = WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED;
+            if (fieldNumber == Protos.Wallet.TRANSACTION_FIELD_NUMBER && lengthDelimited) {
+                if (decoder != null)
+                    decoder.add(codedInput.readBytes());
+                else
+                    codedInput.skipField(tag);
+            } else if (fieldNumber == Protos.Wallet.NETWORK_IDENTIFIER_FIELD_NUMBER && lengthDelimited) {
+                // Comes first in files we write, so transactions can be decoded before the stream ends.
+                ByteString networkIdentifier = codedInput.readBytes();
+                restOutput.writeBytes(fieldNumber, networkIdentifier);
+                if (decoder != null)
+                    decoder.setParams(NetworkParameters.fromID(networkIdentifier.toStringUtf8()));
+            } else if (!copyField(tag, codedInput, restOutput)) {
+                break;
+            }
+        }
+        restOutput.flush();
+        return Protos.Wallet.parseFrom(rest.toByteString());
+    }
+
+    // Copies the field whose tag was just read from the input to the output. Returns false if the tag ends a group, like
+    // CodedInputStream.skipField.
+    private static boolean copyField(int tag, CodedInputStream input, CodedOutputStream output) throws IOException {
+        switch (WireFormat.getTagWireType(tag)) {
+            case WireFormat.WIRETYPE_VARINT: {
+                long value = input.readRawVarint64();
+                output.writeUInt32NoTag(tag);
+                output.writeUInt64NoTag(value);
+                return true;
+            }
+            case WireFormat.WIRETYPE_FIXED64: {
+                long value = input.readRawLittleEndian64();
+                output.writeUInt32NoTag(tag);
+                output.writeFixed64NoTag(value);
+                return true;
+            }
+            case WireFormat.WIRETYPE_LENGTH_DELIMITED: {
+                ByteString value = input.readBytes();
+                output.writeUInt32NoTag(tag);
+                output.writeBytesNoTag(value);
+                return true;
+            }
+            case WireFormat.WIRETYPE_START_GROUP: {
+                output.writeUInt32NoTag(tag);
+                while (true) {
+                    int fieldTag = input.readTag();
+                    if (fieldTag == 0 || !copyField(fieldTag, input, output))
+                        break;
+                }
+                int endTag = tag - WireFormat.WIRETYPE_START_GROUP + WireFormat.WIRETYPE_END_GROUP;
+                input.checkLastTagWas(endTag);
+                output.writeUInt32NoTag(endTag);
+                return true;
+            }
+            case WireFormat.WIRETYPE_END_GROUP:
+                return false;
+            case WireFormat.WIRETYPE_FIXED32: {
+                int value = input.readRawLittleEndian32();
+                output.writeUInt32NoTag(tag);
+                output.writeFixed32NoTag(value);
+                return true;
+            }
+            default:
+                throw new InvalidProtocolBufferException("Protocol message tag had invalid wire type: " + tag);
+        }
+    }
+
+    private static class DecodedTransaction {
+        final Protos.Transaction proto;
+        final Transaction tx;
+
+        DecodedTransaction(Protos.Transaction proto, Transaction tx) {
+            this.proto = proto;
+            this.tx = tx;
+        }
+    }
+
+    private static List<DecodedTransaction> decodeTransactions(NetworkParameters params, List<ByteString> encoded)
+            throws IOException, UnreadableWalletException {
+        List<DecodedTransaction> decoded = new ArrayList<>(encoded.size());
+        for (ByteString bytes : encoded) {
+            Protos.Transaction txProto = Protos.Transaction.parseFrom(bytes);
+            decoded.add(new DecodedTransaction(txProto, readTransaction(txProto, params)));
+        }
+        return decoded;
+    }
+
+    private static <T> T getDecoded(Future<T> future) throws IOException, UnreadableWalletException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnreadableWalletException("Interrupted while reading wallet", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof UnreadableWalletException)
+                throw (UnreadableWalletException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new UnreadableWalletException("Could not read wallet", cause);
+        }
+    }
+
+    /**
+     * Decodes the transactions of a wallet stream. Full chunks go to a thread pool as soon as the network is known, the
+     * last one is decoded by the thread that finishes reading, so small wallets never start a thread.
+     */
+    private class TransactionDecoder {
+        @Nullable private NetworkParameters params;
+        private List<ByteString> chunk = new ArrayList<>();
+        private final List<Future<List<DecodedTransaction>>> chunks = new ArrayList<>();
+        @Nullable private ExecutorService executor;
+
+        void setParams(@Nullable NetworkParameters params) {
+            this.params = params;
+        }
+
+        void add(ByteString encodedTx) {
+            chunk.add(encodedTx);
+            if (chunk.size() >= TRANSACTION_CHUNK_SIZE && params != null && loadThreads > 1) {
+                if (executor == null)
+                    executor = Executors.newFixedThreadPool(loadThreads, new ContextPropagatingThreadFactory("Wallet loading"));
+                final NetworkParameters chunkParams = params;
+                final List<ByteString> encoded = chunk;
+                chunks.add(executor.submit(new Callable<List<DecodedTransaction>>() {
+                    @Override
+                    public List<DecodedTransaction> call() throws Exception {
+                        return decodeTransactions(chunkParams, encoded);
+                    }
+                }));
+                chunk = new ArrayList<>();
+            }
+        }
+
+        // Runs the task on the pool if one was needed, otherwise right away.
+        <T> Future<T> submit(Callable<T> task) {
+            if (executor != null)
+                return executor.submit(task);
+            FutureTask<T> future = new FutureTask<>(task);
+            future.run();
+            return future;
+        }
+
+        // Returns all transactions in the order they were read.
+        List<DecodedTransaction> finish(NetworkParameters params) throws IOException, UnreadableWalletException {
+            List<DecodedTransaction> last = decodeTransactions(params, chunk);
+            chunk = new ArrayList<>();
+            List<DecodedTransaction> transactions = new ArrayList<>();
+            for (Future<List<DecodedTransaction>> future : chunks)
+                transactions.addAll(getDecoded(future));
+            transactions.addAll(last);
+            return transactions;
+        }
+
+        void shutdown() {
+            if (executor != null)
+                executor.shutdownNow();
+        }
+    }
+
     /**
      * Returns the loaded protocol buffer from the given byte stream. You normally want
      * {@link Wallet#loadFromFile(File, WalletExtension...)} instead - this method is designed for low level
@@ -622,7 +863,16 @@ public class WalletProtobufSerializer {
         return Protos.Wallet.parseFrom(codedInput);
     }
 
-    private void readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
+    // Reads a transaction on its own, without connecting it to the transactions it spends or that spend it.
+    static Transaction readDetachedTransaction(NetworkParameters params, Protos.Transaction txProto)
+            throws UnreadableWalletException {
+        Transaction tx = readTransaction(txProto, params);
+        if (txProto.hasConfidence())
+            new WalletProtobufSerializer().readConfidence(params, tx, txProto.getConfidence(), tx.getConfidence());
+        return tx;
+    }
+
+    private static Transaction readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
         Transaction tx = new Transaction(params);
 
         tx.setVersion(txProto.getVersion());
@@ -701,9 +951,7 @@ public class WalletProtobufSerializer {
         Sha256Hash protoHash = byteStringToHash(txProto.getHash());
         if (!tx.getTxId().equals(protoHash))
             throw new UnreadableWalletException(String.format(Locale.US, "Transaction did not deserialize completely: %s vs %s", tx.getTxId(), protoHash));
-        if (txMap.containsKey(txProto.getHash()))
-            throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(txProto.getHash()));
-        txMap.put(txProto.getHash(), tx);
+        return tx;
     }
 
     private WalletTransaction connectTransactionOutputs(final NetworkParameters params,
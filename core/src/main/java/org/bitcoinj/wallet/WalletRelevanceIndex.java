@@ -0,0 +1,197 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.utils.Threading;
+import com.google.protobuf.ByteString;
+import net.jcip.annotations.GuardedBy;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Finds the wallets a transaction may be relevant to, out of many wallets, by looking up each of its outputs and
+ * inputs once. This lets a block chain with thousands of wallets give each transaction only to the wallets it touches,
+ * rather than have every wallet check every transaction.</p>
+ *
+ * <p>The index maps the output scripts of the keys and watched scripts of each wallet, and the hashes of the
+ * transactions each wallet knows about and of the transactions they spend from, to the wallets. Wallets keep it up to
+ * date as they derive keys and receive transactions. It may find wallets a transaction isn't relevant to after all,
+ * because keys or transactions were removed from them, so each wallet still does its own
+ * {@link Wallet#isTransactionRelevant(Transaction)} check, but it doesn't miss any wallet that check would accept.</p>
+ */
+public class WalletRelevanceIndex {
+    private final ReentrantLock lock = Threading.lock("walletrelevanceindex");
+
+    // Values are either a single Wallet or a Wallet[], as almost all scripts and transactions belong to one wallet.
+    @GuardedBy("lock") private final Map<ByteString, Object> scripts = new HashMap<>();
+    @GuardedBy("lock") private final Map<Sha256Hash, Object> transactions = new HashMap<>();
+    @GuardedBy("lock") private final Set<Wallet> wallets = new HashSet<>();
+    // Wallets with married key chains, whose P2SH scripts aren't known up front. They are given every transaction.
+    @GuardedBy("lock") private final Set<Wallet> unindexedWallets = new LinkedHashSet<>();
+
+    /** Adds the given wallet to the index. */
+    public void add(Wallet wallet) {
+        lock.lock();
+        try {
+            if (!wallets.add(wallet))
+                return;
+        } finally {
+            lock.unlock();
+        }
+        wallet.addRelevanceIndex(this);
+    }
+
+    /** Removes the given wallet from the index. This has to look at every entry, so it takes a while. */
+    public void remove(Wallet wallet) {
+        wallet.removeRelevanceIndex(this);
+        lock.lock();
+        try {
+            if (!wallets.remove(wallet))
+                return;
+            unindexedWallets.remove(wallet);
+            removeFromAll(scripts, wallet);
+            removeFromAll(transactions, wallet);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true if the given wallet was added to the index. */
+    public boolean contains(Wallet wallet) {
+        lock.lock();
+        try {
+            return wallets.contains(wallet);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the wallets the given transaction may be relevant to: those with a key or watched script one of its
+     * outputs pays to, or that know about a transaction it spends from or one spending the same outputs.
+     */
+    public Set<Wallet> getRelevantWallets(Transaction tx) {
+        lock.lock();
+        try {
+            Set<Wallet> relevant = new LinkedHashSet<>(unindexedWallets);
+            for (TransactionOutput output : tx.getOutputs())
+                addAll(relevant, scripts.get(ByteString.copyFrom(output.getScriptBytes())));
+            if (!tx.isCoinBase()) {
+                for (TransactionInput input : tx.getInputs())
+                    addAll(relevant, transactions.get(input.getOutpoint().getHash()));
+            }
+            return relevant;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void addScripts(Wallet wallet, Collection<ByteString> walletScripts) {
+        lock.lock();
+        try {
+            if (!wallets.contains(wallet))
+                return;
+            for (ByteString script : walletScripts)
+                scripts.put(script, add(scripts.get(script), wallet));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void addScripts(Wallet wallet, Collection<ByteString> walletScripts, boolean married) {
+        lock.lock();
+        try {
+            if (!wallets.contains(wallet))
+                return;
+            if (married)
+                unindexedWallets.add(wallet);
+            else
+                unindexedWallets.remove(wallet);
+            addScripts(wallet, walletScripts);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void addTransactions(Wallet wallet, Collection<Transaction> txs) {
+        lock.lock();
+        try {
+            if (!wallets.contains(wallet))
+                return;
+            for (Transaction tx : txs) {
+                addTransaction(tx.getTxId(), wallet);
+                // Transactions spending from the same ones may be double spends.
+                if (!tx.isCoinBase()) {
+                    for (TransactionInput input : tx.getInputs())
+                        addTransaction(input.getOutpoint().getHash(), wallet);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void addTransaction(Sha256Hash hash, Wallet wallet) {
+        transactions.put(hash, add(transactions.get(hash), wallet));
+    }
+
+    private static Object add(@Nullable Object wallets, Wallet wallet) {
+        if (wallets == null || wallets == wallet)
+            return wallet;
+        if (wallets instanceof Wallet)
+            return new Wallet[] { (Wallet) wallets, wallet };
+        Wallet[] array = (Wallet[]) wallets;
+        for (Wallet w : array) {
+            if (w == wallet)
+                return array;
+        }
+        Wallet[] grown = Arrays.copyOf(array, array.length + 1);
+        grown[array.length] = wallet;
+        return grown;
+    }
+
+    private static void addAll(Set<Wallet> relevant, @Nullable Object wallets) {
+        if (wallets == null)
+            return;
+        if (wallets instanceof Wallet)
+            relevant.add((Wallet) wallets);
+        else
+            Collections.addAll(relevant, (Wallet[]) wallets);
+    }
+
+    private static <K> void removeFromAll(Map<K, Object> map, Wallet wallet) {
+        Iterator<Map.Entry<K, Object>> it = map.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<K, Object> entry = it.next();
+            Object wallets = entry.getValue();
+            if (wallets == wallet) {
+                it.remove();
+            } else if (wallets instanceof Wallet[]) {
+                List<Wallet> remaining = new ArrayList<>(Arrays.asList((Wallet[]) wallets));
+                if (remaining.remove(wallet))
+                    entry.setValue(remaining.size() == 1 ? remaining.get(0) : remaining.toArray(new Wallet[0]));
+            }
+        }
+    }
+}
@@ -21,8 +21,13 @@ import com.google.common.collect.Lists;
 import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.params.UnitTestParams;
 import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.MemoryFullPrunedBlockStore;
+import org.bitcoinj.store.OrderedFullPrunedBlockStore;
+import org.bitcoinj.store.ScriptIndexedFullPrunedBlockStore;
+import org.bitcoinj.store.UTXOSnapshot;
 import org.bitcoinj.utils.BlockFileLoader;
 import org.bitcoinj.utils.BriefLogFormatter;
 import org.bitcoinj.wallet.SendRequest;
@@ -33,8 +38,11 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -286,6 +294,137 @@ public abstract class AbstractFullPrunedBlockChainTest {
         } catch (Exception e) {}
     }
 
+    @Test
+    public void testGetOpenTransactionOutputsForScripts() throws Exception {
+        final int UNDOABLE_BLOCKS_STORED = 10;
+        store = createStore(PARAMS, UNDOABLE_BLOCKS_STORED);
+        chain = new FullPrunedBlockChain(PARAMS, store);
+
+        ECKey outKey = new ECKey();
+        int height = 1;
+
+        // Build some blocks on genesis block to create a spendable output
+        Block rollingBlock = PARAMS.getGenesisBlock().createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+        chain.add(rollingBlock);
+        Transaction transaction = rollingBlock.getTransactions().get(0);
+        TransactionOutPoint spendableOutput = new TransactionOutPoint(PARAMS, 0, transaction.getTxId());
+        byte[] spendableOutputScriptPubKey = transaction.getOutputs().get(0).getScriptBytes();
+        for (int i = 1; i < PARAMS.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+            chain.add(rollingBlock);
+        }
+        rollingBlock = rollingBlock.createNextBlock(null);
+
+        // Pay to a legacy and a native segwit script.
+        ECKey legacyKey = new ECKey();
+        ECKey segwitKey = new ECKey();
+        Script legacyScript = ScriptBuilder.createP2PKHOutputScript(legacyKey);
+        Script segwitScript = ScriptBuilder.createP2WPKHOutputScript(segwitKey);
+        Transaction t = new Transaction(PARAMS);
+        t.addOutput(Coin.COIN, legacyScript);
+        t.addOutput(Coin.COIN, segwitScript);
+        t.addSignedInput(spendableOutput, new Script(spendableOutputScriptPubKey), outKey);
+        rollingBlock.addTransaction(t);
+        rollingBlock.solve();
+        chain.add(rollingBlock);
+
+        // Look both up among many unrelated scripts.
+        List<Script> scripts = new ArrayList<>();
+        for (int i = 0; i < 1200; i++)
+            scripts.add(ScriptBuilder.createP2PKHOutputScript(new ECKey()));
+        scripts.add(segwitScript);
+        scripts.add(legacyScript);
+        ScriptIndexedFullPrunedBlockStore indexedStore = (ScriptIndexedFullPrunedBlockStore) store;
+        List<UTXO> outputs = indexedStore.getOpenTransactionOutputsForScripts(scripts);
+        assertEquals(2, outputs.size());
+        assertEquals(1, store.getOpenTransactionOutputs(Lists.newArrayList(legacyKey)).size());
+
+        // Spending the legacy output removes it from the index.
+        rollingBlock = rollingBlock.createNextBlock(null);
+        Transaction t2 = new Transaction(PARAMS);
+        t2.addOutput(Coin.COIN.divide(2), ScriptBuilder.createP2PKHOutputScript(new ECKey()));
+        t2.addSignedInput(new TransactionOutPoint(PARAMS, 0, t.getTxId()), legacyScript, legacyKey);
+        rollingBlock.addTransaction(t2);
+        rollingBlock.solve();
+        chain.add(rollingBlock);
+
+        outputs = indexedStore.getOpenTransactionOutputsForScripts(scripts);
+        assertEquals(1, outputs.size());
+        assertArrayEquals(segwitScript.getProgram(), outputs.get(0).getScript().getProgram());
+        assertEquals(1, outputs.get(0).getIndex());
+        assertTrue(store.getOpenTransactionOutputs(Lists.newArrayList(legacyKey)).isEmpty());
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
+    @Test
+    public void testUTXOSnapshotRoundTrip() throws Exception {
+        final int UNDOABLE_BLOCKS_STORED = 10;
+        store = createStore(PARAMS, UNDOABLE_BLOCKS_STORED);
+        chain = new FullPrunedBlockChain(PARAMS, store);
+
+        ECKey outKey = new ECKey();
+        int height = 1;
+
+        // Build some blocks on genesis block to create a spendable output
+        Block rollingBlock = PARAMS.getGenesisBlock().createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+        chain.add(rollingBlock);
+        Transaction transaction = rollingBlock.getTransactions().get(0);
+        TransactionOutPoint spendableOutput = new TransactionOutPoint(PARAMS, 0, transaction.getTxId());
+        byte[] spendableOutputScriptPubKey = transaction.getOutputs().get(0).getScriptBytes();
+        for (int i = 1; i < PARAMS.getSpendableCoinbaseDepth() + 10; i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+            chain.add(rollingBlock);
+        }
+        rollingBlock = rollingBlock.createNextBlock(null);
+        ECKey key = new ECKey();
+        Script script = ScriptBuilder.createP2PKHOutputScript(key);
+        Transaction t = new Transaction(PARAMS);
+        for (int i = 0; i < 5; i++)
+            t.addOutput(Coin.CENT, script);
+        t.addOutput(Coin.COIN, ScriptBuilder.createP2WPKHOutputScript(new ECKey()));
+        t.addSignedInput(spendableOutput, new Script(spendableOutputScriptPubKey), outKey);
+        rollingBlock.addTransaction(t);
+        rollingBlock.solve();
+        chain.add(rollingBlock);
+
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        Sha256Hash hash = UTXOSnapshot.exportSnapshot((OrderedFullPrunedBlockStore) store, snapshot);
+
+        // With the wrong hash, nothing is trusted.
+        FullPrunedBlockStore rejected = new MemoryFullPrunedBlockStore(PARAMS, UNDOABLE_BLOCKS_STORED);
+        try {
+            UTXOSnapshot.importSnapshot(rejected, new ByteArrayInputStream(snapshot.toByteArray()), Sha256Hash.ZERO_HASH);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(0, rejected.getVerifiedChainHead().getHeight());
+
+        MemoryFullPrunedBlockStore imported = new MemoryFullPrunedBlockStore(PARAMS, UNDOABLE_BLOCKS_STORED);
+        StoredBlock head = UTXOSnapshot.importSnapshot(imported, new ByteArrayInputStream(snapshot.toByteArray()), hash);
+        assertEquals(rollingBlock.getHash(), head.getHeader().getHash());
+        assertEquals(head, imported.getVerifiedChainHead());
+        assertEquals(hash, UTXOSnapshot.exportSnapshot(imported, new ByteArrayOutputStream()));
+
+        // The imported store carries on verifying from the snapshot's block.
+        FullPrunedBlockChain importedChain = new FullPrunedBlockChain(PARAMS, imported);
+        rollingBlock = rollingBlock.createNextBlock(null);
+        Transaction t2 = new Transaction(PARAMS);
+        t2.addOutput(Coin.CENT.divide(2), ScriptBuilder.createP2PKHOutputScript(new ECKey()));
+        t2.addSignedInput(new TransactionOutPoint(PARAMS, 3, t.getTxId()), script, key);
+        rollingBlock.addTransaction(t2);
+        rollingBlock.solve();
+        assertTrue(importedChain.add(rollingBlock));
+        assertNull(imported.getTransactionOutput(t.getTxId(), 3));
+        assertNotNull(imported.getTransactionOutput(t2.getTxId(), 0));
+        assertEquals(rollingBlock.getHash(), imported.getVerifiedChainHead().getHeader().getHash());
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
     @Test
     public void testUTXOProviderWithWallet() throws Exception {
         final int UNDOABLE_BLOCKS_STORED = 10;
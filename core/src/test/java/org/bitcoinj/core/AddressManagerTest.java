@@ -0,0 +1,158 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AddressManagerTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        Utils.setMockClock();
+        file = File.createTempFile("addresses", null);
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        Utils.mockTime = null;
+        file.delete();
+    }
+
+    private static PeerAddress address(int a, int b, int c, int d) throws Exception {
+        return new PeerAddress(UNITTEST, InetAddress.getByAddress(new byte[] { (byte) a, (byte) b, (byte) c, (byte) d }),
+                UNITTEST.getPort());
+    }
+
+    @Test
+    public void scores() throws Exception {
+        AddressManager manager = new AddressManager(UNITTEST);
+        PeerAddress unknown = address(1, 2, 3, 4);
+        PeerAddress fast = address(2, 3, 4, 5);
+        PeerAddress slow = address(3, 4, 5, 6);
+        PeerAddress failing = address(4, 5, 6, 7);
+        assertEquals(0.25, manager.getScore(unknown), 0.0);
+
+        manager.markAttempt(fast);
+        Utils.rollMockClockMillis(50);
+        manager.markGood(fast);
+        Utils.rollMockClockMillis(10000);
+        manager.markDisconnected(fast, 10 * 1024 * 1024, Long.MAX_VALUE);
+
+        manager.markAttempt(slow);
+        Utils.rollMockClockMillis(3000);
+        manager.markGood(slow);
+        Utils.rollMockClockMillis(10000);
+        manager.markDisconnected(slow, 1024, 2000);
+
+        manager.markAttempt(failing);
+        manager.markFailed(failing);
+
+        assertTrue(manager.getScore(fast) > 0.6);
+        assertTrue(manager.getScore(slow) < manager.getScore(fast));
+        assertTrue(manager.getScore(failing) < manager.getScore(unknown));
+        assertTrue(manager.isTried(fast));
+        assertFalse(manager.isTried(failing));
+
+        manager.add(unknown);
+        List<PeerAddress> addresses = manager.getAddresses(10);
+        assertEquals(4, addresses.size());
+        assertEquals(fast, addresses.get(0));
+        assertEquals(slow, addresses.get(1));
+        assertEquals(unknown, addresses.get(2));
+        assertEquals(failing, addresses.get(3));
+        assertEquals(2, manager.getAddresses(2).size());
+    }
+
+    @Test
+    public void forgetsAddressesThatKeepFailing() throws Exception {
+        AddressManager manager = new AddressManager(UNITTEST);
+        PeerAddress address = address(1, 2, 3, 4);
+        for (int i = 0; i < 9; i++) {
+            manager.markAttempt(address);
+            manager.markFailed(address);
+        }
+        assertEquals(1, manager.size());
+        manager.markAttempt(address);
+        manager.markFailed(address);
+        assertEquals(0, manager.size());
+    }
+
+    @Test
+    public void oneNetworkCannotFillTheTables() throws Exception {
+        AddressManager manager = new AddressManager(UNITTEST);
+        // Thousands of addresses from one /16 only get a few buckets
+        for (int i = 0; i < 10000; i++)
+            manager.add(address(10, 20, i >> 8, i));
+        assertTrue(manager.size() <= 8 * AddressManager.BUCKET_SIZE);
+        // ... and leave room for everybody else
+        List<PeerAddress> others = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            others.add(address(i + 1, 1, 1, 1));
+            manager.add(others.get(i));
+        }
+        assertTrue(manager.getAddresses(Integer.MAX_VALUE).containsAll(others));
+    }
+
+    @Test
+    public void saveAndLoad() throws Exception {
+        AddressManager manager = new AddressManager(UNITTEST, file);
+        assertEquals(0, manager.size());
+        PeerAddress good = address(1, 2, 3, 4);
+        PeerAddress heard = address(5, 6, 7, 8);
+        PeerAddress onion = new PeerAddress(UNITTEST, "abcdefghijklmnop.onion", 8333);
+        manager.markAttempt(good);
+        Utils.rollMockClockMillis(100);
+        manager.markGood(good);
+        Utils.rollMockClockMillis(1000);
+        manager.markDisconnected(good, 100000, 150);
+        manager.add(heard);
+        manager.add(onion);
+        manager.save();
+
+        AddressManager loaded = new AddressManager(UNITTEST, file);
+        assertEquals(3, loaded.size());
+        assertTrue(loaded.isTried(good));
+        assertFalse(loaded.isTried(heard));
+        assertEquals(manager.getScore(good), loaded.getScore(good), 0.0);
+        assertEquals(manager.getScore(onion), loaded.getScore(onion), 0.0);
+        assertEquals(good, loaded.getAddresses(1).get(0));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherNetwork() throws Exception {
+        AddressManager manager = new AddressManager(UNITTEST, file);
+        manager.add(address(1, 2, 3, 4));
+        manager.save();
+        new AddressManager(MainNetParams.get(), file);
+    }
+}
@@ -17,6 +17,7 @@
 
 package org.bitcoinj.core;
 
+import org.bitcoinj.net.ByteBufferPool;
 import org.bitcoinj.params.MainNetParams;
 import org.junit.Test;
 
@@ -201,6 +202,28 @@ public class BitcoinSerializerTest {
         assertArrayEquals(headersMessageBytes, serializedBytes);
     }
 
+    @Test
+    public void serializeToPooledBuffer() throws Exception {
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        ByteBufferPool pool = new ByteBufferPool(ByteBufferPool.MAX_POOLED_SIZE);
+        Transaction transaction = (Transaction) serializer.deserialize(ByteBuffer.wrap(TRANSACTION_MESSAGE_BYTES));
+        for (int i = 0; i < 2; i++) {
+            // The second time round the buffer is a reused one
+            ByteBuffer buffer = serializer.serialize(transaction, pool);
+            assertTrue(buffer.isDirect());
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            assertArrayEquals(TRANSACTION_MESSAGE_BYTES, bytes);
+            pool.release(buffer);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.serialize(new Ping(123), out);
+        ByteBuffer ping = serializer.serialize(new Ping(123), pool);
+        byte[] bytes = new byte[ping.remaining()];
+        ping.get(bytes);
+        assertArrayEquals(out.toByteArray(), bytes);
+    }
+
     @Test(expected = BufferUnderflowException.class)
     public void testBitcoinPacketHeaderTooShort() {
         new BitcoinSerializer.BitcoinPacketHeader(ByteBuffer.wrap(new byte[] { 0 }));
@@ -36,7 +36,9 @@ import org.junit.Test;
 
 import java.math.BigInteger;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 import static org.bitcoinj.core.Coin.*;
@@ -310,6 +312,43 @@ public class BlockChainTest {
         assertEquals(Coin.ZERO, wallet.getBalance());
     }
 
+    @Test
+    public void relevanceIndex() throws Exception {
+        Wallet wallet1 = Wallet.createDeterministic(UNITTEST, Script.ScriptType.P2PKH);
+        Wallet wallet2 = Wallet.createDeterministic(UNITTEST, Script.ScriptType.P2PKH);
+        chain.addWallet(wallet1);
+        chain.setRelevanceIndexEnabled(true);
+        chain.addWallet(wallet2);
+        // Derives the lookahead keys, as a peer group would.
+        wallet2.getBloomFilter(0.001);
+        // Derive keys of wallet2 beyond its lookahead from a copy of it.
+        Wallet copy = Wallet.fromSeed(UNITTEST, wallet2.getKeyChainSeed(), Script.ScriptType.P2PKH);
+        List<ECKey> keys = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            keys.add(copy.freshReceiveKey());
+        assertFalse(wallet2.isPubKeyHashMine(keys.get(9).getPubKeyHash(), Script.ScriptType.P2PKH));
+
+        // The second payment is only found because the first one makes wallet2 look further ahead.
+        Address somebodyElse = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        Transaction t1 = createFakeTx(UNITTEST, COIN, LegacyAddress.fromKey(UNITTEST, keys.get(4)));
+        Transaction t2 = createFakeTx(UNITTEST, CENT, LegacyAddress.fromKey(UNITTEST, keys.get(9)));
+        Transaction t3 = new Transaction(UNITTEST);
+        t3.addInput(t1.getOutput(0));
+        t3.addOutput(CENT, somebodyElse);
+        Transaction t4 = createFakeTx(UNITTEST, COIN, LegacyAddress.fromKey(UNITTEST, wallet1.currentReceiveKey()));
+        chain.add(createFakeBlock(blockStore, 1, t1, t2, t3, t4).block);
+        assertEquals(CENT, wallet2.getBalance());
+        assertEquals(3, wallet2.getTransactions(false).size());
+        assertEquals(COIN, wallet1.getBalance());
+        assertEquals(1, wallet1.getTransactions(false).size());
+        assertEquals(Coin.ZERO, wallet.getBalance());
+
+        chain.setRelevanceIndexEnabled(false);
+        chain.add(createFakeBlock(blockStore, 2,
+                createFakeTx(UNITTEST, COIN, LegacyAddress.fromKey(UNITTEST, wallet2.freshReceiveKey()))).block);
+        assertEquals(COIN.add(CENT), wallet2.getBalance());
+    }
+
     @Test
     public void coinbaseTransactionAvailability() throws Exception {
         // Check that a coinbase transaction is only available to spend after NetworkParameters.getSpendableCoinbaseDepth() blocks.
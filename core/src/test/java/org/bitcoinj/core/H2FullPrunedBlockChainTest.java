@@ -16,12 +16,26 @@
 
 package org.bitcoinj.core;
 
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
 import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.DatabaseFullPrunedBlockStore;
 import org.bitcoinj.store.FullPrunedBlockStore;
 import org.bitcoinj.store.H2FullPrunedBlockStore;
 import org.junit.After;
+import org.junit.Test;
 
 import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 /**
  * An H2 implementation of the FullPrunedBlockStoreTest
@@ -38,6 +52,58 @@ public class H2FullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest
         return new H2FullPrunedBlockStore(params, "test", "sa", "sa", blockCount);
     }
 
+    @Test
+    public void moreThreadsThanWriterConnections() throws Exception {
+        final FullPrunedBlockStore store = createStore(UnitTestParams.get(), 10);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        try {
+            // Each thread gives its connection back after the query, so none waits for the pool.
+            for (int i = 0; i < DatabaseFullPrunedBlockStore.DEFAULT_MAX_WRITER_CONNECTIONS * 2; i++) {
+                Thread thread = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            store.getTransactionOutput(Sha256Hash.ZERO_HASH, 0);
+                        } catch (Throwable t) {
+                            failure.set(t);
+                        }
+                    }
+                };
+                thread.start();
+                thread.join();
+                assertNull(failure.get());
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void migrateDatabaseWithoutScriptHashes() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        Script script = ScriptBuilder.createP2WPKHOutputScript(new ECKey());
+        UTXO output = new UTXO(Sha256Hash.of(new byte[] { 1 }), 0, Coin.COIN, 1, false, script);
+        H2FullPrunedBlockStore store = (H2FullPrunedBlockStore) createStore(params, 10);
+        store.addUnspentTransactionOutput(output);
+        store.close();
+
+        // Take the database back to before the scripthash column existed.
+        Connection connection = DriverManager.getConnection("jdbc:h2:test", "sa", "sa");
+        Statement s = connection.createStatement();
+        s.executeUpdate("DROP INDEX openoutputs_scripthash_idx");
+        s.executeUpdate("ALTER TABLE openoutputs DROP COLUMN scripthash");
+        s.close();
+        connection.close();
+
+        store = new H2FullPrunedBlockStore(params, "test", "sa", "sa", 10);
+        try {
+            List<UTXO> outputs = store.getOpenTransactionOutputsForScripts(Collections.singletonList(script));
+            assertEquals(Collections.singletonList(output), outputs);
+        } finally {
+            store.close();
+        }
+    }
+
     private void deleteFiles() {
         maybeDelete("test.h2.db");
         maybeDelete("test.trace.db");
@@ -235,6 +235,73 @@ public class PeerGroupTest extends TestWithPeerGroup {
     }
 
     
+    @Test
+    public void txRequestedFromNextPeerWhenNotDelivered() throws Exception {
+        Utils.setMockClock();
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+        InboundMessageQueuer p3 = connectPeer(3);
+        Transaction t1 = FakeTxBuilder.createFakeTx(UNITTEST, COIN, address);
+        InventoryMessage inv = new InventoryMessage(UNITTEST);
+        inv.addTransaction(t1);
+
+        // Everybody announces the transaction, but it is only requested from the first peer.
+        inbound(p1, inv);
+        assertTrue(outbound(p1) instanceof GetDataMessage);
+        inbound(p2, inv);
+        assertNull(outbound(p2));
+        inbound(p3, inv);
+        assertNull(outbound(p3));
+
+        // The first peer doesn't have it after all, so the next one is asked.
+        inbound(p1, new NotFoundMessage(UNITTEST, Collections.singletonList(
+                new InventoryItem(InventoryItem.Type.TRANSACTION, t1.getTxId()))));
+        GetDataMessage getdata = (GetDataMessage) waitForOutbound(p2);
+        assertEquals(t1.getTxId(), getdata.getItems().get(0).hash);
+        assertNull(outbound(p3));
+
+        // The second peer doesn't answer in time, so the third one is asked.
+        Utils.rollMockClockMillis(TxRequestTracker.DEFAULT_REQUEST_TIMEOUT_MILLIS);
+        peerGroup.getTxRequestTracker().checkTimeouts();
+        getdata = (GetDataMessage) waitForOutbound(p3);
+        assertEquals(t1.getTxId(), getdata.getItems().get(0).hash);
+        assertEquals(peerOf(p3), peerGroup.getTxRequestTracker().getRequestPeer(t1.getTxId()));
+
+        // Once it arrived, nobody is asked again.
+        inbound(p3, t1);
+        pingAndWait(p3);
+        assertNull(peerGroup.getTxRequestTracker().getRequestPeer(t1.getTxId()));
+        inbound(p1, inv);
+        assertNull(outbound(p1));
+        Utils.mockTime = null;
+    }
+
+    @Test
+    public void txAnnouncementsRateLimited() throws Exception {
+        peerGroup.start();
+        peerGroup.setMaxTxAnnouncementsPerSecond(1);
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+        InventoryMessage inv = new InventoryMessage(UNITTEST);
+        List<Transaction> txns = new ArrayList<>();
+        for (int i = 0; i < 15; i++) {
+            txns.add(FakeTxBuilder.createFakeTx(UNITTEST, COIN, address));
+            inv.addTransaction(txns.get(i));
+        }
+        inbound(p1, inv);
+        // The peer may announce ten seconds' worth at once.
+        GetDataMessage getdata = (GetDataMessage) outbound(p1);
+        assertEquals(10, getdata.getItems().size());
+        // All announcements are counted, and the rest are requested from the next peer that announces them.
+        for (Transaction tx : txns)
+            assertEquals(1, Context.get().getConfidenceTable().get(tx.getTxId()).numBroadcastPeers());
+        inbound(p2, inv);
+        getdata = (GetDataMessage) outbound(p2);
+        assertEquals(5, getdata.getItems().size());
+        assertEquals(txns.get(10).getTxId(), getdata.getItems().get(0).hash);
+    }
+
     @Test
     public void receiveTxBroadcastOnAddedWallet() throws Exception {
         // Check that when we receive transactions on all our peers, we do the right thing.
@@ -498,6 +565,82 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertEquals(d.peer, peerGroup.getDownloadPeer());*/
     }
 
+    @Test
+    public void downloadPeerSelectionPrefersLowPing() throws Exception {
+        peerGroup.start();
+        Peer a = connectPeer(1).peer;
+        Peer b = connectPeer(2).peer;
+        Peer c = connectPeer(3).peer;
+        a.addPingTimeData(300);
+        b.addPingTimeData(20);
+        c.addPingTimeData(100);
+        assertEquals(b, peerGroup.selectDownloadPeer(peerGroup.getConnectedPeers()));
+        assertEquals(c, peerGroup.selectDownloadPeer(Arrays.asList(a, c)));
+    }
+
+    @Test
+    public void downloadPeerSelectionSpreadsOverSimilarPeers() throws Exception {
+        peerGroup.start();
+        Peer a = connectPeer(1).peer;
+        Peer b = connectPeer(2).peer;
+        Peer c = connectPeer(3).peer;
+        a.addPingTimeData(20);
+        b.addPingTimeData(30);
+        c.addPingTimeData(300);
+        Set<Peer> selected = new HashSet<>();
+        for (int i = 0; i < 100; i++)
+            selected.add(peerGroup.selectDownloadPeer(peerGroup.getConnectedPeers()));
+        assertEquals(Sets.newHashSet(a, b), selected);
+    }
+
+    @Test
+    public void downloadMovesToFasterPeer() throws Exception {
+        Utils.setMockClock();
+        peerGroup.start();
+        VersionMessage versionMessage = new VersionMessage(UNITTEST, 10);
+        versionMessage.localServices = VersionMessage.NODE_NETWORK;
+        versionMessage.clientVersion = NotFoundMessage.MIN_PROTOCOL_VERSION;
+        InboundMessageQueuer p1 = connectPeer(1, versionMessage);
+        Block b1 = FakeTxBuilder.createFakeBlock(blockStore, BLOCK_HEIGHT_GENESIS).block;
+        Block b2 = FakeTxBuilder.makeSolvedTestBlock(b1);
+        Block b3 = FakeTxBuilder.makeSolvedTestBlock(b2);
+        peerGroup.startBlockChainDownload(new AbstractPeerDataEventListener() {
+        });
+        assertTrue(outbound(p1) instanceof GetBlocksMessage);
+        InventoryMessage inv = new InventoryMessage(UNITTEST);
+        inv.addBlock(b1);
+        inv.addBlock(b2);
+        inv.addBlock(b3);
+        inbound(p1, inv);
+        assertTrue(outbound(p1) instanceof GetDataMessage);
+        assertTrue(outbound(p1) instanceof Ping);
+
+        // A peer with a much lower ping shows up while three blocks are in flight.
+        InboundMessageQueuer p2 = connectPeer(2, versionMessage);
+        peerOf(p1).addPingTimeData(400);
+        peerOf(p2).addPingTimeData(10);
+        // Not right after the download peer was set.
+        peerGroup.maybeSwitchDownloadPeer();
+        assertEquals(peerOf(p1), peerGroup.getDownloadPeer());
+        Utils.rollMockClock(PeerGroup.DEFAULT_MIN_DOWNLOAD_PEER_SECONDS);
+        peerGroup.maybeSwitchDownloadPeer();
+        assertEquals(peerOf(p2), peerGroup.getDownloadPeer());
+        assertFalse(peerOf(p1).isDownloadData());
+
+        // The old download peer still delivers what it was asked for, and only then does the new one carry on.
+        inbound(p1, b1);
+        inbound(p1, b2);
+        pingAndWait(p1);
+        assertNull(outbound(p2));
+        inbound(p1, b3);
+        pingAndWait(p1);
+        GetBlocksMessage getblocks = (GetBlocksMessage) waitForOutbound(p2);
+        assertEquals(b3.getHash(), getblocks.getLocator().getHashes().get(0));
+        assertEquals(3, blockChain.getBestChainHeight());
+        assertNull(outbound(p1));
+        Utils.mockTime = null;
+    }
+
     @Test
     public void peerTimeoutTest() throws Exception {
         final int timeout = 100;
@@ -766,6 +909,81 @@ public class PeerGroupTest extends TestWithPeerGroup {
         }
     }
 
+    @Test
+    public void reconnectToKnownGoodPeerWithoutDiscovery() throws Exception {
+        File file = File.createTempFile("addresses", null);
+        file.delete();
+        file.deleteOnExit();
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        PeerAddress failing = new PeerAddress(UNITTEST, loopback, 2000);
+        PeerAddress unknown = new PeerAddress(UNITTEST, loopback, 2001);
+        PeerAddress good = new PeerAddress(UNITTEST, loopback, 2002);
+        AddressManager addresses = new AddressManager(UNITTEST, file);
+        addresses.markAttempt(failing);
+        addresses.markFailed(failing);
+        addresses.add(unknown);
+        addresses.markAttempt(good);
+        addresses.markGood(good);
+        addresses.save();
+
+        final AtomicBoolean discovered = new AtomicBoolean();
+        peerGroup.addPeerDiscovery(new PeerDiscovery() {
+            @Override
+            public InetSocketAddress[] getPeers(long services, long timeoutValue, TimeUnit timeoutUnit) {
+                discovered.set(true);
+                return new InetSocketAddress[0];
+            }
+
+            @Override
+            public void shutdown() {
+            }
+        });
+        peerGroup.setMaxConnections(1);
+        peerGroup.setAddressManager(new AddressManager(UNITTEST, file));
+        peerGroup.addConnectedEventListener(connectedListener);
+        peerGroup.start();
+        handleConnectToPeer(2);
+        assertEquals(2002, connectedPeers.take().getAddress().getPort());
+        assertFalse(discovered.get());
+        peerGroup.stop();
+
+        // The group saved what it learned on stopping
+        AddressManager reloaded = new AddressManager(UNITTEST, file);
+        assertEquals(3, reloaded.size());
+        assertTrue(reloaded.isTried(good));
+        assertEquals(good, reloaded.getAddresses(1).get(0));
+        file.delete();
+    }
+
+    @Test(timeout = 10000)
+    public void queuedAddressesKeepTheirOrderWhenScoresChange() throws Exception {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        PeerAddress good = new PeerAddress(UNITTEST, loopback, 2000);
+        PeerAddress unknown = new PeerAddress(UNITTEST, loopback, 2001);
+        PeerAddress failedThenGood = new PeerAddress(UNITTEST, loopback, 2002);
+        AddressManager addresses = new AddressManager(UNITTEST);
+        addresses.markAttempt(good);
+        addresses.markGood(good);
+        addresses.add(unknown);
+        addresses.markAttempt(failedThenGood);
+        addresses.markFailed(failedThenGood);
+
+        peerGroup.setMaxConnections(3);
+        peerGroup.setAddressManager(addresses);
+        // The score of a queued address changes, which mustn't break the order of the queue.
+        addresses.markAttempt(failedThenGood);
+        addresses.markGood(failedThenGood);
+        assertTrue(addresses.getScore(failedThenGood) > addresses.getScore(unknown));
+        peerGroup.start();
+        // The pending peers are in the order they were tried in.
+        while (peerGroup.getPendingPeers().size() < 3)
+            Thread.sleep(10);
+        List<Peer> pending = peerGroup.getPendingPeers();
+        for (int i = 0; i < 3; i++)
+            assertEquals(2000 + i, pending.get(i).getAddress().getPort());
+        peerGroup.stop();
+    }
+
     private <T extends Message> T assertNextMessageIs(InboundMessageQueuer q, Class<T> klass) throws Exception {
         Message outbound = waitForOutbound(q);
         assertEquals(klass, outbound.getClass());
@@ -0,0 +1,145 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.core.listeners.PeerDisconnectedEventListener;
+import org.bitcoinj.net.NioClientManager;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.utils.Threading;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PeerServerTest {
+    private static final NetworkParameters REGTEST = RegTestParams.get();
+    // More than one getblocks answer, so that clients have to follow the server's continuation inv
+    private static final int CHAIN_LENGTH = 700;
+
+    private BlockStore serverStore;
+    private PeerServer server;
+    private InetSocketAddress address;
+    private NioClientManager clientManager;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(REGTEST, 100, Coin.ZERO, false));
+        serverStore = new MemoryBlockStore(REGTEST);
+        BlockChain serverChain = new BlockChain(REGTEST, serverStore);
+        Address coinbaseTo = LegacyAddress.fromKey(REGTEST, new ECKey());
+        List<Block> blocks = new ArrayList<>(CHAIN_LENGTH);
+        Block block = REGTEST.getGenesisBlock();
+        for (int i = 0; i < CHAIN_LENGTH; i++) {
+            block = block.createNextBlock(coinbaseTo);
+            assertTrue(serverChain.add(block));
+            blocks.add(block);
+        }
+        server = new PeerServer(REGTEST, serverStore, new InetSocketAddress("localhost", 0), 2);
+        server.setMaxRecentBlockBytes(Long.MAX_VALUE);
+        for (Block b : blocks)
+            server.addBlock(b);
+        server.startAsync().awaitRunning();
+        address = server.getLocalAddress();
+        clientManager = new NioClientManager(2);
+        clientManager.startAsync().awaitRunning();
+    }
+
+    @After
+    public void tearDown() {
+        clientManager.stopAsync().awaitTerminated();
+        server.stopAsync().awaitTerminated();
+    }
+
+    // Connects a client that downloads the chain, as headers followed by full blocks or as filtered blocks.
+    private BlockChain connectClient(boolean filtered) throws Exception {
+        BlockChain chain = new BlockChain(REGTEST, new MemoryBlockStore(REGTEST));
+        Peer peer = new Peer(REGTEST, new VersionMessage(REGTEST, 0), new PeerAddress(REGTEST, address), chain);
+        if (filtered)
+            peer.setDownloadParameters(0, true);
+        else
+            peer.setDownloadParameters(Utils.currentTimeSeconds(), false);
+        clientManager.openConnection(address, peer);
+        peer.getVersionHandshakeFuture().get(10, TimeUnit.SECONDS);
+        if (filtered)
+            peer.setBloomFilter(new BloomFilter(10, 0.001, 1), false);
+        peer.startBlockChainDownload();
+        return chain;
+    }
+
+    private static void awaitHeight(BlockChain chain, int height, long deadline) throws InterruptedException {
+        while (chain.getBestChainHeight() < height) {
+            assertTrue("timed out at height " + chain.getBestChainHeight(), System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    public void serveManyClients() throws Exception {
+        final int clients = 100;
+        List<BlockChain> chains = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++)
+            chains.add(connectClient(i % 2 == 0));
+        long deadline = System.currentTimeMillis() + 120000;
+        for (BlockChain chain : chains) {
+            awaitHeight(chain, CHAIN_LENGTH, deadline);
+            assertEquals(serverStore.getChainHead().getHeader().getHash(), chain.getChainHead().getHeader().getHash());
+        }
+        assertEquals(clients, server.getConnectedPeers().size());
+    }
+
+    @Test
+    public void rateLimited() throws Exception {
+        server.setMaxRequestsPerSecond(300);
+        long start = System.currentTimeMillis();
+        BlockChain chain = connectClient(true);
+        awaitHeight(chain, CHAIN_LENGTH, start + 60000);
+        // The client starts with a second's worth of requests, and has to wait for the rest
+        assertTrue(System.currentTimeMillis() - start >= 1000);
+    }
+
+    @Test
+    public void tooManyRequestsDisconnects() throws Exception {
+        server.setMaxQueuedRequests(10);
+        Peer peer = new Peer(REGTEST, new VersionMessage(REGTEST, 0), new PeerAddress(REGTEST, address), null);
+        final SettableFuture<Void> disconnected = SettableFuture.create();
+        peer.addDisconnectedEventListener(Threading.SAME_THREAD, new PeerDisconnectedEventListener() {
+            @Override
+            public void onPeerDisconnected(Peer peer, int peerCount) {
+                disconnected.set(null);
+            }
+        });
+        clientManager.openConnection(address, peer);
+        peer.getVersionHandshakeFuture().get(10, TimeUnit.SECONDS);
+        GetDataMessage getdata = new GetDataMessage(REGTEST);
+        StoredBlock block = serverStore.getChainHead();
+        for (int i = 0; i < 50; i++) {
+            getdata.addBlock(block.getHeader().getHash(), false);
+            block = block.getPrev(serverStore);
+        }
+        peer.sendMessage(getdata);
+        disconnected.get(10, TimeUnit.SECONDS);
+    }
+}
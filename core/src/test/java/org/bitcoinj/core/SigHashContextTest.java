@@ -0,0 +1,88 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.core.Transaction.SigHash;
+import org.bitcoinj.params.TestNet3Params;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.script.ScriptOpCodes;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.bitcoinj.core.Utils.HEX;
+import static org.junit.Assert.assertEquals;
+
+public class SigHashContextTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+    private static final NetworkParameters TESTNET = TestNet3Params.get();
+
+    @Test
+    public void bip143Vector() {
+        // test vector P2WPKH from:
+        // https://github.com/bitcoin/bips/blob/master/bip-0143.mediawiki
+        Transaction tx = new Transaction(TESTNET, HEX.decode("0100000002fff7f7881a8099afa6940d42d1e7f6362bec38171ea3e"
+                + "df433541db4e4ad969f0000000000eeffffffef51e1b804cc89d182d279655c3aa89e815b1b309fe287d9b2b55d57b90ec68a"
+                + "0100000000ffffffff02202cb206000000001976a9148280b37df378db99f66f85c95a783a76ac7a6d5988ac9093510d00000000"
+                + "1976a9143bde42dbee7e4dbe6a21b2d50ce2f0167faa815988ac11000000"));
+        SigHashContext context = new SigHashContext(tx);
+        byte[] scriptPubKey0 = HEX.decode("2103c9f4836b9a4f77fc0d81f7bcb01b7f1b35916864b9476c241ce9fc198bd25432ac");
+        assertEquals("63cec688ee06a91e913875356dd4dea2f8e0f2a2659885372da2a37e32c7532e",
+                context.hashForSignature(0, scriptPubKey0, SigHash.ALL, false).toString());
+        byte[] scriptCode1 = HEX.decode("1976a9141d0f172a0ecb48aee1be1f2687d2963ae33f71a188ac");
+        assertEquals("c37af31116d1b27caf68aae9e3ac82f1477929014d5b917657d0eb49478cb670",
+                context.hashForWitnessSignature(1, scriptCode1, Coin.COIN.multiply(6), SigHash.ALL, false).toString());
+    }
+
+    @Test
+    public void sameAsTransaction() {
+        Random random = new Random(1);
+        Transaction tx = new Transaction(UNITTEST);
+        tx.setLockTime(123456);
+        for (int i = 0; i < 50; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            TransactionInput input = new TransactionInput(UNITTEST, tx, new byte[] { ScriptOpCodes.OP_1 },
+                    new TransactionOutPoint(UNITTEST, random.nextInt(10), Sha256Hash.wrap(hash)));
+            input.setSequenceNumber(random.nextInt());
+            tx.addInput(input);
+        }
+        for (int i = 0; i < 3; i++)
+            tx.addOutput(Coin.valueOf(random.nextInt(100000)), new ECKey());
+        ECKey key = new ECKey();
+        // The OP_CODESEPARATOR is not signed.
+        Script script = new ScriptBuilder(ScriptBuilder.createP2PKHOutputScript(key))
+                .op(0, ScriptOpCodes.OP_CODESEPARATOR).build();
+        byte[] scriptCode = new ScriptBuilder().data(ScriptBuilder.createP2PKHOutputScript(key).getProgram()).build()
+                .getProgram();
+
+        SigHashContext context = new SigHashContext(tx);
+        for (int i = 0; i < tx.getInputs().size(); i++) {
+            Coin value = Coin.valueOf(random.nextInt(100000));
+            for (SigHash type : new SigHash[] { SigHash.ALL, SigHash.NONE, SigHash.SINGLE }) {
+                for (boolean anyoneCanPay : new boolean[] { false, true }) {
+                    assertEquals(tx.hashForSignature(i, script.getProgram(), type, anyoneCanPay),
+                            context.hashForSignature(i, script.getProgram(), type, anyoneCanPay));
+                    assertEquals(tx.hashForWitnessSignature(i, scriptCode, value, type, anyoneCanPay),
+                            context.hashForWitnessSignature(i, scriptCode, value, type, anyoneCanPay));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class ByteBufferPoolTest {
+    @Test
+    public void roundsUpToSizeClassesAndReuses() {
+        ByteBufferPool pool = new ByteBufferPool(64 * 1024);
+        ByteBuffer small = pool.acquire(10);
+        assertTrue(small.isDirect());
+        assertEquals(ByteBufferPool.MIN_POOLED_SIZE, small.capacity());
+        ByteBuffer medium = pool.acquire(5000);
+        assertEquals(8192, medium.capacity());
+        assertEquals(0, medium.position());
+        assertEquals(8192, medium.limit());
+
+        medium.order(ByteOrder.LITTLE_ENDIAN).put(new byte[100]).flip();
+        pool.release(medium);
+        assertEquals(1, pool.getFreeCount(8192));
+        ByteBuffer again = pool.acquire(8000);
+        assertSame(medium, again);
+        assertEquals(0, again.position());
+        assertEquals(8192, again.limit());
+        assertEquals(ByteOrder.BIG_ENDIAN, again.order());
+        assertEquals(0, pool.getFreeCount(8192));
+    }
+
+    @Test
+    public void oversizedAndForeignBuffersAreNotPooled() {
+        ByteBufferPool pool = new ByteBufferPool(64 * 1024);
+        ByteBuffer huge = pool.acquire(ByteBufferPool.MAX_POOLED_SIZE + 1);
+        assertFalse(huge.isDirect());
+        assertEquals(ByteBufferPool.MAX_POOLED_SIZE + 1, huge.capacity());
+        pool.release(huge);
+        pool.release(ByteBuffer.wrap(new byte[4096]));
+        pool.release(ByteBuffer.allocateDirect(5000));
+        assertEquals(0, pool.getFreeCount(4096));
+        assertEquals(0, pool.getFreeCount(8192));
+    }
+
+    @Test
+    public void keepsAtMostItsBudgetPerClass() {
+        ByteBufferPool pool = new ByteBufferPool(16 * 1024);
+        ByteBuffer[] buffers = new ByteBuffer[6];
+        for (int i = 0; i < buffers.length; i++)
+            buffers[i] = pool.acquire(4096);
+        for (ByteBuffer buffer : buffers)
+            pool.release(buffer);
+        assertEquals(4, pool.getFreeCount(4096));
+        // Classes bigger than the budget still keep one buffer
+        pool.release(pool.acquire(ByteBufferPool.MAX_POOLED_SIZE));
+        pool.release(pool.acquire(ByteBufferPool.MAX_POOLED_SIZE));
+        assertEquals(1, pool.getFreeCount(ByteBufferPool.MAX_POOLED_SIZE));
+    }
+}
@@ -29,16 +29,26 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
 import javax.net.SocketFactory;
+import java.io.DataInputStream;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.google.common.base.Preconditions.checkState;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(value = Parameterized.class)
 public class NetworkAbstractionTests {
@@ -56,10 +66,10 @@ public class NetworkAbstractionTests {
         this.clientType = clientType;
         if (clientType == 0) {
             channels = new NioClientManager();
-            channels.startAsync();
+            channels.startAsync().awaitRunning();
         } else if (clientType == 1) {
             channels = new BlockingClientManager();
-            channels.startAsync();
+            channels.startAsync().awaitRunning();
         } else
             channels = null;
     }
@@ -659,4 +669,233 @@ public class NetworkAbstractionTests {
         server.stopAsync();
         server.awaitTerminated();
     }
+
+    @Test
+    public void multipleSelectLoops() throws Exception {
+        // Connections are spread over the server's (and client manager's) loops and keep their message order
+        final int connections = 6;
+        final int messages = 50;
+        final CountDownLatch serverConnectionsClosed = new CountDownLatch(connections);
+        NioServer server = new NioServer(new StreamConnectionFactory() {
+            @Override
+            public ProtobufConnection<TwoWayChannelMessage> getNewConnection(InetAddress inetAddress, int port) {
+                return new ProtobufConnection<>(new ProtobufConnection.Listener<Protos.TwoWayChannelMessage>() {
+                    @Override
+                    public void messageReceived(ProtobufConnection<TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+                        handler.write(msg);
+                    }
+
+                    @Override
+                    public void connectionOpen(ProtobufConnection<TwoWayChannelMessage> handler) {
+                    }
+
+                    @Override
+                    public void connectionClosed(ProtobufConnection<TwoWayChannelMessage> handler) {
+                        serverConnectionsClosed.countDown();
+                    }
+                }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+            }
+        }, new InetSocketAddress("localhost", 4243), 3);
+        server.startAsync();
+        server.awaitRunning();
+        NioClientManager manager = null;
+        if (clientType == 0) {
+            manager = new NioClientManager(2);
+            manager.startAsync();
+            manager.awaitRunning();
+        }
+
+        final CountDownLatch echoesReceived = new CountDownLatch(connections);
+        List<ProtobufConnection<TwoWayChannelMessage>> clients = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            final SettableFuture<Void> opened = SettableFuture.create();
+            ProtobufConnection<TwoWayChannelMessage> clientHandler = new ProtobufConnection<>(
+                    new ProtobufConnection.Listener<Protos.TwoWayChannelMessage>() {
+                        int expected = 0;
+
+                        @Override
+                        public synchronized void messageReceived(ProtobufConnection<TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+                            if (msg.getClientVersion().getMajor() != expected++)
+                                fail.set(true);
+                            if (expected == messages)
+                                echoesReceived.countDown();
+                        }
+
+                        @Override
+                        public void connectionOpen(ProtobufConnection<TwoWayChannelMessage> handler) {
+                            opened.set(null);
+                        }
+
+                        @Override
+                        public void connectionClosed(ProtobufConnection<TwoWayChannelMessage> handler) {
+                        }
+                    }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+            if (manager != null)
+                manager.openConnection(new InetSocketAddress("localhost", 4243), clientHandler);
+            else
+                openConnection(new InetSocketAddress("localhost", 4243), clientHandler);
+            opened.get();
+            clients.add(clientHandler);
+        }
+        for (int i = 0; i < messages; i++) {
+            for (ProtobufConnection<TwoWayChannelMessage> client : clients)
+                client.write(Protos.TwoWayChannelMessage.newBuilder()
+                        .setType(Protos.TwoWayChannelMessage.MessageType.CLIENT_VERSION)
+                        .setClientVersion(Protos.ClientVersion.newBuilder().setMajor(i)).build());
+        }
+        assertTrue(echoesReceived.await(30, TimeUnit.SECONDS));
+
+        assertEquals(3, server.getLoopCount());
+        for (int i = 0; i < server.getLoopCount(); i++) {
+            assertEquals(2, server.getLoopConnectionCount(i));
+            double utilization = server.getLoopUtilization(i);
+            assertTrue(utilization >= 0 && utilization <= 1);
+        }
+        if (manager != null) {
+            assertEquals(connections, manager.getConnectedClientCount());
+            assertEquals(3, manager.getLoopConnectionCount(0));
+            assertEquals(3, manager.getLoopConnectionCount(1));
+        }
+
+        for (ProtobufConnection<TwoWayChannelMessage> client : clients)
+            client.closeConnection();
+        assertTrue(serverConnectionsClosed.await(30, TimeUnit.SECONDS));
+        for (int i = 0; i < server.getLoopCount(); i++)
+            assertEquals(0, server.getLoopConnectionCount(i));
+        if (manager != null)
+            manager.stopAsync().awaitTerminated();
+        server.stopAsync().awaitTerminated();
+    }
+
+    @Test
+    public void coalescedWrites() throws Exception {
+        // The server's replies to a burst of small messages go out in far fewer writes than there are replies
+        final int messages = 100;
+        final SettableFuture<Void> serverConnectionClosed = SettableFuture.create();
+        NioServer server = new NioServer(new StreamConnectionFactory() {
+            @Override
+            public ProtobufConnection<TwoWayChannelMessage> getNewConnection(InetAddress inetAddress, int port) {
+                return new ProtobufConnection<>(new ProtobufConnection.Listener<Protos.TwoWayChannelMessage>() {
+                    @Override
+                    public void messageReceived(ProtobufConnection<TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+                        handler.write(msg);
+                    }
+
+                    @Override
+                    public void connectionOpen(ProtobufConnection<TwoWayChannelMessage> handler) {
+                    }
+
+                    @Override
+                    public void connectionClosed(ProtobufConnection<TwoWayChannelMessage> handler) {
+                        serverConnectionClosed.set(null);
+                    }
+                }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+            }
+        }, new InetSocketAddress("localhost", 4243));
+        server.setWriteCoalescingMillis(10);
+        server.startAsync();
+        server.awaitRunning();
+
+        final SettableFuture<Void> clientConnectionOpen = SettableFuture.create();
+        final CountDownLatch echoesReceived = new CountDownLatch(messages);
+        ProtobufConnection<TwoWayChannelMessage> clientHandler = new ProtobufConnection<>(
+                new ProtobufConnection.Listener<Protos.TwoWayChannelMessage>() {
+                    int expected = 0;
+
+                    @Override
+                    public synchronized void messageReceived(ProtobufConnection<TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+                        if (msg.getClientVersion().getMajor() != expected++)
+                            fail.set(true);
+                        echoesReceived.countDown();
+                    }
+
+                    @Override
+                    public void connectionOpen(ProtobufConnection<TwoWayChannelMessage> handler) {
+                        clientConnectionOpen.set(null);
+                    }
+
+                    @Override
+                    public void connectionClosed(ProtobufConnection<TwoWayChannelMessage> handler) {
+                    }
+                }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+        MessageWriteTarget client = openConnection(new InetSocketAddress("localhost", 4243), clientHandler);
+        clientConnectionOpen.get();
+        for (int i = 0; i < messages; i++)
+            clientHandler.write(Protos.TwoWayChannelMessage.newBuilder()
+                    .setType(Protos.TwoWayChannelMessage.MessageType.CLIENT_VERSION)
+                    .setClientVersion(Protos.ClientVersion.newBuilder().setMajor(i)).build());
+        assertTrue(echoesReceived.await(30, TimeUnit.SECONDS));
+
+        assertEquals(messages, server.getWrittenMessageCount());
+        assertTrue(server.getWriteCallCount() > 0);
+        assertTrue(server.getWriteCallCount() < messages / 2);
+
+        client.closeConnection();
+        serverConnectionClosed.get();
+        server.stopAsync().awaitTerminated();
+    }
+
+    @Test
+    public void writabilityWatermarks() throws Exception {
+        // A connection queueing more than the high watermark is told to hold back, and told it may carry on once the
+        // other side has read enough
+        final int messageLength = 64 * 1024;
+        final LinkedBlockingQueue<Boolean> writabilityChanges = new LinkedBlockingQueue<>();
+        final SettableFuture<Boolean> writableAfterWrite = SettableFuture.create();
+        NioServer server = new NioServer(new StreamConnectionFactory() {
+            @Override
+            public StreamConnection getNewConnection(InetAddress inetAddress, int port) {
+                return new FlowControlledConnection() {
+                    private FlowControlledWriteTarget writeTarget;
+
+                    @Override
+                    public void connectionClosed() {
+                    }
+
+                    @Override
+                    public void connectionOpened() {
+                        try {
+                            writeTarget.writeBytes(new byte[messageLength]);
+                            writableAfterWrite.set(writeTarget.isWritable());
+                        } catch (IOException e) {
+                            writableAfterWrite.setException(e);
+                        }
+                    }
+
+                    @Override
+                    public void writabilityChanged(boolean writable) {
+                        writabilityChanges.add(writable);
+                    }
+
+                    @Override
+                    public int receiveBytes(ByteBuffer buff) {
+                        return buff.position();
+                    }
+
+                    @Override
+                    public void setWriteTarget(MessageWriteTarget writeTarget) {
+                        this.writeTarget = (FlowControlledWriteTarget) writeTarget;
+                    }
+
+                    @Override
+                    public int getMaxMessageSize() {
+                        return 1024;
+                    }
+                };
+            }
+        }, new InetSocketAddress("localhost", 4243));
+        server.setWriteBufferWatermarks(1024, 16 * 1024);
+        server.startAsync();
+        server.awaitRunning();
+
+        Socket client = new Socket("localhost", 4243);
+        assertFalse(writableAfterWrite.get());
+        assertEquals(Boolean.FALSE, writabilityChanges.poll(10, TimeUnit.SECONDS));
+        new DataInputStream(client.getInputStream()).readFully(new byte[messageLength]);
+        assertEquals(Boolean.TRUE, writabilityChanges.poll(10, TimeUnit.SECONDS));
+        assertTrue(writabilityChanges.isEmpty());
+
+        client.close();
+        server.stopAsync().awaitTerminated();
+    }
 }
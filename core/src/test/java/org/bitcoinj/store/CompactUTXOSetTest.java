@@ -0,0 +1,226 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.TransactionOutputChanges;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.script.ScriptOpCodes;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class CompactUTXOSetTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    @Test
+    public void codecRoundTripsStandardAndNonStandardScripts() {
+        ECKey key = new ECKey();
+        List<Script> scripts = new ArrayList<>();
+        scripts.add(ScriptBuilder.createP2PKHOutputScript(key));
+        scripts.add(ScriptBuilder.createP2SHOutputScript(new byte[20]));
+        scripts.add(ScriptBuilder.createP2WPKHOutputScript(key));
+        scripts.add(ScriptBuilder.createP2WSHOutputScript(new byte[32]));
+        scripts.add(ScriptBuilder.createP2PKOutputScript(key));
+        scripts.add(ScriptBuilder.createOpReturnScript(new byte[40]));
+        scripts.add(new ScriptBuilder().data(new byte[300]).op(ScriptOpCodes.OP_DROP).build());
+        scripts.add(new ScriptBuilder().op(ScriptOpCodes.OP_TRUE).build());
+        int height = 1;
+        for (Script script : scripts) {
+            UTXO out = new UTXO(Sha256Hash.of(script.getProgram()), height * 70000L, Coin.valueOf(height * 123456789L),
+                    height, height % 2 == 0, script, "");
+            UTXO decoded = CompactUTXOCodec.decode(CompactUTXOCodec.encode(out), UNITTEST);
+            assertEquals(out, decoded);
+            assertArrayEquals(script.getProgram(), decoded.getScript().getProgram());
+            assertEquals(out.getValue(), decoded.getValue());
+            assertEquals(out.getHeight(), decoded.getHeight());
+            assertEquals(out.isCoinbase(), decoded.isCoinbase());
+            assertEquals(CompactUTXOCodec.encodedSize(out), CompactUTXOCodec.encode(out).length);
+            height++;
+        }
+        UTXO p2pkh = CompactUTXOCodec.decode(CompactUTXOCodec.encode(new UTXO(Sha256Hash.ZERO_HASH, 0, Coin.COIN, 0,
+                false, scripts.get(0), "")), UNITTEST);
+        assertEquals(LegacyAddress.fromKey(UNITTEST, key).toString(), p2pkh.getAddress());
+        assertTrue(CompactUTXOCodec.encode(p2pkh).length < 64);
+    }
+
+    @Test
+    public void undoChangesRoundTripInBothFormats() throws Exception {
+        Random random = new Random(3);
+        List<UTXO> created = new ArrayList<>();
+        List<UTXO> spent = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            created.add(randomOutput(random));
+            spent.add(randomOutput(random));
+        }
+        TransactionOutputChanges changes = new TransactionOutputChanges(created, spent);
+        byte[] compact = CompactUTXOCodec.encodeChanges(changes);
+        ByteArrayOutputStream legacy = new ByteArrayOutputStream();
+        changes.serializeToStream(legacy);
+        assertTrue(compact.length < legacy.size());
+
+        // Undo data is read in either format, at an offset as the stores keep it.
+        byte[] padded = new byte[compact.length + 3];
+        System.arraycopy(compact, 0, padded, 1, compact.length);
+        for (TransactionOutputChanges decoded : new TransactionOutputChanges[] {
+                CompactUTXOCodec.decodeChanges(padded, 1, compact.length, UNITTEST),
+                CompactUTXOCodec.decodeChanges(legacy.toByteArray(), 0, legacy.size(), UNITTEST) }) {
+            assertEquals(created, decoded.txOutsCreated);
+            assertEquals(spent, decoded.txOutsSpent);
+            assertEquals(created.get(7).getValue(), decoded.txOutsCreated.get(7).getValue());
+        }
+        TransactionOutputChanges empty = CompactUTXOCodec.decodeChanges(CompactUTXOCodec.encodeChanges(
+                new TransactionOutputChanges(new ArrayList<UTXO>(), new ArrayList<UTXO>())), 0, 6, UNITTEST);
+        assertTrue(empty.txOutsCreated.isEmpty() && empty.txOutsSpent.isEmpty());
+    }
+
+    @Test
+    public void putGetRemoveAcrossResizes() {
+        CompactUTXOSet set = new CompactUTXOSet(0);
+        Random random = new Random(1);
+        Set<UTXO> expected = new HashSet<>();
+        for (int i = 0; i < 5000; i++) {
+            UTXO out = randomOutput(random);
+            set.put(out);
+            expected.add(out);
+        }
+        assertEquals(expected.size(), set.size());
+        int removed = 0;
+        for (UTXO out : new ArrayList<>(expected)) {
+            if (removed++ % 3 == 0) {
+                assertTrue(set.remove(out.getHash(), out.getIndex()));
+                assertFalse(set.remove(out.getHash(), out.getIndex()));
+                expected.remove(out);
+            }
+        }
+        assertEquals(expected.size(), set.size());
+        for (UTXO out : expected) {
+            byte[] record = set.get(out.getHash(), out.getIndex());
+            assertNotNull(record);
+            assertEquals(out.getValue(), CompactUTXOCodec.decode(record, UNITTEST).getValue());
+        }
+        assertEquals(expected.size(), set.records().size());
+    }
+
+    @Test
+    public void batchWritesOnlyApplyOnCommit() {
+        CompactUTXOSet set = new CompactUTXOSet(16);
+        Random random = new Random(2);
+        UTXO kept = randomOutput(random);
+        UTXO spent = randomOutput(random);
+        UTXO created = randomOutput(random);
+        set.put(kept);
+        set.put(spent);
+
+        set.beginDatabaseBatchWrite();
+        assertTrue(set.remove(spent.getHash(), spent.getIndex()));
+        set.put(created);
+        assertNull(set.get(spent.getHash(), spent.getIndex()));
+        assertNotNull(set.get(created.getHash(), created.getIndex()));
+        assertEquals(2, set.records().size());
+        set.abortDatabaseBatchWrite();
+
+        assertNotNull(set.get(spent.getHash(), spent.getIndex()));
+        assertNull(set.get(created.getHash(), created.getIndex()));
+        assertEquals(2, set.size());
+
+        set.beginDatabaseBatchWrite();
+        assertTrue(set.remove(spent.getHash(), spent.getIndex()));
+        set.put(created);
+        set.commitDatabaseBatchWrite();
+
+        assertNotNull(set.get(kept.getHash(), kept.getIndex()));
+        assertNull(set.get(spent.getHash(), spent.getIndex()));
+        assertNotNull(set.get(created.getHash(), created.getIndex()));
+        assertEquals(2, set.size());
+    }
+
+    @Test
+    public void scriptIndexFollowsBatchWrites() {
+        CompactUTXOSet set = new CompactUTXOSet(16);
+        Random random = new Random(3);
+        UTXO kept = randomOutput(random);
+        UTXO spent = randomOutput(random);
+        UTXO created = randomOutput(random);
+        set.put(kept);
+        set.put(spent);
+        Set<Sha256Hash> scriptHashes = new HashSet<>();
+        for (UTXO out : new UTXO[] { kept, spent, created })
+            scriptHashes.add(ScriptHashIndex.hash(out.getScript()));
+        assertEquals(2, set.recordsForScripts(scriptHashes).size());
+
+        set.beginDatabaseBatchWrite();
+        assertTrue(set.remove(spent.getHash(), spent.getIndex()));
+        set.put(created);
+        List<byte[]> records = set.recordsForScripts(scriptHashes);
+        assertEquals(2, records.size());
+        for (byte[] record : records)
+            assertFalse(CompactUTXOCodec.isOutPoint(record, spent.getHash(), spent.getIndex()));
+        set.commitDatabaseBatchWrite();
+
+        records = set.recordsForScripts(Collections.singleton(ScriptHashIndex.hash(created.getScript())));
+        assertEquals(1, records.size());
+        assertTrue(CompactUTXOCodec.isOutPoint(records.get(0), created.getHash(), created.getIndex()));
+        assertTrue(set.recordsForScripts(Collections.singleton(ScriptHashIndex.hash(spent.getScript()))).isEmpty());
+    }
+
+    @Test
+    public void truncatedKeyCollisionsAreKeptApart() {
+        // Same first eight bytes of hash and the same index: identical 64 bit keys, different outpoints.
+        byte[] first = new byte[32];
+        byte[] second = new byte[32];
+        second[31] = 1;
+        Script script = ScriptBuilder.createP2PKHOutputScript(new ECKey());
+        UTXO a = new UTXO(Sha256Hash.wrap(first), 0, Coin.COIN, 1, false, script, "");
+        UTXO b = new UTXO(Sha256Hash.wrap(second), 0, Coin.CENT, 1, false, script, "");
+        CompactUTXOSet set = new CompactUTXOSet(16);
+        set.put(a);
+        set.put(b);
+        assertEquals(2, set.size());
+        assertEquals(Coin.COIN, CompactUTXOCodec.decode(set.get(a.getHash(), 0), UNITTEST).getValue());
+        assertEquals(Coin.CENT, CompactUTXOCodec.decode(set.get(b.getHash(), 0), UNITTEST).getValue());
+        assertTrue(set.remove(a.getHash(), 0));
+        assertNull(set.get(a.getHash(), 0));
+        assertEquals(Coin.CENT, CompactUTXOCodec.decode(set.get(b.getHash(), 0), UNITTEST).getValue());
+        assertTrue(set.remove(b.getHash(), 0));
+        assertEquals(0, set.size());
+    }
+
+    private static UTXO randomOutput(Random random) {
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        byte[] pubKeyHash = new byte[20];
+        random.nextBytes(pubKeyHash);
+        return new UTXO(Sha256Hash.wrap(hash), random.nextInt(4), Coin.valueOf(random.nextInt(Integer.MAX_VALUE)),
+                random.nextInt(600000), false, ScriptBuilder.createP2SHOutputScript(pubKeyHash), "");
+    }
+}
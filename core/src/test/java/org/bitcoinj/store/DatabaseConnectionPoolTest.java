@@ -0,0 +1,143 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class DatabaseConnectionPoolTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+    private static final String H2_URL = "jdbc:h2:mem:pooltest;DB_CLOSE_DELAY=-1";
+
+    private File dbFile;
+
+    @Before
+    public void setUp() throws Exception {
+        Class.forName("org.h2.Driver");
+        dbFile = File.createTempFile("poolstore", null);
+        dbFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        new File(dbFile.getPath() + ".h2.db").delete();
+        new File(dbFile.getPath() + ".trace.db").delete();
+        new File(dbFile.getPath() + ".lock.db").delete();
+    }
+
+    private DatabaseConnectionPool newPool(int maxConnections, long timeoutMillis) {
+        return new DatabaseConnectionPool("test", H2_URL, null, null, Collections.<String>emptyList(), false,
+                maxConnections, timeoutMillis);
+    }
+
+    @Test
+    public void reusesReleasedConnections() throws Exception {
+        DatabaseConnectionPool pool = newPool(2, 1000);
+        Connection first = pool.acquire();
+        assertEquals(1, pool.getBorrowedConnections());
+        pool.release(first);
+        assertEquals(0, pool.getBorrowedConnections());
+        assertEquals(1, pool.getIdleConnections());
+        assertSame(first, pool.acquire());
+    }
+
+    @Test
+    public void acquireTimesOutWhenExhausted() throws Exception {
+        DatabaseConnectionPool pool = newPool(1, 50);
+        Connection connection = pool.acquire();
+        try {
+            pool.acquire();
+            fail();
+        } catch (BlockStoreException e) {
+            // expected
+        }
+        pool.release(connection);
+        pool.release(connection); // releasing twice must not grow the pool
+        pool.acquire();
+        try {
+            pool.acquire();
+            fail();
+        } catch (BlockStoreException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void discardsClosedAndRollsBackOpenTransactions() throws Exception {
+        DatabaseConnectionPool pool = newPool(1, 1000);
+        Connection connection = pool.acquire();
+        connection.setAutoCommit(false);
+        pool.release(connection);
+        connection = pool.acquire();
+        assertTrue(connection.getAutoCommit());
+        connection.close();
+        pool.release(connection);
+        assertEquals(0, pool.getIdleConnections());
+        Connection fresh = pool.acquire();
+        assertNotSame(connection, fresh);
+        assertFalse(fresh.isClosed());
+    }
+
+    @Test
+    public void readOnlyQueriesUseReaderPool() throws Exception {
+        final H2FullPrunedBlockStore store = new H2FullPrunedBlockStore(UNITTEST, dbFile.getPath(), 10);
+        try {
+            final int writerConnections = store.allConnections.size();
+            final ECKey key = new ECKey();
+            ExecutorService executor = Executors.newFixedThreadPool(16);
+            List<Future<List<UTXO>>> results = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                results.add(executor.submit(new Callable<List<UTXO>>() {
+                    @Override
+                    public List<UTXO> call() throws Exception {
+                        assertEquals(BigInteger.ZERO,
+                                store.calculateBalanceForAddress(LegacyAddress.fromKey(UNITTEST, key)));
+                        return store.getOpenTransactionOutputs(Collections.singletonList(key));
+                    }
+                }));
+            }
+            for (Future<List<UTXO>> result : results)
+                assertTrue(result.get().isEmpty());
+            executor.shutdown();
+            // Reader threads never bind a writer connection, and the reader pool stays within its bound.
+            assertEquals(writerConnections, store.allConnections.size());
+            assertEquals(0, store.readerPool.getBorrowedConnections());
+            assertTrue(store.readerPool.getIdleConnections() <= DatabaseFullPrunedBlockStore.DEFAULT_MAX_READER_CONNECTIONS);
+        } finally {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SegmentLogTest {
+    private File directory;
+    private SegmentLog log;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("segmentlog", null);
+        directory.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (log != null)
+            log.close();
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void batchesSurviveReopen() throws Exception {
+        log = new SegmentLog(directory, 4096, 0, false);
+        SegmentLog.Batch batch = new SegmentLog.Batch();
+        for (int i = 0; i < 100; i++)
+            batch.put(key(i), value(i));
+        log.write(batch);
+        batch = new SegmentLog.Batch();
+        batch.delete(key(5));
+        batch.put(key(6), new byte[] { 42 });
+        log.write(batch);
+        log.close();
+
+        log = new SegmentLog(directory, 4096, 0, false);
+        assertEquals(99, log.size());
+        assertNull(log.get(key(5)));
+        assertArrayEquals(new byte[] { 42 }, log.get(key(6)));
+        assertArrayEquals(value(99), log.get(key(99)));
+        List<byte[]> range = log.keys(key(10), key(20));
+        assertEquals(10, range.size());
+        assertArrayEquals(key(10), range.get(0));
+    }
+
+    @Test
+    public void tornWriteIsDiscarded() throws Exception {
+        log = new SegmentLog(directory, 1 << 20, 0, false);
+        SegmentLog.Batch first = new SegmentLog.Batch();
+        first.put(key(1), value(1));
+        log.write(first);
+        SegmentLog.Batch second = new SegmentLog.Batch();
+        second.put(key(1), value(100));
+        second.put(key(2), value(2));
+        log.write(second);
+        log.close();
+        log = null;
+
+        // Simulate dying half way through appending the second batch.
+        File segment = directory.listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        log = new SegmentLog(directory, 1 << 20, 0, false);
+        assertArrayEquals(value(1), log.get(key(1)));
+        assertNull(log.get(key(2)));
+        // And the log carries on from the last complete batch.
+        SegmentLog.Batch third = new SegmentLog.Batch();
+        third.put(key(3), value(3));
+        log.write(third);
+        log.close();
+        log = new SegmentLog(directory, 1 << 20, 0, false);
+        assertArrayEquals(value(3), log.get(key(3)));
+        assertEquals(2, log.size());
+    }
+
+    @Test
+    public void compactionReclaimsOldSegments() throws Exception {
+        log = new SegmentLog(directory, 2048, 0.5, false);
+        // Keep overwriting a small set of keys, so almost everything on disk becomes garbage.
+        for (int round = 0; round < 50; round++) {
+            SegmentLog.Batch batch = new SegmentLog.Batch();
+            for (int i = 0; i < 10; i++)
+                batch.put(key(i), value(round * 10 + i));
+            log.write(batch);
+        }
+        log.compact();
+        // Everything but the head segment, which is never compacted, has been reclaimed.
+        assertTrue(log.getSegmentCount() <= 2);
+        for (int i = 0; i < 10; i++)
+            assertArrayEquals(value(490 + i), log.get(key(i)));
+        log.close();
+
+        log = new SegmentLog(directory, 2048, 0.5, false);
+        assertEquals(10, log.size());
+        for (int i = 0; i < 10; i++)
+            assertArrayEquals(value(490 + i), log.get(key(i)));
+    }
+
+    private static byte[] key(int i) {
+        return ByteBuffer.allocate(4).putInt(i).array();
+    }
+
+    private static byte[] value(int i) {
+        byte[] value = new byte[40];
+        ByteBuffer.wrap(value).putInt(i);
+        return value;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class UndoPrunerTest {
+    private UndoPruner pruner;
+
+    @After
+    public void tearDown() {
+        if (pruner != null)
+            pruner.stop();
+    }
+
+    /** Undo data at a set of heights, recording the ranges it was asked to delete. */
+    private static class FakeTarget implements UndoPruner.Target {
+        final TreeSet<Integer> heights = new TreeSet<>();
+        final List<int[]> deletes = new ArrayList<>();
+
+        FakeTarget(int from, int to) {
+            for (int height = from; height <= to; height++)
+                heights.add(height);
+        }
+
+        @Override
+        public synchronized int getLowestUndoableHeight() {
+            return heights.isEmpty() ? -1 : heights.first();
+        }
+
+        @Override
+        public synchronized void deleteUndoableBlocks(int fromHeight, int toHeight) throws BlockStoreException {
+            deletes.add(new int[] { fromHeight, toHeight });
+            heights.subSet(fromHeight, true, toHeight, true).clear();
+        }
+    }
+
+    @Test
+    public void deletesInBatchesUpToRequestedHeight() throws Exception {
+        FakeTarget target = new FakeTarget(0, 1000);
+        pruner = new UndoPruner("test", target, 100, 0);
+        pruner.pruneTo(449);
+        pruner.awaitPruned();
+        assertEquals(450, (int) target.heights.first());
+        assertEquals(5, target.deletes.size());
+        for (int[] range : target.deletes)
+            assertTrue(range[1] - range[0] < 100);
+        assertArrayEquals(new int[] { 400, 449 }, target.deletes.get(4));
+
+        // Asking for less than has been pruned is a no-op.
+        pruner.pruneTo(300);
+        pruner.awaitPruned();
+        assertEquals(5, target.deletes.size());
+    }
+
+    @Test
+    public void pruneToDoesNotWaitForDeletes() throws Exception {
+        final CountDownLatch deleting = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        FakeTarget target = new FakeTarget(0, 100) {
+            @Override
+            public void deleteUndoableBlocks(int fromHeight, int toHeight) throws BlockStoreException {
+                deleting.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                super.deleteUndoableBlocks(fromHeight, toHeight);
+            }
+        };
+        pruner = new UndoPruner("test", target, 1000, 0);
+        pruner.pruneTo(10);
+        assertTrue(deleting.await(10, TimeUnit.SECONDS));
+        // The store keeps moving its head while a delete is stuck.
+        for (int height = 11; height < 50; height++)
+            pruner.pruneTo(height);
+        release.countDown();
+        pruner.awaitPruned();
+        assertEquals(50, (int) target.heights.first());
+    }
+
+    @Test
+    public void pausesBetweenBatches() throws Exception {
+        FakeTarget target = new FakeTarget(0, 1000);
+        pruner = new UndoPruner("test", target, 100, 50);
+        long start = System.currentTimeMillis();
+        pruner.pruneTo(399);
+        pruner.awaitPruned();
+        assertEquals(4, target.deletes.size());
+        assertTrue(System.currentTimeMillis() - start >= 150);
+    }
+
+    @Test
+    public void restartsAfterStop() throws Exception {
+        FakeTarget target = new FakeTarget(0, 1000);
+        pruner = new UndoPruner("test", target, 100, 0);
+        pruner.pruneTo(99);
+        pruner.awaitPruned();
+        pruner.stop();
+        pruner.pruneTo(199);
+        pruner.awaitPruned();
+        assertEquals(200, (int) target.heights.first());
+    }
+}
@@ -49,6 +49,8 @@ import org.bitcoinj.wallet.KeyChainGroup;
 
 import com.google.common.io.ByteStreams;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
 
 import org.bitcoinj.wallet.MarriedKeyChain;
 import org.bitcoinj.wallet.Protos;
@@ -69,6 +71,7 @@ import java.net.InetAddress;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
 
@@ -319,6 +322,64 @@ public class WalletProtobufSerializerTest {
         assertEquals(1, rebornConfidence1.getDepthInBlocks());
     }
 
+    @Test
+    public void largeWalletIsDecodedInChunks() throws Exception {
+        // Enough transactions for several chunks, each spending the one before, so spends cross chunk boundaries.
+        Transaction first = createFakeTx(UNITTEST, COIN, myAddress);
+        myWallet.addWalletTransaction(new WalletTransaction(Pool.SPENT, first));
+        Transaction prev = first;
+        for (int i = 0; i < 2500; i++) {
+            Transaction tx = new Transaction(UNITTEST);
+            tx.addInput(prev.getOutput(0)).connect(prev.getOutput(0));
+            tx.addOutput(COIN, myAddress);
+            myWallet.addWalletTransaction(new WalletTransaction(i < 2499 ? Pool.SPENT : Pool.UNSPENT, tx));
+            prev = tx;
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(myWallet, output);
+        WalletProtobufSerializer multiThreaded = new WalletProtobufSerializer();
+        multiThreaded.setLoadThreads(4);
+        Wallet parallel = multiThreaded.readWallet(new ByteArrayInputStream(output.toByteArray()));
+        WalletProtobufSerializer singleThreaded = new WalletProtobufSerializer();
+        singleThreaded.setLoadThreads(1);
+        Wallet sequential = singleThreaded.readWallet(new ByteArrayInputStream(output.toByteArray()));
+
+        assertEquals(2501, parallel.getTransactions(true).size());
+        assertEquals(1, parallel.getPoolSize(Pool.UNSPENT));
+        TransactionInput spentBy = parallel.getTransaction(first.getTxId()).getOutput(0).getSpentBy();
+        assertNotNull(spentBy);
+        assertEquals(first.getTxId(), spentBy.getOutpoint().getHash());
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        Set<Protos.Transaction> expected = new HashSet<>(serializer.walletToProto(myWallet).getTransactionList());
+        assertEquals(expected, new HashSet<>(serializer.walletToProto(parallel).getTransactionList()));
+        assertEquals(expected, new HashSet<>(serializer.walletToProto(sequential).getTransactionList()));
+    }
+
+    @Test
+    public void unknownFields() throws Exception {
+        myWallet.receivePending(createFakeTx(UNITTEST, COIN, myAddress), null);
+        // Fields of every wire type that a newer version may have written, then the wallet.
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        CodedOutputStream codedOutput = CodedOutputStream.newInstance(output);
+        codedOutput.writeUInt64(1000, Long.MAX_VALUE);
+        codedOutput.writeFixed64(1001, 64);
+        codedOutput.writeBytes(1002, ByteString.copyFromUtf8("unknown"));
+        codedOutput.writeTag(1003, WireFormat.WIRETYPE_START_GROUP);
+        codedOutput.writeFixed32(1, 32);
+        codedOutput.writeTag(2, WireFormat.WIRETYPE_START_GROUP);
+        codedOutput.writeUInt32(1, 1);
+        codedOutput.writeTag(2, WireFormat.WIRETYPE_END_GROUP);
+        codedOutput.writeTag(1003, WireFormat.WIRETYPE_END_GROUP);
+        codedOutput.writeFixed32(1004, 32);
+        codedOutput.flush();
+        new WalletProtobufSerializer().writeWallet(myWallet, output);
+
+        Wallet wallet = new WalletProtobufSerializer().readWallet(new ByteArrayInputStream(output.toByteArray()));
+        assertEquals(1, wallet.getTransactions(true).size());
+        assertEquals(COIN, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(WALLET_DESCRIPTION, wallet.getDescription());
+    }
+
     private static Wallet roundTrip(Wallet wallet) throws Exception {
         ByteArrayOutputStream output = new ByteArrayOutputStream();
         new WalletProtobufSerializer().writeWallet(wallet, output);
@@ -0,0 +1,152 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.testing.*;
+import org.junit.*;
+
+import java.util.*;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class BranchAndBoundCoinSelectorTest extends TestWithWallet {
+    private static final Address OTHER_ADDRESS = LegacyAddress.fromKey(UNITTEST, new ECKey());
+
+    private final BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(UNITTEST);
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    @Test
+    public void defaultCostOfChange() {
+        assertEquals(valueOf(546), selector.getCostOfChange());
+    }
+
+    @Test
+    public void smallestSingleCoin() throws Exception {
+        List<TransactionOutput> outputs = outputs(CENT, COIN, COIN.multiply(2), COIN.multiply(5));
+        CoinSelection selection = selector.select(COIN.multiply(2), outputs);
+        assertEquals(Collections.singletonList(outputs.get(2)), new ArrayList<>(selection.gathered));
+        assertEquals(COIN.multiply(2), selection.valueGathered);
+        // Less than the cost of change is left over.
+        selection = selector.select(COIN.multiply(2).subtract(selector.getCostOfChange()).add(SATOSHI), outputs);
+        assertEquals(Collections.singletonList(outputs.get(2)), new ArrayList<>(selection.gathered));
+    }
+
+    @Test
+    public void branchAndBound() throws Exception {
+        List<TransactionOutput> outputs = outputs(CENT.multiply(3), CENT.multiply(5), CENT.multiply(7),
+                CENT.multiply(11), CENT.multiply(30));
+        // The largest coin would need change, 11 too little and 11 plus any other too much.
+        CoinSelection selection = selector.select(CENT.multiply(15), outputs);
+        assertEquals(new HashSet<>(outputs.subList(0, 3)), new HashSet<>(selection.gathered));
+        assertEquals(CENT.multiply(15), selection.valueGathered);
+    }
+
+    @Test
+    public void largestFirst() throws Exception {
+        List<TransactionOutput> outputs = outputs(CENT.multiply(10), CENT.multiply(20), CENT.multiply(50));
+        // No changeless selection, so the smallest single coin.
+        CoinSelection selection = selector.select(CENT.multiply(25), outputs);
+        assertEquals(Collections.singletonList(outputs.get(2)), new ArrayList<>(selection.gathered));
+        // The largest coin, then the smallest covering the rest.
+        selection = selector.select(CENT.multiply(65), outputs);
+        assertEquals(Arrays.asList(outputs.get(2), outputs.get(1)), new ArrayList<>(selection.gathered));
+        assertEquals(CENT.multiply(70), selection.valueGathered);
+        // Not enough money.
+        selection = selector.select(COIN, outputs);
+        assertEquals(3, selection.gathered.size());
+        assertEquals(CENT.multiply(80), selection.valueGathered);
+    }
+
+    @Test
+    public void identicalInputs() throws Exception {
+        TransactionOutput output = outputs(CENT).get(0);
+        List<TransactionOutput> outputs = Arrays.asList(output, output, output, output);
+        CoinSelection selection = selector.select(CENT.multiply(3), outputs);
+        assertEquals(3, selection.gathered.size());
+        assertEquals(CENT.multiply(3), selection.valueGathered);
+    }
+
+    @Test
+    public void skipsUnselectable() throws Exception {
+        Transaction pending = new Transaction(UNITTEST);
+        pending.addOutput(COIN, myAddress);
+        pending.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.PENDING);
+        List<TransactionOutput> outputs = new ArrayList<>(outputs(CENT.multiply(50), CENT.multiply(60)));
+        outputs.add(pending.getOutput(0));
+        CoinSelection selection = selector.select(COIN, outputs);
+        assertEquals(new HashSet<>(outputs.subList(0, 2)), new HashSet<>(selection.gathered));
+    }
+
+    @Test
+    public void walletIndex() throws Exception {
+        wallet.setCoinSelector(selector);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN.multiply(2));
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN.multiply(4));
+
+        // 1 and 2 need no change.
+        Transaction tx = send(COIN.multiply(3));
+        assertEquals(2, tx.getInputs().size());
+        assertEquals(1, tx.getOutputs().size());
+        wallet.commitTx(tx);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, tx);
+
+        // The spent coins are gone from the index, and a new one is found.
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT);
+        tx = send(COIN.multiply(4).add(CENT));
+        assertEquals(2, tx.getInputs().size());
+        assertEquals(1, tx.getOutputs().size());
+        wallet.commitTx(tx);
+        assertEquals(ZERO, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        try {
+            send(CENT);
+            fail();
+        } catch (InsufficientMoneyException e) {
+            // Expected.
+        }
+    }
+
+    private Transaction send(Coin value) throws InsufficientMoneyException {
+        SendRequest req = SendRequest.to(OTHER_ADDRESS, value);
+        req.feePerKb = ZERO;
+        req.ensureMinRequiredFee = false;
+        req.shuffleOutputs = false;
+        wallet.completeTx(req);
+        return req.tx;
+    }
+
+    private List<TransactionOutput> outputs(Coin... values) {
+        Transaction tx = new Transaction(UNITTEST);
+        for (Coin value : values)
+            tx.addOutput(value, myAddress);
+        tx.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+        return tx.getOutputs();
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.testing.TestWithWallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class WalletArchiveTest extends TestWithWallet {
+    private static final Address OTHER_ADDRESS = LegacyAddress.fromKey(UNITTEST, new ECKey());
+
+    private File file;
+    private WalletArchive archive;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("archive", null);
+        file.delete();
+        archive = new WalletArchive(UNITTEST, file);
+        wallet.setArchive(archive);
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        archive.close();
+        file.delete();
+        super.tearDown();
+    }
+
+    @Test
+    public void archivesDeeplyBuriedSpentTransactions() throws Exception {
+        Transaction received = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        Transaction send = wallet.createSend(OTHER_ADDRESS, CENT);
+        wallet.commitTx(send);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, send);
+        Coin sent = send.getValue(wallet);
+        Coin balance = wallet.getBalance();
+        // The transaction spending it isn't buried deep enough yet.
+        assertEquals(0, wallet.archiveSpentTransactions(3));
+
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(1, wallet.archiveSpentTransactions(3));
+        assertEquals(1, archive.size());
+        assertEquals(1, wallet.getTransactions(true).size());
+        assertEquals(0, wallet.getPoolSize(WalletTransaction.Pool.SPENT));
+        assertTrue(wallet.isConsistent());
+        assertEquals(balance, wallet.getBalance());
+        assertEquals(sent, send.getValue(wallet));
+
+        // Still there when asked for, and as deep as it is now.
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        Transaction archived = wallet.getTransaction(received.getTxId());
+        assertEquals(received, archived);
+        assertEquals(TransactionConfidence.ConfidenceType.BUILDING, archived.getConfidence().getConfidenceType());
+        assertEquals(5, archived.getConfidence().getDepthInBlocks());
+        List<Transaction> history = wallet.getTransactionsByTime();
+        assertEquals(2, history.size());
+        assertTrue(history.contains(received));
+        assertEquals(1, wallet.getRecentTransactions(1, false).size());
+
+        // Double spends of archived transactions are ignored.
+        Transaction doubleSpend = new Transaction(UNITTEST);
+        doubleSpend.addInput(received.getInput(0).getOutpoint().getHash(), received.getInput(0).getOutpoint().getIndex(),
+                received.getInput(0).getScriptSig());
+        doubleSpend.addOutput(COIN, myAddress);
+        assertFalse(wallet.isPendingTransactionRelevant(doubleSpend));
+    }
+
+    @Test
+    public void reopen() throws Exception {
+        Transaction received = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        Transaction send = wallet.createSend(OTHER_ADDRESS, CENT);
+        wallet.commitTx(send);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, send);
+        Coin sent = send.getValue(wallet);
+        assertEquals(1, wallet.archiveSpentTransactions(1));
+        File walletFile = File.createTempFile("wallet", null);
+        wallet.saveToFile(walletFile);
+        archive.close();
+        // A record cut short by a crash is dropped.
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[] { 0, 0, 1, 0, 42 });
+        }
+        long length = file.length();
+
+        archive = new WalletArchive(UNITTEST, file);
+        assertEquals(length - 5, file.length());
+        Wallet loaded = Wallet.loadFromFile(walletFile);
+        walletFile.delete();
+        assertNull(loaded.getTransaction(received.getTxId()));
+        loaded.setArchive(archive);
+        assertEquals(received, loaded.getTransaction(received.getTxId()));
+        assertEquals(sent, loaded.getTransaction(send.getTxId()).getValue(loaded));
+        assertEquals(wallet.getBalance(), loaded.getBalance());
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.testing.TestWithWallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class WalletJournalTest extends TestWithWallet {
+    private static final Address OTHER_ADDRESS = LegacyAddress.fromKey(UNITTEST, new ECKey());
+
+    private File file;
+    private WalletFiles files;
+    private WalletJournal journal;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("bitcoinj-unit-test", null);
+        files = wallet.autosaveToFile(file, 1, TimeUnit.HOURS, null);
+        journal = files.enableJournal();
+        files.saveNow();
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        wallet.shutdownAutosaveAndWait();
+        file.delete();
+        WalletJournal.getJournalFile(file).delete();
+        super.tearDown();
+    }
+
+    private void assertLoadsSame() throws Exception {
+        Wallet loaded = Wallet.loadFromFile(file);
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        // Key chains look ahead differently after loading, so compare the keys given out
+        assertEquals(serializer.walletToProto(wallet, false).toBuilder().clearKey().build(),
+                serializer.walletToProto(loaded, false).toBuilder().clearKey().build());
+        assertEquals(wallet.getIssuedReceiveKeys(), loaded.getIssuedReceiveKeys());
+        assertEquals(new HashSet<>(serializer.walletToProto(wallet).getTransactionList()),
+                new HashSet<>(serializer.walletToProto(loaded).getTransactionList()));
+        assertEquals(wallet.getBalance(Wallet.BalanceType.ESTIMATED), loaded.getBalance(Wallet.BalanceType.ESTIMATED));
+    }
+
+    @Test
+    public void changesAreAppended() throws Exception {
+        Sha256Hash base = Sha256Hash.of(file);
+        assertLoadsSame();
+
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        Transaction send = wallet.createSend(OTHER_ADDRESS, valueOf(0, 50));
+        wallet.commitTx(send);
+        files.saveNow();
+        assertLoadsSame();
+        // Confirming the spend changes the spent transaction too, and the following blocks change depths.
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, send);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        wallet.freshReceiveKey();
+        files.saveNow();
+        assertLoadsSame();
+        assertEquals(base, Sha256Hash.of(file));
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT);
+        files.saveNow();
+        File journalFile = WalletJournal.getJournalFile(file);
+        long journalSize = journalFile.length();
+        Sha256Hash base = Sha256Hash.of(file);
+        // Not saved yet, but written with the new base.
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+
+        journal.compact();
+        assertNotEquals(base, Sha256Hash.of(file));
+        assertTrue(journalFile.length() < journalSize);
+        assertLoadsSame();
+
+        // Saving goes on with the new journal
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        files.saveNow();
+        assertTrue(journalFile.length() > 36);
+        assertLoadsSame();
+    }
+
+    @Test
+    public void transactionDetailsAreAppended() throws Exception {
+        Transaction received = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        Transaction tx = wallet.getTransaction(received.getTxId());
+        files.saveNow();
+        Sha256Hash base = Sha256Hash.of(file);
+        // The wallet doesn't notice these.
+        tx.setMemo("memo");
+        tx.setPurpose(Transaction.Purpose.USER_PAYMENT);
+        files.saveNow();
+        assertEquals(base, Sha256Hash.of(file));
+        assertLoadsSame();
+        Transaction loaded = Wallet.loadFromFile(file).getTransaction(tx.getTxId());
+        assertEquals("memo", loaded.getMemo());
+        assertEquals(Transaction.Purpose.USER_PAYMENT, loaded.getPurpose());
+
+        tx.setMemo(null);
+        tx.setPurpose(Transaction.Purpose.UNKNOWN);
+        files.saveNow();
+        assertLoadsSame();
+        assertNull(Wallet.loadFromFile(file).getTransaction(tx.getTxId()).getMemo());
+    }
+
+    @Test
+    public void snapshot() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        files.saveNow();
+        Sha256Hash base = Sha256Hash.of(file);
+        // As after a re-org
+        wallet.requireSnapshot();
+        files.saveNow();
+        assertNotEquals(base, Sha256Hash.of(file));
+        assertLoadsSame();
+    }
+
+    @Test
+    public void damagedOrStaleJournal() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        files.saveNow();
+        // A record cut short by a crash is ignored.
+        try (FileOutputStream out = new FileOutputStream(WalletJournal.getJournalFile(file), true)) {
+            out.write(new byte[] { 2, 0, 0, 1, 0, 42 });
+        }
+        assertLoadsSame();
+
+        // The wallet file is saved by other means, and the journal doesn't apply to it anymore.
+        wallet.saveToFile(file);
+        assertLoadsSame();
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT);
+        files.saveNow();
+        assertLoadsSame();
+    }
+}
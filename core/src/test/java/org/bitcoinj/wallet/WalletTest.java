@@ -77,6 +77,8 @@ import java.net.InetAddress;
 import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -588,6 +590,142 @@ public class WalletTest extends TestWithWallet {
         assertEquals(Coin.COIN.plus(Coin.COIN), wallet.getBalance(BalanceType.ESTIMATED));
     }
 
+    @Test
+    public void balanceFollowsAllUnspentRemovals() {
+        Transaction tx = new Transaction(UNITTEST);
+        for (int i = 1; i <= 4; i++)
+            tx.addOutput(COIN.multiply(i), myAddress);
+        wallet.addWalletTransaction(new WalletTransaction(Pool.UNSPENT, tx));
+        assertEquals(COIN.multiply(10), wallet.getBalance(BalanceType.ESTIMATED));
+
+        Iterator<TransactionOutput> it = wallet.myUnspents.iterator();
+        TransactionOutput removed = it.next();
+        it.remove();
+        Coin expected = COIN.multiply(10).subtract(removed.getValue());
+        assertEquals(expected, wallet.getBalance(BalanceType.ESTIMATED));
+        TransactionOutput kept = wallet.myUnspents.iterator().next();
+        assertTrue(wallet.myUnspents.retainAll(Collections.singleton(kept)));
+        assertEquals(kept.getValue(), wallet.getBalance(BalanceType.ESTIMATED));
+        assertTrue(wallet.myUnspents.removeAll(tx.getOutputs()));
+        assertEquals(Coin.ZERO, wallet.getBalance(BalanceType.ESTIMATED));
+    }
+
+    @Test
+    public void balancesFollowConfidenceAndKeyChanges() throws Exception {
+        // Pending coins from the network are not available until they are ours and the network has seen them.
+        Transaction tx = sendMoneyToWallet(null, COIN);
+        assertEquals(COIN, wallet.getBalance(BalanceType.ESTIMATED));
+        assertEquals(Coin.ZERO, wallet.getBalance(BalanceType.AVAILABLE));
+        tx.getConfidence().setSource(TransactionConfidence.Source.SELF);
+        tx.getConfidence().markBroadcastBy(new PeerAddress(UNITTEST, InetAddress.getByAddress(new byte[] { 1, 2, 3, 4 })));
+        assertEquals(Coin.ZERO, wallet.getBalance(BalanceType.AVAILABLE));
+        tx.getConfidence().markBroadcastBy(new PeerAddress(UNITTEST, InetAddress.getByAddress(new byte[] { 5, 6, 7, 8 })));
+        assertEquals(COIN, wallet.getBalance(BalanceType.AVAILABLE));
+
+        // Watched coins only become spendable once we have the key.
+        ECKey key = new ECKey();
+        wallet.addWatchedAddress(LegacyAddress.fromKey(UNITTEST, key));
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN, LegacyAddress.fromKey(UNITTEST, key));
+        assertEquals(COIN.add(COIN), wallet.getBalance(BalanceType.AVAILABLE));
+        assertEquals(COIN, wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE));
+        assertEquals(COIN, wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+        wallet.importKey(key);
+        assertEquals(COIN.add(COIN), wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE));
+        assertEquals(COIN.add(COIN), wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+
+        // Spending keeps the estimated balance up to date.
+        Transaction spend = wallet.createSend(OTHER_ADDRESS, valueOf(0, 50));
+        wallet.commitTx(spend);
+        Coin expected = COIN.add(COIN).subtract(valueOf(0, 50)).subtract(spend.getFee());
+        assertEquals(expected, wallet.getBalance(BalanceType.ESTIMATED));
+        Coin sum = Coin.ZERO;
+        for (TransactionOutput output : wallet.calculateAllSpendCandidates(false, false))
+            sum = sum.add(output.getValue());
+        assertEquals(sum, wallet.getBalance(BalanceType.ESTIMATED));
+    }
+
+    @Test(timeout = 10000)
+    public void queriesDoNotWaitForChanges() throws Exception {
+        Transaction tx1 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        assertEquals(COIN, wallet.getBalance());
+        assertEquals(1, wallet.getTransactions(true).size());
+
+        // Another thread starts changing the wallet and keeps the lock.
+        final Transaction tx2 = new Transaction(UNITTEST);
+        tx2.addInput(createFakeTx(UNITTEST, COIN, OTHER_ADDRESS).getOutput(0));
+        tx2.addOutput(COIN, myAddress);
+        final CountDownLatch changed = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                wallet.lock.lock();
+                try {
+                    wallet.receivePending(tx2, null);
+                    changed.countDown();
+                    finish.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    wallet.lock.unlock();
+                }
+            }
+        };
+        thread.start();
+        changed.await();
+        // Queries answer with the wallet as it was before the change.
+        assertEquals(COIN, wallet.getBalance());
+        assertEquals(1, wallet.getTransactions(true).size());
+        assertEquals(tx1, wallet.getTransaction(tx1.getTxId()));
+        assertNull(wallet.getTransaction(tx2.getTxId()));
+        assertTrue(wallet.getPendingTransactions().isEmpty());
+
+        finish.countDown();
+        thread.join();
+        assertEquals(2, wallet.getTransactions(true).size());
+        assertEquals(tx2, wallet.getTransaction(tx2.getTxId()));
+        assertTrue(wallet.getPendingTransactions().contains(tx2));
+        assertEquals(COIN.add(COIN), wallet.getBalance(BalanceType.ESTIMATED));
+    }
+
+    @Test(timeout = 10000)
+    public void queriesSeeCompletedChangesWhileLocked() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        assertEquals(1, wallet.getTransactions(true).size());
+        assertEquals(COIN, wallet.getBalance(BalanceType.ESTIMATED));
+        Transaction tx = new Transaction(UNITTEST);
+        tx.addInput(createFakeTx(UNITTEST, COIN, OTHER_ADDRESS).getOutput(0));
+        tx.addOutput(COIN, myAddress);
+        wallet.receivePending(tx, null);
+
+        // Another thread holds the lock, but the change above is complete and seen by the queries.
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                wallet.lock.lock();
+                try {
+                    locked.countDown();
+                    finish.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    wallet.lock.unlock();
+                }
+            }
+        };
+        thread.start();
+        locked.await();
+        assertEquals(tx, wallet.getTransaction(tx.getTxId()));
+        assertEquals(1, wallet.getPoolSize(Pool.PENDING));
+        assertTrue(wallet.getPendingTransactions().contains(tx));
+        assertEquals(2, wallet.getTransactions(true).size());
+        assertEquals(COIN.add(COIN), wallet.getBalance(BalanceType.ESTIMATED));
+        finish.countDown();
+        thread.join();
+    }
+
     // Intuitively you'd expect to be able to create a transaction with identical inputs and outputs and get an
     // identical result to Bitcoin Core. However the signatures are not deterministic - signing the same data
     // with the same key twice gives two different outputs. So we cannot prove bit-for-bit compatibility in this test
@@ -1770,6 +1908,66 @@ public class WalletTest extends TestWithWallet {
         assertFalse(wallet.isRequiringUpdateAllBloomFilter());
     }
 
+    @Test
+    public void relevantScripts() throws Exception {
+        assertTrue(wallet.isTransactionRelevant(createFakeTx(UNITTEST, COIN, myAddress)));
+        assertFalse(wallet.isTransactionRelevant(createFakeTx(UNITTEST, COIN, OTHER_ADDRESS)));
+        // Only the script type of the key chain counts.
+        Transaction segwitTx = createFakeTx(UNITTEST, COIN, SegwitAddress.fromKey(UNITTEST, myKey));
+        assertEquals(segwitTx.getValueSentToMe(wallet).signum() > 0, wallet.isTransactionRelevant(segwitTx));
+
+        Address watchedAddress = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        wallet.addWatchedAddress(watchedAddress);
+        assertTrue(wallet.isTransactionRelevant(createFakeTx(UNITTEST, COIN, watchedAddress)));
+        wallet.removeWatchedAddress(watchedAddress);
+        assertFalse(wallet.isTransactionRelevant(createFakeTx(UNITTEST, COIN, watchedAddress)));
+
+        ECKey importedKey = new ECKey();
+        wallet.importKey(importedKey);
+        assertTrue(wallet.isTransactionRelevant(createFakeTx(UNITTEST, COIN, LegacyAddress.fromKey(UNITTEST, importedKey))));
+
+        // Keys derived after encrypting, beyond the lookahead at the time, are found too.
+        wallet.encrypt(PASSWORD1);
+        Address address = null;
+        for (int i = 0; i < 200; i++)
+            address = wallet.freshReceiveAddress();
+        assertTrue(wallet.isTransactionRelevant(createFakeTx(UNITTEST, COIN, address)));
+        wallet.decrypt(PASSWORD1);
+        assertTrue(wallet.isTransactionRelevant(createFakeTx(UNITTEST, COIN, address)));
+        assertTrue(wallet.isTransactionRelevant(createFakeTx(UNITTEST, COIN, wallet.freshReceiveAddress())));
+    }
+
+    @Test
+    public void parallelSigning() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT, wallet.freshReceiveAddress());
+            sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT, wallet.freshReceiveKey());
+        }
+        wallet.encrypt(PASSWORD1);
+        KeyParameter aesKey = wallet.getKeyCrypter().deriveKey(PASSWORD1);
+
+        SendRequest req = SendRequest.emptyWallet(OTHER_ADDRESS);
+        req.aesKey = aesKey;
+        wallet.completeTx(req);
+        Transaction sequential = req.tx;
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            wallet.setSigningExecutor(executor);
+            req = SendRequest.emptyWallet(OTHER_ADDRESS);
+            req.aesKey = aesKey;
+            wallet.completeTx(req);
+        } finally {
+            executor.shutdown();
+        }
+        Transaction parallel = req.tx;
+        assertEquals(100, parallel.getInputs().size());
+        // Signatures are deterministic, so signing in parallel gives the same transaction.
+        assertArrayEquals(sequential.bitcoinSerialize(), parallel.bitcoinSerialize());
+        for (TransactionInput input : parallel.getInputs())
+            input.verify();
+    }
+
     @Test
     public void removeScriptsBloomFilter() throws Exception {
         List<Address> addressesForRemoval = new ArrayList<>();
@@ -3663,6 +3861,31 @@ public class WalletTest extends TestWithWallet {
         assertTrue(wallet.isConsistent());
     }
 
+    @Test
+    public void doubleSpendsOfForeignOutputsAreRelevant() throws Exception {
+        Transaction tx0 = createFakeTx(UNITTEST);
+        // tx1 spends an output that isn't ours, it is relevant because it pays us
+        Transaction tx1 = new Transaction(UNITTEST);
+        tx1.addInput(tx0.getOutput(0));
+        tx1.addOutput(COIN, myAddress);
+        wallet.receivePending(tx1, null);
+
+        Transaction tx2 = new Transaction(UNITTEST);
+        tx2.addInput(tx0.getOutput(0));
+        tx2.addOutput(COIN, OTHER_ADDRESS);
+        Transaction tx3 = new Transaction(UNITTEST);
+        tx3.addInput(createFakeTx(UNITTEST).getOutput(0));
+        tx3.addOutput(COIN, OTHER_ADDRESS);
+        assertTrue(wallet.isTransactionRelevant(tx2));
+        assertFalse(wallet.isTransactionRelevant(tx3));
+
+        // The index of spent outpoints survives a reload, and goes away with the transactions
+        wallet = roundTrip(wallet);
+        assertTrue(wallet.isTransactionRelevant(tx2));
+        wallet.clearTransactions(0);
+        assertFalse(wallet.isTransactionRelevant(tx2));
+    }
+
     @Test
     public void overridingDeadTxTest() throws Exception {
         Transaction tx0 = createFakeTx(UNITTEST);
@@ -0,0 +1,116 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.examples;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.crypto.HDKeyDerivation;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.utils.BriefLogFormatter;
+import org.bitcoinj.wallet.Wallet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures how long it takes to give blocks to many wallets on one block chain, with and without
+ * {@link AbstractBlockChain#setRelevanceIndexEnabled(boolean)}. Every block pays to a few of the wallets, the rest of
+ * its transactions are foreign to all of them.
+ *
+ * <p>Usage: WalletDispatchBenchmark [wallets] [transactions per block] [blocks]. Defaults to 10000, 1000 and 5.</p>
+ */
+public class WalletDispatchBenchmark {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    // One in this many transactions pays to one of the wallets.
+    private static final int RELEVANT_EVERY = 20;
+
+    public static void main(String[] args) throws Exception {
+        BriefLogFormatter.initWithSilentBitcoinJ();
+        int numWallets = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int txsPerBlock = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int numBlocks = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        Context context = new Context(PARAMS);
+        Random random = new Random(1);
+
+        System.out.println("Creating " + numWallets + " wallets...");
+        long start = System.currentTimeMillis();
+        List<Wallet> wallets = new ArrayList<>(numWallets);
+        List<Address> addresses = new ArrayList<>(numWallets);
+        for (int i = 0; i < numWallets; i++) {
+            // Not from a mnemonic seed, as deriving the seed takes most of the time.
+            byte[] seed = new byte[32];
+            random.nextBytes(seed);
+            Wallet wallet = Wallet.fromSpendingKey(PARAMS, HDKeyDerivation.createMasterPrivateKey(seed),
+                    Script.ScriptType.P2PKH);
+            // Derives the lookahead keys, as a peer group would.
+            wallet.getBloomFilter(0.001);
+            addresses.add(wallet.currentReceiveAddress());
+            wallets.add(wallet);
+        }
+        System.out.println("...took " + (System.currentTimeMillis() - start) + " ms");
+
+        MemoryBlockStore store = new MemoryBlockStore(PARAMS);
+        BlockChain chain = new BlockChain(context, wallets, store);
+        Block prev = PARAMS.getGenesisBlock();
+        for (boolean indexed : new boolean[] { false, true }) {
+            start = System.currentTimeMillis();
+            chain.setRelevanceIndexEnabled(indexed);
+            long indexing = System.currentTimeMillis() - start;
+            long elapsed = 0;
+            for (int i = 0; i < numBlocks; i++) {
+                Block block = createBlock(prev, txsPerBlock, addresses, random);
+                start = System.nanoTime();
+                chain.add(block);
+                elapsed += System.nanoTime() - start;
+                prev = block;
+            }
+            System.out.printf("%s: %.1f ms per block of %d transactions for %d wallets%n",
+                    indexed ? "Relevance index" : "Every wallet", elapsed / 1e6 / numBlocks, txsPerBlock, numWallets);
+            if (indexed)
+                System.out.println("Building the index took " + indexing + " ms");
+        }
+
+        Coin total = Coin.ZERO;
+        for (Wallet wallet : wallets)
+            total = total.add(wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        System.out.println("Wallets received " + total.toFriendlyString());
+    }
+
+    private static Block createBlock(Block prev, int numTransactions, List<Address> addresses, Random random) {
+        Block block = prev.createNextBlock(null);
+        for (int i = 0; i < numTransactions; i++) {
+            Transaction tx = new Transaction(PARAMS);
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            tx.addInput(new TransactionInput(PARAMS, tx, new byte[0],
+                    new TransactionOutPoint(PARAMS, 0, Sha256Hash.wrap(hash))));
+            if (i % RELEVANT_EVERY == 0) {
+                tx.addOutput(Coin.CENT, addresses.get(random.nextInt(addresses.size())));
+            } else {
+                byte[] pubKeyHash = new byte[20];
+                random.nextBytes(pubKeyHash);
+                tx.addOutput(Coin.CENT, ScriptBuilder.createP2PKHOutputScript(pubKeyHash));
+            }
+            block.addTransaction(tx);
+        }
+        block.solve();
+        return block;
+    }
+}
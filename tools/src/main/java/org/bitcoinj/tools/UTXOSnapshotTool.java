@@ -0,0 +1,75 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.tools;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.params.TestNet3Params;
+import org.bitcoinj.store.*;
+import com.google.common.base.Preconditions;
+
+import java.io.*;
+
+/** Very thin wrapper around {@link UTXOSnapshot} */
+public class UTXOSnapshotTool {
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: UTXOSnapshotTool (prod|test) (export|import) (H2|LevelDB|SegmentLog) blockStore snapshot [hash]");
+        System.out.println("       eg UTXOSnapshotTool prod export H2 /home/user/bitcoinj.h2store utxo.snapshot");
+        System.out.println("       Import needs an empty store, and checks the snapshot against the given hash, as");
+        System.out.println("       printed by an export you trust");
+        Preconditions.checkArgument(args.length == 5 || (args.length == 6 && args[1].equals("import")));
+
+        NetworkParameters params;
+        if (args[0].equals("test"))
+            params = TestNet3Params.get();
+        else
+            params = MainNetParams.get();
+        new Context(params);
+
+        OrderedFullPrunedBlockStore store;
+        if (args[2].equals("H2")) {
+            store = new H2FullPrunedBlockStore(params, args[3], 100);
+        } else if (args[2].equals("LevelDB")) {
+            store = new LevelDBFullPrunedBlockStore(params, args[3], 100);
+        } else if (args[2].equals("SegmentLog")) {
+            store = new SegmentLogFullPrunedBlockStore(params, new File(args[3]), 100);
+        } else {
+            System.err.println("Unknown store " + args[2]);
+            return;
+        }
+
+        try {
+            if (args[1].equals("export")) {
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(args[4]))) {
+                    Sha256Hash hash = UTXOSnapshot.exportSnapshot(store, out);
+                    System.out.println("Snapshot at height " + store.getVerifiedChainHead().getHeight() + ": " + hash);
+                }
+            } else if (args[1].equals("import")) {
+                Preconditions.checkArgument(args.length == 6, "Import needs the snapshot hash");
+                Sha256Hash hash = Sha256Hash.wrap(args[5]);
+                try (InputStream in = new BufferedInputStream(new FileInputStream(args[4]))) {
+                    StoredBlock head = UTXOSnapshot.importSnapshot(store, in, hash);
+                    System.out.println("Imported snapshot at height " + head.getHeight());
+                }
+            } else {
+                System.err.println("Unknown command " + args[1]);
+            }
+        } finally {
+            store.close();
+        }
+    }
+}